@@ -0,0 +1,89 @@
+package io.github.danielharada.benchmarks;
+
+import io.github.danielharada.Constants;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Canned datastore rows for benchmarks, generated the same way on every run from a fixed seed.  Every row in a
+ * dataset has its own STB, so keys never collide unless a benchmark reuses them on purpose.  TITLE is picked by
+ * the STB number, so rows generated again for the same STBs have the same keys, with new values from their seed.
+ * REV is spread evenly between 0.00 and 99.99, so a filter of REV<N.00 matches about N percent of rows.
+ */
+public class Dataset {
+
+    private final static String[] providers = {"warner bros", "buena vista", "fox", "universal"};
+    private final static int titleCount = 50;
+    private final static long seed = 20140401L;
+
+    /**
+     * @param rowCount number of rows to generate
+     * @param titleLength length of every TITLE value, which sets how long each row is
+     * @return pipe delimited datastore lines, all dated 2014-04-01
+     */
+    public static List<String> rows(int rowCount, int titleLength){
+        return rows(0, rowCount, titleLength, seed);
+    }
+
+    /**
+     * @param firstStb STB number of the first row, with each row after it taking the next number
+     * @param rowCount number of rows to generate
+     * @param titleLength length of every TITLE value, at most Constants.titleMaxLength
+     * @param rowSeed seed for the random PROVIDER, REV and VIEW_TIME values
+     * @return pipe delimited datastore lines, all dated 2014-04-01
+     */
+    public static List<String> rows(int firstStb, int rowCount, int titleLength, long rowSeed){
+        Random random = new Random(rowSeed);
+        String[] titles = titles(titleLength);
+        List<String> rowEntries = new ArrayList<>(rowCount);
+        for(int i = 0; i < rowCount; i++){
+            rowEntries.add(String.format("stb%d|%s|%s|2014-04-01|%d.%02d|%d:%02d", firstStb + i,
+                    titles[(firstStb + i) % titles.length], providers[random.nextInt(providers.length)],
+                    random.nextInt(100), random.nextInt(100), random.nextInt(4), random.nextInt(60)));
+        }
+        return rowEntries;
+    }
+
+    /**
+     * Writes rows out as a text partition
+     * @param partition path of the file to write
+     */
+    public static void write(Path partition, List<String> rowEntries) throws IOException {
+        Files.write(partition, rowEntries, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Removes a benchmark's temporary directory along with everything under it
+     */
+    public static void delete(Path directory) throws IOException {
+        if(Files.isDirectory(directory)){
+            try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)){
+                for(Path file : directoryStream){
+                    delete(file);
+                }
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    private static String[] titles(int titleLength){
+        int length = Math.min(Math.max(titleLength, 4), Constants.titleMaxLength);
+        String[] titles = new String[titleCount];
+        for(int i = 0; i < titles.length; i++){
+            char[] title = new char[length];
+            Arrays.fill(title, (char) ('a' + i % 26));
+            String number = Integer.toString(i);
+            number.getChars(0, number.length(), title, 0);
+            titles[i] = new String(title);
+        }
+        return titles;
+    }
+}
@@ -0,0 +1,61 @@
+package io.github.danielharada.benchmarks;
+
+import io.github.danielharada.ArgumentFlags;
+import io.github.danielharada.query.Query;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query.queryFilter checked against every row, with filters matching a given percentage of rows.  Scores are rows
+ * per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterBenchmark {
+
+    private final static int rowCount = 10000;
+
+    @Param({"1", "10", "50", "100"})
+    public int selectivity;
+
+    @Param({"8", "64"})
+    public int titleLength;
+
+    private Query query;
+    private List<String> rowEntries;
+
+    @Setup
+    public void setup(){
+        query = new Query(new ArgumentFlags(new String[]{"-q", "-s", "STB", "-f", "REV<" + selectivity + ".00"}));
+        rowEntries = Dataset.rows(rowCount, titleLength);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(rowCount)
+    public int queryFilter(){
+        int matches = 0;
+        for(String rowEntry : rowEntries){
+            if(query.queryFilter(rowEntry)){
+                matches++;
+            }
+        }
+        return matches;
+    }
+}
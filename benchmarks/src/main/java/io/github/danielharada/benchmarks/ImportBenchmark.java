@@ -0,0 +1,70 @@
+package io.github.danielharada.benchmarks;
+
+import io.github.danielharada.dataimport.FileParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per row work done on every imported line: validating it, and pulling out its key and date.  Scores are rows
+ * per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImportBenchmark {
+
+    private final static int rowCount = 10000;
+
+    @Param({"8", "64"})
+    public int titleLength;
+
+    private FileParser fileParser;
+    private List<String> rowEntries;
+
+    @Setup
+    public void setup(){
+        fileParser = new FileParser();
+        rowEntries = Dataset.rows(rowCount, titleLength);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(rowCount)
+    public void validateEntryFormat(Blackhole blackhole){
+        for(String rowEntry : rowEntries){
+            blackhole.consume(fileParser.validateEntryFormat(rowEntry));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(rowCount)
+    public void parseKey(Blackhole blackhole){
+        for(String rowEntry : rowEntries){
+            blackhole.consume(fileParser.parseKey(rowEntry));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(rowCount)
+    public void parseDate(Blackhole blackhole){
+        for(String rowEntry : rowEntries){
+            blackhole.consume(fileParser.parseDate(rowEntry));
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.github.danielharada.benchmarks;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.dataimport.FileParser;
+import io.github.danielharada.dataimport.PartitionMerger;
+import io.github.danielharada.dataimport.SegmentCompactor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging an import of a tenth of a partition's size into it, the work FileParser.mergeEntries hands over to, both
+ * as a rewrite of the partition and as a delta segment written over it.  Some share of the imported keys already
+ * exist in the partition and replace their rows.  Each invocation starts again from the same base partition.
+ * Scores are merges per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark {
+
+    @Param({"10000", "100000"})
+    public int partitionRows;
+
+    @Param({"0", "50", "100"})
+    public int overlapPercent;
+
+    @Param({"16"})
+    public int titleLength;
+
+    private Path directory;
+    private Path basePartition;
+    private Path partition;
+    private List<String> importedRows;
+    private FileParser fileParser;
+    private PartitionMerger partitionMerger;
+    private SegmentCompactor segmentCompactor;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("merge-benchmark");
+        basePartition = directory.resolve("base");
+        partition = directory.resolve("2014-04-01");
+        long memoryLimit = Constants.defaultMemoryLimitMB * 1024 * 1024;
+        fileParser = new FileParser(memoryLimit);
+        partitionMerger = new PartitionMerger(fileParser, memoryLimit);
+        segmentCompactor = new SegmentCompactor(fileParser, memoryLimit, Constants.compactionTierSegments,
+                Constants.compactionBaseRatioPercent, null);
+
+        // The base partition is sorted and indexed, as if an earlier import had written it
+        List<String> baseRows = Dataset.rows(partitionRows, titleLength);
+        baseRows.sort(Comparator.comparing(fileParser::parseKey));
+        Dataset.write(basePartition, baseRows);
+        fileParser.buildKeyFilter(basePartition);
+        fileParser.buildSparseIndex(basePartition);
+
+        // Overlapping rows reuse the keys at the start of the partition with new values, the rest get new STBs
+        int importCount = partitionRows / 10;
+        int overlapCount = importCount * overlapPercent / 100;
+        importedRows = new ArrayList<>(Dataset.rows(0, overlapCount, titleLength, 1));
+        importedRows.addAll(Dataset.rows(partitionRows, importCount - overlapCount, titleLength, 2));
+    }
+
+    @Setup(Level.Invocation)
+    public void resetPartition() throws IOException {
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)){
+            for(Path file : directoryStream){
+                if(!file.getFileName().toString().startsWith(basePartition.getFileName().toString())){
+                    Dataset.delete(file);
+                }
+            }
+        }
+        // Keeping the modified time keeps the copied key filter and sparse index valid for the copy
+        for(String suffix : new String[]{"", Constants.keyFilterSuffix, Constants.sparseIndexSuffix}){
+            Files.copy(basePartition.resolveSibling(basePartition.getFileName() + suffix),
+                    partition.resolveSibling(partition.getFileName() + suffix), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Dataset.delete(directory);
+    }
+
+    @Benchmark
+    public void mergePartition() throws IOException {
+        partitionMerger.merge(() -> importedRows.stream(), partition);
+    }
+
+    @Benchmark
+    public void writeSegment() throws IOException {
+        segmentCompactor.write(() -> importedRows.stream(), partition);
+    }
+}
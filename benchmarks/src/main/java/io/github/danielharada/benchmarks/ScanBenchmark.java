@@ -0,0 +1,68 @@
+package io.github.danielharada.benchmarks;
+
+import io.github.danielharada.ArgumentFlags;
+import io.github.danielharada.query.Query;
+import io.github.danielharada.storage.PartitionWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A filtered query over one whole partition through Query.readFile, for each partition format and with filters
+ * matching a given percentage of rows.  Scores are partition scans per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+
+    @Param({"10000", "100000"})
+    public int partitionRows;
+
+    @Param({"text", "columnar", "compressed"})
+    public String format;
+
+    @Param({"1", "10", "50", "100"})
+    public int selectivity;
+
+    private Path directory;
+    private Path partition;
+    private Query query;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("scan-benchmark");
+        partition = directory.resolve("2014-04-01");
+        Dataset.write(partition, Dataset.rows(partitionRows, 16));
+        new PartitionWriter().encode(partition, format);
+        query = new Query(new ArgumentFlags(new String[]{"-q", "-s", "STB,TITLE,REV", "-f", "REV<" + selectivity + ".00"}));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Dataset.delete(directory);
+    }
+
+    @Benchmark
+    public void readFile(Blackhole blackhole){
+        query.readFile(partition, blackhole::consume);
+    }
+}
@@ -0,0 +1,96 @@
+package io.github.danielharada.benchmarks;
+
+import io.github.danielharada.query.FieldEntry;
+import io.github.danielharada.query.FieldEntryComparator;
+import io.github.danielharada.query.FieldEntryManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per row work done on every query result: converting it to a FieldEntry, projecting the selected columns and
+ * ordering it, either through FieldEntryComparator directly or through its binary sort keys.  Each sort orders a
+ * fresh copy of the same rows.  Scores are rows per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortBenchmark {
+
+    private final static int rowCount = 10000;
+
+    @Param({"8", "64"})
+    public int titleLength;
+
+    @Param({"STB", "REV,TITLE", "DATE,PROVIDER,TITLE"})
+    public String orderBy;
+
+    private FieldEntryManager fieldEntryManager;
+    private FieldEntryComparator fieldEntryComparator;
+    private List<String> rowEntries;
+    private List<FieldEntry> fieldEntries;
+    private int[] selectedColumns;
+
+    @Setup
+    public void setup(){
+        fieldEntryManager = new FieldEntryManager();
+        fieldEntryComparator = new FieldEntryComparator(orderBy);
+        rowEntries = Dataset.rows(rowCount, titleLength);
+        fieldEntries = fieldEntryManager.convertList(rowEntries);
+        selectedColumns = fieldEntryManager.selectColumns(orderBy);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(rowCount)
+    public void convertRow(Blackhole blackhole){
+        for(String rowEntry : rowEntries){
+            blackhole.consume(fieldEntryManager.convertRow(rowEntry));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(rowCount)
+    public void selectValue(Blackhole blackhole){
+        for(FieldEntry fieldEntry : fieldEntries){
+            for(int column : selectedColumns){
+                blackhole.consume(fieldEntryManager.selectValue(fieldEntry, column));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(rowCount)
+    public List<FieldEntry> compareSort(){
+        List<FieldEntry> sortedEntries = new ArrayList<>(fieldEntries);
+        sortedEntries.sort(fieldEntryComparator);
+        return sortedEntries;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(rowCount)
+    public List<byte[]> sortKeySort(){
+        List<byte[]> sortKeys = new ArrayList<>(fieldEntries.size());
+        for(FieldEntry fieldEntry : fieldEntries){
+            sortKeys.add(fieldEntryComparator.sortKey(fieldEntry));
+        }
+        sortKeys.sort((key, compareKey) -> FieldEntryComparator.compareKeys(key, compareKey, 0));
+        return sortKeys;
+    }
+}
@@ -1,36 +1,124 @@
 package io.github.danielharada;
 
 import io.github.danielharada.dataimport.FileParser;
+import io.github.danielharada.dataimport.SegmentCompactor;
+import io.github.danielharada.dataimport.StreamingImporter;
+import io.github.danielharada.dataimport.WriteAheadLog;
+import io.github.danielharada.loadtest.FeedGenerator;
+import io.github.danielharada.loadtest.LoadTest;
+import io.github.danielharada.metrics.Metrics;
+import io.github.danielharada.query.ExternalSorter;
 import io.github.danielharada.query.FieldEntry;
+import io.github.danielharada.query.FieldEntryComparator;
 import io.github.danielharada.query.FieldEntryManager;
+import io.github.danielharada.query.GroupAggregator;
+import io.github.danielharada.query.KeyLookup;
 import io.github.danielharada.query.Query;
+import io.github.danielharada.query.ResultWriter;
+import io.github.danielharada.query.TopNCollector;
+import io.github.danielharada.server.QueryClient;
+import io.github.danielharada.server.QueryServer;
+import io.github.danielharada.storage.DataRoots;
+import io.github.danielharada.storage.DeltaSegments;
+import io.github.danielharada.storage.Manifest;
+import io.github.danielharada.storage.PartitionCache;
+import io.github.danielharada.storage.PartitionReader;
+import io.github.danielharada.storage.PartitionWriter;
+import io.github.danielharada.storage.SecondaryIndex;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collections;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
 
 public class App {
 
+    private String[] args;
     private FileParser fileParser;
     private ArgumentFlags argFlags;
     private Query query;
     private FieldEntryManager fieldEntryManager;
+    private PartitionReader partitionReader;
+    private SecondaryIndex secondaryIndex;
+    private PrintStream output;
+    private PartitionCache partitionCache;
+    private WriteAheadLog writeAheadLog;
+    private SegmentCompactor segmentCompactor;
+    private Manifest manifest;
+    private boolean maintainDatastore;
 
     public App(String[] args){
-        this.fileParser = new FileParser();
+        this(args, System.out, null, null);
+    }
+
+    /**
+     * @param args command line arguments
+     * @param output stream that query results and messages are written to
+     * @param partitionCache cache of recently read partitions shared with other requests, or null for none
+     * @param writeAheadLog log shared with other requests, whose owner applies it and compacts the datastore in
+     *                      the background, or null to use our own and compact as part of each import
+     */
+    public App(String[] args, PrintStream output, PartitionCache partitionCache, WriteAheadLog writeAheadLog){
+        this.args = args;
+        this.output = output;
+        this.partitionCache = partitionCache;
         this.argFlags =  new ArgumentFlags(args);
-        this.query = new Query(argFlags);
+        this.fileParser = new FileParser(argFlags.getMemoryLimit(), partitionCache, argFlags.getKeyFilterRate());
+        // Without a shared log, nothing else will apply ours or compact segments in the background, so we do it ourselves
+        this.maintainDatastore = writeAheadLog == null;
+        this.writeAheadLog = writeAheadLog != null ? writeAheadLog : new WriteAheadLog(Paths.get(Constants.dataStoreDirectory), fileParser);
+        this.segmentCompactor = new SegmentCompactor(fileParser, argFlags.getMemoryLimit(), argFlags.getCompactSegments(),
+                argFlags.getCompactRatio(), partitionCache);
+        this.manifest = new Manifest(Paths.get(Constants.dataStoreDirectory));
+        this.query = new Query(argFlags, partitionCache, this.writeAheadLog);
         this.fieldEntryManager = new FieldEntryManager();
+        this.partitionReader = new PartitionReader();
+        this.secondaryIndex = new SecondaryIndex();
     }
 
     public static void main( String[] args ){
+        // A thin client just forwards its arguments to a running server and prints what comes back
+        int remoteIndex = Arrays.asList(args).indexOf("--remote");
+        if(remoteIndex >= 0 && remoteIndex + 1 < args.length){
+            if(!isPort(args[remoteIndex + 1])){
+                System.out.printf("Invalid port %s, please choose a port from 1 to %d\n", args[remoteIndex + 1], Constants.maxPort);
+                return;
+            }
+            List<String> remoteArgs = new ArrayList<>(Arrays.asList(args));
+            remoteArgs.subList(remoteIndex, remoteIndex + 2).clear();
+            new QueryClient(Integer.parseInt(args[remoteIndex + 1])).send(remoteArgs, System.out);
+            return;
+        }
         App app = new App(args);
         app.initializeDatastore();
         app.processArgs();
     }
 
+    /**
+     * @return true if the argument is a TCP port a server can listen on
+     */
+    private static boolean isPort(String portArg){
+        try {
+            int port = Integer.parseInt(portArg);
+            return port >= 1 && port <= Constants.maxPort;
+        } catch(NumberFormatException e){
+            return false;
+        }
+    }
+
     /**
      * Creates the datastore directory if it does not already exist.
      */
@@ -43,12 +131,57 @@ public class App {
     }
 
     /**
-     * Selects whether to run the query or file import engine based on the command line arguments
+     * Runs the command given by our arguments, followed by a report of what it did with --stats
      */
     public void processArgs(){
+        Metrics.Snapshot startSnapshot = Metrics.snapshot();
+        // Changes are published as a new manifest version once complete, so queries see all of a change or none of it
+        if(modifiesDatastore()){
+            try {
+                Manifest.WriteLock writeLock = manifest.lockForWriting();
+                try {
+                    runCommand();
+                    manifest.publish();
+                } finally {
+                    writeLock.close();
+                }
+            } catch(IOException e){
+                //TODO: expand logging
+                e.printStackTrace();
+            }
+        }
+        else {
+            runCommand();
+        }
+        // A server carries on in the background, so it has nothing to report yet
+        if(argFlags.getStatsFlag() && !argFlags.getServeFlag()){
+            output.println(Metrics.snapshot().since(startSnapshot));
+        }
+    }
+
+    /**
+     * Selects whether to run the query or file import engine based on the command line arguments
+     */
+    private void runCommand(){
+        // Serve requests from thin clients until the process is stopped
+        if(argFlags.getServeFlag()){
+            if(argFlags.getServePort() < 1 || argFlags.getServePort() > Constants.maxPort){
+                output.printf("Invalid port %d, please choose a port from 1 to %d\n", argFlags.getServePort(), Constants.maxPort);
+                return;
+            }
+            new QueryServer(argFlags).start();
+            return;
+        }
+
+        // Report how well the partition cache is doing, which only exists while serving
+        if(argFlags.getCacheStatsFlag()){
+            output.println(partitionCache == null ? "No partition cache, as we are not running as a server" : partitionCache.stats());
+            return;
+        }
+
         // Do not allow us to try to both import and query at the same time
         if(argFlags.getDataImportFlag() && argFlags.getQueryFlag()){
-            System.out.println("Cannot invoke both the query (-q) and import (-i) options at once, please choose one only");
+            output.println("Cannot invoke both the query (-q) and import (-i) options at once, please choose one only");
         }
 
         // Run the importer if the import flag is true
@@ -56,9 +189,66 @@ public class App {
             importFile(argFlags.getDataImportFile());
         }
 
+        // Merge everything waiting in the write ahead log into the partitions
+        else if(argFlags.getApplyLogFlag()){
+            applyLog();
+            compactDatastore(false);
+        }
+
+        // Fold every delta segment into its partition
+        else if(argFlags.getCompactFlag()){
+            compactDatastore(true);
+        }
+
+        // Rewrite existing partitions into the requested format
+        else if(argFlags.getConvertFlag()){
+            convertDatastore(argFlags.getConvertFormat());
+        }
+
+        // Rebuild the secondary indexes and key filters for existing partitions
+        else if(argFlags.getReindexFlag()){
+            reindexDatastore();
+        }
+
+        // Change the directories partitions are spread across
+        else if(argFlags.getRootsFlag()){
+            setRoots(argFlags.getRootsArgs());
+        }
+
+        // Move every date into the root it belongs in
+        else if(argFlags.getRebalanceFlag()){
+            rebalanceDatastore();
+        }
+
+        // Report each partition's format and how much it compresses its rows
+        else if(argFlags.getStorageStatsFlag()){
+            storageStats();
+        }
+
+        // Fetch a single row by its key
+        else if(argFlags.getGetFlag()){
+            getRow(argFlags.getGetArgs());
+        }
+
+        // Write a synthetic import file
+        else if(argFlags.getGenerateFlag()){
+            generateFile(argFlags.getGenerateFile());
+        }
+
+        // Import a file and time a standard mix of queries against the result
+        else if(argFlags.getLoadTestFlag()){
+            if(argFlags.getLoadTestRuns() < 1 || argFlags.getLoadTestWarmupRuns() < 0){
+                output.println("The --runs option must be at least 1, and --warmup cannot be negative");
+            }
+            else {
+                new LoadTest(args, argFlags.getLoadTestRuns(), argFlags.getLoadTestWarmupRuns(), output)
+                        .run(Paths.get(argFlags.getLoadTestFile()));
+            }
+        }
+
         // If we run a query, we need to have a select argument
         else if(argFlags.getQueryFlag() && !argFlags.getSelectFlag()){
-            System.out.println("A select option (-s) is required when querying");
+            output.println("A select option (-s) is required when querying");
         }
 
         // Run the query engine if query flag is true
@@ -68,32 +258,497 @@ public class App {
 
         //  If we get here we've not chosen to query or to import
         else {
-            System.out.println("Please choose to either run a query (-q) or import new data (-i)");
+            output.println("Please choose to either run a query (-q) or import new data (-i)");
         }
     }
 
+    /**
+     * @return true if our arguments import into or rewrite the datastore, rather than only reading it, in which
+     * case we hold the manifest's write lock while we run.  Imports through the write ahead log only append to
+     * the log, which is safe alongside other changes.
+     */
+    public boolean modifiesDatastore(){
+        return (argFlags.getDataImportFlag() && !argFlags.getWalFlag()) || argFlags.getApplyLogFlag()
+                || argFlags.getCompactFlag() || argFlags.getConvertFlag() || argFlags.getReindexFlag()
+                || argFlags.getRootsFlag() || argFlags.getRebalanceFlag() || argFlags.getLoadTestFlag();
+    }
+
     /**
      * Runs the import engine to read in a data file and store it in our datastore
      * @param sourceFile file to read in
      */
     public void importFile(String sourceFile){
-        Map<String, List<String>> entriesByDate = fileParser.parseInputFile(sourceFile);
-        fileParser.mergeByDate(entriesByDate);
-        fileParser.writeByDate(entriesByDate);
+        try {
+            // Logged imports only append to the write ahead log, which is merged into the partitions later in bulk
+            if(argFlags.getWalFlag()){
+                writeAheadLog.appendFile(Paths.get(sourceFile));
+                if(maintainDatastore && writeAheadLog.size() > Constants.walApplyThresholdMB * 1024 * 1024){
+                    Manifest.WriteLock writeLock = manifest.lockForWriting();
+                    try {
+                        writeAheadLog.apply();
+                        compactDatastore(false);
+                        manifest.publish();
+                    } finally {
+                        writeLock.close();
+                    }
+                }
+                return;
+            }
+            // Logged rows are older than the ones we are importing, so they must reach the partitions first
+            applyLog();
+
+            // The streaming importer never holds more than our memory budget of the source file at once
+            if(argFlags.getStreamImportFlag()){
+                new StreamingImporter(fileParser, argFlags.getMemoryLimit()).importFile(sourceFile);
+            }
+            else {
+                Map<String, List<String>> entriesByDate = fileParser.parseInputFile(sourceFile);
+                fileParser.writeByDate(entriesByDate);
+            }
+            if(maintainDatastore){
+                compactDatastore(false);
+            }
+        } catch(NoSuchFileException e){
+            output.printf("The file %s does not exist\n", sourceFile);
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Merges every row waiting in the write ahead log into its partition
+     */
+    public void applyLog(){
+        try {
+            writeAheadLog.apply();
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compacts the delta segments written over each partition by imports
+     * @param full true to fold every segment into its partition, rather than only where the compaction policy
+     *             calls for it
+     */
+    public void compactDatastore(boolean full){
+        try {
+            segmentCompactor.compactAll(Paths.get(Constants.dataStoreDirectory), full);
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewrites every partition in the datastore, in every root, into the given format
+     * @param format partition format name, either text or columnar
+     */
+    public void convertDatastore(String format){
+        if(!format.equals(Constants.textFormat) && !format.equals(Constants.columnarFormat)
+                && !format.equals(Constants.compressedFormat)){
+            output.printf("Unknown format %s, please choose %s, %s or %s\n", format, Constants.textFormat,
+                    Constants.columnarFormat, Constants.compressedFormat);
+            return;
+        }
+        PartitionWriter partitionWriter = new PartitionWriter();
+        Metrics.Timer convertTimer = Metrics.time(Metrics.Phase.CONVERT);
+        try {
+            for(Path directory : DataRoots.load(Paths.get(Constants.dataStoreDirectory)).directories()){
+                try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)){
+                    for(Path partition : directoryStream){
+                        if(partitionReader.isPartition(partition)){
+                            partitionWriter.convert(partition, format);
+                            if(partitionCache != null){
+                                partitionCache.invalidate(partition);
+                            }
+                            // Index positions differ between formats
+                            secondaryIndex.build(partition);
+                            fileParser.buildKeyFilter(partition);
+                            fileParser.buildSparseIndex(partition);
+                        }
+                    }
+                }
+            }
+        } catch(Exception e){
+            e.printStackTrace();
+        } finally {
+            convertTimer.close();
+        }
+    }
+
+    /**
+     * Rebuilds the secondary index, key filter and sparse index of every partition in the datastore, in every root,
+     * along with the key filters and sparse indexes of their delta segments.  Partitions written before partitions
+     * were kept sorted are sorted first.
+     */
+    public void reindexDatastore(){
+        DeltaSegments deltaSegments = new DeltaSegments();
+        Metrics.Timer reindexTimer = Metrics.time(Metrics.Phase.REINDEX);
+        try {
+            for(Path directory : DataRoots.load(Paths.get(Constants.dataStoreDirectory)).directories()){
+                try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)){
+                    for(Path partition : directoryStream){
+                        if(partitionReader.isPartition(partition)){
+                            // Sorting rewrites the partition along with its key filter and sparse index
+                            if(!fileParser.buildSparseIndex(partition)){
+                                fileParser.sortPartition(partition);
+                                if(partitionCache != null){
+                                    partitionCache.invalidate(partition);
+                                }
+                            }
+                            secondaryIndex.build(partition);
+                            fileParser.buildKeyFilter(partition);
+                        }
+                        else if(deltaSegments.partitionOf(partition) != null){
+                            for(Path segment : deltaSegments.list(deltaSegments.partitionOf(partition))){
+                                fileParser.buildKeyFilter(segment);
+                                fileParser.buildSparseIndex(segment);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch(Exception e){
+            e.printStackTrace();
+        } finally {
+            reindexTimer.close();
+        }
+    }
+
+    /**
+     * Sets the directories partitions are spread across besides the datastore directory, creating any that do not
+     * exist.  Dates already written stay where they are until a rebalance, apart from those in roots being dropped,
+     * which are moved into the roots they now belong in straight away.
+     * @param rootsArgs comma separated list of directories, or none to keep everything in the datastore directory
+     */
+    public void setRoots(String rootsArgs){
+        Path datastoreDirectory = Paths.get(Constants.dataStoreDirectory);
+        List<Path> roots = new ArrayList<>();
+        roots.add(datastoreDirectory);
+        if(!rootsArgs.equals("none")){
+            for(String root : rootsArgs.split(",")){
+                Path rootPath = Paths.get(root.trim());
+                if(root.trim().isEmpty() || roots.contains(rootPath)){
+                    output.printf("Invalid roots %s, please list each directory once, separated by commas\n", rootsArgs);
+                    return;
+                }
+                roots.add(rootPath);
+            }
+        }
+        try {
+            DataRoots oldRoots = DataRoots.load(datastoreDirectory);
+            DataRoots newRoots = new DataRoots(roots);
+            for(Path root : roots){
+                Files.createDirectories(root);
+            }
+            List<Path> droppedRoots = new ArrayList<>(oldRoots.roots());
+            droppedRoots.removeAll(roots);
+            if(!droppedRoots.isEmpty()){
+                // Until their dates are moved out, the dropped roots stay listed so nothing goes missing part way
+                List<Path> bothRoots = new ArrayList<>(roots);
+                bothRoots.addAll(droppedRoots);
+                new DataRoots(bothRoots).write(datastoreDirectory.resolve(Constants.rootsFile));
+                for(Path root : droppedRoots){
+                    for(String date : oldRoots.dates(root)){
+                        if(oldRoots.locate(date).getParent().equals(root)){
+                            newRoots.move(date, root, roots.get(newRoots.place(date)));
+                        }
+                        else {
+                            oldRoots.remove(date, root);
+                        }
+                        if(partitionCache != null){
+                            partitionCache.invalidate(root.resolve(date));
+                        }
+                    }
+                }
+            }
+            newRoots.write(datastoreDirectory.resolve(Constants.rootsFile));
+            output.printf("Data roots are now %s\n", roots);
+            if(roots.size() > 1){
+                output.println("Run --rebalance to move dates already written into the roots they now belong in");
+            }
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Moves every date that is not in the root it belongs in, such as after roots are added, into that root, and
+     * removes any copies of it left in other roots by an interrupted move
+     */
+    public void rebalanceDatastore(){
+        int movedDates = 0;
+        try {
+            DataRoots dataRoots = DataRoots.load(Paths.get(Constants.dataStoreDirectory));
+            Set<String> dates = new TreeSet<>();
+            for(Path directory : dataRoots.directories()){
+                dates.addAll(dataRoots.dates(directory));
+            }
+            for(String date : dates){
+                Path partition = dataRoots.locate(date);
+                Path target = dataRoots.roots().get(dataRoots.place(date));
+                if(!partition.getParent().equals(target)){
+                    dataRoots.move(date, partition.getParent(), target);
+                    movedDates++;
+                    if(partitionCache != null){
+                        partitionCache.invalidate(partition);
+                    }
+                }
+                for(Path directory : dataRoots.directories()){
+                    if(!directory.equals(target)){
+                        dataRoots.remove(date, directory);
+                    }
+                }
+            }
+            output.printf("Moved %d of %d dates across %d roots\n", movedDates, dates.size(), dataRoots.roots().size());
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Prints the format, row count and size of every partition in the datastore, in every root, along with the size
+     * of its rows as text and the ratio between the two, followed by the totals across every partition
+     */
+    public void storageStats(){
+        List<Path> partitions = new ArrayList<>();
+        try(Manifest.Version version = manifest.pin()){
+            for(Path directory : version.roots().directories()){
+                try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)){
+                    for(Path partition : directoryStream){
+                        if(partitionReader.isPartition(partition)){
+                            partitions.add(partition);
+                        }
+                    }
+                }
+            }
+            partitions.sort(Comparator.comparing(partition -> partition.getFileName().toString()));
+            long totalRows = 0;
+            long totalBytes = 0;
+            long totalTextBytes = 0;
+            for(Path partition : partitions){
+                long[] rowsAndTextBytes = partitionReader.measure(partition);
+                long bytes = Files.size(partition);
+                output.printf("%s format=%s rows=%d bytes=%d text_bytes=%d ratio=%.2f\n", partition.getFileName(),
+                        partitionReader.format(partition), rowsAndTextBytes[0], bytes, rowsAndTextBytes[1],
+                        compressionRatio(rowsAndTextBytes[1], bytes));
+                totalRows += rowsAndTextBytes[0];
+                totalBytes += bytes;
+                totalTextBytes += rowsAndTextBytes[1];
+            }
+            output.printf("total partitions=%d rows=%d bytes=%d text_bytes=%d ratio=%.2f\n", partitions.size(),
+                    totalRows, totalBytes, totalTextBytes, compressionRatio(totalTextBytes, totalBytes));
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes a synthetic import file with the row count, size, cardinalities, skew, date span and overwrite ratio
+     * given by our arguments
+     * @param file file to write
+     */
+    public void generateFile(String file){
+        if(argFlags.getStbCount() < 1 || argFlags.getTitleCount() < 1 || argFlags.getProviderCount() < 1
+                || argFlags.getDayCount() < 1){
+            output.println("The --stbs, --titles, --providers and --days options must be at least 1");
+            return;
+        }
+        if(argFlags.getSkew() < 0 || argFlags.getOverwritePercent() < 0 || argFlags.getOverwritePercent() > 100){
+            output.println("The --skew option cannot be negative, and --overwrite must be a percentage from 0 to 100");
+            return;
+        }
+        try {
+            LocalDate.parse(argFlags.getStartDate());
+        } catch(DateTimeParseException e){
+            output.printf("Invalid date %s, please use the format %s\n", argFlags.getStartDate(), Constants.dateFormat);
+            return;
+        }
+        try {
+            long[] rowsAndBytes = new FeedGenerator(argFlags).generate(Paths.get(file));
+            output.printf("Wrote %d rows, %d bytes to %s\n", rowsAndBytes[0], rowsAndBytes[1], file);
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    private double compressionRatio(long textBytes, long bytes){
+        return bytes == 0 ? 1.0 : (double) textBytes / bytes;
+    }
+
+    /**
+     * Looks up the single row stored under a (STB, TITLE, DATE) key and prints it, selecting the -s columns if
+     * given and otherwise every field.  Nothing is printed if there is no such row.
+     * @param keyArgs key to look up, as STB,TITLE,DATE
+     */
+    public void getRow(String keyArgs){
+        // Titles may hold commas themselves, so the key is split on its first and last comma
+        int titleStart = keyArgs.indexOf(',') + 1;
+        int dateStart = keyArgs.lastIndexOf(',') + 1;
+        if(titleStart == 0 || dateStart == titleStart){
+            output.println("A key to get must be given as STB,TITLE,DATE");
+            return;
+        }
+        String date = keyArgs.substring(dateStart);
+        try {
+            LocalDate.parse(date);
+        } catch(DateTimeParseException e){
+            output.printf("Invalid date %s, please use the format %s\n", date, Constants.dateFormat);
+            return;
+        }
+        if(!ResultWriter.isFormat(argFlags.getOutputFormat())){
+            output.printf("Unknown output format %s, please choose %s, %s or %s\n", argFlags.getOutputFormat(),
+                    Constants.csvOutputFormat, Constants.tsvOutputFormat, Constants.jsonLinesOutputFormat);
+            return;
+        }
+        String rowEntry;
+        Metrics.Timer getTimer = Metrics.time(Metrics.Phase.GET);
+        try {
+            rowEntry = new KeyLookup(writeAheadLog).get(keyArgs.substring(0, titleStart - 1),
+                    keyArgs.substring(titleStart, dateStart - 1), date);
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+            return;
+        } finally {
+            getTimer.close();
+        }
+        if(rowEntry == null){
+            return;
+        }
+        int[] selectColumns = fieldEntryManager.selectColumns(argFlags.getSelectFlag() ? argFlags.getSelectArgs()
+                : String.join(",", Constants.fieldNames));
+        ResultWriter resultWriter = resultWriter(selectColumns);
+        FieldEntry fieldEntry = fieldEntryManager.convertRow(rowEntry);
+        String[] values = new String[selectColumns.length];
+        for(int i = 0; i < selectColumns.length; i++){
+            values[i] = fieldEntryManager.selectValue(fieldEntry, selectColumns[i]);
+        }
+        resultWriter.writeRow(values);
+        resultWriter.flush();
     }
 
     /**
      * Runs the query engine, printing the results out to the screen
      */
     public void query(){
-        List<String> rawEntryList = query.readDataStore(Constants.dataStoreDirectory);
-        List<FieldEntry> fieldEntryList = fieldEntryManager.convertList(rawEntryList);
-        // Only try to sort our output if the order flag is true
-        if(argFlags.getOrderFlag()){
-            Collections.sort(fieldEntryList);
-        }
-        List<String> reducedEntryList = fieldEntryManager.selectFields(fieldEntryList, argFlags.getSelectArgs());
-        // Print results to screen
-        reducedEntryList.forEach(entry -> System.out.println(entry.toString()));
+        // Compile the filter before reading anything, so a malformed filter fails fast with a readable message
+        try {
+            query.filterExpression();
+        } catch(RuntimeException e){
+            output.println(e.getMessage());
+            return;
+        }
+        if(!ResultWriter.isFormat(argFlags.getOutputFormat())){
+            output.printf("Unknown output format %s, please choose %s, %s or %s\n", argFlags.getOutputFormat(),
+                    Constants.csvOutputFormat, Constants.tsvOutputFormat, Constants.jsonLinesOutputFormat);
+            return;
+        }
+        // Grouped and aggregate queries fold rows into one accumulator per group as they are scanned
+        if(argFlags.getGroupFlag() || GroupAggregator.hasAggregates(argFlags.getSelectArgs())){
+            GroupAggregator groupAggregator;
+            try {
+                groupAggregator = new GroupAggregator(argFlags.getSelectArgs(), argFlags.getGroupArgs(),
+                        Paths.get(Constants.dataStoreDirectory), argFlags.getMemoryLimit());
+            } catch(IllegalArgumentException e){
+                output.println(e.getMessage());
+                return;
+            }
+            ResultWriter resultWriter = new ResultWriter(output, argFlags.getOutputFormat(),
+                    groupAggregator.columnNames(), groupAggregator.numericColumns());
+            Metrics.Timer scanTimer = Metrics.time(Metrics.Phase.SCAN);
+            try {
+                query.scanDataStore(Constants.dataStoreDirectory, rowEntry -> groupAggregator.add(rowEntry));
+            } finally {
+                scanTimer.close();
+            }
+            Metrics.Timer sortTimer = Metrics.time(Metrics.Phase.SORT);
+            try {
+                groupAggregator.output(argFlags.getOrderFlag() ? argFlags.getOrderArgs() : null, argFlags.getLimit(),
+                        resultRow -> resultWriter.writeRow(resultRow));
+                resultWriter.flush();
+            } finally {
+                sortTimer.close();
+            }
+            return;
+        }
+
+        // Every other query streams its rows straight into a buffered result writer as they are produced
+        int[] selectColumns = fieldEntryManager.selectColumns(argFlags.getSelectArgs());
+        ResultWriter resultWriter = resultWriter(selectColumns);
+        // Rows are always handed over on this thread, so one values array can be reused for every row
+        String[] values = new String[selectColumns.length];
+        Consumer<FieldEntry> output = fieldEntry -> {
+            for(int i = 0; i < selectColumns.length; i++){
+                values[i] = fieldEntryManager.selectValue(fieldEntry, selectColumns[i]);
+            }
+            resultWriter.writeRow(values);
+        };
+
+        // Ordered queries with a limit only need to keep the first N rows seen so far
+        if(argFlags.getOrderFlag() && argFlags.getLimitFlag()){
+            TopNCollector topNCollector = new TopNCollector(argFlags.getLimit(), new FieldEntryComparator(argFlags.getOrderArgs()));
+            Metrics.Timer scanTimer = Metrics.time(Metrics.Phase.SCAN);
+            try {
+                query.scanDataStore(Constants.dataStoreDirectory, rowEntry -> topNCollector.add(rowEntry));
+            } finally {
+                scanTimer.close();
+            }
+            Metrics.Timer sortTimer = Metrics.time(Metrics.Phase.SORT);
+            try {
+                topNCollector.output(output);
+            } finally {
+                sortTimer.close();
+            }
+        }
+        // Ordered queries go through the external sorter so that results larger than memory can spill to disk
+        else if(argFlags.getOrderFlag()){
+            FieldEntryComparator comparator = new FieldEntryComparator(argFlags.getOrderArgs());
+            ExternalSorter sorter = new ExternalSorter(Paths.get(Constants.dataStoreDirectory), argFlags.getMemoryLimit(),
+                    comparator, argFlags.getSortKeyFlag() ? comparator : null);
+            Metrics.Timer scanTimer = Metrics.time(Metrics.Phase.SCAN);
+            try {
+                query.scanDataStore(Constants.dataStoreDirectory, rowEntry -> sorter.add(rowEntry));
+            } finally {
+                scanTimer.close();
+            }
+            Metrics.Timer sortTimer = Metrics.time(Metrics.Phase.SORT);
+            try {
+                sorter.sortAndMerge(output);
+            } finally {
+                sortTimer.close();
+            }
+        }
+        // Any limit is applied by the scan itself, which stops once it has found enough rows
+        else {
+            Metrics.Timer scanTimer = Metrics.time(Metrics.Phase.SCAN);
+            try {
+                query.scanDataStore(Constants.dataStoreDirectory, rowEntry -> output.accept(fieldEntryManager.convertRow(rowEntry)));
+            } finally {
+                scanTimer.close();
+            }
+        }
+        resultWriter.flush();
+    }
+
+    /**
+     * Creates a writer for rows of the selected columns, in our requested output format
+     * @param selectColumns datastore column of each selected field, as given by selectColumns
+     */
+    private ResultWriter resultWriter(int[] selectColumns){
+        String[] columnNames = new String[selectColumns.length];
+        boolean[] numericColumns = new boolean[selectColumns.length];
+        for(int i = 0; i < selectColumns.length; i++){
+            columnNames[i] = selectColumns[i] < 0 ? argFlags.getSelectArgs().split(",")[i] : Constants.fieldNames[selectColumns[i]];
+            numericColumns[i] = selectColumns[i] == 4;
+        }
+        return new ResultWriter(output, argFlags.getOutputFormat(), columnNames, numericColumns);
     }
 }
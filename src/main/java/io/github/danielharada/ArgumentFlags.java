@@ -5,24 +5,103 @@ package io.github.danielharada;
  */
 public class ArgumentFlags {
 
-    private static boolean dataImportFlag;
-    private static String dataImportFile;
-    private static boolean queryFlag;
-    private static boolean selectFlag;
-    private static String selectArgs;
-    private static boolean orderFlag;
-    private static String orderArgs;
-    private static boolean filterFlag;
-    private static String filterArgs;
-
-    public ArgumentFlags(){}
+    private boolean dataImportFlag;
+    private String dataImportFile;
+    private boolean streamImportFlag;
+    private boolean walFlag;
+    private boolean applyLogFlag;
+    private boolean convertFlag;
+    private String convertFormat;
+    private boolean reindexFlag;
+    private boolean storageStatsFlag;
+    private boolean rootsFlag;
+    private String rootsArgs;
+    private boolean rebalanceFlag;
+    private boolean compactFlag;
+    private int compactSegments;
+    private int compactRatio;
+    private double keyFilterRate;
+    private boolean getFlag;
+    private String getArgs;
+    private boolean generateFlag;
+    private String generateFile;
+    private long generateRows;
+    private long generateBytes;
+    private int stbCount;
+    private int titleCount;
+    private int providerCount;
+    private double skew;
+    private int dayCount;
+    private String startDate;
+    private int overwritePercent;
+    private long seed;
+    private boolean loadTestFlag;
+    private String loadTestFile;
+    private int loadTestRuns;
+    private int loadTestWarmupRuns;
+    private boolean queryFlag;
+    private boolean selectFlag;
+    private String selectArgs;
+    private boolean orderFlag;
+    private String orderArgs;
+    private boolean sortKeyFlag;
+    private boolean groupFlag;
+    private String groupArgs;
+    private boolean filterFlag;
+    private String filterArgs;
+    private String outputFormat;
+    private boolean serveFlag;
+    private long cacheLimit;
+    private boolean cacheStatsFlag;
+    private int servePort;
+    private long memoryLimit;
+    private int threadCount;
+    private int limit;
+    private boolean statsFlag;
 
     public ArgumentFlags(String[] args){
         this.dataImportFlag = false;
+        this.streamImportFlag = false;
+        this.walFlag = false;
+        this.applyLogFlag = false;
+        this.convertFlag = false;
+        this.reindexFlag = false;
+        this.storageStatsFlag = false;
+        this.rootsFlag = false;
+        this.rebalanceFlag = false;
+        this.compactFlag = false;
+        this.compactSegments = Constants.compactionTierSegments;
+        this.compactRatio = Constants.compactionBaseRatioPercent;
+        this.keyFilterRate = Constants.defaultKeyFilterRate;
+        this.getFlag = false;
+        this.generateFlag = false;
+        this.generateRows = 0;
+        this.generateBytes = 0;
+        this.stbCount = Constants.defaultGenerateStbs;
+        this.titleCount = Constants.defaultGenerateTitles;
+        this.providerCount = Constants.defaultGenerateProviders;
+        this.skew = Constants.defaultGenerateSkew;
+        this.dayCount = Constants.defaultGenerateDays;
+        this.startDate = Constants.defaultGenerateStartDate;
+        this.overwritePercent = 0;
+        this.seed = 1;
+        this.loadTestFlag = false;
+        this.loadTestRuns = Constants.defaultLoadTestRuns;
+        this.loadTestWarmupRuns = Constants.defaultLoadTestWarmupRuns;
         this.queryFlag = false;
         this.selectFlag = false;
         this.orderFlag = false;
+        this.sortKeyFlag = false;
+        this.groupFlag = false;
         this.filterFlag = false;
+        this.outputFormat = Constants.csvOutputFormat;
+        this.serveFlag = false;
+        this.cacheLimit = Constants.defaultCacheLimitMB * 1024 * 1024;
+        this.cacheStatsFlag = false;
+        this.memoryLimit = Constants.defaultMemoryLimitMB * 1024 * 1024;
+        this.threadCount = 1;
+        this.limit = 0;
+        this.statsFlag = false;
 
         for(int  i = 0; i < args.length; i++){
             if(args[i].equals("-i") || args[i].equals("--import")){
@@ -31,6 +110,119 @@ public class ArgumentFlags {
 
             }
 
+            else if(args[i].equals("--stream")){
+                this.streamImportFlag = true;
+            }
+
+            else if(args[i].equals("--wal")){
+                this.walFlag = true;
+            }
+
+            else if(args[i].equals("--apply-log")){
+                this.applyLogFlag = true;
+            }
+
+            else if(args[i].equals("--convert")){
+                this.convertFlag = true;
+                this.convertFormat = args[i+1];
+            }
+
+            else if(args[i].equals("--reindex")){
+                this.reindexFlag = true;
+            }
+
+            else if(args[i].equals("--storage-stats")){
+                this.storageStatsFlag = true;
+            }
+
+            else if(args[i].equals("--roots")){
+                this.rootsFlag = true;
+                this.rootsArgs = args[i+1];
+            }
+
+            else if(args[i].equals("--rebalance")){
+                this.rebalanceFlag = true;
+            }
+
+            else if(args[i].equals("--compact")){
+                this.compactFlag = true;
+            }
+
+            else if(args[i].equals("--compact-segments")){
+                this.compactSegments = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--compact-ratio")){
+                this.compactRatio = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--bloom-fpr")){
+                this.keyFilterRate = Double.parseDouble(args[i+1]);
+            }
+
+            else if(args[i].equals("--get")){
+                this.getFlag = true;
+                this.getArgs = args[i+1];
+            }
+
+            else if(args[i].equals("--generate")){
+                this.generateFlag = true;
+                this.generateFile = args[i+1];
+            }
+
+            else if(args[i].equals("--rows")){
+                this.generateRows = Long.parseLong(args[i+1]);
+            }
+
+            else if(args[i].equals("--size")){
+                this.generateBytes = Long.parseLong(args[i+1]) * 1024 * 1024;
+            }
+
+            else if(args[i].equals("--stbs")){
+                this.stbCount = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--titles")){
+                this.titleCount = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--providers")){
+                this.providerCount = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--skew")){
+                this.skew = Double.parseDouble(args[i+1]);
+            }
+
+            else if(args[i].equals("--days")){
+                this.dayCount = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--start-date")){
+                this.startDate = args[i+1];
+            }
+
+            else if(args[i].equals("--overwrite")){
+                this.overwritePercent = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--seed")){
+                this.seed = Long.parseLong(args[i+1]);
+            }
+
+            else if(args[i].equals("--load-test")){
+                this.loadTestFlag = true;
+                this.loadTestFile = args[i+1];
+            }
+
+            else if(args[i].equals("--runs")){
+                this.loadTestRuns = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--warmup")){
+                this.loadTestWarmupRuns = Integer.parseInt(args[i+1]);
+            }
+
             else if(args[i].equals("-q") || args[i].equals("--query")){
                 this.queryFlag = true;
             }
@@ -45,10 +237,52 @@ public class ArgumentFlags {
                 this.orderArgs = args[i+1];
             }
 
+            else if(args[i].equals("--sort-keys")){
+                this.sortKeyFlag = true;
+            }
+
+            else if(args[i].equals("-g") || args[i].equals("--group")){
+                this.groupFlag = true;
+                this.groupArgs = args[i+1];
+            }
+
             else if(args[i].equals("-f") || args[i].equals("--filter")){
                 this.filterFlag = true;
                 this.filterArgs = args[i+1];
             }
+
+            else if(args[i].equals("--serve")){
+                this.serveFlag = true;
+                this.servePort = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--cache")){
+                this.cacheLimit = Long.parseLong(args[i+1]) * 1024 * 1024;
+            }
+
+            else if(args[i].equals("--cache-stats")){
+                this.cacheStatsFlag = true;
+            }
+
+            else if(args[i].equals("--format")){
+                this.outputFormat = args[i+1];
+            }
+
+            else if(args[i].equals("-m") || args[i].equals("--memory")){
+                this.memoryLimit = Long.parseLong(args[i+1]) * 1024 * 1024;
+            }
+
+            else if(args[i].equals("-t") || args[i].equals("--threads")){
+                this.threadCount = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("-l") || args[i].equals("--limit")){
+                this.limit = Integer.parseInt(args[i+1]);
+            }
+
+            else if(args[i].equals("--stats")){
+                this.statsFlag = true;
+            }
         }
     }
 
@@ -60,6 +294,192 @@ public class ArgumentFlags {
         return dataImportFile;
     }
 
+    public boolean getStreamImportFlag() {
+        return streamImportFlag;
+    }
+
+    /**
+     * @return true to import through the write ahead log rather than merging straight into partitions
+     */
+    public boolean getWalFlag() {
+        return walFlag;
+    }
+
+    public boolean getApplyLogFlag() {
+        return applyLogFlag;
+    }
+
+    public boolean getConvertFlag() {
+        return convertFlag;
+    }
+
+    public String getConvertFormat() {
+        return convertFormat;
+    }
+
+    public boolean getReindexFlag() {
+        return reindexFlag;
+    }
+
+    public boolean getStorageStatsFlag() {
+        return storageStatsFlag;
+    }
+
+    public boolean getRootsFlag() {
+        return rootsFlag;
+    }
+
+    public String getRootsArgs() {
+        return rootsArgs;
+    }
+
+    public boolean getRebalanceFlag() {
+        return rebalanceFlag;
+    }
+
+    public boolean getCompactFlag() {
+        return compactFlag;
+    }
+
+    /**
+     * @return number of consecutive delta segments in one size tier which compaction merges together
+     */
+    public int getCompactSegments() {
+        return compactSegments;
+    }
+
+    /**
+     * @return size of a partition's delta segments, as a percentage of the partition, at which compaction folds
+     * them into the partition
+     */
+    public int getCompactRatio() {
+        return compactRatio;
+    }
+
+    /**
+     * @return false positive rate of the key filters built for partitions and delta segments
+     */
+    public double getKeyFilterRate() {
+        return keyFilterRate;
+    }
+
+    public boolean getGetFlag() {
+        return getFlag;
+    }
+
+    /**
+     * @return the key to look up, as STB,TITLE,DATE
+     */
+    public String getGetArgs() {
+        return getArgs;
+    }
+
+    public boolean getGenerateFlag() {
+        return generateFlag;
+    }
+
+    /**
+     * @return file to write a generated import file to
+     */
+    public String getGenerateFile() {
+        return generateFile;
+    }
+
+    /**
+     * @return number of rows to generate, or 0 for no row limit
+     */
+    public long getGenerateRows() {
+        return generateRows;
+    }
+
+    /**
+     * @return size in bytes to generate, or 0 for no size limit
+     */
+    public long getGenerateBytes() {
+        return generateBytes;
+    }
+
+    /**
+     * @return number of distinct STBs in generated rows
+     */
+    public int getStbCount() {
+        return stbCount;
+    }
+
+    /**
+     * @return number of distinct titles in generated rows
+     */
+    public int getTitleCount() {
+        return titleCount;
+    }
+
+    /**
+     * @return number of distinct providers in generated rows
+     */
+    public int getProviderCount() {
+        return providerCount;
+    }
+
+    /**
+     * @return Zipf exponent of the STB and title distributions in generated rows, 0 for uniform
+     */
+    public double getSkew() {
+        return skew;
+    }
+
+    /**
+     * @return number of days the dates of generated rows are spread over
+     */
+    public int getDayCount() {
+        return dayCount;
+    }
+
+    /**
+     * @return earliest date of generated rows, as YYYY-MM-DD
+     */
+    public String getStartDate() {
+        return startDate;
+    }
+
+    /**
+     * @return percentage of generated rows which repeat the key of a recent row
+     */
+    public int getOverwritePercent() {
+        return overwritePercent;
+    }
+
+    /**
+     * @return seed for generated rows, so the same settings always generate the same file
+     */
+    public long getSeed() {
+        return seed;
+    }
+
+    public boolean getLoadTestFlag() {
+        return loadTestFlag;
+    }
+
+    /**
+     * @return file to import at the start of a load test
+     */
+    public String getLoadTestFile() {
+        return loadTestFile;
+    }
+
+    /**
+     * @return number of timed runs of each query in a load test
+     */
+    public int getLoadTestRuns() {
+        return loadTestRuns;
+    }
+
+    /**
+     * @return number of untimed runs of each query in a load test, before its timed runs
+     */
+    public int getLoadTestWarmupRuns() {
+        return loadTestWarmupRuns;
+    }
+
     public boolean getQueryFlag() {
         return queryFlag;
     }
@@ -80,6 +500,21 @@ public class ArgumentFlags {
         return orderArgs;
     }
 
+    /**
+     * @return true if ordered queries should sort on normalized binary sort keys rather than comparing fields
+     */
+    public boolean getSortKeyFlag() {
+        return sortKeyFlag;
+    }
+
+    public boolean getGroupFlag() {
+        return groupFlag;
+    }
+
+    public String getGroupArgs() {
+        return groupArgs;
+    }
+
     public boolean getFilterFlag() {
         return filterFlag;
     }
@@ -87,4 +522,65 @@ public class ArgumentFlags {
     public String getFilterArgs() {
         return filterArgs;
     }
+
+    public boolean getServeFlag() {
+        return serveFlag;
+    }
+
+    /**
+     * @return localhost port to accept requests on when running as a server
+     */
+    public int getServePort() {
+        return servePort;
+    }
+
+    /**
+     * @return memory budget in bytes for a server's cache of recently read partitions
+     */
+    public long getCacheLimit() {
+        return cacheLimit;
+    }
+
+    public boolean getCacheStatsFlag() {
+        return cacheStatsFlag;
+    }
+
+    /**
+     * @return format to write query results in, csv unless --format was passed
+     */
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * @return memory budget in bytes for operations which can spill to disk, e.g. ordering query results
+     */
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * @return number of worker threads used to scan partitions during a query
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public boolean getLimitFlag() {
+        return limit > 0;
+    }
+
+    /**
+     * @return maximum number of rows a query should return, or 0 for no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return true to follow the command's output with its row counters and phase timings
+     */
+    public boolean getStatsFlag() {
+        return statsFlag;
+    }
 }
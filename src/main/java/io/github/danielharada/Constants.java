@@ -9,10 +9,81 @@ public class Constants {
     public final static String inputDelimiter = "|";  // For use when not going through String.split()
     public final static String escapedInputDelimiter = "\\|";  // String.split() requires escaped pipe due to regex
     public final static String outputDelimiter = ",";  // We want to print query results comma delimited
+    public final static int fieldCount = 6;  // STB|TITLE|PROVIDER|DATE|REV|VIEW_TIME
+    public final static String[] fieldNames = {"stb", "title", "provider", "date", "rev", "view_time"};  // In datastore order
+    public final static String textFormat = "text";  // Pipe delimited partition format
+    public final static String columnarFormat = "columnar";  // Binary columnar partition format, see ColumnarFormat
+    public final static String compressedFormat = "compressed";  // Block compressed text partition format, see CompressedFormat
+    public final static int compressionBlockBytes = 1 << 16;  // Compressed partitions hold about this many bytes of lines per block
     public final static int stbMaxLength = 64;
     public final static int titleMaxLength = 64;
     public final static int providerMaxLength = 64;
     public final static String dateFormat = "YYYY-MM-DD";  // Must update validateEntryFormat method if this changes
     public final static String revFormat = "1.00"; // Must update validateEntryFormat method if this changes
     public final static String viewtimeFormat = "H:mm";  // Must update validateEntryFormat if this changes
+    public final static long defaultMemoryLimitMB = 256;  // Used when no -m option is passed in
+    public final static String sortTempPrefix = ".sort-";  // Spilled sort runs live in a temp directory with this prefix
+    public final static int sortEntryOverhead = 192;  // Estimated bytes per FieldEntry on top of its raw row length
+    public final static String mergeTempPrefix = ".merge-";  // Partitions are rebuilt in a temp directory with this prefix
+    public final static int mergeEntryOverhead = 128;  // Estimated bytes per imported key on top of its string lengths
+    public final static String importTempPrefix = ".import-";  // Streaming imports spill per date files into a temp directory with this prefix
+    public final static int importEntryOverhead = 64;  // Estimated bytes per buffered import row on top of its length
+    public final static String indexSuffix = ".idx";  // Secondary indexes are stored next to their partition as {date}.idx
+    public final static int scanBlockSize = 1 << 20;  // Text partitions are read this many bytes at a time, or more for a longer line
+    public final static String convertTempPrefix = ".convert-";  // Partitions are re-encoded in a temp directory with this prefix
+    public final static String groupTempPrefix = ".group-";  // Spilled partial aggregates live in a temp directory with this prefix
+    public final static int groupEntryOverhead = 96;  // Estimated bytes per group key and per accumulator
+    public final static int groupSpillBuckets = 16;  // Number of hash buckets partial aggregates are spilled into
+    public final static String csvOutputFormat = "csv";  // Query results as comma delimited lines, the default
+    public final static String tsvOutputFormat = "tsv";  // Query results as tab delimited lines
+    public final static String jsonLinesOutputFormat = "jsonl";  // Query results as one JSON object per line
+    public final static int outputBufferSize = 1 << 16;  // Bytes of query results buffered before writing them out
+    public final static long defaultCacheLimitMB = 256;  // Partition cache budget for servers when no --cache option is passed in
+    public final static int cacheEntryOverhead = 256;  // Estimated bytes per cached partition on top of its row bytes
+    public final static String walDirectory = ".wal";  // Write ahead log segments live in this directory under the datastore
+    public final static String walSegmentPrefix = "segment-";  // Log segment files are named with this prefix and a sequence number
+    public final static int walMaxRecordBytes = 1 << 22;  // Large logged imports are split into records of about this size
+    public final static long walApplyThresholdMB = 64;  // Logged imports apply the log to the partitions once it grows past this
+    public final static long walApplyIntervalSeconds = 60;  // How often a server applies the log to the partitions
+    public final static String manifestDirectory = ".manifest";  // Published versions of the datastore's files live in this directory under the datastore
+    public final static String manifestCurrentFile = "CURRENT";  // Holds the number of the newest version, and is replaced by an atomic rename
+    public final static String manifestWriteLockFile = "LOCK";  // Locked by whichever process is changing the datastore
+    public final static String manifestLockSuffix = ".lock";  // Readers lock {version}.lock shared while they read that version
+    public final static String manifestTempPrefix = ".publish-";  // A new CURRENT is written to a temp file with this prefix before it is renamed
+    public final static String manifestLogFile = ".applied-log";  // Holds the number of the last write ahead log segment applied to a version's files
+    public final static String rootsFile = ".roots";  // Lists the data roots after the datastore directory itself, one per line
+    public final static String rootsTempPrefix = ".roots-";  // A new roots file is written to a temp file with this prefix before it is renamed
+    public final static String rebalanceTempPrefix = ".rebalance-";  // Dates moved by a rebalance are copied into a temp directory with this prefix
+    public final static String segmentDirectorySuffix = ".segments";  // Delta segments live next to their partition in {date}.segments
+    public final static String segmentPrefix = "seg-";  // Delta segment files are named with this prefix and a sequence number
+    public final static int compactionTierSegments = 4;  // Consecutive segments in one size tier merged together when no option is passed in
+    public final static int compactionBaseRatioPercent = 50;  // Segments are folded into their partition at this percentage of its size
+    public final static int compactionMaxSegments = 32;  // Segments are folded into their partition once there are more than this many
+    public final static long compactionTierBytes = 1 << 20;  // Segments smaller than this share the lowest size tier
+    public final static int compactionTierFactor = 4;  // Each size tier holds segments this many times larger than the last
+    public final static long compactionIntervalSeconds = 30;  // How often a server compacts delta segments
+    public final static String keyFilterSuffix = ".bloom";  // Key filters are stored next to their partition or segment as {name}.bloom
+    public final static double defaultKeyFilterRate = 0.01;  // Key filter false positive rate when no option is passed in
+    public final static int keyFilterHeadroom = 2;  // Key filters are sized for this many times the keys they start with
+    public final static long keyFilterMinimumKeys = 1024;  // Key filters are sized for at least this many keys
+    public final static String sparseIndexSuffix = ".keys";  // Sparse key indexes are stored next to their partition or segment as {name}.keys
+    public final static int sparseIndexStride = 64;  // Sparse key indexes hold the key and position of every this many rows
+    public final static long mergeSortMinimumRunBytes = 1 << 20;  // Unsorted partitions are sorted in runs of at least this many bytes
+    public final static long defaultGenerateRows = 100000;  // Generated rows when neither --rows nor --size is passed in
+    public final static int defaultGenerateStbs = 10000;  // Distinct STBs in generated rows when no --stbs option is passed in
+    public final static int defaultGenerateTitles = 1000;  // Distinct titles in generated rows when no --titles option is passed in
+    public final static int defaultGenerateProviders = 20;  // Distinct providers in generated rows when no --providers option is passed in
+    public final static double defaultGenerateSkew = 1.0;  // Zipf exponent of generated STBs and titles when no --skew option is passed in
+    public final static int defaultGenerateDays = 30;  // Days generated dates are spread over when no --days option is passed in
+    public final static String defaultGenerateStartDate = "2014-04-01";  // Earliest generated date when no --start-date option is passed in
+    public final static int generateRecentKeys = 4096;  // Overwriting generated rows repeat the key of one of this many recent rows
+    public final static int generateMaxRevCents = 2000;  // Generated REV values are below this many cents
+    public final static int generateMaxViewMinutes = 240;  // Generated VIEW_TIME values are below this many minutes
+    public final static int defaultLoadTestRuns = 100;  // Timed runs of each load test query when no --runs option is passed in, enough for a p99
+    public final static int defaultLoadTestWarmupRuns = 10;  // Untimed runs of each load test query before its timed runs when no --warmup option is passed in
+    public final static int loggedRejectedRows = 10;  // Rows failing validation are counted, but only this many are printed
+    public final static String serverHost = "127.0.0.1";  // Servers only accept requests from the local machine
+    public final static int maxPort = 65535;  // Highest TCP port a server can listen on, the lowest being 1
+    public final static int serverThreadsPerCore = 2;  // Request handling threads per available processor
+    public final static int maxMergeBuckets = 256;  // Upper bound on open bucket files when a merge spills to disk
 }
@@ -1,16 +1,31 @@
 package io.github.danielharada.dataimport;
 
 import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+import io.github.danielharada.storage.DataRoots;
+import io.github.danielharada.storage.KeyFilter;
+import io.github.danielharada.storage.PartitionCache;
+import io.github.danielharada.storage.PartitionReader;
+import io.github.danielharada.storage.SparseIndex;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InterruptedIOException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -21,30 +36,75 @@ import java.util.stream.Stream;
  */
 public class FileParser {
 
+    private SegmentCompactor segmentCompactor;
+    private PartitionCache partitionCache;
+    private PartitionReader partitionReader;
+    private SparseIndex sparseIndex;
+    private double keyFilterRate;
+    private long memoryLimit;
+    private AtomicLong rejectedRows;
+
+    public FileParser(){
+        this(Constants.defaultMemoryLimitMB * 1024 * 1024);
+    }
+
+    /**
+     * @param memoryLimit memory budget in bytes for imported rows being sorted into a delta segment
+     */
+    public FileParser(long memoryLimit){
+        this(memoryLimit, null);
+    }
+
+    /**
+     * @param memoryLimit memory budget in bytes for imported rows being sorted into a delta segment
+     * @param partitionCache cache to drop rewritten partitions from, or null if there is none
+     */
+    public FileParser(long memoryLimit, PartitionCache partitionCache){
+        this(memoryLimit, partitionCache, Constants.defaultKeyFilterRate);
+    }
+
+    /**
+     * @param memoryLimit memory budget in bytes for imported rows being sorted into a delta segment
+     * @param partitionCache cache to drop rewritten partitions from, or null if there is none
+     * @param keyFilterRate false positive rate of the key filters we build for partitions and segments
+     */
+    public FileParser(long memoryLimit, PartitionCache partitionCache, double keyFilterRate){
+        this.partitionReader = new PartitionReader();
+        this.sparseIndex = new SparseIndex();
+        this.keyFilterRate = keyFilterRate;
+        this.memoryLimit = memoryLimit;
+        this.rejectedRows = new AtomicLong();
+        this.partitionCache = partitionCache;
+        this.segmentCompactor = new SegmentCompactor(this, memoryLimit, Constants.compactionTierSegments,
+                Constants.compactionBaseRatioPercent, partitionCache);
+    }
+
     /**
      *  Reads in a file, validate that each row entry matches our expected formats
      *  and creates a map between the date field for each row and its full entry.
      *  Any rows that fail the validation will be dropped.
+     *  @throws NoSuchFileException if the file does not exist
      */
-    public Map<String, List<String>> parseInputFile(String dataImportFile){
-        Map<String, List<String>> entriesByDate = new HashMap<String, List<String>>();
-
+    public Map<String, List<String>> parseInputFile(String dataImportFile) throws IOException {
+        long[] rowCount = {0};
+        Metrics.Timer parseTimer = Metrics.time(Metrics.Phase.PARSE);
         try(Stream<String> fileStream = Files.lines(Paths.get(dataImportFile))){
-            entriesByDate = fileStream.skip(1)  // skip the header row
-                    .filter(rowEntry -> validateEntryFormat(rowEntry))  // filter out entries that don't meet our expected format
+            Metrics.add(Metrics.Counter.BYTES_READ, Files.size(Paths.get(dataImportFile)));
+            return fileStream.skip(1)  // skip the header row
+                    .filter(rowEntry -> {
+                        rowCount[0]++;
+                        return validateEntryFormat(rowEntry);  // filter out entries that don't meet our expected format
+                    })
                     .collect(Collectors.groupingBy(rowEntry -> parseDate(rowEntry)));  // Group by entry's date field
-        } catch(NoSuchFileException e){
-            System.out.printf("The file %s does not exist\n", dataImportFile);
-        } catch (IOException e){
-            // TODO:  apply appropriate logging
-            e.printStackTrace();
+        } finally {
+            Metrics.add(Metrics.Counter.ROWS_READ, rowCount[0]);
+            parseTimer.close();
         }
-
-        return entriesByDate;
     }
 
     /**
-     * Validates that the data we're reading in matches our expected data formats.
+     * Validates that the data we're reading in matches our expected data formats.  Rejected rows are counted
+     * here, while callers count the rows they read in bulk, once per file.
      * @param rowEntry Input file line to validate
      * @return  Boolean indicating whether data is valid or not
      */
@@ -67,7 +127,11 @@ public class FileParser {
                     && fields[5].length() <= 5;
         }
         if (!validRow){
-            // TODO:  implement logging so we don't drop data silently
+            // Every rejected row is counted, but only the first few are printed so a bad file can't flood the output
+            Metrics.increment(Metrics.Counter.ROWS_REJECTED);
+            if(rejectedRows.incrementAndGet() <= Constants.loggedRejectedRows){
+                System.err.printf("Skipping row not in STB|TITLE|PROVIDER|DATE|REV|VIEW_TIME format: %s\n", rowEntry);
+            }
         }
 
         return validRow;
@@ -79,40 +143,104 @@ public class FileParser {
      * @return
      */
     public String parseDate(String rowEntry){
-        return rowEntry.split(Constants.escapedInputDelimiter)[3];
+        return nthField(rowEntry, 3);
     }
 
     /**
-     *  Iterates through the data we have imported by date, for each date we attempt to pull in data from
-     *  the datastore and merge with the imported data.  Any existing data with duplicate keys to the
-     *  imported data will be dropped.
-     * @param entriesByDate a map between dates and a list of entries for that date
+     *  Iterates through the data we have imported by date, merging each date's entries into its datastore file.
+     *  Any existing data with duplicate keys to the imported data will be dropped.
+     * @param entriesByDate map between dates and list of entries to write
+     */
+    public void writeByDate(Map<String, List<String>> entriesByDate){
+        Metrics.Timer mergeTimer = Metrics.time(Metrics.Phase.MERGE);
+        try {
+            writeDates(entriesByDate.keySet(), date -> () -> entriesByDate.get(date).stream());
+        } catch(IOException e){
+            //TODO:  expand logging
+            e.printStackTrace();
+        } finally {
+            mergeTimer.close();
+        }
+    }
+
+    /**
+     * Merges imported data for many dates over their datastore files, as mergeDate does for one.  With several
+     * data roots, each root's dates are merged on a thread of their own, so every drive is written at once, and
+     * our memory budget is split between the threads.
+     * @param dates  dates to merge
+     * @param importedRows  gives the imported data for each date
+     * @throws IOException if any merge failed, once every thread has finished
      */
-    public void mergeByDate(Map<String, List<String>> entriesByDate){
-        // For each date, pull any data that exists for that date already from /var/datastore/{date}
-        entriesByDate.forEach((date,entryList) -> {
-            String dataStoreFile = Constants.dataStoreDirectory.concat("/").concat(date);
-            // If our data store file already exists, we need to merge its content with our newly imported data
-            if(Files.exists(Paths.get(dataStoreFile))){
-                mergeEntries(entryList, dataStoreFile);
+    public void writeDates(Collection<String> dates, Function<String, RowSource> importedRows) throws IOException {
+        DataRoots dataRoots = DataRoots.load(Paths.get(Constants.dataStoreDirectory));
+        Map<Path, List<Path>> partitionsByRoot = new LinkedHashMap<>();
+        for(String date : new TreeSet<>(dates)){
+            Path partition = dataRoots.locate(date);
+            partitionsByRoot.computeIfAbsent(partition.getParent(), root -> new ArrayList<>()).add(partition);
+        }
+        if(partitionsByRoot.size() <= 1){
+            for(List<Path> partitions : partitionsByRoot.values()){
+                for(Path partition : partitions){
+                    segmentCompactor.write(importedRows.apply(partition.getFileName().toString()), partition);
+                }
+            }
+            return;
+        }
+        SegmentCompactor rootCompactor = new SegmentCompactor(this, memoryLimit / partitionsByRoot.size(),
+                Constants.compactionTierSegments, Constants.compactionBaseRatioPercent, partitionCache);
+        ExecutorService executor = Executors.newFixedThreadPool(partitionsByRoot.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for(List<Path> partitions : partitionsByRoot.values()){
+                futures.add(executor.submit(() -> {
+                    for(Path partition : partitions){
+                        rootCompactor.write(importedRows.apply(partition.getFileName().toString()), partition);
+                    }
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            for(Future<?> future : futures){
+                try {
+                    future.get();
+                } catch(ExecutionException e){
+                    if(e.getCause() instanceof IOException){
+                        failure = (IOException) e.getCause();
+                    }
+                    else {
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
             }
-            //persistToDisk(entryList, dataStoreFile);
-        });
+            if(failure != null){
+                throw failure;
+            }
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while merging dates");
+        } finally {
+            executor.shutdown();
+        }
     }
 
     /**
-     * For a single date value, read in that date's datastore file and merge it with our imported data.
+     * For a single date value, merge our imported data with that date's datastore file, creating it if needed.
      * Any existing data with duplicate keys to the imported data will be dropped.
      * @param entryList  imported data
      * @param dataStoreFile  string path to the datastore file for our date
      */
     public void mergeEntries(List<String> entryList, String dataStoreFile){
-        // Create a list of keys from our data import
-        List<String> importKeyList = createKeyList(entryList);
-        try(Stream<String> dataStoreStream = Files.lines(Paths.get(dataStoreFile))){
-            // If the file exists, we need to bring in any entries we aren't updating
-            dataStoreStream.filter(storeEntry -> !importKeyList.contains(parseKey(storeEntry)))
-                    .forEach(storeEntry -> entryList.add(storeEntry));
+        mergeFile(() -> entryList.stream(), Paths.get(dataStoreFile));
+    }
+
+    /**
+     * Merges imported data for a single date into that date's datastore file, creating it if needed.
+     * @param date  date whose datastore file we are merging into
+     * @param importedRows  imported data for that date
+     */
+    public void writeDate(String date, RowSource importedRows){
+        try {
+            mergeDate(date, importedRows);
         } catch(IOException e){
             //TODO:  expand logging
             e.printStackTrace();
@@ -120,47 +248,93 @@ public class FileParser {
     }
 
     /**
-     * Writes our merged data into files by date
-     * @param entriesByDate map between dates and list of entries to write
+     * Merges imported data for a single date over that date's datastore file, passing on any failure rather
+     * than logging it, for callers that must not drop their copy of the data unless the merge succeeded.
+     * The data is written as new delta segments, leaving the datastore file itself for compaction to rewrite.
+     * @param date  date whose datastore file we are merging into
+     * @param importedRows  imported data for that date
+     * @throws IOException if the merge failed, in which case no complete segment was written
      */
-    public void writeByDate(Map<String, List<String>> entriesByDate){
-        entriesByDate.forEach((date, entryList) -> {
-            String dataStoreFile = Constants.dataStoreDirectory.concat("/").concat(date);
-            try {
-                Files.write(Paths.get(dataStoreFile), entryList, StandardCharsets.UTF_8);
-            } catch(Exception e){
-                //TODO:  expand logging
-                e.printStackTrace();
-            }
-        });
+    public void mergeDate(String date, RowSource importedRows) throws IOException {
+        segmentCompactor.write(importedRows, DataRoots.load(Paths.get(Constants.dataStoreDirectory)).locate(date));
+    }
+
+    private void mergeFile(RowSource importedRows, Path dataStoreFile){
+        try {
+            segmentCompactor.write(importedRows, dataStoreFile);
+        } catch(IOException e){
+            //TODO:  expand logging
+            e.printStackTrace();
+        }
     }
 
     /**
-     * Create a list of keys from our list of entries
-     * @param entryList
-     * @return
+     *  Generates the key string to check for each entry.
+     *  Entries are to be unique on the key (STB, Title, Date)
      */
-    public List<String> createKeyList(List<String> entryList){
-        List<String> keyList = new ArrayList<String>();
-        entryList.forEach(entry -> {
-            keyList.add(parseKey(entry));
-        });
+    public String parseKey(String rowEntry){
+        // Walk the delimiters by hand rather than splitting, as this runs for every existing row during a merge
+        int titleStart = rowEntry.indexOf(Constants.inputDelimiter) + 1;
+        int providerStart = rowEntry.indexOf(Constants.inputDelimiter, titleStart) + 1;
+        int dateStart = rowEntry.indexOf(Constants.inputDelimiter, providerStart) + 1;
+        int dateEnd = rowEntry.indexOf(Constants.inputDelimiter, dateStart);
+        return rowEntry.substring(0, providerStart)  // STB and Title fields, with trailing delimiter
+                .concat(rowEntry.substring(dateStart, dateEnd < 0 ? rowEntry.length() : dateEnd));  //  Date field
+    }
 
-        return keyList;
+    /**
+     * Builds or rebuilds the key filter for a partition or segment from every key in it
+     * @param file path to the partition or segment file
+     */
+    public void buildKeyFilter(Path file) throws IOException {
+        long keyCount;
+        try(Stream<String> rowStream = partitionReader.lines(file)){
+            keyCount = rowStream.count();
+        }
+        KeyFilter keyFilter = new KeyFilter(keyCount, keyFilterRate);
+        try(Stream<String> rowStream = partitionReader.lines(file)){
+            rowStream.forEach(rowEntry -> keyFilter.add(parseKey(rowEntry)));
+        }
+        keyFilter.write(file);
     }
 
     /**
-     *  Generates the key string to check for each entry.
-     *  Entries are to be unique on the key (STB, Title, Date)
+     * Builds or rebuilds the sparse index for a partition or segment, if its rows are sorted on their key
+     * @param file path to the partition or segment file
+     * @return true if the file is sorted and was indexed
      */
+    public boolean buildSparseIndex(Path file) throws IOException {
+        return sparseIndex.build(file, this::parseKey);
+    }
 
-    public String parseKey(String rowEntry){
-        String[] fields = rowEntry.split(Constants.escapedInputDelimiter);
-        return fields[0]  // STB field
-                .concat(Constants.inputDelimiter)
-                .concat(fields[1])  // Title field
-                .concat(Constants.inputDelimiter)
-                .concat(fields[3]);  //  Date field
+    /**
+     * Rewrites a partition with its rows sorted on their key, e.g. one written before partitions were kept sorted,
+     * bringing its key filter and sparse index up to date
+     * @param partition path to the partition file
+     */
+    public void sortPartition(Path partition) throws IOException {
+        new PartitionMerger(this, memoryLimit).merge(() -> Stream.empty(), partition);
     }
-}
 
+    /**
+     * @return false positive rate of the key filters we build for partitions and segments
+     */
+    public double getKeyFilterRate(){
+        return keyFilterRate;
+    }
+
+    /**
+     * Pulls out a single field from a row without splitting the whole row
+     * @param rowEntry delimited row
+     * @param fieldIndex zero based index of the field to pull
+     * @return the field value
+     */
+    private String nthField(String rowEntry, int fieldIndex){
+        int start = 0;
+        for(int i = 0; i < fieldIndex; i++){
+            start = rowEntry.indexOf(Constants.inputDelimiter, start) + 1;
+        }
+        int end = rowEntry.indexOf(Constants.inputDelimiter, start);
+        return rowEntry.substring(start, end < 0 ? rowEntry.length() : end);
+    }
+}
@@ -0,0 +1,380 @@
+package io.github.danielharada.dataimport;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+import io.github.danielharada.storage.KeyFilter;
+import io.github.danielharada.storage.PartitionReader;
+import io.github.danielharada.storage.PartitionWriter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Merges newly imported lines into a single date partition, keeping its lines sorted on their (STB, TITLE, DATE)
+ * key so a sparse index can find any one of them.  Imported keys are sorted in memory, and the existing partition
+ * is streamed through a two way merge with them into a new file rather than being read into memory.  The new file
+ * replaces the partition with an atomic rename once it is complete, so an interrupted merge leaves the old
+ * partition intact.  Existing partitions keep their on disk format, while new partitions are written as text.
+ *
+ * If the imported keys for a date do not fit in our memory budget, both the imported and existing lines
+ * are hash partitioned on their key into bucket files and each bucket is merged on its own.  The merged lines
+ * are then put back in key order with an external sort, as are partitions written before they were kept sorted.
+ *
+ * The partition's key filter is then extended with the imported keys, and only rebuilt once it runs out of
+ * capacity, while its sparse index is always rebuilt.
+ */
+public class PartitionMerger {
+
+    private FileParser fileParser;
+    private long memoryLimit;
+    private PartitionReader partitionReader;
+    private PartitionWriter partitionWriter;
+
+    public PartitionMerger(FileParser fileParser, long memoryLimit){
+        this.fileParser = fileParser;
+        this.memoryLimit = memoryLimit;
+        this.partitionReader = new PartitionReader();
+        this.partitionWriter = new PartitionWriter();
+    }
+
+    /**
+     * Merges imported lines into a partition.  Later imported lines win over earlier imported lines with the same
+     * key, and any imported line wins over an existing line with the same key.
+     * @param importedRows lines to import, all of which must belong to this partition's date
+     * @param partition path to the date partition, which does not need to exist yet
+     * @throws IOException if the partition cannot be read or written
+     */
+    public void merge(RowSource importedRows, Path partition) throws IOException {
+        Path tempDirectory = Files.createTempDirectory(partition.getParent(), Constants.mergeTempPrefix);
+        try {
+            Path mergedFile = tempDirectory.resolve(partition.getFileName());
+            boolean existing = Files.exists(partition);
+            KeyFilter keyFilter = existing ? KeyFilter.read(partition) : null;
+            Map<String, String> importedByKey = loadImportedRows(importedRows);
+            boolean sorted = false;
+            if(importedByKey != null){
+                try(BufferedWriter writer = Files.newBufferedWriter(mergedFile, StandardCharsets.UTF_8)){
+                    sorted = mergeSorted(new TreeMap<>(importedByKey), partition, writer);
+                }
+                if(!sorted){
+                    try(BufferedWriter writer = Files.newBufferedWriter(mergedFile, StandardCharsets.UTF_8)){
+                        mergeBucket(importedByKey, partition, writer);
+                    }
+                }
+            }
+            else {
+                spillMerge(importedRows, partition, tempDirectory, mergedFile);
+            }
+            if(!sorted){
+                sortFile(mergedFile, tempDirectory);
+            }
+            if(existing){
+                partitionWriter.encode(mergedFile, partitionReader.format(partition));
+            }
+            Metrics.add(Metrics.Counter.BYTES_WRITTEN, Files.size(mergedFile));
+            Files.move(mergedFile, partition, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            updateKeyFilter(keyFilter, existing, importedByKey, partition);
+            fileParser.buildSparseIndex(partition);
+        } finally {
+            deleteDirectory(tempDirectory);
+        }
+    }
+
+    /**
+     * Two way merges sorted imported lines with the existing lines of a sorted partition, writing out every line
+     * in key order with imported lines replacing existing lines of the same key
+     * @param sortedImports imported lines keyed and sorted on (STB, TITLE, DATE)
+     * @param existingFile existing partition, which does not need to exist
+     * @param writer where merged lines are written
+     * @return false if the existing lines turned out not to be sorted, in which case the merged lines are incomplete
+     */
+    private boolean mergeSorted(TreeMap<String, String> sortedImports, Path existingFile, BufferedWriter writer) throws IOException {
+        Iterator<Map.Entry<String, String>> imported = sortedImports.entrySet().iterator();
+        Map.Entry<String, String> nextImport = imported.hasNext() ? imported.next() : null;
+        if(Files.exists(existingFile)){
+            try(Stream<String> existingStream = partitionReader.lines(existingFile)){
+                String lastKey = null;
+                for(String storeEntry : (Iterable<String>) existingStream::iterator){
+                    String key = fileParser.parseKey(storeEntry);
+                    if(lastKey != null && key.compareTo(lastKey) < 0){
+                        return false;
+                    }
+                    lastKey = key;
+                    while(nextImport != null && nextImport.getKey().compareTo(key) < 0){
+                        writer.write(nextImport.getValue());
+                        writer.newLine();
+                        nextImport = imported.hasNext() ? imported.next() : null;
+                    }
+                    if(nextImport != null && nextImport.getKey().equals(key)){
+                        writer.write(nextImport.getValue());
+                        nextImport = imported.hasNext() ? imported.next() : null;
+                    }
+                    else {
+                        writer.write(storeEntry);
+                    }
+                    writer.newLine();
+                }
+            }
+        }
+        while(nextImport != null){
+            writer.write(nextImport.getValue());
+            writer.newLine();
+            nextImport = imported.hasNext() ? imported.next() : null;
+        }
+        return true;
+    }
+
+    /**
+     * Sorts a file of lines with unique keys on their key, within our memory budget.  Lines are sorted in memory a
+     * budget's worth at a time, and if there is more than one such run the runs are k-way merged back together.
+     * @param file file of lines to sort in place
+     * @param tempDirectory directory to write sorted runs to
+     */
+    private void sortFile(Path file, Path tempDirectory) throws IOException {
+        // Keep runs from getting so small that the merge has more of them open than it can handle
+        long runBytes = Math.max(memoryLimit, Constants.mergeSortMinimumRunBytes);
+        List<Path> runs = new ArrayList<>();
+        TreeMap<String, String> sortedRows = new TreeMap<>();
+        long estimatedBytes = 0;
+        try(Stream<String> lineStream = Files.lines(file, StandardCharsets.UTF_8)){
+            for(String rowEntry : (Iterable<String>) lineStream::iterator){
+                String key = fileParser.parseKey(rowEntry);
+                sortedRows.put(key, rowEntry);
+                estimatedBytes += (rowEntry.length() + key.length()) * 2 + Constants.mergeEntryOverhead;
+                if(estimatedBytes > runBytes){
+                    runs.add(writeRun(sortedRows, tempDirectory.resolve("run-" + runs.size())));
+                    sortedRows.clear();
+                    estimatedBytes = 0;
+                }
+            }
+        }
+        // Everything fit in one run, so it can be written straight back
+        if(runs.isEmpty()){
+            writeRun(sortedRows, file);
+            return;
+        }
+        if(!sortedRows.isEmpty()){
+            runs.add(writeRun(sortedRows, tempDirectory.resolve("run-" + runs.size())));
+        }
+
+        PriorityQueue<RunHead> heads = new PriorityQueue<>((a, b) -> a.key.compareTo(b.key));
+        List<BufferedReader> readers = new ArrayList<>();
+        try {
+            for(Path run : runs){
+                BufferedReader reader = Files.newBufferedReader(run, StandardCharsets.UTF_8);
+                readers.add(reader);
+                RunHead head = new RunHead(reader);
+                if(head.advance()){
+                    heads.add(head);
+                }
+            }
+            try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)){
+                while(!heads.isEmpty()){
+                    RunHead head = heads.poll();
+                    writer.write(head.rowEntry);
+                    writer.newLine();
+                    if(head.advance()){
+                        heads.add(head);
+                    }
+                }
+            }
+        } finally {
+            for(BufferedReader reader : readers){
+                reader.close();
+            }
+        }
+        for(Path run : runs){
+            Files.delete(run);
+        }
+    }
+
+    private Path writeRun(SortedMap<String, String> sortedRows, Path runFile) throws IOException {
+        try(BufferedWriter writer = Files.newBufferedWriter(runFile, StandardCharsets.UTF_8)){
+            for(String rowEntry : sortedRows.values()){
+                writer.write(rowEntry);
+                writer.newLine();
+            }
+        }
+        return runFile;
+    }
+
+    /**
+     * Brings the partition's key filter up to date after a merge, adding the imported keys to the old filter
+     * if it has room for them, and otherwise building a new one from the merged partition
+     * @param keyFilter the partition's filter from before the merge, or null if it had no usable filter
+     * @param existing true if the partition existed before the merge
+     * @param importedByKey imported lines by key, or null if they did not fit in memory
+     */
+    private void updateKeyFilter(KeyFilter keyFilter, boolean existing, Map<String, String> importedByKey, Path partition) throws IOException {
+        if(importedByKey != null && !existing){
+            keyFilter = new KeyFilter(importedByKey.size(), fileParser.getKeyFilterRate());
+        }
+        if(importedByKey != null && keyFilter != null && keyFilter.hasCapacity(importedByKey.size())){
+            importedByKey.keySet().forEach(keyFilter::add);
+            keyFilter.write(partition);
+        }
+        else {
+            fileParser.buildKeyFilter(partition);
+        }
+    }
+
+    /**
+     * Reads the imported lines into a map keyed on (STB, TITLE, DATE), keeping the last line seen for each key.
+     * @return the map of imported lines, or null if they will not fit in our memory budget
+     */
+    private Map<String, String> loadImportedRows(RowSource importedRows) throws IOException {
+        Map<String, String> importedByKey = new LinkedHashMap<>();
+        long estimatedBytes = 0;
+        try(Stream<String> rowStream = importedRows.open()){
+            for(String rowEntry : (Iterable<String>) rowStream::iterator){
+                String key = fileParser.parseKey(rowEntry);
+                // Remove first so a re-imported key moves to the end, preserving last write order
+                if(importedByKey.remove(key) == null){
+                    estimatedBytes += (rowEntry.length() + key.length()) * 2 + Constants.mergeEntryOverhead;
+                    if(estimatedBytes > memoryLimit){
+                        return null;
+                    }
+                }
+                importedByKey.put(key, rowEntry);
+            }
+        }
+        return importedByKey;
+    }
+
+    /**
+     * Writes out the imported lines followed by every existing line whose key was not imported
+     * @param importedByKey imported lines keyed on (STB, TITLE, DATE)
+     * @param existingFile existing lines for the same keyspace, which does not need to exist
+     * @param writer where merged lines are written
+     */
+    private void mergeBucket(Map<String, String> importedByKey, Path existingFile, BufferedWriter writer) throws IOException {
+        for(String rowEntry : importedByKey.values()){
+            writer.write(rowEntry);
+            writer.newLine();
+        }
+        if(!Files.exists(existingFile)){
+            return;
+        }
+        try(Stream<String> existingStream = partitionReader.lines(existingFile)){
+            for(String storeEntry : (Iterable<String>) existingStream::iterator){
+                if(!importedByKey.containsKey(fileParser.parseKey(storeEntry))){
+                    writer.write(storeEntry);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges by first hash partitioning the imported and existing lines on their keys into bucket files, so
+     * that the imported keys of any single bucket fit in memory.  Matching keys always land in the same bucket.
+     */
+    private void spillMerge(RowSource importedRows, Path partition, Path tempDirectory, Path mergedFile) throws IOException {
+        long importedBytes = 0;
+        try(Stream<String> rowStream = importedRows.open()){
+            for(String rowEntry : (Iterable<String>) rowStream::iterator){
+                importedBytes += rowEntry.length() * 4 + Constants.mergeEntryOverhead;
+            }
+        }
+        // Aim for each bucket to use about half of our budget, to allow for uneven hashing
+        int bucketCount = (int) Math.min(Constants.maxMergeBuckets, Math.max(2, importedBytes * 2 / Math.max(memoryLimit, 1) + 1));
+
+        List<Path> importBuckets = writeBuckets(importedRows, tempDirectory, "import-", bucketCount);
+        List<Path> storeBuckets = writeBuckets(() -> Files.exists(partition) ? partitionReader.lines(partition) : Stream.empty(),
+                tempDirectory, "store-", bucketCount);
+
+        try(BufferedWriter writer = Files.newBufferedWriter(mergedFile, StandardCharsets.UTF_8)){
+            for(int i = 0; i < bucketCount; i++){
+                Path importBucket = importBuckets.get(i);
+                Map<String, String> importedByKey = new HashMap<>();
+                try(Stream<String> bucketStream = Files.lines(importBucket, StandardCharsets.UTF_8)){
+                    // Bucket files keep import order, so later lines overwrite earlier ones
+                    bucketStream.forEach(rowEntry -> importedByKey.put(fileParser.parseKey(rowEntry), rowEntry));
+                }
+                mergeBucket(importedByKey, storeBuckets.get(i), writer);
+                Files.delete(importBucket);
+                Files.delete(storeBuckets.get(i));
+            }
+        }
+    }
+
+    /**
+     * Splits lines into bucket files based on the hash of their key
+     * @return list of bucket files, indexed by bucket number
+     */
+    private List<Path> writeBuckets(RowSource rows, Path tempDirectory, String prefix, int bucketCount) throws IOException {
+        List<Path> buckets = new ArrayList<>();
+        List<BufferedWriter> writers = new ArrayList<>();
+        try {
+            for(int i = 0; i < bucketCount; i++){
+                Path bucket = tempDirectory.resolve(prefix + i);
+                buckets.add(bucket);
+                writers.add(Files.newBufferedWriter(bucket, StandardCharsets.UTF_8));
+            }
+            try(Stream<String> rowStream = rows.open()){
+                for(String rowEntry : (Iterable<String>) rowStream::iterator){
+                    BufferedWriter writer = writers.get(Math.floorMod(fileParser.parseKey(rowEntry).hashCode(), bucketCount));
+                    writer.write(rowEntry);
+                    writer.newLine();
+                }
+            }
+        } finally {
+            for(BufferedWriter writer : writers){
+                writer.close();
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * The current line of one sorted run in a k-way merge
+     */
+    private class RunHead {
+        private BufferedReader reader;
+        private String rowEntry;
+        private String key;
+
+        RunHead(BufferedReader reader){
+            this.reader = reader;
+        }
+
+        /**
+         * @return false once the run has no more lines
+         */
+        boolean advance() throws IOException {
+            rowEntry = reader.readLine();
+            key = rowEntry == null ? null : fileParser.parseKey(rowEntry);
+            return rowEntry != null;
+        }
+    }
+
+    /**
+     * Removes a temporary directory along with anything left inside it
+     */
+    private void deleteDirectory(Path directory){
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)){
+            for(Path file : directoryStream){
+                Files.deleteIfExists(file);
+            }
+            Files.deleteIfExists(directory);
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+    }
+}
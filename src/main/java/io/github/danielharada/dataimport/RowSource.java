@@ -0,0 +1,13 @@
+package io.github.danielharada.dataimport;
+
+import java.io.IOException;
+import java.util.stream.Stream;
+
+/**
+ * A re-readable source of datastore lines, such as an in memory list or a spill file on disk.
+ * Each call to open returns a fresh stream over the same lines, in the same order.
+ */
+public interface RowSource {
+
+    Stream<String> open() throws IOException;
+}
@@ -0,0 +1,311 @@
+package io.github.danielharada.dataimport;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+import io.github.danielharada.storage.DataRoots;
+import io.github.danielharada.storage.DeltaSegments;
+import io.github.danielharada.storage.KeyFilter;
+import io.github.danielharada.storage.PartitionCache;
+import io.github.danielharada.storage.SecondaryIndex;
+import io.github.danielharada.storage.SparseIndex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Writes imported rows as delta segments over their date partition, and compacts those segments so queries
+ * don't have to read through too many of them.  Writing a segment only costs the size of the imported rows,
+ * however large the partition already is.
+ *
+ * Compaction is size tiered.  Segments fall into tiers by size, each tier compactionTierFactor times larger than
+ * the last, and once enough consecutive segments share a tier they are merged into one segment of the next tier.
+ * Since segments are sorted on their key, merging a run of them is a streaming k-way merge.  Once the segments
+ * add up to a large enough share of the base partition, or there are too many of them, they are all folded into
+ * the base partition through the normal merge, which rewrites it and its index.
+ *
+ * Compactions always write their output in full before removing their inputs, so a crash part way through just
+ * leaves rows that are read twice with the same result.
+ */
+public class SegmentCompactor {
+
+    private FileParser fileParser;
+    private long memoryLimit;
+    private int tierSegments;
+    private int baseRatioPercent;
+    private PartitionCache partitionCache;
+    private DeltaSegments deltaSegments;
+    private SecondaryIndex secondaryIndex;
+    private SparseIndex sparseIndex;
+
+    /**
+     * @param fileParser parser used to key rows
+     * @param memoryLimit memory budget in bytes for imported rows held while sorting them into a segment
+     * @param tierSegments number of consecutive segments in one size tier that are merged together
+     * @param baseRatioPercent size of all segments, as a percentage of the base partition, at which they are
+     *                         folded into the base partition
+     * @param partitionCache cache to drop rewritten partitions from, or null if there is none
+     */
+    public SegmentCompactor(FileParser fileParser, long memoryLimit, int tierSegments, int baseRatioPercent, PartitionCache partitionCache){
+        this.fileParser = fileParser;
+        this.memoryLimit = memoryLimit;
+        this.tierSegments = Math.max(2, tierSegments);
+        this.baseRatioPercent = baseRatioPercent;
+        this.partitionCache = partitionCache;
+        this.deltaSegments = new DeltaSegments();
+        this.secondaryIndex = new SecondaryIndex();
+        this.sparseIndex = new SparseIndex();
+    }
+
+    /**
+     * Writes imported lines as new delta segments over a partition.  Lines are sorted on their key with later
+     * lines winning over earlier ones, and if they do not fit in our memory budget each budget's worth becomes
+     * its own segment, in import order.
+     * @param importedRows lines to import, all of which must belong to this partition's date
+     * @param partition path to the base partition, which does not need to exist
+     */
+    public void write(RowSource importedRows, Path partition) throws IOException {
+        TreeMap<String, String> sortedRows = new TreeMap<>();
+        long estimatedBytes = 0;
+        try(Stream<String> rowStream = importedRows.open()){
+            for(String rowEntry : (Iterable<String>) rowStream::iterator){
+                String key = fileParser.parseKey(rowEntry);
+                if(sortedRows.put(key, rowEntry) == null){
+                    estimatedBytes += (rowEntry.length() + key.length()) * 2 + Constants.mergeEntryOverhead;
+                    if(estimatedBytes > memoryLimit){
+                        writeSegment(sortedRows, partition);
+                        sortedRows.clear();
+                        estimatedBytes = 0;
+                    }
+                }
+            }
+        }
+        if(!sortedRows.isEmpty()){
+            writeSegment(sortedRows, partition);
+        }
+    }
+
+    /**
+     * Compacts the segments of every partition in a datastore, in each of its roots
+     * @param datastoreDirectory directory holding our partitions, which may list further roots
+     * @param full true to fold every segment into its base partition, rather than only where our policy calls for it
+     */
+    public void compactAll(Path datastoreDirectory, boolean full) throws IOException {
+        List<Path> partitions = new ArrayList<>();
+        for(Path root : DataRoots.load(datastoreDirectory).directories()){
+            try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(root, "*" + Constants.segmentDirectorySuffix)){
+                for(Path segmentDirectory : directoryStream){
+                    Path partition = deltaSegments.partitionOf(segmentDirectory);
+                    if(partition != null){
+                        partitions.add(partition);
+                    }
+                }
+            }
+        }
+        Metrics.Timer compactTimer = Metrics.time(Metrics.Phase.COMPACT);
+        try {
+            for(Path partition : partitions){
+                compact(partition, full);
+            }
+        } finally {
+            compactTimer.close();
+        }
+    }
+
+    /**
+     * Compacts the segments of a single partition
+     * @param partition path to the base partition, which does not need to exist
+     * @param full true to fold every segment into the base partition, rather than only if our policy calls for it
+     */
+    public void compact(Path partition, boolean full) throws IOException {
+        List<Path> segments = deltaSegments.list(partition);
+        if(segments.isEmpty()){
+            return;
+        }
+        long baseBytes = Files.exists(partition) ? Files.size(partition) : 0;
+        if(full || segments.size() > Constants.compactionMaxSegments
+                || deltaSegments.size(partition) * 100 >= baseBytes * baseRatioPercent){
+            foldIntoBase(segments, partition);
+            return;
+        }
+        // A merged run can complete a run in the tier above, so keep going until no tier has enough segments
+        List<Path> run = findRun(segments);
+        while(run != null){
+            mergeRun(run, partition);
+            run = findRun(deltaSegments.list(partition));
+        }
+    }
+
+    /**
+     * Finds the oldest run of consecutive segments that share a size tier and is long enough to merge.  Only
+     * consecutive segments can be merged, so the merged segment can take the run's place in the write order.
+     * @return the run of segments, oldest first, or null if there is none
+     */
+    private List<Path> findRun(List<Path> segments) throws IOException {
+        List<Path> run = new ArrayList<>();
+        int runTier = -1;
+        for(Path segment : segments){
+            int tier = tier(Files.size(segment));
+            if(tier != runTier){
+                if(run.size() >= tierSegments){
+                    return run;
+                }
+                run = new ArrayList<>();
+                runTier = tier;
+            }
+            run.add(segment);
+        }
+        return run.size() >= tierSegments ? run : null;
+    }
+
+    private int tier(long size){
+        int tier = 0;
+        for(long tierBytes = Constants.compactionTierBytes; size >= tierBytes; tierBytes *= Constants.compactionTierFactor){
+            tier++;
+        }
+        return tier;
+    }
+
+    /**
+     * Merges a run of consecutive segments into one, keeping the newest line for each key.  The merged segment
+     * replaces the newest segment of the run, and only then are the older ones removed.
+     */
+    private void mergeRun(List<Path> run, Path partition) throws IOException {
+        List<BufferedReader> readers = new ArrayList<>();
+        // Heads are ordered by key, then newest segment first, so the first line for a key is the one that wins
+        PriorityQueue<SegmentHead> heads = new PriorityQueue<>((a, b) -> {
+            int compare = a.key.compareTo(b.key);
+            return compare != 0 ? compare : Integer.compare(b.age, a.age);
+        });
+        Path tempSegment = deltaSegments.createTempSegment(partition);
+        try {
+            for(int i = 0; i < run.size(); i++){
+                BufferedReader reader = Files.newBufferedReader(run.get(i), StandardCharsets.UTF_8);
+                readers.add(reader);
+                SegmentHead head = new SegmentHead(reader, i);
+                if(head.advance()){
+                    heads.add(head);
+                }
+            }
+            try(BufferedWriter writer = Files.newBufferedWriter(tempSegment, StandardCharsets.UTF_8)){
+                String lastKey = null;
+                while(!heads.isEmpty()){
+                    SegmentHead head = heads.poll();
+                    if(!head.key.equals(lastKey)){
+                        writer.write(head.rowEntry);
+                        writer.newLine();
+                        lastKey = head.key;
+                    }
+                    if(head.advance()){
+                        heads.add(head);
+                    }
+                }
+            }
+            // Until they are rebuilt, the replaced segment's old filter and index no longer match it and are ignored
+            deltaSegments.replace(tempSegment, run.get(run.size() - 1));
+        } catch(IOException | RuntimeException e){
+            Files.deleteIfExists(tempSegment);
+            throw e;
+        } finally {
+            deltaSegments.close(readers);
+        }
+        for(Path segment : run.subList(0, run.size() - 1)){
+            Files.deleteIfExists(segment);
+            KeyFilter.delete(segment);
+            sparseIndex.delete(segment);
+        }
+        fileParser.buildKeyFilter(run.get(run.size() - 1));
+        fileParser.buildSparseIndex(run.get(run.size() - 1));
+    }
+
+    /**
+     * Merges every segment into the base partition, then removes them.  Segments are read oldest first, so the
+     * merge's later lines winning gives newer segments priority.
+     */
+    private void foldIntoBase(List<Path> segments, Path partition) throws IOException {
+        RowSource segmentRows = () -> segments.stream().flatMap(segment -> {
+            try {
+                return Files.lines(segment, StandardCharsets.UTF_8);
+            } catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            // The merge also brings the partition's key filter and sparse index up to date
+            new PartitionMerger(fileParser, memoryLimit).merge(segmentRows, partition);
+            // Row positions have all moved, so the partition's index is rebuilt from scratch
+            secondaryIndex.build(partition);
+        } catch(UncheckedIOException e){
+            throw e.getCause();
+        } finally {
+            // Cached copies would also be caught by their modified time, but that only has millisecond resolution
+            if(partitionCache != null){
+                partitionCache.invalidate(partition);
+            }
+        }
+        for(Path segment : segments){
+            Files.deleteIfExists(segment);
+            KeyFilter.delete(segment);
+            sparseIndex.delete(segment);
+        }
+    }
+
+    /**
+     * Writes sorted lines as a new segment along with its key filter and sparse index
+     * @param sortedRows lines keyed and sorted on (STB, TITLE, DATE)
+     */
+    private void writeSegment(SortedMap<String, String> sortedRows, Path partition) throws IOException {
+        Path tempSegment = deltaSegments.createTempSegment(partition);
+        try {
+            try(BufferedWriter writer = Files.newBufferedWriter(tempSegment, StandardCharsets.UTF_8)){
+                for(String rowEntry : sortedRows.values()){
+                    writer.write(rowEntry);
+                    writer.newLine();
+                }
+            }
+            Path segment = deltaSegments.publish(partition, tempSegment);
+            KeyFilter keyFilter = new KeyFilter(sortedRows.size(), fileParser.getKeyFilterRate());
+            sortedRows.keySet().forEach(keyFilter::add);
+            keyFilter.write(segment);
+            fileParser.buildSparseIndex(segment);
+        } catch(IOException | RuntimeException e){
+            Files.deleteIfExists(tempSegment);
+            throw e;
+        }
+    }
+
+    /**
+     * The current line of one segment in a k-way merge
+     */
+    private class SegmentHead {
+        private BufferedReader reader;
+        private int age;
+        private String rowEntry;
+        private String key;
+
+        SegmentHead(BufferedReader reader, int age){
+            this.reader = reader;
+            this.age = age;
+        }
+
+        /**
+         * @return false once the segment has no more lines
+         */
+        boolean advance() throws IOException {
+            rowEntry = reader.readLine();
+            key = rowEntry == null ? null : fileParser.parseKey(rowEntry);
+            return rowEntry != null;
+        }
+    }
+}
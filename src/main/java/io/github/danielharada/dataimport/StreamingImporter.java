@@ -0,0 +1,155 @@
+package io.github.danielharada.dataimport;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Imports a file of any size within a fixed memory budget.  Valid rows are routed into per date buffers as the
+ * file is streamed in.  Whenever the buffers fill up they are appended to per date spill files, and once the
+ * whole file has been read each date is merged into its datastore file.  Spill files keep rows in input order,
+ * so the result is the same as FileParser.parseInputFile followed by FileParser.writeByDate.
+ */
+public class StreamingImporter {
+
+    private FileParser fileParser;
+    private long bufferLimit;
+
+    private Map<String, List<String>> buffersByDate;
+    private long bufferedBytes;
+    private Path spillDirectory;
+
+    /**
+     * @param fileParser parser used to validate rows and merge dates into the datastore
+     * @param memoryLimit memory budget in bytes, half of which is used for buffering and half for merging
+     */
+    public StreamingImporter(FileParser fileParser, long memoryLimit){
+        this.fileParser = fileParser;
+        this.bufferLimit = memoryLimit / 2;
+        this.buffersByDate = new HashMap<>();
+        this.bufferedBytes = 0;
+    }
+
+    /**
+     * Streams in a file, validating each row, and merges its rows into the datastore by date.
+     * Any rows that fail the validation will be dropped.
+     * @param dataImportFile file to read in
+     * @throws NoSuchFileException if the file does not exist
+     */
+    public void importFile(String dataImportFile) throws IOException {
+        try {
+            long[] rowCount = {0};
+            Metrics.Timer parseTimer = Metrics.time(Metrics.Phase.PARSE);
+            try(Stream<String> fileStream = Files.lines(Paths.get(dataImportFile))){
+                Metrics.add(Metrics.Counter.BYTES_READ, Files.size(Paths.get(dataImportFile)));
+                fileStream.skip(1)  // skip the header row
+                        .filter(rowEntry -> {
+                            rowCount[0]++;
+                            return fileParser.validateEntryFormat(rowEntry);
+                        })
+                        .forEach(rowEntry -> bufferRow(rowEntry));
+                // Once anything has spilled, move everything to disk so merges get the full budget
+                if(spillDirectory != null){
+                    flushBuffers();
+                }
+            } finally {
+                Metrics.add(Metrics.Counter.ROWS_READ, rowCount[0]);
+                parseTimer.close();
+            }
+            Metrics.Timer mergeTimer = Metrics.time(Metrics.Phase.MERGE);
+            try {
+                mergeDates();
+            } finally {
+                mergeTimer.close();
+            }
+        } finally {
+            deleteSpillFiles();
+        }
+    }
+
+    /**
+     * Adds a row to its date's buffer, flushing every buffer to disk once we reach our budget
+     */
+    private void bufferRow(String rowEntry){
+        buffersByDate.computeIfAbsent(fileParser.parseDate(rowEntry), date -> new ArrayList<>()).add(rowEntry);
+        bufferedBytes += rowEntry.length() * 2 + Constants.importEntryOverhead;
+        if(bufferedBytes >= bufferLimit){
+            try {
+                flushBuffers();
+            } catch(IOException e){
+                throw new RuntimeException("Unable to spill import buffers to " + spillDirectory, e);
+            }
+        }
+    }
+
+    /**
+     * Appends each date's buffered rows onto that date's spill file and empties the buffers
+     */
+    private void flushBuffers() throws IOException {
+        if(spillDirectory == null){
+            spillDirectory = Files.createTempDirectory(Paths.get(Constants.dataStoreDirectory), Constants.importTempPrefix);
+        }
+        for(Map.Entry<String, List<String>> buffer : buffersByDate.entrySet()){
+            Path spillFile = spillDirectory.resolve(buffer.getKey());
+            try(BufferedWriter writer = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)){
+                for(String rowEntry : buffer.getValue()){
+                    writer.write(rowEntry);
+                    writer.newLine();
+                }
+            }
+        }
+        buffersByDate.clear();
+        bufferedBytes = 0;
+    }
+
+    /**
+     * Merges each date we've seen into the datastore, reading from its spill file if it has one
+     */
+    private void mergeDates() throws IOException {
+        if(spillDirectory == null){
+            fileParser.writeDates(buffersByDate.keySet(), date -> () -> buffersByDate.get(date).stream());
+            buffersByDate.clear();
+            return;
+        }
+        TreeSet<String> dates = new TreeSet<>();
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(spillDirectory)){
+            directoryStream.forEach(spillFile -> dates.add(spillFile.getFileName().toString()));
+        }
+        // Spill files are left for deleteSpillFiles, as dates in different data roots are merged at once
+        fileParser.writeDates(dates, date -> () -> Files.lines(spillDirectory.resolve(date), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Removes our spill directory and anything left inside it
+     */
+    private void deleteSpillFiles(){
+        if(spillDirectory == null){
+            return;
+        }
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(spillDirectory)){
+            for(Path spillFile : directoryStream){
+                Files.deleteIfExists(spillFile);
+            }
+            Files.deleteIfExists(spillDirectory);
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+        spillDirectory = null;
+    }
+}
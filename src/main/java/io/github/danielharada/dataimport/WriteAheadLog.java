@@ -0,0 +1,571 @@
+package io.github.danielharada.dataimport;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+import io.github.danielharada.storage.Manifest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of imported rows, so small frequent imports don't each rewrite whole partitions.  Rows are
+ * appended to the log and made durable with a group commit, where one fsync covers every batch appended by
+ * other threads while the previous fsync was running.  Queries merge the log's rows over the partitions as they
+ * read them, and the log is periodically applied to the partitions in bulk through the normal merge.
+ *
+ * The log lives in the .wal directory of the datastore as numbered segment files, with appends always going to
+ * the newest segment.  Each batch is one record:
+ * <pre>
+ *   record:  payload length (int), CRC32 of the payload (int), payload of UTF-8 lines separated by newlines
+ * </pre>
+ * A record cut short or corrupted by a crash fails its length or checksum check, and the log is read up to the
+ * last good record.  Applying the log first starts a new segment, merges every older segment into the
+ * partitions, publishes a new manifest version of them recording the last segment applied, and only then deletes
+ * them, so a crash part way through an apply just applies them again.
+ *
+ * Readers pin a manifest version first and then read only the segments after the last one applied to it, so
+ * logged rows are only ever laid over files older than them.  Segments are numbered in order and removed oldest
+ * first, so if one a reader needs has gone, a later apply has published its rows in a newer version, and the
+ * reader pins that instead.
+ *
+ * The rows of the segments still waiting are also held in memory for readers, so a server doesn't re-read and
+ * re-parse the whole log for every request.  Our own appends are added as we write them, and a read only parses
+ * what other processes have appended to a segment since we last looked.  Readers are handed a snapshot that is
+ * never changed, with new rows going into copies of just the dates they touch, and an apply drops the lot.
+ * Segment files are locked while appended to or read for an apply, so separate processes can share the log.
+ */
+public class WriteAheadLog {
+
+    private final static int recordHeaderLength = 8;
+
+    private Path logDirectory;
+    private FileParser fileParser;
+    private Manifest manifest;
+
+    private FileChannel channel;
+    private Path segment;
+    private long writtenPosition;
+    private long durablePosition;
+    private boolean syncing;
+    private long generation;  // Bumped each time we switch segments, as positions only mean something within one
+
+    private final Object pendingLock = new Object();
+    private long pendingFirstSegment;  // First segment whose rows we hold, or -1 when we hold none
+    private Map<Long, Long> pendingLengths;  // Length of each segment whose rows we hold, up to its last record we read
+    private Map<String, Map<String, String>> pendingSnapshot;  // Rows we hold by date and key, never changed once built
+    private List<String> unmergedRows;  // Rows we appended since the snapshot was built, in log order
+
+    /**
+     * @param dataStoreDirectory directory holding our partitions, whose .wal directory holds the log
+     * @param fileParser parser used to key rows and to merge applied rows into partitions
+     */
+    public WriteAheadLog(Path dataStoreDirectory, FileParser fileParser){
+        this.logDirectory = dataStoreDirectory.resolve(Constants.walDirectory);
+        this.manifest = new Manifest(dataStoreDirectory);
+        this.fileParser = fileParser;
+        clearPending();
+    }
+
+    /**
+     * Appends a batch of validated rows to the log, returning once they are durable.  Safe to call from many
+     * threads at once, in which case their batches share fsyncs.
+     * @param rowEntries validated datastore lines
+     */
+    public void append(List<String> rowEntries) throws IOException {
+        if(rowEntries.isEmpty()){
+            return;
+        }
+        ByteBuffer record = encode(rowEntries);
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, record.remaining());
+        long end;
+        long appendGeneration;
+        synchronized(this){
+            while(true){
+                openSegment();
+                // Other processes may append to the same segment, so the lock and size check keep records whole
+                FileLock lock = channel.lock();
+                try {
+                    // An apply may have sealed this segment while we waited for the lock, in which case we move on
+                    if(!segment.equals(lastSegment())){
+                        continue;
+                    }
+                    long start = channel.size();
+                    long position = start;
+                    while(record.hasRemaining()){
+                        position += channel.write(record, position);
+                    }
+                    holdAppended(segmentNumber(segment), start, position, rowEntries);
+                    writtenPosition = position;
+                    end = position;
+                    appendGeneration = generation;
+                    break;
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        commit(end, appendGeneration);
+    }
+
+    /**
+     * Appends a file of rows to the log in batches, skipping its header row and any rows that fail validation
+     * @param dataImportFile path to the pipe delimited file to import
+     */
+    public void appendFile(Path dataImportFile) throws IOException {
+        List<String> batch = new ArrayList<>();
+        long batchBytes = 0;
+        long rowCount = 0;
+        Metrics.Timer appendTimer = Metrics.time(Metrics.Phase.WAL_APPEND);
+        try(Stream<String> fileStream = Files.lines(dataImportFile, StandardCharsets.UTF_8)){
+            Metrics.add(Metrics.Counter.BYTES_READ, Files.size(dataImportFile));
+            for(String rowEntry : (Iterable<String>) fileStream.skip(1)::iterator){  // skip the header row
+                rowCount++;
+                if(!fileParser.validateEntryFormat(rowEntry)){
+                    continue;
+                }
+                batch.add(rowEntry);
+                batchBytes += rowEntry.length() + 1;
+                if(batchBytes >= Constants.walMaxRecordBytes){
+                    append(batch);
+                    batch.clear();
+                    batchBytes = 0;
+                }
+            }
+            append(batch);
+        } finally {
+            Metrics.add(Metrics.Counter.ROWS_READ, rowCount);
+            appendTimer.close();
+        }
+    }
+
+    /**
+     * @return total size in bytes of every log segment, i.e. how much is waiting to be applied
+     */
+    public long size() throws IOException {
+        long size = 0;
+        for(Path logSegment : listSegments()){
+            try {
+                size += Files.size(logSegment);
+            } catch(NoSuchFileException e){
+                // Removed by an apply in another process
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Pins the current manifest version of the datastore's files along with the rows waiting in the log that are
+     * newer than them, so the two can be laid over each other without an apply running alongside showing us a row
+     * twice or not at all
+     * @param manifest manifest of the datastore this is the log of
+     * @return the pinned version and its logged rows, released when closed
+     */
+    public View pin(Manifest manifest) throws IOException {
+        long failedVersion = -2;
+        while(true){
+            Manifest.Version version = manifest.pin();
+            Map<String, Map<String, String>> rowsByDate;
+            try {
+                // A version whose segments are gone with nothing newer published, such as after the log was
+                // deleted by hand, has every remaining logged row laid over it
+                rowsByDate = pendingRows(version.number() == failedVersion ? -1 : version.appliedLogSegment());
+            } catch(IOException | RuntimeException e){
+                version.close();
+                throw e;
+            }
+            if(rowsByDate != null){
+                return new View(version, rowsByDate);
+            }
+            failedVersion = version.number();
+            version.close();
+        }
+    }
+
+    /**
+     * Reads the rows waiting in the log that are newer than a manifest version's files
+     * @param appliedSegment last segment applied to the version's files, or -1 to read every segment
+     * @return map from date to that date's logged rows keyed on (STB, TITLE, DATE), keeping the last row for each
+     * key, or null if a segment after appliedSegment has since been applied and removed
+     */
+    public Map<String, Map<String, String>> pendingRows(long appliedSegment) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        long expectedSegment = appliedSegment + 1;
+        for(Path logSegment : listSegments()){
+            long number = segmentNumber(logSegment);
+            if(number <= appliedSegment){
+                continue;
+            }
+            // Every apply leaves a newer segment behind it, so a gap means the segments before it were applied
+            if(appliedSegment >= 0 && number != expectedSegment++){
+                return null;
+            }
+            segments.add(logSegment);
+        }
+        synchronized(pendingLock){
+            if(segments.isEmpty()){
+                clearPending();
+                return pendingSnapshot;
+            }
+            // Anything we hold from before the first segment we need has been applied, or is older than we want
+            if(segmentNumber(segments.get(0)) != pendingFirstSegment){
+                clearPending();
+                pendingFirstSegment = segmentNumber(segments.get(0));
+            }
+            List<String> newRows = unmergedRows;
+            unmergedRows = new ArrayList<>();
+            for(Path logSegment : segments){
+                long number = segmentNumber(logSegment);
+                long length = pendingLengths.getOrDefault(number, 0L);
+                try(FileChannel segmentChannel = FileChannel.open(logSegment, StandardOpenOption.READ)){
+                    // Only records appended by other processes since we last read the segment are new to us
+                    if(segmentChannel.size() > length){
+                        length = readRecords(segmentChannel, length, newRows::add);
+                    }
+                } catch(NoSuchFileException e){
+                    // Applied and removed by another process since we listed it
+                    clearPending();
+                    return appliedSegment >= 0 ? null : pendingRows(appliedSegment);
+                }
+                pendingLengths.put(number, length);
+            }
+            if(!newRows.isEmpty()){
+                pendingSnapshot = withRows(pendingSnapshot, newRows);
+            }
+            return pendingSnapshot;
+        }
+    }
+
+    /**
+     * Merges every row in the log into its partition and removes the applied segments.  Appends made while the
+     * apply runs go to a new segment and are applied next time.  Holds the manifest's write lock while it runs.
+     * @return number of distinct rows applied
+     */
+    public int apply() throws IOException {
+        Manifest.WriteLock writeLock = manifest.lockForWriting();
+        Metrics.Timer applyTimer = Metrics.time(Metrics.Phase.WAL_APPLY);
+        try {
+            return applySegments();
+        } finally {
+            applyTimer.close();
+            writeLock.close();
+        }
+    }
+
+    private int applySegments() throws IOException {
+        List<Path> sealedSegments;
+        synchronized(this){
+            if(size() == 0){
+                return 0;
+            }
+            // Start a new segment first, so nothing can be appended to the segments we are about to apply
+            closeSegment();
+            Path newSegment = logDirectory.resolve(segmentName(segmentNumber(lastSegment()) + 1));
+            Files.createFile(newSegment);
+            sealedSegments = listSegments();
+            sealedSegments.remove(newSegment);
+        }
+
+        Map<String, Map<String, String>> rowsByDate = new TreeMap<>();
+        for(Path logSegment : sealedSegments){
+            try(FileChannel segmentChannel = FileChannel.open(logSegment, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                // Holding the lock waits out any append another process started before the new segment appeared
+                FileLock lock = segmentChannel.lock();
+                try {
+                    readRecords(segmentChannel, 0, rowEntry -> addRow(rowsByDate, rowEntry));
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        int appliedRows = 0;
+        for(Map<String, String> dateRows : rowsByDate.values()){
+            appliedRows += dateRows.size();
+        }
+        fileParser.writeDates(rowsByDate.keySet(), date -> () -> rowsByDate.get(date).values().stream());
+        // Readers holding an older version still read the sealed segments, so they are only removed once the
+        // merged rows are published in a version that says they were applied
+        manifest.publish(segmentNumber(sealedSegments.get(sealedSegments.size() - 1)));
+        for(Path logSegment : sealedSegments){
+            Files.deleteIfExists(logSegment);
+        }
+        synchronized(pendingLock){
+            clearPending();
+        }
+        return appliedRows;
+    }
+
+    /**
+     * Waits until everything up to a position in a segment is durable, syncing it ourselves if no other thread
+     * is already doing so.  Batches written while an fsync runs are all covered by the next one.
+     */
+    private void commit(long end, long appendGeneration) throws IOException {
+        while(true){
+            long target;
+            FileChannel syncChannel;
+            synchronized(this){
+                while(syncing && generation == appendGeneration && durablePosition < end){
+                    waitForSync();
+                }
+                // A segment is always synced before we switch away from it
+                if(generation != appendGeneration || durablePosition >= end){
+                    return;
+                }
+                syncing = true;
+                target = writtenPosition;
+                syncChannel = channel;
+            }
+            try {
+                syncChannel.force(false);
+            } finally {
+                synchronized(this){
+                    syncing = false;
+                    durablePosition = Math.max(durablePosition, target);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private void waitForSync() throws IOException {
+        try {
+            wait();
+        } catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the log to sync", e);
+        }
+    }
+
+    /**
+     * Opens the newest segment for appending, unless we already have it open
+     */
+    private void openSegment() throws IOException {
+        Path newest = lastSegment();
+        if(channel != null && newest != null && newest.equals(segment)){
+            return;
+        }
+        closeSegment();
+        Files.createDirectories(logDirectory);
+        segment = newest != null ? newest : logDirectory.resolve(segmentName(1));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileLock lock = channel.lock();
+        try {
+            // Cut off any record left half written by a crash, so new records follow the last good one
+            long validLength = readRecords(channel, 0, null);
+            if(validLength < channel.size()){
+                channel.truncate(validLength);
+            }
+            writtenPosition = validLength;
+            durablePosition = validLength;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Syncs and closes our open segment.  Must be called holding our lock.
+     */
+    private void closeSegment() throws IOException {
+        if(channel == null){
+            return;
+        }
+        while(syncing){
+            waitForSync();
+        }
+        channel.force(false);
+        channel.close();
+        channel = null;
+        segment = null;
+        generation++;
+        notifyAll();
+    }
+
+    /**
+     * Reads records from a position in a segment up to its end or its first bad record
+     * @param position offset of the first record to read
+     * @param rowConsumer receives each row in log order, or null to only find the valid length
+     * @return length of the segment's valid records in bytes
+     */
+    private long readRecords(FileChannel segmentChannel, long position, Consumer<String> rowConsumer) throws IOException {
+        long size = segmentChannel.size();
+        ByteBuffer header = ByteBuffer.allocate(recordHeaderLength);
+        while(position + recordHeaderLength <= size){
+            header.clear();
+            readFully(segmentChannel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if(length < 0 || position + recordHeaderLength + length > size){
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(segmentChannel, payload, position + recordHeaderLength);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, length);
+            if((int) crc.getValue() != checksum){
+                break;
+            }
+            if(rowConsumer != null){
+                for(String rowEntry : new String(payload.array(), StandardCharsets.UTF_8).split("\n")){
+                    rowConsumer.accept(rowEntry);
+                }
+            }
+            position += recordHeaderLength + length;
+        }
+        return position;
+    }
+
+    /**
+     * Adds a row to a map of rows by date and key, replacing any earlier row with its key
+     */
+    private void addRow(Map<String, Map<String, String>> rowsByDate, String rowEntry){
+        Map<String, String> dateRows = rowsByDate.computeIfAbsent(fileParser.parseDate(rowEntry), date -> new LinkedHashMap<>());
+        String key = fileParser.parseKey(rowEntry);
+        // Remove first so a re-logged key moves to the end, preserving last write order
+        dateRows.remove(key);
+        dateRows.put(key, rowEntry);
+    }
+
+    /**
+     * @param rowsByDate a snapshot of rows by date and key, which is left unchanged
+     * @param rowEntries rows newer than the snapshot, in log order
+     * @return a new snapshot with the rows added, sharing the maps of every date they don't touch
+     */
+    private Map<String, Map<String, String>> withRows(Map<String, Map<String, String>> rowsByDate, List<String> rowEntries){
+        Map<String, Map<String, String>> newRowsByDate = new TreeMap<>(rowsByDate);
+        Set<String> copiedDates = new HashSet<>();
+        for(String rowEntry : rowEntries){
+            String date = fileParser.parseDate(rowEntry);
+            if(copiedDates.add(date)){
+                Map<String, String> dateRows = newRowsByDate.get(date);
+                newRowsByDate.put(date, dateRows == null ? new LinkedHashMap<>() : new LinkedHashMap<>(dateRows));
+            }
+            addRow(newRowsByDate, rowEntry);
+        }
+        return Collections.unmodifiableMap(newRowsByDate);
+    }
+
+    /**
+     * Holds rows we just appended to a segment, if we hold everything written to it before them.  Otherwise the
+     * next read picks them up from the segment.
+     */
+    private void holdAppended(long number, long start, long end, List<String> rowEntries){
+        synchronized(pendingLock){
+            if(pendingLengths.getOrDefault(number, -1L) == start){
+                unmergedRows.addAll(rowEntries);
+                pendingLengths.put(number, end);
+            }
+        }
+    }
+
+    /**
+     * Drops every row we hold.  Must be called holding pendingLock, apart from in our constructor.
+     */
+    private void clearPending(){
+        pendingFirstSegment = -1;
+        pendingLengths = new TreeMap<>();
+        pendingSnapshot = Collections.emptyMap();
+        unmergedRows = new ArrayList<>();
+    }
+
+    private ByteBuffer encode(List<String> rowEntries){
+        byte[] payload = String.join("\n", rowEntries).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer record = ByteBuffer.allocate(recordHeaderLength + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        return record;
+    }
+
+    private void readFully(FileChannel segmentChannel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            if(segmentChannel.read(buffer, position + buffer.position()) < 0){
+                throw new IOException("Unexpected end of log segment");
+            }
+        }
+    }
+
+    /**
+     * @return log segments in the order they were written
+     */
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if(!Files.isDirectory(logDirectory)){
+            return segments;
+        }
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(logDirectory, Constants.walSegmentPrefix + "*")){
+            directoryStream.forEach(segments::add);
+        }
+        // Segment numbers are zero padded, so name order is write order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Path lastSegment() throws IOException {
+        List<Path> segments = listSegments();
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    private long segmentNumber(Path logSegment){
+        return logSegment == null ? 0 : Long.parseLong(logSegment.getFileName().toString().substring(Constants.walSegmentPrefix.length()));
+    }
+
+    private String segmentName(long number){
+        return String.format("%s%010d", Constants.walSegmentPrefix, number);
+    }
+
+    /**
+     * A manifest version pinned by pin, along with the rows waiting in the log that are newer than its files
+     */
+    public static class View implements AutoCloseable {
+
+        private Manifest.Version version;
+        private Map<String, Map<String, String>> rowsByDate;
+
+        /**
+         * @param version pinned version, which is released when we are closed
+         * @param rowsByDate logged rows newer than the version's files, by date and key
+         */
+        public View(Manifest.Version version, Map<String, Map<String, String>> rowsByDate){
+            this.version = version;
+            this.rowsByDate = rowsByDate;
+        }
+
+        public Manifest.Version version(){
+            return version;
+        }
+
+        /**
+         * @return map from date to that date's logged rows keyed on (STB, TITLE, DATE)
+         */
+        public Map<String, Map<String, String>> rows(){
+            return rowsByDate;
+        }
+
+        @Override
+        public void close(){
+            version.close();
+        }
+    }
+}
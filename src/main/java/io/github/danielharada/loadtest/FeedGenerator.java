@@ -0,0 +1,127 @@
+package io.github.danielharada.loadtest;
+
+import io.github.danielharada.ArgumentFlags;
+import io.github.danielharada.Constants;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Writes synthetic import files of valid STB|TITLE|PROVIDER|DATE|REV|VIEW_TIME rows, for trying the tool out at
+ * realistic scale.  STBs and titles are drawn from Zipf distributions over a fixed number of distinct values, so a
+ * few of them show up far more often than the rest, and each title always has the same provider.  Dates are spread
+ * evenly over a span of days.  A share of rows repeat the key of a recent row with new REV and VIEW_TIME values, so
+ * importing them overwrites that row.  The same settings and seed always write the same file.
+ */
+public class FeedGenerator {
+
+    private final static String header = "STB|TITLE|PROVIDER|DATE|REV|VIEW_TIME";
+
+    private long rowLimit;
+    private long byteLimit;
+    private int providerCount;
+    private int dayCount;
+    private LocalDate startDate;
+    private int overwritePercent;
+    private Random random;
+    private ZipfSampler stbSampler;
+    private ZipfSampler titleSampler;
+
+    public FeedGenerator(ArgumentFlags argFlags){
+        this.rowLimit = argFlags.getGenerateRows();
+        this.byteLimit = argFlags.getGenerateBytes();
+        // Without either limit we write a modest file rather than one that never ends
+        if(rowLimit == 0 && byteLimit == 0){
+            this.rowLimit = Constants.defaultGenerateRows;
+        }
+        this.providerCount = argFlags.getProviderCount();
+        this.dayCount = argFlags.getDayCount();
+        this.startDate = LocalDate.parse(argFlags.getStartDate());
+        this.overwritePercent = argFlags.getOverwritePercent();
+        this.random = new Random(argFlags.getSeed());
+        this.stbSampler = new ZipfSampler(argFlags.getStbCount(), argFlags.getSkew());
+        this.titleSampler = new ZipfSampler(argFlags.getTitleCount(), argFlags.getSkew());
+    }
+
+    /**
+     * Writes a header row followed by rows until the row count or byte size limit is reached, whichever comes first
+     * @param file file to write, replacing any existing file
+     * @return the number of rows written, not counting the header, and the size of the file in bytes
+     */
+    public long[] generate(Path file) throws IOException {
+        // Keys of the last few rows written, any of which an overwriting row may repeat
+        String[] recentKeys = new String[Constants.generateRecentKeys];
+        long rows = 0;
+        long bytes = header.length() + 1;
+        try(BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)){
+            writer.write(header);
+            writer.newLine();
+            StringBuilder rowEntry = new StringBuilder();
+            while((rowLimit == 0 || rows < rowLimit) && (byteLimit == 0 || bytes < byteLimit)){
+                rowEntry.setLength(0);
+                String recentKey = recentKeys[random.nextInt(recentKeys.length)];
+                if(recentKey != null && random.nextInt(100) < overwritePercent){
+                    rowEntry.append(recentKey);
+                }
+                else {
+                    int title = titleSampler.sample(random);
+                    rowEntry.append("stb").append(stbSampler.sample(random)).append(Constants.inputDelimiter)
+                            .append("title ").append(title).append(Constants.inputDelimiter)
+                            .append("provider ").append(title % providerCount).append(Constants.inputDelimiter)
+                            .append(startDate.plusDays(random.nextInt(dayCount))).append(Constants.inputDelimiter);
+                    recentKeys[(int) (rows % recentKeys.length)] = rowEntry.toString();
+                }
+                int cents = random.nextInt(Constants.generateMaxRevCents);
+                int minutes = random.nextInt(Constants.generateMaxViewMinutes);
+                rowEntry.append(cents / 100).append('.').append(cents % 100 / 10).append(cents % 10)
+                        .append(Constants.inputDelimiter)
+                        .append(minutes / 60).append(':').append(minutes % 60 / 10).append(minutes % 10);
+                writer.append(rowEntry);
+                writer.newLine();
+                rows++;
+                bytes += rowEntry.length() + 1;
+            }
+        }
+        return new long[]{rows, bytes};
+    }
+
+    /**
+     * Draws values 0 to n - 1 with the probability of value k proportional to 1 / (k + 1)^skew, so value 0 is the
+     * most common.  A skew of 0 draws every value equally often.
+     */
+    static class ZipfSampler {
+
+        private int valueCount;
+        private double[] cumulative;
+
+        ZipfSampler(int valueCount, double skew){
+            this.valueCount = valueCount;
+            if(skew > 0){
+                this.cumulative = new double[valueCount];
+                double total = 0;
+                for(int k = 0; k < valueCount; k++){
+                    total += 1 / Math.pow(k + 1, skew);
+                    cumulative[k] = total;
+                }
+                for(int k = 0; k < valueCount; k++){
+                    cumulative[k] /= total;
+                }
+            }
+        }
+
+        int sample(Random random){
+            if(cumulative == null){
+                return random.nextInt(valueCount);
+            }
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            // A miss gives the insertion point, which is the first value whose cumulative share is above our draw
+            return Math.min(index < 0 ? -index - 1 : index, valueCount - 1);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package io.github.danielharada.loadtest;
+
+import io.github.danielharada.App;
+import io.github.danielharada.Constants;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Imports a file into the datastore and then runs a standard mix of queries against it, reporting import throughput,
+ * query latency percentiles and the process's peak memory use.  Each import and query runs through App just as it
+ * would from the command line, with any other options we were given, such as -t, -m, --stream or --wal, passed
+ * along.  The report is printed as one line per measurement of space separated key=value pairs.
+ *
+ * Each query first runs untimed a number of times, so the code it uses is compiled and the files it reads are in
+ * the page cache before we time it.  A percentile is only reported when there are enough runs for it to differ
+ * from the slowest run, e.g. 100 runs for a p99, and is reported as na otherwise.
+ */
+public class LoadTest {
+
+    private String[] baseArgs;
+    private int runs;
+    private int warmupRuns;
+    private PrintStream output;
+
+    /**
+     * @param args our command line arguments, which every import and query is run with apart from the load test
+     *             options themselves
+     * @param runs number of timed runs of each query, at least 1
+     * @param warmupRuns number of untimed runs of each query before its timed runs
+     * @param output stream the report is written to
+     */
+    public LoadTest(String[] args, int runs, int warmupRuns, PrintStream output){
+        this.baseArgs = withoutOption(withoutOption(withoutOption(args, "--load-test"), "--runs"), "--warmup");
+        this.runs = runs;
+        this.warmupRuns = warmupRuns;
+        this.output = output;
+    }
+
+    /**
+     * Imports the file, runs every query in the mix and prints the report
+     * @param importFile file of rows to import, whose first row is used to pick the keys that queries look up
+     */
+    public void run(Path importFile){
+        String[] sampleFields;
+        long rows;
+        try(Stream<String> lineStream = Files.lines(importFile, StandardCharsets.UTF_8)){
+            rows = lineStream.count() - 1;  // not counting the header row
+            sampleFields = sampleRow(importFile);
+        } catch(NoSuchFileException e){
+            output.printf("The file %s does not exist\n", importFile);
+            return;
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+            return;
+        }
+        if(sampleFields == null){
+            output.printf("The file %s has no valid rows to import\n", importFile);
+            return;
+        }
+
+        long bytes = importFile.toFile().length();
+        long importNanos = timeRun(withArgs("-i", importFile.toString()), new LineCounter());
+        double seconds = importNanos / 1e9;
+        output.printf("import rows=%d bytes=%d seconds=%.3f rows_per_sec=%.0f mb_per_sec=%.2f\n", rows, bytes,
+                seconds, rows / seconds, bytes / seconds / (1024 * 1024));
+
+        for(Map.Entry<String, String[]> query : queryMix(sampleFields).entrySet()){
+            LineCounter lineCounter = new LineCounter();
+            for(int i = 0; i < warmupRuns; i++){
+                timeRun(query.getValue(), lineCounter);
+            }
+            long[] latencies = new long[runs];
+            for(int i = 0; i < runs; i++){
+                lineCounter.lines = 0;
+                latencies[i] = timeRun(query.getValue(), lineCounter);
+            }
+            Arrays.sort(latencies);
+            output.printf("query name=%s runs=%d warmup_runs=%d output_lines=%d p50_ms=%s p90_ms=%s p99_ms=%s max_ms=%s\n",
+                    query.getKey(), runs, warmupRuns, lineCounter.lines, percentile(latencies, 50),
+                    percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 100));
+        }
+        output.printf("memory peak_rss_bytes=%d peak_heap_bytes=%d\n", peakResidentBytes(), peakHeapBytes());
+    }
+
+    /**
+     * The standard query mix: a full scan, filters on an indexed field, a date and a value range, a grouped
+     * aggregate, an ordered query with and without a limit, and a single key lookup.  Keys come from a row of the
+     * imported file, so each lookup finds something.
+     * @param sampleFields fields of one imported row
+     * @return arguments for each query, by query name
+     */
+    public Map<String, String[]> queryMix(String[] sampleFields){
+        Map<String, String[]> queryMix = new LinkedHashMap<>();
+        queryMix.put("scan", withArgs("-q", "-s", "STB,TITLE,REV"));
+        queryMix.put("filter_stb", withArgs("-q", "-s", "STB,TITLE,DATE,REV", "-f", "STB=" + sampleFields[0]));
+        queryMix.put("filter_date", withArgs("-q", "-s", "STB,TITLE,REV", "-f", "DATE=" + sampleFields[3]));
+        queryMix.put("filter_rev", withArgs("-q", "-s", "STB,TITLE,REV", "-f", "REV>=" + sampleFields[4]));
+        queryMix.put("group_provider", withArgs("-q", "-s", "PROVIDER,SUM(REV),COUNT(*)", "-g", "PROVIDER"));
+        queryMix.put("order_limit", withArgs("-q", "-s", "STB,TITLE,REV", "-o", "REV,STB", "-l", "100"));
+        queryMix.put("order", withArgs("-q", "-s", "STB,TITLE,REV", "-o", "TITLE,STB"));
+        queryMix.put("get", withArgs("--get", sampleFields[0] + "," + sampleFields[1] + "," + sampleFields[3]));
+        return queryMix;
+    }
+
+    /**
+     * @return fields of the first row after the header that holds all six fields, or null if there is none
+     */
+    private String[] sampleRow(Path importFile) throws IOException {
+        try(BufferedReader reader = Files.newBufferedReader(importFile, StandardCharsets.UTF_8)){
+            reader.readLine();  // skip the header row
+            String rowEntry;
+            while((rowEntry = reader.readLine()) != null){
+                String[] fields = rowEntry.split(Constants.escapedInputDelimiter);
+                if(fields.length == Constants.fieldCount){
+                    return fields;
+                }
+            }
+        }
+        return null;
+    }
+
+    private long timeRun(String[] args, LineCounter lineCounter){
+        App app = new App(args, new PrintStream(lineCounter), null, null);
+        long start = System.nanoTime();
+        app.processArgs();
+        return System.nanoTime() - start;
+    }
+
+    private String[] withArgs(String... args){
+        String[] combinedArgs = Arrays.copyOf(baseArgs, baseArgs.length + args.length);
+        System.arraycopy(args, 0, combinedArgs, baseArgs.length, args.length);
+        return combinedArgs;
+    }
+
+    private static String[] withoutOption(String[] args, String option){
+        List<String> remainingArgs = new ArrayList<>(Arrays.asList(args));
+        int index = remainingArgs.indexOf(option);
+        if(index >= 0){
+            remainingArgs.subList(index, Math.min(index + 2, remainingArgs.size())).clear();
+        }
+        return remainingArgs.toArray(new String[0]);
+    }
+
+    /**
+     * @param sortedNanos latencies in nanoseconds, in ascending order, of which there is at least one
+     * @param percent percentile to take, by the nearest rank
+     * @return the percentile in milliseconds, or na if we have too few runs for it to be anything but the slowest
+     */
+    static String percentile(long[] sortedNanos, int percent){
+        // Nearest rank is ceil(percent / 100 * runs), worked out in integers so it can't round up past the true rank
+        int rank = Math.max((percent * sortedNanos.length + 99) / 100, 1);
+        if(percent < 100 && rank == sortedNanos.length){
+            return "na";
+        }
+        return String.format("%.3f", sortedNanos[rank - 1] / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /**
+     * @return the most memory the process has held resident at once, as reported by Linux, or -1 elsewhere
+     */
+    private static long peakResidentBytes(){
+        try {
+            for(String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)){
+                if(line.startsWith("VmHWM:")){
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch(IOException | NumberFormatException e){
+            // Not running on Linux, so there is nothing to report
+        }
+        return -1;
+    }
+
+    /**
+     * @return the sum of each heap memory pool's peak usage, which is at least the peak of the heap as a whole
+     */
+    private static long peakHeapBytes(){
+        long peakBytes = 0;
+        for(MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()){
+            if(memoryPool.getType() == MemoryType.HEAP){
+                peakBytes += memoryPool.getPeakUsage().getUsed();
+            }
+        }
+        return peakBytes;
+    }
+
+    /**
+     * Discards query output, counting the lines written
+     */
+    private static class LineCounter extends OutputStream {
+
+        private long lines;
+
+        @Override
+        public void write(int b){
+            if(b == '\n'){
+                lines++;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len){
+            for(int i = off; i < off + len; i++){
+                if(b[i] == '\n'){
+                    lines++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package io.github.danielharada.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide counters and phase timers for imports and queries, so a slow command can be broken down into where
+ * its time went and how many rows and bytes each step handled.
+ *
+ * Counters are striped LongAdders, so the threads of a parallel scan or of concurrent server requests can bump
+ * them without contending on a single value, and code on a per row path only pays for an uncontended add.  Phases
+ * are timed around whole steps such as parsing an import file or scanning the datastore, never around single
+ * rows, recording the wall time and the CPU time of the thread running the step.
+ *
+ * Everything adds up for the life of the process.  A single command reports its own share by taking a snapshot
+ * before it starts and subtracting it from one taken when it finishes, and a server exposes the running totals
+ * over JMX through MetricsMXBean.
+ */
+public class Metrics {
+
+    public enum Counter {
+        ROWS_READ,  // Import rows read from their file and checked by validateEntryFormat, counted once per file
+        ROWS_REJECTED,  // Import rows failing validateEntryFormat, which are skipped
+        ROWS_SCANNED,  // Rows read by partition scans and index lookups, and from segments and the write ahead log by queries
+        ROWS_FILTERED,  // Scanned rows dropped by a query's filter, after any byte level pre-filter
+        ROWS_EMITTED,  // Rows written out as query results
+        BYTES_READ,  // Bytes read from import files and partitions
+        BYTES_WRITTEN,  // Bytes of partitions, delta segments and write ahead log records written
+        PARTITIONS_OPENED,  // Partitions and delta segments read by queries and lookups
+        PARTITIONS_PRUNED  // Partitions and delta segments skipped by queries and lookups on their date or key filter
+    }
+
+    public enum Phase {
+        PARSE,  // Reading, validating and grouping an import file by date, including spilling it with --stream
+        MERGE,  // Merging imported rows into partitions or writing them as delta segments
+        WAL_APPEND,  // Appending an import to the write ahead log
+        WAL_APPLY,  // Applying the write ahead log to the partitions
+        COMPACT,  // Compacting delta segments
+        CONVERT,  // Rewriting partitions with --convert
+        REINDEX,  // Rebuilding indexes with --reindex
+        SCAN,  // Reading, filtering and handing on a query's rows, including any work done on them as they stream out
+        SORT,  // Ordering, limiting or aggregating scanned rows and writing them out
+        GET  // Looking up a single row with --get
+    }
+
+    private final static String objectNameValue = "io.github.danielharada:type=Metrics";
+    private final static ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private final static LongAdder[] counters = adders(Counter.values().length);
+    private final static LongAdder[] phaseCalls = adders(Phase.values().length);
+    private final static LongAdder[] phaseWallNanos = adders(Phase.values().length);
+    private final static LongAdder[] phaseCpuNanos = adders(Phase.values().length);
+
+    public static void increment(Counter counter){
+        counters[counter.ordinal()].increment();
+    }
+
+    public static void add(Counter counter, long value){
+        counters[counter.ordinal()].add(value);
+    }
+
+    /**
+     * Starts timing a phase, which ends when the returned timer is closed, e.g.
+     * <pre>
+     *   Metrics.Timer timer = Metrics.time(Metrics.Phase.SCAN);
+     *   try { ... } finally { timer.close(); }
+     * </pre>
+     * @param phase phase to add the elapsed time to
+     * @return running timer
+     */
+    public static Timer time(Phase phase){
+        return new Timer(phase);
+    }
+
+    /**
+     * @return a copy of every counter and phase total as they stand now
+     */
+    public static Snapshot snapshot(){
+        Snapshot snapshot = new Snapshot();
+        for(int i = 0; i < counters.length; i++){
+            snapshot.counters[i] = counters[i].sum();
+        }
+        for(int i = 0; i < phaseCalls.length; i++){
+            snapshot.phaseCalls[i] = phaseCalls[i].sum();
+            snapshot.phaseWallNanos[i] = phaseWallNanos[i].sum();
+            snapshot.phaseCpuNanos[i] = phaseCpuNanos[i].sum();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Sets every counter and phase total back to zero
+     */
+    public static void reset(){
+        for(LongAdder[] adders : new LongAdder[][]{counters, phaseCalls, phaseWallNanos, phaseCpuNanos}){
+            for(LongAdder adder : adders){
+                adder.reset();
+            }
+        }
+    }
+
+    /**
+     * Registers the running totals with the platform MBean server as a MetricsMXBean, unless they already are
+     */
+    public static synchronized void register(){
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(objectNameValue);
+            if(!mBeanServer.isRegistered(objectName)){
+                mBeanServer.registerMBean(new MetricsBean(), objectName);
+            }
+        } catch(JMException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return lower case name used when reporting a counter or phase, e.g. rows_read
+     */
+    public static String name(Enum<?> metric){
+        return metric.name().toLowerCase(Locale.ROOT);
+    }
+
+    private static LongAdder[] adders(int count){
+        LongAdder[] adders = new LongAdder[count];
+        for(int i = 0; i < count; i++){
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static long threadCpuNanos(){
+        return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Times one run of a phase on the thread that started it
+     */
+    public static class Timer implements AutoCloseable {
+
+        private Phase phase;
+        private long wallStart;
+        private long cpuStart;
+
+        private Timer(Phase phase){
+            this.phase = phase;
+            this.wallStart = System.nanoTime();
+            this.cpuStart = threadCpuNanos();
+        }
+
+        @Override
+        public void close(){
+            phaseCalls[phase.ordinal()].increment();
+            phaseWallNanos[phase.ordinal()].add(System.nanoTime() - wallStart);
+            phaseCpuNanos[phase.ordinal()].add(threadCpuNanos() - cpuStart);
+        }
+    }
+
+    /**
+     * Counter and phase totals at a point in time
+     */
+    public static class Snapshot {
+
+        private long[] counters = new long[Counter.values().length];
+        private long[] phaseCalls = new long[Phase.values().length];
+        private long[] phaseWallNanos = new long[Phase.values().length];
+        private long[] phaseCpuNanos = new long[Phase.values().length];
+
+        /**
+         * @param earlier snapshot taken before this one
+         * @return what was added to each total between the two snapshots
+         */
+        public Snapshot since(Snapshot earlier){
+            Snapshot difference = new Snapshot();
+            for(int i = 0; i < counters.length; i++){
+                difference.counters[i] = counters[i] - earlier.counters[i];
+            }
+            for(int i = 0; i < phaseCalls.length; i++){
+                difference.phaseCalls[i] = phaseCalls[i] - earlier.phaseCalls[i];
+                difference.phaseWallNanos[i] = phaseWallNanos[i] - earlier.phaseWallNanos[i];
+                difference.phaseCpuNanos[i] = phaseCpuNanos[i] - earlier.phaseCpuNanos[i];
+            }
+            return difference;
+        }
+
+        public long get(Counter counter){
+            return counters[counter.ordinal()];
+        }
+
+        public long calls(Phase phase){
+            return phaseCalls[phase.ordinal()];
+        }
+
+        public long wallNanos(Phase phase){
+            return phaseWallNanos[phase.ordinal()];
+        }
+
+        public long cpuNanos(Phase phase){
+            return phaseCpuNanos[phase.ordinal()];
+        }
+
+        /**
+         * @return every counter by name, in declaration order
+         */
+        public Map<String, Long> counters(){
+            Map<String, Long> counterMap = new LinkedHashMap<>();
+            for(Counter counter : Counter.values()){
+                counterMap.put(name(counter), get(counter));
+            }
+            return counterMap;
+        }
+
+        /**
+         * Describes the snapshot as a line of counters followed by a line for each phase that ran, each as space
+         * separated key=value pairs, e.g.
+         * <pre>
+         *   counters rows_read=0 rows_rejected=0 rows_scanned=1000 ...
+         *   phase name=scan calls=1 wall_ms=12.345 cpu_ms=10.000
+         * </pre>
+         */
+        @Override
+        public String toString(){
+            StringBuilder report = new StringBuilder("counters");
+            counters().forEach((name, value) -> report.append(' ').append(name).append('=').append(value));
+            for(Phase phase : Phase.values()){
+                if(calls(phase) > 0){
+                    report.append(String.format(Locale.ROOT, "\nphase name=%s calls=%d wall_ms=%.3f cpu_ms=%.3f",
+                            name(phase), calls(phase), wallNanos(phase) / 1e6, cpuNanos(phase) / 1e6));
+                }
+            }
+            return report.toString();
+        }
+    }
+
+    private static class MetricsBean implements MetricsMXBean {
+
+        @Override
+        public Map<String, Long> getCounters(){
+            return snapshot().counters();
+        }
+
+        @Override
+        public Map<String, Long> getPhaseCalls(){
+            return byPhase(phaseCalls, 1);
+        }
+
+        @Override
+        public Map<String, Long> getPhaseWallMillis(){
+            return byPhase(phaseWallNanos, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        @Override
+        public Map<String, Long> getPhaseCpuMillis(){
+            return byPhase(phaseCpuNanos, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        @Override
+        public void reset(){
+            Metrics.reset();
+        }
+
+        private Map<String, Long> byPhase(LongAdder[] totals, long divisor){
+            Map<String, Long> phaseMap = new LinkedHashMap<>();
+            for(Phase phase : Phase.values()){
+                phaseMap.put(name(phase), totals[phase.ordinal()].sum() / divisor);
+            }
+            return phaseMap;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package io.github.danielharada.metrics;
+
+import java.util.Map;
+
+/**
+ * Running totals of Metrics for the life of the process, registered with the platform MBean server by
+ * Metrics.register, so tools like jconsole can watch a long lived server
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return every counter by name, e.g. rows_scanned
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return number of times each phase has run, by phase name
+     */
+    Map<String, Long> getPhaseCalls();
+
+    /**
+     * @return wall time spent in each phase in milliseconds, by phase name
+     */
+    Map<String, Long> getPhaseWallMillis();
+
+    /**
+     * @return CPU time spent in each phase in milliseconds, by phase name
+     */
+    Map<String, Long> getPhaseCpuMillis();
+
+    /**
+     * Sets every counter and phase total back to zero
+     */
+    void reset();
+}
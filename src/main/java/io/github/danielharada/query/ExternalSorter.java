@@ -0,0 +1,246 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Sorts datastore lines within a fixed memory budget.  Lines are converted and buffered in memory until the
+ * budget is reached, at which point the buffer is sorted and spilled to disk as a sorted run.  Once all lines
+ * have been added, the runs are k-way merged back together and handed to an output consumer in order.
+ * If everything fits in the budget no runs are written and the sort happens entirely in memory.
+ *
+ * Given a sort key encoder, each buffer is sorted on normalized binary keys instead, comparing a long prefix
+ * first and only falling back to the remaining key bytes when prefixes tie.
+ */
+public class ExternalSorter {
+
+    private Path spillDirectory;
+    private long memoryLimit;
+    private Comparator<FieldEntry> comparator;
+    private FieldEntryComparator sortKeyEncoder;
+    private FieldEntryManager fieldEntryManager;
+
+    private List<FieldEntry> chunk;
+    private long chunkBytes;
+    private Path tempDirectory;
+    private List<Path> runFiles;
+
+    /**
+     * @param spillDirectory directory under which a temporary directory for sorted runs is created
+     * @param memoryLimit approximate number of bytes of FieldEntry objects to hold before spilling a run
+     * @param comparator ordering to sort by
+     */
+    public ExternalSorter(Path spillDirectory, long memoryLimit, Comparator<FieldEntry> comparator){
+        this(spillDirectory, memoryLimit, comparator, null);
+    }
+
+    /**
+     * @param spillDirectory directory under which a temporary directory for sorted runs is created
+     * @param memoryLimit approximate number of bytes of FieldEntry objects to hold before spilling a run
+     * @param comparator ordering to sort by, used when merging runs
+     * @param sortKeyEncoder encoder for the same ordering used to sort each buffer on binary keys, or null to
+     *                       sort buffers with the comparator
+     */
+    public ExternalSorter(Path spillDirectory, long memoryLimit, Comparator<FieldEntry> comparator,
+                          FieldEntryComparator sortKeyEncoder){
+        this.spillDirectory = spillDirectory;
+        this.memoryLimit = memoryLimit;
+        this.comparator = comparator;
+        this.sortKeyEncoder = sortKeyEncoder;
+        this.fieldEntryManager = new FieldEntryManager();
+        this.chunk = new ArrayList<>();
+        this.chunkBytes = 0;
+        this.runFiles = new ArrayList<>();
+    }
+
+    /**
+     * Adds a single datastore line to the sort, spilling the in memory buffer to disk if it is full
+     * @param rowEntry unparsed line from the datastore
+     */
+    public void add(String rowEntry){
+        chunk.add(fieldEntryManager.convertRow(rowEntry));
+        // Strings are UTF-16 in memory, plus the overhead of the FieldEntry and its field objects
+        chunkBytes += rowEntry.length() * 2 + Constants.sortEntryOverhead;
+        if(chunkBytes >= memoryLimit){
+            spillChunk();
+        }
+    }
+
+    /**
+     * Sorts everything added so far and passes each entry to the output consumer in order.  Any temporary
+     * run files are deleted once the merge completes.
+     * @param output receives entries in sorted order
+     */
+    public void sortAndMerge(Consumer<FieldEntry> output){
+        try {
+            // Nothing was spilled, so we can sort and output straight from memory
+            if (runFiles.isEmpty()) {
+                sortChunk();
+                chunk.forEach(output);
+                chunk.clear();
+                return;
+            }
+            if (!chunk.isEmpty()) {
+                spillChunk();
+            }
+            mergeRuns(output);
+        } finally {
+            deleteRuns();
+        }
+    }
+
+    /**
+     * Sorts the in memory buffer and writes it out as a new run file
+     */
+    private void spillChunk(){
+        sortChunk();
+        try {
+            if(tempDirectory == null){
+                tempDirectory = Files.createTempDirectory(spillDirectory, Constants.sortTempPrefix);
+            }
+            Path runFile = tempDirectory.resolve("run-" + runFiles.size());
+            try(BufferedWriter writer = Files.newBufferedWriter(runFile, StandardCharsets.UTF_8)){
+                for(FieldEntry fieldEntry : chunk){
+                    writer.write(fieldEntryManager.convertToRow(fieldEntry));
+                    writer.newLine();
+                }
+            }
+            runFiles.add(runFile);
+        } catch(IOException e){
+            throw new RuntimeException("Unable to spill sort run to " + spillDirectory, e);
+        }
+        chunk.clear();
+        chunkBytes = 0;
+    }
+
+    /**
+     * Sorts the in memory buffer, either with our comparator or on binary sort keys.  Both sorts are stable.
+     */
+    private void sortChunk(){
+        if(sortKeyEncoder == null){
+            Collections.sort(chunk, comparator);
+            return;
+        }
+        KeyedEntry[] keyedEntries = new KeyedEntry[chunk.size()];
+        for(int i = 0; i < keyedEntries.length; i++){
+            keyedEntries[i] = new KeyedEntry(chunk.get(i), sortKeyEncoder.sortKey(chunk.get(i)));
+        }
+        Arrays.sort(keyedEntries, (a, b) -> {
+            int compareResult = Long.compareUnsigned(a.prefix, b.prefix);
+            return compareResult != 0 ? compareResult : FieldEntryComparator.compareKeys(a.key, b.key, 8);
+        });
+        for(int i = 0; i < keyedEntries.length; i++){
+            chunk.set(i, keyedEntries[i].fieldEntry);
+        }
+    }
+
+    /**
+     * K-way merges our sorted run files using a priority queue holding the head entry of each run.
+     * Ties are broken on run number so that the merge is stable, matching Collections.sort.
+     */
+    private void mergeRuns(Consumer<FieldEntry> output){
+        PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> {
+            int compareResult = comparator.compare(a.current, b.current);
+            return compareResult != 0 ? compareResult : Integer.compare(a.runNumber, b.runNumber);
+        });
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for(int i = 0; i < runFiles.size(); i++){
+                RunReader reader = new RunReader(runFiles.get(i), i);
+                readers.add(reader);
+                if(reader.advance()){
+                    heads.add(reader);
+                }
+            }
+            while(!heads.isEmpty()){
+                RunReader reader = heads.poll();
+                output.accept(reader.current);
+                if(reader.advance()){
+                    heads.add(reader);
+                }
+            }
+        } catch(IOException e){
+            throw new RuntimeException("Unable to merge sort runs in " + tempDirectory, e);
+        } finally {
+            for(RunReader reader : readers){
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Removes our run files and their temporary directory
+     */
+    private void deleteRuns(){
+        if(tempDirectory == null){
+            return;
+        }
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(tempDirectory)){
+            for(Path runFile : directoryStream){
+                Files.deleteIfExists(runFile);
+            }
+            Files.deleteIfExists(tempDirectory);
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+        tempDirectory = null;
+        runFiles.clear();
+    }
+
+    /**
+     * An entry paired with its sort key and the key's leading eight bytes
+     */
+    private static class KeyedEntry {
+        private FieldEntry fieldEntry;
+        private byte[] key;
+        private long prefix;
+
+        KeyedEntry(FieldEntry fieldEntry, byte[] key){
+            this.fieldEntry = fieldEntry;
+            this.key = key;
+            this.prefix = FieldEntryComparator.prefix(key);
+        }
+    }
+
+    /**
+     * Reads a single sorted run back in one entry at a time
+     */
+    private class RunReader {
+        private BufferedReader reader;
+        private int runNumber;
+        private FieldEntry current;
+
+        RunReader(Path runFile, int runNumber) throws IOException {
+            this.reader = Files.newBufferedReader(runFile, StandardCharsets.UTF_8);
+            this.runNumber = runNumber;
+        }
+
+        boolean advance() throws IOException {
+            String line = reader.readLine();
+            current = line == null ? null : fieldEntryManager.convertRow(line);
+            return current != null;
+        }
+
+        void close(){
+            try {
+                reader.close();
+            } catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,17 +1,20 @@
 package io.github.danielharada.query;
 
-import io.github.danielharada.ArgumentFlags;
+import io.github.danielharada.Constants;
 
 import java.time.LocalDate;
 import java.time.LocalTime;
-import java.util.Arrays;
-import java.util.List;
 
 /**
- * Object to represent entries in our datastore.  Implements Comparable to allow us to define which fields
- * we order by.
+ * Object to represent entries in our datastore.  Ordering is defined by FieldEntryComparator, compiled from the
+ * fields we order by.
+ *
+ * Entries built from a datastore line are materialized lazily.  The line is kept as is, and each field is only
+ * sliced out and parsed the first time it is read, so a query only pays for the fields it actually uses.
  */
-public class FieldEntry implements Comparable<FieldEntry>{
+public class FieldEntry {
+
+    private final static int allFields = (1 << Constants.fieldCount) - 1;
 
     private String stb;
     private String title;
@@ -19,8 +22,11 @@ public class FieldEntry implements Comparable<FieldEntry>{
     private LocalDate date;
     private float rev;
     private LocalTime viewTime;
-    //private static String orderArgs;
-    private static ArgumentFlags argFlags;
+
+    private String rowEntry;  // Unparsed datastore line, or null if this entry was built from values
+    private int[] fieldStarts;  // Offset of each field in rowEntry, plus one past the end, found on first use
+    private int materialized;  // Bit per field, set once that field has been read from rowEntry or set
+    private boolean modified;  // True once any setter has been called
 
     public FieldEntry(String stb, String title, String provider, LocalDate date, float rev, LocalTime viewTime) {
         this.stb = stb;
@@ -29,99 +35,140 @@ public class FieldEntry implements Comparable<FieldEntry>{
         this.date = date;
         this.rev = rev;
         this.viewTime = viewTime;
-        //this.orderArgs = orderArgs;
-        this.argFlags = new ArgumentFlags();
+        this.materialized = allFields;
+        this.modified = true;
+    }
+
+    /**
+     * Creates an entry backed by an unparsed datastore line.  Empty fields, such as columns a columnar
+     * partition did not read, are read as null.
+     * @param rowEntry pipe delimited datastore line
+     */
+    public FieldEntry(String rowEntry) {
+        this.rowEntry = rowEntry;
+        this.materialized = 0;
+        this.modified = false;
     }
 
     public String getStb() {
+        if(needsField(0)){
+            stb = rawField(0);
+        }
         return stb;
     }
 
     public void setStb(String stb) {
         this.stb = stb;
+        fieldSet(0);
     }
 
     public String getTitle() {
+        if(needsField(1)){
+            title = rawField(1);
+        }
         return title;
     }
 
     public void setTitle(String title) {
         this.title = title;
+        fieldSet(1);
     }
 
     public String getProvider() {
+        if(needsField(2)){
+            provider = rawField(2);
+        }
         return provider;
     }
 
     public void setProvider(String provider) {
         this.provider = provider;
+        fieldSet(2);
     }
 
     public LocalDate getDate() {
+        if(needsField(3)){
+            String rawDate = rawField(3);
+            date = rawDate.isEmpty() ? null : LocalDate.parse(rawDate);
+        }
         return date;
     }
 
     public void setDate(LocalDate date) {
         this.date = date;
+        fieldSet(3);
     }
 
     public float getRev() {
+        if(needsField(4)){
+            String rawRev = rawField(4);
+            rev = rawRev.isEmpty() ? 0 : Float.parseFloat(rawRev);
+        }
         return rev;
     }
 
     public void setRev(float rev) {
         this.rev = rev;
+        fieldSet(4);
     }
 
     public LocalTime getViewTime() {
+        if(needsField(5)){
+            String rawViewTime = rawField(5);
+            viewTime = rawViewTime.isEmpty() ? null : LocalTime.parse(rawViewTime, FieldEntryManager.viewTimeFormatter);
+        }
         return viewTime;
     }
 
     public void setViewTime(LocalTime viewTime) {
         this.viewTime = viewTime;
+        fieldSet(5);
     }
 
-    public int compareTo(FieldEntry compareEntry){
-        int compareResult = 0;
-        // Iterate over the fields that we want to order by, and run the comparison on those fields.
-        // The first field that has a non 0 (i.e. non-equality) result, we return that result.  Otherwise
-        // the two FieldEntries are considered equal.
-        for(String field : parseOrderArgs()){
-            compareResult = compareCases(compareEntry, field);
-            if(compareResult != 0){
-                return compareResult;
-            }
-        }
-        return compareResult;
-    }
-
-    public int compareCases(FieldEntry compareEntry, String compareField){
-        int compareResult = 0;
-        switch(compareField.toLowerCase()){
-            case "stb":
-                compareResult = stb.compareTo(compareEntry.getStb());
-                break;
-            case "title":
-                compareResult = title.compareTo(compareEntry.getTitle());
-                break;
-            case "provider":
-                compareResult = provider.compareTo(compareEntry.getProvider());
-                break;
-            case "date":
-                compareResult = date.compareTo(compareEntry.getDate());
-                break;
-            case "rev":
-                compareResult = Float.compare(rev, compareEntry.getRev());
-                break;
-            case "view_time":
-                compareResult = viewTime.compareTo(compareEntry.getViewTime());
-                break;
-        }
+    /**
+     * @return the datastore line this entry was built from, or null if it was built from values or has been modified
+     */
+    public String getRowEntry() {
+        return modified ? null : rowEntry;
+    }
 
-        return compareResult;
+    /**
+     * Returns a field exactly as it appears in the datastore line, without parsing it
+     * @param column index of the field, in datastore field order
+     * @return the unparsed field, or null if this entry was built from values or has been modified
+     */
+    public String getRawField(int column) {
+        return modified || rowEntry == null ? null : rawField(column);
     }
 
-    public List<String> parseOrderArgs(){
-         return Arrays.asList(argFlags.getOrderArgs().split(","));
+    private boolean needsField(int column){
+        if((materialized & (1 << column)) != 0){
+            return false;
+        }
+        materialized |= 1 << column;
+        return true;
+    }
+
+    private void fieldSet(int column){
+        materialized |= 1 << column;
+        modified = true;
+    }
+
+    /**
+     * Slices a field out of our datastore line, finding the field boundaries on first use
+     */
+    private String rawField(int column){
+        if(fieldStarts == null){
+            fieldStarts = new int[Constants.fieldCount + 1];
+            int start = 0;
+            for(int i = 0; i < Constants.fieldCount; i++){
+                fieldStarts[i] = start;
+                int end = rowEntry.indexOf(Constants.inputDelimiter, start);
+                start = end < 0 ? rowEntry.length() + 1 : end + 1;
+            }
+            fieldStarts[Constants.fieldCount] = start;
+        }
+        int end = Math.min(fieldStarts[column + 1] - 1, rowEntry.length());
+        return fieldStarts[column] > end ? "" : rowEntry.substring(fieldStarts[column], end);
     }
 }
@@ -0,0 +1,157 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders FieldEntry objects by an order argument, such as "REV,STB".  The argument is compiled once into the
+ * list of columns to compare, so sorting doesn't re-parse it on every comparison.  Each comparator holds its own
+ * ordering, so different sorts can run at the same time.
+ *
+ * The same ordering can also be encoded into a normalized sort key per entry, an unsigned byte string whose
+ * byte order matches this comparator.  The first eight bytes of a key, read as a long, give a prefix which
+ * decides most comparisons without touching the entries at all.
+ */
+public class FieldEntryComparator implements Comparator<FieldEntry> {
+
+    private int[] columns;
+
+    /**
+     * @param orderArgs comma separated list of fields to order by, unknown fields are ignored
+     */
+    public FieldEntryComparator(String orderArgs){
+        List<Integer> columnList = new ArrayList<>();
+        for(String field : orderArgs.split(",")){
+            int column = Arrays.asList(Constants.fieldNames).indexOf(field.trim().toLowerCase());
+            if(column >= 0){
+                columnList.add(column);
+            }
+        }
+        this.columns = new int[columnList.size()];
+        for(int i = 0; i < columns.length; i++){
+            columns[i] = columnList.get(i);
+        }
+    }
+
+    @Override
+    public int compare(FieldEntry entry, FieldEntry compareEntry){
+        // The first field that has a non 0 (i.e. non-equality) result, we return that result.  Otherwise
+        // the two FieldEntries are considered equal.
+        for(int column : columns){
+            int compareResult = compareColumn(entry, compareEntry, column);
+            if(compareResult != 0){
+                return compareResult;
+            }
+        }
+        return 0;
+    }
+
+    private int compareColumn(FieldEntry entry, FieldEntry compareEntry, int column){
+        switch(column){
+            case 0:
+                return entry.getStb().compareTo(compareEntry.getStb());
+            case 1:
+                return entry.getTitle().compareTo(compareEntry.getTitle());
+            case 2:
+                return entry.getProvider().compareTo(compareEntry.getProvider());
+            case 3:
+                return entry.getDate().compareTo(compareEntry.getDate());
+            case 4:
+                return Float.compare(entry.getRev(), compareEntry.getRev());
+            default:
+                return entry.getViewTime().compareTo(compareEntry.getViewTime());
+        }
+    }
+
+    /**
+     * Encodes the fields we order by into a key whose unsigned byte order matches this comparator.
+     * Strings are written as big endian UTF-16 code units ending in a zero code unit, which sorts the same
+     * as String.compareTo as our fields never contain NUL.  Dates, revenue and view times are written as fixed
+     * width integers with their sign bit flipped.
+     * @param fieldEntry entry to encode
+     * @return normalized sort key
+     */
+    public byte[] sortKey(FieldEntry fieldEntry){
+        int length = 0;
+        for(int column : columns){
+            length += column < 3 ? (stringField(fieldEntry, column).length() + 1) * 2 : column == 5 ? 8 : 4;
+        }
+        byte[] key = new byte[length];
+        int position = 0;
+        for(int column : columns){
+            switch(column){
+                case 3:
+                    position = putInt(key, position, (int) fieldEntry.getDate().toEpochDay());
+                    break;
+                case 4:
+                    // Flip the remaining bits of negative floats, so their bit patterns order like Float.compare
+                    int bits = Float.floatToIntBits(fieldEntry.getRev());
+                    position = putInt(key, position, bits ^ ((bits >> 31) & 0x7FFFFFFF));
+                    break;
+                case 5:
+                    // Nanos of day are never negative, so the low half is written as unsigned
+                    long nanos = fieldEntry.getViewTime().toNanoOfDay();
+                    position = putInt(key, position, (int) (nanos >>> 32));
+                    position = putInt(key, position, (int) nanos ^ Integer.MIN_VALUE);
+                    break;
+                default:
+                    String value = stringField(fieldEntry, column);
+                    for(int i = 0; i < value.length(); i++){
+                        char c = value.charAt(i);
+                        key[position++] = (byte) (c >>> 8);
+                        key[position++] = (byte) c;
+                    }
+                    position += 2;
+                    break;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * @param sortKey key from sortKey
+     * @return the first eight bytes of the key as a long, zero padded, to be compared with Long.compareUnsigned
+     */
+    public static long prefix(byte[] sortKey){
+        long prefix = 0;
+        for(int i = 0; i < 8; i++){
+            prefix = (prefix << 8) | (i < sortKey.length ? sortKey[i] & 0xFF : 0);
+        }
+        return prefix;
+    }
+
+    /**
+     * Compares two sort keys as unsigned byte strings, starting at a given offset
+     * @param key first sort key
+     * @param compareKey second sort key
+     * @param from offset of the first byte to compare, e.g. 8 once the prefixes are known to be equal
+     * @return negative, zero or positive as the first key sorts before, with or after the second
+     */
+    public static int compareKeys(byte[] key, byte[] compareKey, int from){
+        int length = Math.min(key.length, compareKey.length);
+        for(int i = from; i < length; i++){
+            int compareResult = (key[i] & 0xFF) - (compareKey[i] & 0xFF);
+            if(compareResult != 0){
+                return compareResult;
+            }
+        }
+        return key.length - compareKey.length;
+    }
+
+    private String stringField(FieldEntry fieldEntry, int column){
+        return column == 0 ? fieldEntry.getStb() : column == 1 ? fieldEntry.getTitle() : fieldEntry.getProvider();
+    }
+
+    private int putInt(byte[] key, int position, int value){
+        int normalized = value ^ Integer.MIN_VALUE;
+        key[position] = (byte) (normalized >>> 24);
+        key[position + 1] = (byte) (normalized >>> 16);
+        key[position + 2] = (byte) (normalized >>> 8);
+        key[position + 3] = (byte) normalized;
+        return position + 4;
+    }
+}
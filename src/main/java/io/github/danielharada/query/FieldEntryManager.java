@@ -2,8 +2,6 @@ package io.github.danielharada.query;
 
 import io.github.danielharada.Constants;
 
-import java.time.LocalDate;
-import java.time.LocalTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -15,6 +13,10 @@ import java.util.List;
  */
 public class FieldEntryManager {
 
+    // Need to specify the format on view_time parameter, otherwise we get an error when trying to store
+    // it as a LocalTime object.  DateTimeFormatter is immutable, so one instance is shared by every row.
+    public final static DateTimeFormatter viewTimeFormatter = DateTimeFormatter.ofPattern(Constants.viewtimeFormat);
+
     /**
      * Takes a List of FieldEntry objects and a comma separated String of fields to select,
      * and returns a list of those fields in a single string, separated by our output delimiter
@@ -35,13 +37,14 @@ public class FieldEntryManager {
      * @return single delimited string
      */
     public String reduceToString(FieldEntry fieldEntry, String selectArgs){
-        List<String> fields = Arrays.asList(selectArgs.split(","));
-        String reducedString = "";
-        for(String field : fields){
-            reducedString = reducedString.concat(selectCase(fieldEntry, field)).concat(Constants.outputDelimiter);
+        StringBuilder reducedString = new StringBuilder();
+        for(int column : selectColumns(selectArgs)){
+            if(reducedString.length() > 0){
+                reducedString.append(Constants.outputDelimiter);
+            }
+            reducedString.append(selectValue(fieldEntry, column));
         }
-        // We add an extra delimiter character at the very end, so we substring to knock it off
-        return reducedString.substring(0,reducedString.length()-1);
+        return reducedString.toString();
     }
 
     /**
@@ -51,31 +54,79 @@ public class FieldEntryManager {
      * @return a String representation of the field we selected from the FieldEntry object
      */
     public String selectCase(FieldEntry fieldEntry, String selectField){
+        return selectValue(fieldEntry, Arrays.asList(Constants.fieldNames).indexOf(selectField.toLowerCase()));
+    }
+
+    /**
+     * Resolves a select argument to field indexes once, so rows can be reduced without re-parsing it
+     * @param selectArgs comma separated list of fields to select
+     * @return index of each selected field in datastore field order, or -1 for an unknown field
+     */
+    public int[] selectColumns(String selectArgs){
+        String[] fields = selectArgs.split(",");
+        int[] columns = new int[fields.length];
+        for(int i = 0; i < fields.length; i++){
+            columns[i] = Arrays.asList(Constants.fieldNames).indexOf(fields[i].toLowerCase());
+        }
+        return columns;
+    }
+
+    /**
+     * Pulls a single field from a fieldEntry as a String
+     * @param fieldEntry the FieldEntry object we're pulling a field from
+     * @param column index of the field in datastore field order
+     * @return a String representation of the field, or "none" for an unknown field
+     */
+    public String selectValue(FieldEntry fieldEntry, int column){
         String value = "none";
-        switch(selectField.toLowerCase()) {
-            case "stb":
+        switch(column) {
+            case 0:
                 value = fieldEntry.getStb();
                 break;
-            case "title":
+            case 1:
                 value = fieldEntry.getTitle();
                 break;
-            case "provider":
+            case 2:
                 value = fieldEntry.getProvider();
                 break;
-            case "date":
-                value = fieldEntry.getDate().toString();
+            case 3:
+                // Dates are stored in ISO format, so the unparsed field is already what LocalDate would print
+                value = fieldEntry.getRawField(3);
+                if(value == null){
+                    value = fieldEntry.getDate().toString();
+                }
                 break;
-            case "rev":
-                //value = Float.toString(fieldEntry.getRev());
-                value = String.format("%.2f", fieldEntry.getRev());
+            case 4:
+                value = formatRev(fieldEntry.getRev());
                 break;
-            case "view_time":
+            case 5:
                 value = fieldEntry.getViewTime().toString();
                 break;
         }
         return value;
     }
 
+    /**
+     * Formats a revenue value with two decimal places, giving the same result as String.format("%.2f") without
+     * going through Formatter.  A float times 100 is exact as a double, so rounding it half up matches the
+     * formatter, which can never see a float land within rounding error of a half cent.
+     * @param rev revenue value
+     * @return revenue with exactly two decimal places
+     */
+    public static String formatRev(float rev){
+        double cents = Math.abs((double) rev) * 100;
+        if(!(cents < 1e15)){
+            return String.format("%.2f", rev);  // NaN, infinite, or too large to round through a long
+        }
+        long rounded = (long) Math.floor(cents + 0.5);
+        long fraction = rounded % 100;
+        StringBuilder revBuilder = new StringBuilder(16);
+        if(Float.floatToIntBits(rev) < 0){
+            revBuilder.append('-');
+        }
+        return revBuilder.append(rounded / 100).append(fraction < 10 ? ".0" : ".").append(fraction).toString();
+    }
+
     /**
      * Converts a list of string lines from the datastore into a list of FieldEntry objects
      * @param entryList List of string lines from the datastore
@@ -89,22 +140,38 @@ public class FieldEntryManager {
     }
 
     /**
-     * Takes in a single line from the datastore and converts it into a FieldEntry object
+     * Takes in a single line from the datastore and converts it into a FieldEntry object.  Fields are only
+     * parsed when first read, and fields left empty, such as columns a columnar partition did not read, are
+     * read as empty or null.
      * @param entryRow
      * @return
      */
     public FieldEntry convertRow(String entryRow){
-        String[] fields = entryRow.split(Constants.escapedInputDelimiter);
+        return new FieldEntry(entryRow);
+    }
 
-        // Need to specify the format on view_time parameter, otherwise we get an error when trying to store
-        // it as a LocalTime object
-        DateTimeFormatter viewTimeFormatter = DateTimeFormatter.ofPattern(Constants.viewtimeFormat);
-        return new FieldEntry(fields[0],  // stb
-                fields[1],  // title
-                fields[2],  // provider
-                LocalDate.parse(fields[3]),  // date
-                Float.parseFloat(fields[4]),  // rev
-                LocalTime.parse(fields[5], viewTimeFormatter));  // view_time
+    /**
+     * Converts a FieldEntry object back into a datastore line, the inverse of convertRow
+     * @param fieldEntry object to convert
+     * @return pipe delimited line in our datastore format
+     */
+    public String convertToRow(FieldEntry fieldEntry){
+        // An entry read from the datastore and never modified can hand back its line without touching its fields
+        String rowEntry = fieldEntry.getRowEntry();
+        if(rowEntry != null){
+            return rowEntry;
+        }
+        return fieldEntry.getStb()
+                .concat(Constants.inputDelimiter)
+                .concat(fieldEntry.getTitle())
+                .concat(Constants.inputDelimiter)
+                .concat(fieldEntry.getProvider())
+                .concat(Constants.inputDelimiter)
+                .concat(fieldEntry.getDate() == null ? "" : fieldEntry.getDate().toString())
+                .concat(Constants.inputDelimiter)
+                .concat(formatRev(fieldEntry.getRev()))
+                .concat(Constants.inputDelimiter)
+                .concat(fieldEntry.getViewTime() == null ? "" : fieldEntry.getViewTime().format(viewTimeFormatter));
     }
 
 }
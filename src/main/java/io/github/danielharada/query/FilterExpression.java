@@ -0,0 +1,468 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A filter argument compiled into a predicate tree, so it is parsed once per query rather than once per row.
+ *
+ * Supported syntax, with field names not case sensitive and keywords in upper case:
+ * <pre>
+ *   expression:  term (OR term)*
+ *   term:        condition ((, | AND) condition)*
+ *   condition:   ( expression ) | FIELD op value | FIELD [NOT] IN (value, value, ...)
+ *   op:          = != &lt;&gt; &lt; &lt;= &gt; &gt;=
+ * </pre>
+ * Values may be quoted with single or double quotes, and otherwise run up to the next comma, closing bracket or
+ * AND/OR keyword.  Keywords are upper case only, so lower case titles containing "and" or "or" need no quotes.
+ * STB, TITLE and PROVIDER compare as case insensitive strings, DATE as a date, REV as a number and VIEW_TIME
+ * as a duration.
+ */
+public abstract class FilterExpression {
+
+    /**
+     * Tests a row against this filter
+     * @param fields row split into its six fields
+     * @return true if the row passes the filter
+     */
+    public abstract boolean test(String[] fields);
+
+    /**
+     * Tests whether rows with the given date could pass this filter, treating conditions on any other
+     * field as unknown.  Used to prune date partitions before opening them.
+     * @param date date of a partition
+     * @return TRUE if every row with that date passes, FALSE if none can, or null if it depends on other fields
+     */
+    public abstract Boolean testDate(LocalDate date);
+
+    /**
+     * Marks each field this filter references
+     * @param columns flags for each of the six fields, indexed in datastore field order
+     */
+    public abstract void collectColumns(boolean[] columns);
+
+    /**
+     * Collects field = value conditions which every passing row must satisfy, i.e. those not under an OR
+     * @param equalities map from lower case field name to filter value
+     */
+    public void collectEqualities(Map<String, String> equalities){
+    }
+
+    /**
+     * @return true if this filter references any field other than DATE
+     */
+    public boolean hasNonDateColumns(){
+        boolean[] columns = new boolean[Constants.fieldCount];
+        collectColumns(columns);
+        for(int i = 0; i < columns.length; i++){
+            if(columns[i] && i != 3){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compiles a filter argument into a predicate tree
+     * @param filterArgs filter argument string from the command line
+     * @return compiled filter
+     * @throws IllegalArgumentException if the filter cannot be parsed
+     */
+    public static FilterExpression parse(String filterArgs){
+        Parser parser = new Parser(filterArgs);
+        FilterExpression expression = parser.parseOr();
+        parser.skipWhitespace();
+        if(!parser.atEnd()){
+            throw parser.error("Unexpected input");
+        }
+        return expression;
+    }
+
+    /**
+     * Compares a row value against a filter value for a given field, using that field's type
+     */
+    private static int compareField(int column, String rowValue, Object filterValue){
+        switch(column){
+            case 3:
+                // Dates are stored in ISO format, so they compare correctly as strings
+                return rowValue.compareTo(filterValue.toString());
+            case 4:
+                return Double.compare(Double.parseDouble(rowValue), (Double) filterValue);
+            case 5:
+                return Integer.compare(parseMinutes(rowValue), (Integer) filterValue);
+            default:
+                return rowValue.compareToIgnoreCase((String) filterValue);
+        }
+    }
+
+    /**
+     * Converts a filter value into the type used to compare against its field
+     */
+    private static Object typedValue(int column, String value){
+        switch(column){
+            case 3:
+                return LocalDate.parse(value);
+            case 4:
+                return Double.parseDouble(value);
+            case 5:
+                return parseMinutes(value);
+            default:
+                return value;
+        }
+    }
+
+    private static int parseMinutes(String viewTime){
+        int colon = viewTime.indexOf(':');
+        return Integer.parseInt(viewTime.substring(0, colon).trim()) * 60 + Integer.parseInt(viewTime.substring(colon + 1).trim());
+    }
+
+    /**
+     * FIELD op value
+     */
+    private static class Comparison extends FilterExpression {
+        private int column;
+        private String operator;
+        private String value;
+        private Object typedValue;
+
+        Comparison(int column, String operator, String value){
+            this.column = column;
+            this.operator = operator;
+            this.value = value;
+            this.typedValue = typedValue(column, value);
+        }
+
+        @Override
+        public boolean test(String[] fields){
+            return matches(compareField(column, fields[column], typedValue));
+        }
+
+        @Override
+        public Boolean testDate(LocalDate date){
+            return column == 3 ? matches(date.compareTo((LocalDate) typedValue)) : null;
+        }
+
+        @Override
+        public void collectColumns(boolean[] columns){
+            columns[column] = true;
+        }
+
+        @Override
+        public void collectEqualities(Map<String, String> equalities){
+            if(operator.equals("=")){
+                equalities.put(Constants.fieldNames[column], value);
+            }
+        }
+
+        private boolean matches(int compareResult){
+            switch(operator){
+                case "=":
+                    return compareResult == 0;
+                case "<":
+                    return compareResult < 0;
+                case "<=":
+                    return compareResult <= 0;
+                case ">":
+                    return compareResult > 0;
+                case ">=":
+                    return compareResult >= 0;
+                default:
+                    return compareResult != 0;
+            }
+        }
+    }
+
+    /**
+     * FIELD [NOT] IN (value, ...)
+     */
+    private static class InList extends FilterExpression {
+        private int column;
+        private List<Object> typedValues;
+        private boolean negated;
+
+        InList(int column, List<String> values, boolean negated){
+            this.column = column;
+            this.negated = negated;
+            this.typedValues = new ArrayList<>();
+            values.forEach(value -> typedValues.add(typedValue(column, value)));
+        }
+
+        @Override
+        public boolean test(String[] fields){
+            for(Object typedValue : typedValues){
+                if(compareField(column, fields[column], typedValue) == 0){
+                    return !negated;
+                }
+            }
+            return negated;
+        }
+
+        @Override
+        public Boolean testDate(LocalDate date){
+            return column == 3 ? negated != typedValues.contains(date) : null;
+        }
+
+        @Override
+        public void collectColumns(boolean[] columns){
+            columns[column] = true;
+        }
+    }
+
+    /**
+     * Conditions joined by AND or commas
+     */
+    private static class And extends FilterExpression {
+        private List<FilterExpression> children;
+
+        And(List<FilterExpression> children){
+            this.children = children;
+        }
+
+        @Override
+        public boolean test(String[] fields){
+            for(FilterExpression child : children){
+                if(!child.test(fields)){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Boolean testDate(LocalDate date){
+            Boolean result = Boolean.TRUE;
+            for(FilterExpression child : children){
+                Boolean childResult = child.testDate(date);
+                if(Boolean.FALSE.equals(childResult)){
+                    return Boolean.FALSE;
+                }
+                if(childResult == null){
+                    result = null;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void collectColumns(boolean[] columns){
+            children.forEach(child -> child.collectColumns(columns));
+        }
+
+        @Override
+        public void collectEqualities(Map<String, String> equalities){
+            children.forEach(child -> child.collectEqualities(equalities));
+        }
+    }
+
+    /**
+     * Conditions joined by OR
+     */
+    private static class Or extends FilterExpression {
+        private List<FilterExpression> children;
+
+        Or(List<FilterExpression> children){
+            this.children = children;
+        }
+
+        @Override
+        public boolean test(String[] fields){
+            for(FilterExpression child : children){
+                if(child.test(fields)){
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Boolean testDate(LocalDate date){
+            Boolean result = Boolean.FALSE;
+            for(FilterExpression child : children){
+                Boolean childResult = child.testDate(date);
+                if(Boolean.TRUE.equals(childResult)){
+                    return Boolean.TRUE;
+                }
+                if(childResult == null){
+                    result = null;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public void collectColumns(boolean[] columns){
+            children.forEach(child -> child.collectColumns(columns));
+        }
+    }
+
+    /**
+     * Recursive descent parser over a filter argument string
+     */
+    private static class Parser {
+        private String input;
+        private int position;
+
+        Parser(String input){
+            this.input = input;
+            this.position = 0;
+        }
+
+        FilterExpression parseOr(){
+            List<FilterExpression> children = new ArrayList<>();
+            children.add(parseAnd());
+            while(matchKeyword("OR")){
+                children.add(parseAnd());
+            }
+            return children.size() == 1 ? children.get(0) : new Or(children);
+        }
+
+        FilterExpression parseAnd(){
+            List<FilterExpression> children = new ArrayList<>();
+            children.add(parseCondition());
+            while(true){
+                skipWhitespace();
+                if(!atEnd() && input.charAt(position) == ','){
+                    position++;
+                }
+                else if(!matchKeyword("AND")){
+                    break;
+                }
+                children.add(parseCondition());
+            }
+            return children.size() == 1 ? children.get(0) : new And(children);
+        }
+
+        FilterExpression parseCondition(){
+            skipWhitespace();
+            if(!atEnd() && input.charAt(position) == '('){
+                position++;
+                FilterExpression expression = parseOr();
+                expect(')');
+                return expression;
+            }
+
+            int start = position;
+            while(!atEnd() && (Character.isLetterOrDigit(input.charAt(position)) || input.charAt(position) == '_')){
+                position++;
+            }
+            String field = input.substring(start, position).toLowerCase();
+            int column = Arrays.asList(Constants.fieldNames).indexOf(field);
+            if(column < 0){
+                throw error("Unknown field '" + field + "'");
+            }
+
+            boolean negated = matchKeyword("NOT");
+            if(matchKeyword("IN")){
+                return new InList(column, parseValueList(), negated);
+            }
+            if(negated){
+                throw error("Expected IN after NOT");
+            }
+
+            String operator = parseOperator();
+            try {
+                return new Comparison(column, operator, parseValue());
+            } catch(RuntimeException e){
+                throw error("Invalid value for " + field.toUpperCase());
+            }
+        }
+
+        private String parseOperator(){
+            skipWhitespace();
+            for(String operator : new String[]{"<=", ">=", "!=", "<>", "=", "<", ">"}){
+                if(input.startsWith(operator, position)){
+                    position += operator.length();
+                    return operator.equals("<>") ? "!=" : operator;
+                }
+            }
+            throw error("Expected a comparison operator");
+        }
+
+        private List<String> parseValueList(){
+            expect('(');
+            List<String> values = new ArrayList<>();
+            values.add(parseValue());
+            skipWhitespace();
+            while(!atEnd() && input.charAt(position) == ','){
+                position++;
+                values.add(parseValue());
+                skipWhitespace();
+            }
+            expect(')');
+            return values;
+        }
+
+        private String parseValue(){
+            skipWhitespace();
+            if(!atEnd() && (input.charAt(position) == '"' || input.charAt(position) == '\'')){
+                char quote = input.charAt(position++);
+                int end = input.indexOf(quote, position);
+                if(end < 0){
+                    throw error("Unterminated quote");
+                }
+                String value = input.substring(position, end);
+                position = end + 1;
+                return value;
+            }
+            // Bare values may contain spaces, so stop at a delimiter or at an AND/OR keyword
+            int start = position;
+            while(!atEnd() && input.charAt(position) != ',' && input.charAt(position) != ')'){
+                if(Character.isWhitespace(input.charAt(position)) && keywordAhead()){
+                    break;
+                }
+                position++;
+            }
+            return input.substring(start, position).trim();
+        }
+
+        private boolean keywordAhead(){
+            int saved = position;
+            boolean keyword = matchKeyword("AND") || matchKeyword("OR");
+            position = saved;
+            return keyword;
+        }
+
+        /**
+         * Consumes an upper case keyword if it comes next as a whole word
+         */
+        private boolean matchKeyword(String keyword){
+            int saved = position;
+            skipWhitespace();
+            int end = position + keyword.length();
+            if(end <= input.length() && input.startsWith(keyword, position)
+                    && (end == input.length() || Character.isWhitespace(input.charAt(end)) || input.charAt(end) == '(')){
+                position = end;
+                return true;
+            }
+            position = saved;
+            return false;
+        }
+
+        private void expect(char c){
+            skipWhitespace();
+            if(atEnd() || input.charAt(position) != c){
+                throw error("Expected '" + c + "'");
+            }
+            position++;
+        }
+
+        void skipWhitespace(){
+            while(!atEnd() && Character.isWhitespace(input.charAt(position))){
+                position++;
+            }
+        }
+
+        boolean atEnd(){
+            return position >= input.length();
+        }
+
+        IllegalArgumentException error(String message){
+            return new IllegalArgumentException(message + " at position " + position + " in filter: " + input);
+        }
+    }
+}
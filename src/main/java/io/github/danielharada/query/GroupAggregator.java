@@ -0,0 +1,639 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Streaming hash aggregation for queries with a group option or aggregate functions in their select option,
+ * e.g. {@code -s PROVIDER,SUM(REV),COUNT(*) -g PROVIDER}.  Rows are folded into one accumulator per group as
+ * they are scanned, so memory depends on the number of groups rather than the number of rows.
+ *
+ * If the groups outgrow our memory budget, the partial aggregates are hash partitioned on their group key and
+ * spilled to bucket files.  Once the scan is done each bucket is read back, its partial aggregates merged and
+ * its groups output before the next bucket is read.
+ *
+ * Supported functions are COUNT, SUM, MIN, MAX and AVG.  SUM and AVG apply to REV and VIEW_TIME, COUNT(*) counts
+ * rows, and MIN and MAX apply to any field.
+ */
+public class GroupAggregator {
+
+    private final static String spillDelimiter = "\u0001";  // Can't appear in validated rows, unlike | or ,
+    private final static String[] functions = {"count", "sum", "min", "max", "avg"};
+
+    private int[] groupColumns;
+    private List<SelectItem> selectItems;
+    private List<SelectItem> aggregates;
+    private Path spillParent;
+    private long memoryLimit;
+
+    private Map<String, Accumulator[]> groups;
+    private long groupBytes;
+    private Path spillDirectory;
+
+    /**
+     * @param selectArgs comma separated select items, each either a group field or FUNCTION(FIELD)
+     * @param groupArgs comma separated fields to group by, or null to aggregate every row into one group
+     * @param spillParent directory under which a temporary directory for spilled groups is created
+     * @param memoryLimit approximate number of bytes of groups to hold before spilling
+     * @throws IllegalArgumentException if the select or group arguments are not valid
+     */
+    public GroupAggregator(String selectArgs, String groupArgs, Path spillParent, long memoryLimit){
+        List<String> fieldNames = Arrays.asList(Constants.fieldNames);
+        String[] groupFields = groupArgs == null ? new String[0] : groupArgs.split(",");
+        this.groupColumns = new int[groupFields.length];
+        for(int i = 0; i < groupFields.length; i++){
+            groupColumns[i] = fieldNames.indexOf(groupFields[i].toLowerCase());
+            if(groupColumns[i] < 0){
+                throw new IllegalArgumentException("Unknown group field " + groupFields[i]);
+            }
+        }
+
+        this.selectItems = new ArrayList<>();
+        this.aggregates = new ArrayList<>();
+        for(String item : selectArgs.split(",")){
+            SelectItem selectItem = SelectItem.parse(item);
+            if(selectItem.function == null){
+                int groupIndex = indexOf(groupColumns, selectItem.column);
+                if(groupIndex < 0){
+                    throw new IllegalArgumentException(item + " must be in the group option or used in an aggregate function");
+                }
+                selectItem.groupIndex = groupIndex;
+            }
+            else {
+                selectItem.aggregateIndex = aggregates.size();
+                aggregates.add(selectItem);
+            }
+            selectItems.add(selectItem);
+        }
+
+        this.spillParent = spillParent;
+        this.memoryLimit = memoryLimit;
+        this.groups = new HashMap<>();
+        this.groupBytes = 0;
+    }
+
+    /**
+     * @param selectArgs comma separated select items
+     * @return true if any select item is an aggregate function
+     */
+    public static boolean hasAggregates(String selectArgs){
+        for(String item : selectArgs.split(",")){
+            if(item.indexOf('(') > 0){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Strips any aggregate function from a select item
+     * @param item select item, such as SUM(REV)
+     * @return the field name inside the function, such as REV, or the item itself if it is not a function
+     */
+    public static String fieldOf(String item){
+        int open = item.indexOf('(');
+        int close = item.lastIndexOf(')');
+        return open > 0 && close > open ? item.substring(open + 1, close).trim() : item;
+    }
+
+    /**
+     * Folds a single datastore line into its group's accumulators
+     * @param rowEntry unparsed line from the datastore
+     */
+    public void add(String rowEntry){
+        String[] fields = rowEntry.split(Constants.escapedInputDelimiter, -1);
+        String groupKey = groupKey(fields);
+        Accumulator[] accumulators = groups.get(groupKey);
+        if(accumulators == null){
+            accumulators = newAccumulators();
+            groups.put(groupKey, accumulators);
+            groupBytes += groupKey.length() * 2 + Constants.groupEntryOverhead * (1 + aggregates.size());
+        }
+        for(int i = 0; i < accumulators.length; i++){
+            SelectItem aggregate = aggregates.get(i);
+            accumulators[i].add(aggregate.column < 0 ? null : fields[aggregate.column]);
+        }
+        if(groupBytes >= memoryLimit){
+            spillGroups();
+        }
+    }
+
+    /**
+     * Passes each group's output line to the consumer, and removes any spill files.  Spilled groups are output
+     * one bucket at a time as each is merged, so only a single bucket's groups are held in memory at once.
+     * @param orderArgs comma separated group fields to order the output by, or null for no ordering
+     * @param limit maximum number of groups to output, or 0 for no limit
+     * @param output receives each output row, with one value per select item
+     */
+    public void output(String orderArgs, int limit, Consumer<String[]> output){
+        try {
+            if(spillDirectory != null){
+                spillGroups();
+            }
+            if(orderArgs == null){
+                outputGroups(limit, output);
+            }
+            else if(limit > 0){
+                outputTopGroups(resultOrder(orderArgs), limit, output);
+            }
+            else {
+                outputSortedGroups(resultOrder(orderArgs), output);
+            }
+        } finally {
+            groups.clear();
+            groupBytes = 0;
+            deleteSpillFiles();
+        }
+    }
+
+    /**
+     * @return the select item text for each output column, in select order
+     */
+    public String[] columnNames(){
+        String[] columnNames = new String[selectItems.size()];
+        for(int i = 0; i < columnNames.length; i++){
+            columnNames[i] = selectItems.get(i).text.toLowerCase();
+        }
+        return columnNames;
+    }
+
+    /**
+     * @return true for each output column holding a number, i.e. counts and anything over REV
+     */
+    public boolean[] numericColumns(){
+        boolean[] numericColumns = new boolean[selectItems.size()];
+        for(int i = 0; i < numericColumns.length; i++){
+            SelectItem selectItem = selectItems.get(i);
+            numericColumns[i] = "count".equals(selectItem.function) || selectItem.column == 4;
+        }
+        return numericColumns;
+    }
+
+    private String groupKey(String[] fields){
+        StringBuilder keyBuilder = new StringBuilder();
+        for(int i = 0; i < groupColumns.length; i++){
+            if(i > 0){
+                keyBuilder.append(Constants.inputDelimiter);
+            }
+            keyBuilder.append(fields[groupColumns[i]]);
+        }
+        return keyBuilder.toString();
+    }
+
+    private Accumulator[] newAccumulators(){
+        Accumulator[] accumulators = new Accumulator[aggregates.size()];
+        for(int i = 0; i < accumulators.length; i++){
+            accumulators[i] = new Accumulator(aggregates.get(i).column);
+        }
+        return accumulators;
+    }
+
+    /**
+     * Builds a group's output fields, in select order
+     */
+    private String[] resultRow(String groupKey, Accumulator[] accumulators){
+        String[] groupValues = groupKey.split(Constants.escapedInputDelimiter, -1);
+        String[] result = new String[selectItems.size()];
+        for(int i = 0; i < result.length; i++){
+            SelectItem selectItem = selectItems.get(i);
+            result[i] = selectItem.function == null ? groupValues[selectItem.groupIndex]
+                    : accumulators[selectItem.aggregateIndex].result(selectItem.function);
+        }
+        return result;
+    }
+
+    /**
+     * Orders output rows on the requested group fields, comparing each field by its type
+     */
+    private Comparator<String[]> resultOrder(String orderArgs){
+        List<int[]> orderings = new ArrayList<>();
+        for(String field : orderArgs.split(",")){
+            for(int i = 0; i < selectItems.size(); i++){
+                SelectItem selectItem = selectItems.get(i);
+                if(selectItem.text.equalsIgnoreCase(field.trim())){
+                    orderings.add(new int[]{i, selectItem.function == null || !selectItem.function.equals("count") ? selectItem.column : -1});
+                    break;
+                }
+            }
+        }
+        return (a, b) -> {
+            for(int[] ordering : orderings){
+                int compareResult = compareValues(ordering[1], a[ordering[0]], b[ordering[0]]);
+                if(compareResult != 0){
+                    return compareResult;
+                }
+            }
+            return 0;
+        };
+    }
+
+    /**
+     * Compares two values of a field by its type, matching FieldEntryComparator.  Column -1 is a count.
+     */
+    private static int compareValues(int column, String a, String b){
+        switch(column){
+            case -1:
+                return Long.compare(Long.parseLong(a), Long.parseLong(b));
+            case 4:
+                return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+            case 5:
+                return Long.compare(parseMinutes(a), parseMinutes(b));
+            default:
+                return a.compareTo(b);
+        }
+    }
+
+    /**
+     * Hash partitions our partial aggregates into bucket files and clears them from memory
+     */
+    private void spillGroups(){
+        try {
+            if(spillDirectory == null){
+                spillDirectory = Files.createTempDirectory(spillParent, Constants.groupTempPrefix);
+            }
+            List<BufferedWriter> writers = new ArrayList<>();
+            try {
+                for(int i = 0; i < Constants.groupSpillBuckets; i++){
+                    writers.add(Files.newBufferedWriter(spillDirectory.resolve("bucket-" + i), StandardCharsets.UTF_8,
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+                }
+                for(Map.Entry<String, Accumulator[]> group : groups.entrySet()){
+                    BufferedWriter writer = writers.get(Math.floorMod(group.getKey().hashCode(), Constants.groupSpillBuckets));
+                    writer.write(group.getKey());
+                    for(Accumulator accumulator : group.getValue()){
+                        writer.write(spillDelimiter);
+                        writer.write(accumulator.state());
+                    }
+                    writer.newLine();
+                }
+            } finally {
+                for(BufferedWriter writer : writers){
+                    writer.close();
+                }
+            }
+        } catch(IOException e){
+            throw new RuntimeException("Unable to spill groups to " + spillParent, e);
+        }
+        groups.clear();
+        groupBytes = 0;
+    }
+
+    /**
+     * Outputs groups in the order their buckets are merged, stopping once we reach our limit
+     */
+    private void outputGroups(int limit, Consumer<String[]> output){
+        int outputCount = 0;
+        for(int i = 0; i < bucketCount(); i++){
+            for(Map.Entry<String, Accumulator[]> group : bucketGroups(i).entrySet()){
+                if(limit > 0 && outputCount == limit){
+                    return;
+                }
+                output.accept(resultRow(group.getKey(), group.getValue()));
+                outputCount++;
+            }
+        }
+    }
+
+    /**
+     * Keeps the first groups of the ordering in a bounded max heap as each bucket is merged, then outputs them.
+     * Ties are broken on arrival order, matching a stable sort followed by taking the first groups.
+     */
+    private void outputTopGroups(Comparator<String[]> order, int limit, Consumer<String[]> output){
+        Comparator<RankedResult> ranking = (a, b) -> {
+            int compareResult = order.compare(a.result, b.result);
+            return compareResult != 0 ? compareResult : Long.compare(a.arrival, b.arrival);
+        };
+        // Reversed, so the head of the queue is the worst group we're keeping
+        PriorityQueue<RankedResult> heap = new PriorityQueue<>(limit, ranking.reversed());
+        long arrivals = 0;
+        for(int i = 0; i < bucketCount(); i++){
+            for(Map.Entry<String, Accumulator[]> group : bucketGroups(i).entrySet()){
+                RankedResult candidate = new RankedResult(resultRow(group.getKey(), group.getValue()), arrivals++);
+                if(heap.size() < limit){
+                    heap.add(candidate);
+                }
+                else if(ranking.compare(candidate, heap.peek()) < 0){
+                    heap.poll();
+                    heap.add(candidate);
+                }
+            }
+        }
+        List<RankedResult> rankedResults = new ArrayList<>(heap);
+        Collections.sort(rankedResults, ranking);
+        rankedResults.forEach(rankedResult -> output.accept(rankedResult.result));
+    }
+
+    /**
+     * Outputs every group in order.  Groups held in memory are simply sorted, while spilled buckets are each
+     * sorted into a run file as they are merged, and the runs are then k-way merged.
+     */
+    private void outputSortedGroups(Comparator<String[]> order, Consumer<String[]> output){
+        if(spillDirectory == null){
+            List<String[]> results = new ArrayList<>();
+            groups.forEach((groupKey, accumulators) -> results.add(resultRow(groupKey, accumulators)));
+            groups.clear();
+            Collections.sort(results, order);
+            results.forEach(output);
+            return;
+        }
+        List<Path> runFiles = new ArrayList<>();
+        for(int i = 0; i < Constants.groupSpillBuckets; i++){
+            List<String[]> results = new ArrayList<>();
+            bucketGroups(i).forEach((groupKey, accumulators) -> results.add(resultRow(groupKey, accumulators)));
+            Collections.sort(results, order);
+            Path runFile = spillDirectory.resolve("sorted-" + i);
+            try(BufferedWriter writer = Files.newBufferedWriter(runFile, StandardCharsets.UTF_8)){
+                for(String[] result : results){
+                    writer.write(String.join(spillDelimiter, result));
+                    writer.newLine();
+                }
+            } catch(IOException e){
+                throw new RuntimeException("Unable to spill sorted groups to " + spillDirectory, e);
+            }
+            runFiles.add(runFile);
+        }
+        mergeRuns(runFiles, order, output);
+    }
+
+    /**
+     * K-way merges sorted run files of output rows using a priority queue holding the head row of each run.
+     * Ties are broken on run number, so equal rows come out in bucket order.
+     */
+    private void mergeRuns(List<Path> runFiles, Comparator<String[]> order, Consumer<String[]> output){
+        PriorityQueue<RunReader> heads = new PriorityQueue<>((a, b) -> {
+            int compareResult = order.compare(a.current, b.current);
+            return compareResult != 0 ? compareResult : Integer.compare(a.runNumber, b.runNumber);
+        });
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            for(int i = 0; i < runFiles.size(); i++){
+                RunReader reader = new RunReader(runFiles.get(i), i);
+                readers.add(reader);
+                if(reader.advance()){
+                    heads.add(reader);
+                }
+            }
+            while(!heads.isEmpty()){
+                RunReader reader = heads.poll();
+                output.accept(reader.current);
+                if(reader.advance()){
+                    heads.add(reader);
+                }
+            }
+        } catch(IOException e){
+            throw new RuntimeException("Unable to merge sorted groups in " + spillDirectory, e);
+        } finally {
+            for(RunReader reader : readers){
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of buckets to output, a single one if our groups are all still in memory
+     */
+    private int bucketCount(){
+        return spillDirectory == null ? 1 : Constants.groupSpillBuckets;
+    }
+
+    /**
+     * Reads back a bucket of spilled partial aggregates and merges those belonging to the same group.
+     * A group's partial aggregates always land in the same bucket, so each bucket can be merged on its own.
+     * If nothing was spilled, our in memory groups are the only bucket.
+     */
+    private Map<String, Accumulator[]> bucketGroups(int bucket){
+        if(spillDirectory == null){
+            return groups;
+        }
+        Map<String, Accumulator[]> bucketGroups = new HashMap<>();
+        try(Stream<String> bucketStream = Files.lines(spillDirectory.resolve("bucket-" + bucket), StandardCharsets.UTF_8)){
+            bucketStream.forEach(line -> {
+                String[] parts = line.split(spillDelimiter, -1);
+                Accumulator[] accumulators = bucketGroups.computeIfAbsent(parts[0], groupKey -> newAccumulators());
+                for(int j = 0; j < accumulators.length; j++){
+                    accumulators[j].merge(parts[j + 1]);
+                }
+            });
+        } catch(IOException e){
+            throw new RuntimeException("Unable to read spilled groups from " + spillDirectory, e);
+        }
+        return bucketGroups;
+    }
+
+    private void deleteSpillFiles(){
+        if(spillDirectory == null){
+            return;
+        }
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(spillDirectory)){
+            for(Path spillFile : directoryStream){
+                Files.deleteIfExists(spillFile);
+            }
+            Files.deleteIfExists(spillDirectory);
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+        spillDirectory = null;
+    }
+
+    private static int indexOf(int[] values, int value){
+        for(int i = 0; i < values.length; i++){
+            if(values[i] == value){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseMinutes(String viewTime){
+        int colon = viewTime.indexOf(':');
+        return Long.parseLong(viewTime.substring(0, colon)) * 60 + Long.parseLong(viewTime.substring(colon + 1));
+    }
+
+    /**
+     * Converts a REV or VIEW_TIME value to an exact integer, cents or minutes, for summing
+     */
+    private static long toUnits(int column, String value){
+        if(column == 5){
+            return parseMinutes(value);
+        }
+        int decimal = value.indexOf('.');
+        return decimal < 0 ? Long.parseLong(value) * 100
+                : Long.parseLong(value.substring(0, decimal).concat(value.substring(decimal + 1)));
+    }
+
+    private static String formatUnits(int column, double units){
+        if(column == 5){
+            long minutes = Math.round(units);
+            long minute = minutes % 60;
+            return (minutes / 60) + (minute < 10 ? ":0" : ":") + minute;
+        }
+        return String.format("%.2f", units / 100);
+    }
+
+    /**
+     * A single item from the select option, either a plain field or FUNCTION(FIELD)
+     */
+    private static class SelectItem {
+        private String text;
+        private String function;
+        private int column;
+        private int groupIndex = -1;
+        private int aggregateIndex = -1;
+
+        static SelectItem parse(String item){
+            SelectItem selectItem = new SelectItem();
+            selectItem.text = item.trim();
+            String field = fieldOf(selectItem.text);
+            if(!field.equals(selectItem.text)){
+                selectItem.function = selectItem.text.substring(0, selectItem.text.indexOf('(')).trim().toLowerCase();
+                if(!Arrays.asList(functions).contains(selectItem.function)){
+                    throw new IllegalArgumentException("Unknown aggregate function " + selectItem.text);
+                }
+            }
+            selectItem.column = field.equals("*") ? -1 : Arrays.asList(Constants.fieldNames).indexOf(field.toLowerCase());
+            if(selectItem.column < 0 && !(field.equals("*") && "count".equals(selectItem.function))){
+                throw new IllegalArgumentException("Unknown field in " + selectItem.text);
+            }
+            if(("sum".equals(selectItem.function) || "avg".equals(selectItem.function))
+                    && selectItem.column != 4 && selectItem.column != 5){
+                throw new IllegalArgumentException(selectItem.text + " can only be applied to REV or VIEW_TIME");
+            }
+            return selectItem;
+        }
+    }
+
+    /**
+     * Running count, sum, minimum and maximum for one aggregate within one group.  Sums are kept as exact
+     * cents or minutes, so they don't drift the way a float total would.
+     */
+    private static class Accumulator {
+        private int column;
+        private long count;
+        private long sum;
+        private String min;
+        private String max;
+
+        Accumulator(int column){
+            this.column = column;
+        }
+
+        void add(String value){
+            count++;
+            if(column < 0){
+                return;
+            }
+            if(column == 4 || column == 5){
+                sum += toUnits(column, value);
+            }
+            if(min == null || compareValues(column, value, min) < 0){
+                min = value;
+            }
+            if(max == null || compareValues(column, value, max) > 0){
+                max = value;
+            }
+        }
+
+        /**
+         * Folds a partial aggregate written by state() into this one
+         */
+        void merge(String state){
+            String[] parts = state.split(",", -1);
+            count += Long.parseLong(parts[0]);
+            sum += Long.parseLong(parts[1]);
+            // Min and max are written last and may contain commas, so they're split by length instead
+            int minLength = Integer.parseInt(parts[2]);
+            String values = state.substring(parts[0].length() + parts[1].length() + parts[2].length() + 3);
+            if(minLength >= 0){
+                String partialMin = values.substring(0, minLength);
+                String partialMax = values.substring(minLength + 1);
+                if(min == null || compareValues(column, partialMin, min) < 0){
+                    min = partialMin;
+                }
+                if(max == null || compareValues(column, partialMax, max) > 0){
+                    max = partialMax;
+                }
+            }
+        }
+
+        /**
+         * @return partial aggregate as count,sum,min length,min,max with a min length of -1 if there is no min
+         */
+        String state(){
+            return count + "," + sum + "," + (min == null ? "-1," : min.length() + "," + min + "," + max);
+        }
+
+        String result(String function){
+            switch(function){
+                case "count":
+                    return Long.toString(count);
+                case "sum":
+                    return formatUnits(column, sum);
+                case "avg":
+                    return count == 0 ? "" : formatUnits(column, (double) sum / count);
+                case "min":
+                    return min == null ? "" : min;
+                default:
+                    return max == null ? "" : max;
+            }
+        }
+    }
+
+    /**
+     * An output row paired with the order it arrived in
+     */
+    private static class RankedResult {
+        private String[] result;
+        private long arrival;
+
+        RankedResult(String[] result, long arrival){
+            this.result = result;
+            this.arrival = arrival;
+        }
+    }
+
+    /**
+     * Reads a single sorted run of output rows back in one row at a time
+     */
+    private static class RunReader {
+        private BufferedReader reader;
+        private int runNumber;
+        private String[] current;
+
+        RunReader(Path runFile, int runNumber) throws IOException {
+            this.reader = Files.newBufferedReader(runFile, StandardCharsets.UTF_8);
+            this.runNumber = runNumber;
+        }
+
+        boolean advance() throws IOException {
+            String line = reader.readLine();
+            current = line == null ? null : line.split(spillDelimiter, -1);
+            return current != null;
+        }
+
+        void close(){
+            try {
+                reader.close();
+            } catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+    }
+}
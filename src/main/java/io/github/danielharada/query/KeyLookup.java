@@ -0,0 +1,111 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.dataimport.FileParser;
+import io.github.danielharada.dataimport.WriteAheadLog;
+import io.github.danielharada.metrics.Metrics;
+import io.github.danielharada.storage.DeltaSegments;
+import io.github.danielharada.storage.KeyFilter;
+import io.github.danielharada.storage.Manifest;
+import io.github.danielharada.storage.PartitionReader;
+import io.github.danielharada.storage.SparseIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Fetches the single row stored under a (STB, TITLE, DATE) key without scanning its date partition.  The layers
+ * a row can live in are checked newest first, and the first one holding the key wins: rows waiting in the write
+ * ahead log, then the partition's delta segments, then the partition itself.  Each file is skipped outright if its
+ * key filter rules the key out, and otherwise its sparse index narrows the read to the one block that could hold
+ * the key.  A file without a usable sparse index, such as a partition written before partitions were kept sorted,
+ * is scanned instead.  Every file is read from the current manifest version, pinned for the length of the lookup.
+ *
+ * Keys are matched exactly, as they are when imports replace rows, rather than ignoring case like query filters.
+ */
+public class KeyLookup {
+
+    private FileParser fileParser;
+    private WriteAheadLog writeAheadLog;
+    private DeltaSegments deltaSegments;
+    private PartitionReader partitionReader;
+    private SparseIndex sparseIndex;
+
+    /**
+     * @param writeAheadLog log whose waiting rows are checked first, or null to only check the datastore files
+     */
+    public KeyLookup(WriteAheadLog writeAheadLog){
+        this.fileParser = new FileParser();
+        this.writeAheadLog = writeAheadLog;
+        this.deltaSegments = new DeltaSegments();
+        this.partitionReader = new PartitionReader();
+        this.sparseIndex = new SparseIndex();
+    }
+
+    /**
+     * @param stb set top box id
+     * @param title title of the viewed asset
+     * @param date view date, as YYYY-MM-DD
+     * @return the pipe delimited row stored under the key, or null if there is none
+     */
+    public String get(String stb, String title, String date) throws IOException {
+        String key = stb.concat(Constants.inputDelimiter).concat(title).concat(Constants.inputDelimiter).concat(date);
+        // As with queries, the version is pinned along with the logged rows newer than it
+        Manifest manifest = new Manifest(Paths.get(Constants.dataStoreDirectory));
+        try(WriteAheadLog.View view = writeAheadLog != null ? writeAheadLog.pin(manifest)
+                : new WriteAheadLog.View(manifest.pin(), Collections.emptyMap())){
+            Map<String, String> loggedRows = view.rows().get(date);
+            if(loggedRows != null && loggedRows.containsKey(key)){
+                return loggedRows.get(key);
+            }
+            Path partition = view.version().roots().locate(date);
+            while(true){
+                try {
+                    List<Path> segments = deltaSegments.list(partition);
+                    for(int i = segments.size() - 1; i >= 0; i--){
+                        String rowEntry = find(segments.get(i), key);
+                        if(rowEntry != null){
+                            return rowEntry;
+                        }
+                    }
+                    return Files.exists(partition) ? find(partition, key) : null;
+                } catch(NoSuchFileException e){
+                    // Only when reading in place: a compaction removed a segment since we listed them, possibly
+                    // folding its rows into the partition
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks for a key in one partition or segment file
+     * @return the row stored under the key, or null if the file does not hold it
+     */
+    private String find(Path file, String key) throws IOException {
+        KeyFilter keyFilter = KeyFilter.read(file);
+        if(keyFilter != null && !keyFilter.mightContain(key)){
+            Metrics.increment(Metrics.Counter.PARTITIONS_PRUNED);
+            return null;
+        }
+        Metrics.increment(Metrics.Counter.PARTITIONS_OPENED);
+        List<String> block = sparseIndex.readBlock(file, key);
+        if(block != null){
+            for(String rowEntry : block){
+                if(fileParser.parseKey(rowEntry).equals(key)){
+                    return rowEntry;
+                }
+            }
+            return null;
+        }
+        try(Stream<String> rowStream = partitionReader.lines(file)){
+            return rowStream.filter(rowEntry -> fileParser.parseKey(rowEntry).equals(key)).findFirst().orElse(null);
+        }
+    }
+}
@@ -2,15 +2,41 @@ package io.github.danielharada.query;
 
 import io.github.danielharada.ArgumentFlags;
 import io.github.danielharada.Constants;
+import io.github.danielharada.dataimport.FileParser;
+import io.github.danielharada.dataimport.WriteAheadLog;
+import io.github.danielharada.metrics.Metrics;
+import io.github.danielharada.storage.DataRoots;
+import io.github.danielharada.storage.DeltaSegments;
+import io.github.danielharada.storage.KeyFilter;
+import io.github.danielharada.storage.Manifest;
+import io.github.danielharada.storage.PartitionCache;
+import io.github.danielharada.storage.PartitionReader;
+import io.github.danielharada.storage.SecondaryIndex;
+import io.github.danielharada.storage.TextScanner;
 
-import java.nio.file.DirectoryStream;
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 /**
  * Created by daniel.harada on 17-07-28.
@@ -18,10 +44,36 @@ import java.util.stream.Stream;
 public class Query {
 
     private ArgumentFlags argFlags;
+    private PartitionReader partitionReader;
+    private SecondaryIndex secondaryIndex;
+    private PartitionCache partitionCache;
+    private WriteAheadLog writeAheadLog;
+    private DeltaSegments deltaSegments;
+    private FileParser fileParser;
+    private Map<String, Map<String, String>> loggedRows;
+    private boolean[] queryColumns;
+    private FilterExpression filterExpression;
+    private List<TextScanner.ByteFilter> byteFilters;
+    private String pointKey;
+    private boolean pointKeyResolved;
 
     public Query(ArgumentFlags argFlags){
-        this.argFlags = argFlags;
+        this(argFlags, null, null);
+    }
 
+    /**
+     * @param argFlags parsed command line arguments for this query
+     * @param partitionCache cache of recently read partitions shared between queries, or null to always read from disk
+     * @param writeAheadLog log of imported rows not yet applied to the partitions, or null to read partitions only
+     */
+    public Query(ArgumentFlags argFlags, PartitionCache partitionCache, WriteAheadLog writeAheadLog){
+        this.argFlags = argFlags;
+        this.partitionReader = new PartitionReader();
+        this.secondaryIndex = new SecondaryIndex();
+        this.partitionCache = partitionCache;
+        this.writeAheadLog = writeAheadLog;
+        this.deltaSegments = new DeltaSegments();
+        this.fileParser = new FileParser();
     }
 
     /**
@@ -31,25 +83,178 @@ public class Query {
      * @return List of unparsed string lines from the datastore
      */
     public List<String> readDataStore(String datastoreDirectory){
-        String dateFilter = "*";
-        // If we filter on date, pull in that date value
-        if(argFlags.getFilterFlag()){
-            dateFilter = dateFilter();
-        }
-
         List<String> rowEntries = new ArrayList<String>();
+        scanDataStore(datastoreDirectory, rowEntry -> rowEntries.add(rowEntry));
+
+        return rowEntries;
+    }
 
-        // Stream over every file in our path that matches our dateFilter glob pattern.  For each file we find,
-        // append its entries onto our rowEntries list
-        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(Paths.get(datastoreDirectory), dateFilter)){
-            directoryStream.forEach(path -> readFileAndAppendLinesToList(path, rowEntries));
+    /**
+     * Streams lines from the datastore to a consumer rather than collecting them, so callers that can spill
+     * to disk do not need the full result in memory.  Any filter conditions are applied while reading in the data.
+     * The current manifest version is pinned for the whole scan, along with the rows in the write ahead log
+     * newer than it, so imports and applies running alongside us can't show us some of their rows but not others.
+     * @param datastoreDirectory string path to the directory where our datastore resides
+     * @param rowConsumer receives each unparsed string line that passes our filters
+     */
+    public void scanDataStore(String datastoreDirectory, Consumer<String> rowConsumer){
+        Manifest manifest = new Manifest(Paths.get(datastoreDirectory));
+        try(WriteAheadLog.View view = writeAheadLog != null ? writeAheadLog.pin(manifest)
+                : new WriteAheadLog.View(manifest.pin(), Collections.emptyMap())){
+            Manifest.Version version = view.version();
+            loggedRows = view.rows();
+            List<Path> partitions = listPartitions(version.roots());
+            // Compile our filter and work out our columns up front, so worker threads don't race to do it
+            filterExpression();
+            queryColumns();
+            byteFilters();
+            pointKey();
+
+            // Without an ordering, the first rows we find are our result, so we can stop as soon as we have enough.
+            // Grouped and aggregate queries limit their groups instead, which need every row, so GroupAggregator applies it.
+            boolean aggregated = argFlags.getGroupFlag()
+                    || (argFlags.getSelectArgs() != null && GroupAggregator.hasAggregates(argFlags.getSelectArgs()));
+            int rowLimit = argFlags.getOrderFlag() || aggregated ? 0 : argFlags.getLimit();
+            Consumer<String> scanConsumer = rowLimit > 0 ? limitedConsumer(rowConsumer, rowLimit) : rowConsumer;
+            // With several data roots, the scan is spread over at least one thread per root so every drive is read at once
+            int threadCount = Math.max(argFlags.getThreadCount(), version.roots().roots().size());
+            try {
+                if(threadCount > 1 && partitions.size() > 1){
+                    parallelScan(partitions, scanConsumer, rowLimit, threadCount);
+                }
+                else {
+                    partitions.forEach(path -> readFile(path, scanConsumer));
+                }
+            }
+            catch(LimitReachedException e){
+                // We have all the rows we need
+            }
         }
-        catch(Exception e){
+        catch(IOException e){
+            //TODO: expand logging
             e.printStackTrace();
         }
+    }
 
-        return rowEntries;
+    /**
+     * Wraps a consumer so that it stops the scan once it has been passed a given number of rows
+     * @param rowConsumer consumer to pass rows on to
+     * @param rowLimit number of rows to pass on before stopping
+     * @return consumer which throws LimitReachedException after passing on its last row
+     */
+    private Consumer<String> limitedConsumer(Consumer<String> rowConsumer, int rowLimit){
+        int[] rowCount = {0};
+        return rowEntry -> {
+            rowConsumer.accept(rowEntry);
+            if(++rowCount[0] >= rowLimit){
+                throw new LimitReachedException();
+            }
+        };
+    }
+
+    /**
+     * Finds every partition in our datastore that could hold rows passing our filter, in date order.  Any DATE
+     * conditions are checked against each partition's name, so pruned partitions are never opened.
+     * Index files and temporary directories are skipped.  Dates with delta segments or rows in the write ahead
+     * log are included even if their partition has not been written yet.
+     * @param datastoreDirectory string path to the directory where our datastore resides
+     * @return list of partition paths sorted by date
+     */
+    public List<Path> listPartitions(String datastoreDirectory){
+        return listPartitions(new DataRoots(Collections.singletonList(Paths.get(datastoreDirectory))));
+    }
+
+    /**
+     * Finds every partition across a set of data roots that could hold rows passing our filter, in date order,
+     * as listPartitions does for a single directory.  Each date is read from the one root DataRoots.locate finds
+     * it in, so a date left behind in another root by an unfinished rebalance is never read twice.
+     * @param dataRoots the datastore's roots, or those of a pinned version of it
+     * @return list of partition paths sorted by date
+     */
+    public List<Path> listPartitions(DataRoots dataRoots){
+        Set<String> dates = new TreeSet<>();
+        for(Path directory : dataRoots.directories()){
+            try {
+                dates.addAll(dataRoots.dates(directory));
+            } catch(IOException e){
+                e.printStackTrace();
+            }
+        }
+        dates.addAll(loggedRows().keySet());
+        List<Path> partitions = new ArrayList<>();
+        for(String date : dates){
+            Path partition = dataRoots.directories().get(0).resolve(date);
+            if(mayMatchPartition(partition)){
+                partitions.add(dataRoots.locate(date));
+            }
+            else if(Files.exists(dataRoots.locate(date))){
+                Metrics.increment(Metrics.Counter.PARTITIONS_PRUNED);
+            }
+        }
+        return partitions;
+    }
 
+    /**
+     * Checks a partition's date against the DATE conditions in our filter
+     * @param path path to a date partition
+     * @return false if no row in the partition can pass our filter
+     */
+    public boolean mayMatchPartition(Path path){
+        if(filterExpression() == null){
+            return true;
+        }
+        try {
+            return !Boolean.FALSE.equals(filterExpression().testDate(LocalDate.parse(path.getFileName().toString())));
+        } catch(DateTimeParseException e){
+            // Not named for a date, so we can't rule it out
+            return true;
+        }
+    }
+
+    /**
+     * Reads and filters partitions on a pool of worker threads.  Each partition is read into its own buffer,
+     * and buffers are handed to the consumer in partition order on the calling thread, so the output is the
+     * same as a sequential scan.  Only a bounded number of partitions are in flight at once, to limit how many
+     * finished buffers can pile up waiting for a slower partition ahead of them.
+     * @param partitions partitions to read, in the order their rows should be output
+     * @param rowConsumer receives each unparsed string line that passes our filters
+     * @param rowLimit most rows any one partition needs to contribute, or 0 for no limit
+     * @param threadCount number of worker threads
+     */
+    private void parallelScan(List<Path> partitions, Consumer<String> rowConsumer, int rowLimit, int threadCount){
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        Deque<Future<List<String>>> inFlight = new ArrayDeque<>();
+        try {
+            int next = 0;
+            while(next < partitions.size() || !inFlight.isEmpty()){
+                while(next < partitions.size() && inFlight.size() < threadCount * 2){
+                    Path path = partitions.get(next++);
+                    inFlight.add(executor.submit(() -> {
+                        List<String> workerBuffer = new ArrayList<>();
+                        Consumer<String> bufferConsumer = rowEntry -> workerBuffer.add(rowEntry);
+                        try {
+                            readFile(path, rowLimit > 0 ? limitedConsumer(bufferConsumer, rowLimit) : bufferConsumer);
+                        }
+                        catch(LimitReachedException e){
+                            // This partition alone has enough rows for our limit
+                        }
+                        return workerBuffer;
+                    }));
+                }
+                inFlight.poll().get().forEach(rowConsumer);
+            }
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        catch(ExecutionException e){
+            e.printStackTrace();
+        }
+        finally {
+            // Partitions we no longer need are cancelled without interrupting, as interrupts close open channels
+            inFlight.forEach(future -> future.cancel(false));
+            executor.shutdown();
+        }
     }
 
     /**
@@ -59,64 +264,326 @@ public class Query {
      * @param entryList  list of string lines we're appending to
      */
     public void readFileAndAppendLinesToList(Path path, List<String> entryList){
+        readFile(path, rowEntry -> entryList.add(rowEntry));
+    }
+
+    /**
+     * Streams in a single file, applying any non-date parameter filters if any exist.  Each line we read in
+     * is passed to the consumer.  Columnar partitions only decode the columns our query uses.
+     * If we have a partition cache, the partition is scanned from memory instead.
+     * @param path  path to the file we're reading
+     * @param rowConsumer  receives each string line that passes our filters
+     */
+    public void readFile(Path path, Consumer<String> rowConsumer){
+        try {
+            Consumer<String> filteredConsumer = rowEntry -> {
+                if(queryFilter(rowEntry)){
+                    rowConsumer.accept(rowEntry);
+                }
+                else {
+                    Metrics.increment(Metrics.Counter.ROWS_FILTERED);
+                }
+            };
+            // Partitions with newer rows over them are read along with those rows, so each row can be checked against the newer keys
+            if(readLayers(path, rowConsumer, filteredConsumer)){
+                return;
+            }
+            // A point lookup skips partitions whose key filter rules out its key.  The partition may also only have
+            // had segments, which the lookup ruled out.
+            if(!Files.exists(path) || !mayContainPointKey(path)){
+                return;
+            }
+            Metrics.increment(Metrics.Counter.PARTITIONS_OPENED);
+            readBase(path, queryColumns(), rowConsumer, filteredConsumer);
+        }
+        catch (LimitReachedException e){
+            throw e;
+        }
+        catch (Exception e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads a single partition file, using its index, pre-filters or the partition cache where they help
+     * @param path  path to the partition file
+     * @param columns  flags for each field to decode
+     * @param rowConsumer  receives each string line when we have no filters other than on date
+     * @param filteredConsumer  checks each string line against our filters before passing it on
+     */
+    private void readBase(Path path, boolean[] columns, Consumer<String> rowConsumer, Consumer<String> filteredConsumer)
+            throws IOException {
+        // A cached partition is scanned in memory, so we skip the index rather than risk it describing a newer file
+        PartitionCache.CachedPartition cachedPartition = partitionCache == null ? null : partitionCache.get(path);
+        if(cachedPartition != null){
+            if(hasNonDateFilter()){
+                cachedPartition.scan(columns, byteFilters(), filteredConsumer);
+            }
+            else {
+                cachedPartition.scan(columns, Collections.emptyList(), rowConsumer);
+            }
+        }
         // Check if we apply any filters.  If so, check if it's more than just date filtering
-        if(hasNonDateFilter()){
-            try(Stream<String> fileStream = Files.lines(path)){
-                fileStream.filter(rowEntry -> queryFilter(rowEntry)).forEach(rowEntry -> entryList.add(rowEntry));
+        else if(hasNonDateFilter()){
+            // Seek straight to candidate rows if an index covers one of our filters, otherwise scan the file
+            long[] positions = indexLookup(path);
+            if(positions != null){
+                partitionReader.readAt(path, positions, columns, filteredConsumer);
             }
-            catch (Exception e){
-                e.printStackTrace();
+            else {
+                partitionReader.scan(path, columns, byteFilters(), filteredConsumer);
             }
         }
         // If we don't have any filters other than on date, then don't apply the filter function
         else {
-            try (Stream<String> fileStream = Files.lines(path)) {
-                fileStream.forEach(rowEntry -> entryList.add(rowEntry));
+            partitionReader.scan(path, columns, rowConsumer);
+        }
+    }
+
+    /**
+     * Reads a partition along with any newer rows layered over it, which are its rows in the write ahead log and
+     * its delta segments.  Layers are read newest first, and a row is only passed on if no newer layer had a row
+     * with the same (STB, TITLE, DATE) key, so we hold the keys of every newer row while reading.  Key filters
+     * let us skip segments that cannot hold a point lookup's key, and read the partition as usual when it
+     * cannot hold any of the newer keys.
+     * @param path  path to the partition we're reading, which does not need to exist
+     * @param rowConsumer  receives each string line that passes our filters
+     * @param filteredConsumer  checks each string line against our filters before passing it to rowConsumer
+     * @return false without reading anything if the partition has no newer rows over it
+     */
+    private boolean readLayers(Path path, Consumer<String> rowConsumer, Consumer<String> filteredConsumer) throws IOException {
+        Map<String, String> dateLoggedRows = loggedRows().get(path.getFileName().toString());
+        // Segments are opened before the partition, so a compaction can't hide rows from us even when we read in place
+        List<BufferedReader> segmentReaders = deltaSegments.open(path, segment -> mayContainPointKey(segment));
+        if(dateLoggedRows == null && segmentReaders.isEmpty()){
+            return false;
+        }
+        Metrics.add(Metrics.Counter.PARTITIONS_OPENED, segmentReaders.size());
+        try {
+            Set<String> newerKeys = new HashSet<>();
+            long layerRows = 0;
+            if(dateLoggedRows != null){
+                newerKeys.addAll(dateLoggedRows.keySet());
+                dateLoggedRows.values().forEach(filteredConsumer);
+                layerRows += dateLoggedRows.size();
             }
-            catch (Exception e) {
-                e.printStackTrace();
+            for(BufferedReader segmentReader : segmentReaders){
+                String rowEntry;
+                while((rowEntry = segmentReader.readLine()) != null){
+                    layerRows++;
+                    if(newerKeys.add(fileParser.parseKey(rowEntry))){
+                        filteredConsumer.accept(rowEntry);
+                    }
+                }
             }
+            Metrics.add(Metrics.Counter.ROWS_SCANNED, layerRows);
+            if(!Files.exists(path) || !mayContainPointKey(path)){
+                return true;
+            }
+            Metrics.increment(Metrics.Counter.PARTITIONS_OPENED);
+            KeyFilter keyFilter = KeyFilter.read(path);
+            if(keyFilter != null && !mightContainAny(keyFilter, newerKeys)){
+                readBase(path, queryColumns(), rowConsumer, filteredConsumer);
+                return true;
+            }
+            // A base row failing our filters is dropped whether or not a newer row replaced it, so the partition
+            // can still be pre-filtered as usual.  We just also need its key fields, to check against the newer keys.
+            boolean[] baseColumns = Arrays.copyOf(queryColumns(), Constants.fieldCount);
+            baseColumns[0] = baseColumns[1] = baseColumns[3] = true;
+            readBase(path, baseColumns, rowEntry -> {
+                if(!newerKeys.contains(fileParser.parseKey(rowEntry))){
+                    rowConsumer.accept(rowEntry);
+                }
+            }, rowEntry -> {
+                if(!newerKeys.contains(fileParser.parseKey(rowEntry))){
+                    filteredConsumer.accept(rowEntry);
+                }
+            });
+        } finally {
+            deltaSegments.close(segmentReaders);
         }
+        return true;
+    }
+
+    private boolean mightContainAny(KeyFilter keyFilter, Set<String> keys){
+        for(String key : keys){
+            if(keyFilter.mightContain(key)){
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Checks if there are any filters on a field other than the date field.  If so, returns true.
-     * @return boolean indicating whether there are non-date filter parameters
+     * @param file path to a partition or segment file
+     * @return false if our filter pins down a single key which the file's key filter rules out
      */
-    public boolean hasNonDateFilter(){
-        boolean nonDateFilter = false;
-        List<String> nonDateParams = Arrays.asList("stb", "title", "provider", "rev", "view_time");
-        if(argFlags.getFilterFlag()){
-            String[] filters = argFlags.getFilterArgs().split(",");
-            for(int i = 0; i < filters.length; i++) {
-                String[] filterParams = filters[i].split("=");
-                if(nonDateParams.contains(filterParams[0].toLowerCase())){
-                    nonDateFilter = true;
-                    break;
+    private boolean mayContainPointKey(Path file) throws IOException {
+        if(pointKey() == null){
+            return true;
+        }
+        KeyFilter keyFilter = KeyFilter.read(file);
+        if(keyFilter != null && !keyFilter.mightContain(pointKey())){
+            Metrics.increment(Metrics.Counter.PARTITIONS_PRUNED);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Works out the (STB, TITLE, DATE) key every row passing our filter must have, if our filter has an equality
+     * condition on each of those fields
+     * @return the key, in the form parseKey gives, or null if our filter does not pin down a single key
+     */
+    public String pointKey(){
+        if(!pointKeyResolved){
+            if(filterExpression() != null){
+                Map<String, String> equalities = new HashMap<>();
+                filterExpression().collectEqualities(equalities);
+                String stb = equalities.get(Constants.fieldNames[0]);
+                String title = equalities.get(Constants.fieldNames[1]);
+                String date = equalities.get(Constants.fieldNames[3]);
+                if(stb != null && title != null && date != null){
+                    try {
+                        // Rows store dates in ISO format, whichever way the filter wrote it
+                        pointKey = stb + Constants.inputDelimiter + title + Constants.inputDelimiter + LocalDate.parse(date);
+                    } catch(DateTimeParseException e){
+                        pointKey = null;
+                    }
+                }
+            }
+            pointKeyResolved = true;
+        }
+        return pointKey;
+    }
+
+    /**
+     * Gives the rows in the write ahead log newer than the manifest version our scan pinned, or outside a scan
+     * reads every row waiting in the log the first time they are needed, so every partition sees the same rows
+     * @return map from date to that date's logged rows by key, which is empty if we have no log
+     */
+    public Map<String, Map<String, String>> loggedRows(){
+        if(loggedRows == null){
+            Map<String, Map<String, String>> rows = Collections.emptyMap();
+            if(writeAheadLog != null){
+                try {
+                    rows = writeAheadLog.pendingRows(-1);
+                } catch(IOException e){
+                    //TODO: expand logging
+                    e.printStackTrace();
+                }
+            }
+            loggedRows = rows;
+        }
+        return loggedRows;
+    }
+
+    /**
+     * Looks up each equality filter on an indexed field in the partition's index, returning the smallest
+     * set of candidate rows.  Candidates still need to go through queryFilter for any other filters.
+     * @param path  path to the partition we're reading
+     * @return row positions to read, or null if no filter is indexed or the partition has no usable index
+     */
+    public long[] indexLookup(Path path) throws IOException {
+        long[] candidates = null;
+        Map<String, String> equalities = new HashMap<>();
+        filterExpression().collectEqualities(equalities);
+        for(Map.Entry<String, String> equality : equalities.entrySet()){
+            if(secondaryIndex.isIndexed(equality.getKey())){
+                long[] positions = secondaryIndex.lookup(path, equality.getKey(), equality.getValue());
+                if(positions == null){
+                    return null;
+                }
+                if(candidates == null || positions.length < candidates.length){
+                    candidates = positions;
                 }
             }
         }
-        return nonDateFilter;
+        return candidates;
     }
 
     /**
-     * Returns a glob pattern matching any date filter present.  If no date filter, * is returned to search on all dates
-     * @return string containing glob pattern for date filter
+     * Builds byte level pre-filters from the equality conditions every passing row must satisfy, so text
+     * partitions can drop most non-matching rows before decoding them.  REV and VIEW_TIME compare numerically,
+     * and non-ASCII values need full case folding, so those are left to queryFilter.
+     * @return list of byte filters, which may be empty
      */
-    public String dateFilter(){
-        // Defaults to * to match all dates, if no date filter is present
-        String date = "*";
-        // Iterate through all of the filter parameters.  If date is in there, pull the date value
-        String[] filters = argFlags.getFilterArgs().split(",");
-        for(int i = 0; i < filters.length; i++){
-            String[] filterParams = filters[i].split("=");
-            if (filterParams[0].equalsIgnoreCase("date")) {
-                date = filterParams[1];
+    public List<TextScanner.ByteFilter> byteFilters(){
+        if(byteFilters == null){
+            List<TextScanner.ByteFilter> filters = new ArrayList<>();
+            if(filterExpression() != null){
+                Map<String, String> equalities = new HashMap<>();
+                filterExpression().collectEqualities(equalities);
+                List<String> fieldNames = Arrays.asList(Constants.fieldNames);
+                equalities.forEach((field, value) -> {
+                    int column = fieldNames.indexOf(field);
+                    // DATE is stored in ISO format, so it can be matched exactly
+                    TextScanner.ByteFilter byteFilter = new TextScanner.ByteFilter(column, value, column != 3);
+                    if(column <= 3 && byteFilter.isAscii()){
+                        filters.add(byteFilter);
+                    }
+                });
             }
+            byteFilters = filters;
         }
-            return date;
+        return byteFilters;
     }
 
+    /**
+     * Works out which fields are referenced by our select, order and filter arguments
+     * @return flags for each of the six fields, indexed in datastore field order
+     */
+    public boolean[] queryColumns(){
+        if(queryColumns == null){
+            boolean[] columns = new boolean[Constants.fieldCount];
+            markColumns(columns, argFlags.getSelectArgs());
+            if(argFlags.getGroupFlag()){
+                markColumns(columns, argFlags.getGroupArgs());
+            }
+            if(argFlags.getOrderFlag()){
+                markColumns(columns, argFlags.getOrderArgs());
+            }
+            if(filterExpression() != null){
+                filterExpression().collectColumns(columns);
+            }
+            queryColumns = columns;
+        }
+        return queryColumns;
+    }
+
+    private void markColumns(boolean[] columns, String fieldArgs){
+        if(fieldArgs == null){
+            return;
+        }
+        List<String> fieldNames = Arrays.asList(Constants.fieldNames);
+        for(String field : fieldArgs.split(",")){
+            // Aggregates such as SUM(REV) need the field inside the function
+            int column = fieldNames.indexOf(GroupAggregator.fieldOf(field).toLowerCase());
+            if(column >= 0){
+                columns[column] = true;
+            }
+        }
+    }
+
+    /**
+     * Compiles our filter argument the first time it is needed
+     * @return compiled filter, or null if there is no filter argument
+     * @throws IllegalArgumentException if the filter argument cannot be parsed
+     */
+    public FilterExpression filterExpression(){
+        if(filterExpression == null && argFlags.getFilterFlag()){
+            filterExpression = FilterExpression.parse(argFlags.getFilterArgs());
+        }
+        return filterExpression;
+    }
+
+    /**
+     * Checks if there are any filters on a field other than the date field.  If so, returns true.
+     * @return boolean indicating whether there are non-date filter parameters
+     */
+    public boolean hasNonDateFilter(){
+        return filterExpression() != null && filterExpression().hasNonDateColumns();
+    }
 
     /**
      *  Used as input for the file stream filter.  If this method returns false, the stream will filter that entry.
@@ -124,45 +591,24 @@ public class Query {
      * @return false if the row fails to match our filter, true if the row matches our filter
      */
     public boolean queryFilter(String rowEntry){
-        // Default the booleans to true, if we don't apply a filter on that field then that field remains true
-        boolean matchFilterSTB = true;
-        boolean matchFilterTitle = true;
-        boolean matchFilterProvider = true;
-        boolean matchFilterRev = true;
-        boolean matchFilterViewTime = true;
-
-        String[] fields = rowEntry.split(Constants.escapedInputDelimiter);
-
-        if(argFlags.getFilterFlag()){
-            // Our filters are comma separated, and we will then need to split on the = sign to determine
-            // what field it is we're filtering and the filter value
-            String[] filters = argFlags.getFilterArgs().split(",");
-
-            for(int i = 0; i < filters.length; i++){
-                String[] filterParams = filters[i].split("=");
-
-                // There is no date case because we already filtered at file read in
-                switch(filterParams[0].toLowerCase()){
-                    case "stb":
-                        matchFilterSTB = filterParams[1].equalsIgnoreCase(fields[0]);
-                        break;
-                    case "title":
-                        matchFilterTitle = filterParams[1].equalsIgnoreCase(fields[1]);
-                        break;
-                    case "provider":
-                        matchFilterProvider = filterParams[1].equalsIgnoreCase(fields[2]);
-                        break;
-                    case "rev":
-                        matchFilterRev = filterParams[1].equalsIgnoreCase(fields[4]);
-                        break;
-                    case "view_time":
-                        matchFilterViewTime = filterParams[1].equalsIgnoreCase(fields[5]);
-                        break;
-                }
-            }
+        if(filterExpression() == null){
+            return true;
         }
+        // Keep trailing empty fields, which columnar partitions leave for columns we don't read
+        String[] fields = rowEntry.split(Constants.escapedInputDelimiter, -1);
+        return filterExpression().test(fields);
+    }
 
-        // If any field did not match the filter, we return a false result to drop the whole entry
-        return matchFilterSTB && matchFilterTitle && matchFilterProvider && matchFilterRev && matchFilterViewTime;
+    /**
+     * Thrown by a limited consumer to stop a scan once it has enough rows.  No stack trace is filled in, as this
+     * is used for control flow rather than to report an error.
+     */
+    private static class LimitReachedException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        LimitReachedException(){
+            super(null, null, false, false);
+        }
     }
 }
@@ -0,0 +1,189 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams query result rows to an output stream through one large buffer, formatting each row as it arrives
+ * rather than collecting the results first.  Rows can be written as CSV, tab separated values or JSON Lines.
+ *
+ * Like System.out, write errors such as a closed pipe are not thrown.  Once one happens further rows are
+ * dropped, and checkError reports it.
+ */
+public class ResultWriter {
+
+    private Writer writer;
+    private String format;
+    private String[] columnNames;
+    private boolean[] numericColumns;
+    private boolean error;
+    private long unreportedRows;
+
+    /**
+     * @param outputStream stream to write results to, which is flushed but never closed
+     * @param format output format name, one of csv, tsv or jsonl
+     * @param columnNames name of each result column, used as the keys of JSON Lines objects
+     * @param numericColumns true for each column whose values are written as JSON numbers rather than strings
+     */
+    public ResultWriter(OutputStream outputStream, String format, String[] columnNames, boolean[] numericColumns){
+        this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), Constants.outputBufferSize);
+        this.format = format;
+        this.columnNames = columnNames;
+        this.numericColumns = numericColumns;
+        this.error = false;
+        this.unreportedRows = 0;
+    }
+
+    /**
+     * @param format output format name
+     * @return true if we know how to write that format
+     */
+    public static boolean isFormat(String format){
+        return format.equals(Constants.csvOutputFormat) || format.equals(Constants.tsvOutputFormat)
+                || format.equals(Constants.jsonLinesOutputFormat);
+    }
+
+    /**
+     * Formats a single result row into the output buffer
+     * @param values value of each result column, in column order
+     */
+    public void writeRow(String[] values){
+        if(error){
+            return;
+        }
+        try {
+            if(format.equals(Constants.jsonLinesOutputFormat)){
+                writeJson(values);
+            }
+            else {
+                char delimiter = format.equals(Constants.tsvOutputFormat) ? '\t' : Constants.outputDelimiter.charAt(0);
+                for(int i = 0; i < values.length; i++){
+                    if(i > 0){
+                        writer.write(delimiter);
+                    }
+                    if(delimiter == '\t'){
+                        writeTsvValue(values[i]);
+                    } else {
+                        writeCsvValue(values[i]);
+                    }
+                }
+            }
+            writer.write('\n');
+            unreportedRows++;
+        } catch(IOException e){
+            error = true;
+        }
+    }
+
+    /**
+     * Writes out anything still buffered.  Should be called once all rows have been written.
+     */
+    public void flush(){
+        // Rows are counted here rather than as they are written, so the per row path stays free of shared counters
+        Metrics.add(Metrics.Counter.ROWS_EMITTED, unreportedRows);
+        unreportedRows = 0;
+        try {
+            writer.flush();
+        } catch(IOException e){
+            error = true;
+        }
+    }
+
+    /**
+     * @return true if writing to the output stream has failed
+     */
+    public boolean checkError(){
+        return error;
+    }
+
+    /**
+     * Values containing the delimiter, quotes or line breaks are quoted, with quotes doubled, as in RFC 4180
+     */
+    private void writeCsvValue(String value) throws IOException {
+        boolean quote = false;
+        for(int i = 0; i < value.length() && !quote; i++){
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if(!quote){
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c == '"'){
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Tabs, line breaks and backslashes are backslash escaped, as read by most bulk loaders
+     */
+    private void writeTsvValue(String value) throws IOException {
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            switch(c){
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+
+    private void writeJson(String[] values) throws IOException {
+        writer.write('{');
+        for(int i = 0; i < values.length; i++){
+            if(i > 0){
+                writer.write(',');
+            }
+            writeJsonString(columnNames[i]);
+            writer.write(':');
+            if(numericColumns[i]){
+                writer.write(values[i].isEmpty() ? "null" : values[i]);
+            } else {
+                writeJsonString(values[i]);
+            }
+        }
+        writer.write('}');
+    }
+
+    private void writeJsonString(String value) throws IOException {
+        writer.write('"');
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\'){
+                writer.write('\\');
+                writer.write(c);
+            }
+            else if(c < 0x20){
+                writer.write(String.format("\\u%04x", (int) c));
+            }
+            else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.danielharada.query;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the first N entries of an ordering while rows stream past, so an ordered query with a limit only ever
+ * holds N entries in memory.  A bounded max heap holds the best N entries seen so far, and each new entry
+ * either replaces the worst of them or is dropped.  Ties are broken on arrival order, giving the same rows as
+ * a stable sort followed by taking the first N.
+ */
+public class TopNCollector {
+
+    private int limit;
+    private Comparator<RankedEntry> ranking;
+    private PriorityQueue<RankedEntry> heap;
+    private FieldEntryManager fieldEntryManager;
+    private long arrivals;
+
+    /**
+     * @param limit number of entries to keep
+     * @param comparator ordering to keep the first entries of
+     */
+    public TopNCollector(int limit, Comparator<FieldEntry> comparator){
+        this.limit = limit;
+        this.ranking = (a, b) -> {
+            int compareResult = comparator.compare(a.fieldEntry, b.fieldEntry);
+            return compareResult != 0 ? compareResult : Long.compare(a.arrival, b.arrival);
+        };
+        // Reversed, so the head of the queue is the worst entry we're keeping
+        this.heap = new PriorityQueue<>(Math.max(1, limit), ranking.reversed());
+        this.fieldEntryManager = new FieldEntryManager();
+        this.arrivals = 0;
+    }
+
+    /**
+     * Offers a single datastore line to the collector
+     * @param rowEntry unparsed line from the datastore
+     */
+    public void add(String rowEntry){
+        if(limit <= 0){
+            return;
+        }
+        RankedEntry candidate = new RankedEntry(fieldEntryManager.convertRow(rowEntry), arrivals++);
+        if(heap.size() < limit){
+            heap.add(candidate);
+        }
+        else if(ranking.compare(candidate, heap.peek()) < 0){
+            heap.poll();
+            heap.add(candidate);
+        }
+    }
+
+    /**
+     * Passes the kept entries to the output consumer in order
+     * @param output receives entries in sorted order
+     */
+    public void output(Consumer<FieldEntry> output){
+        List<RankedEntry> rankedEntries = new ArrayList<>(heap);
+        Collections.sort(rankedEntries, ranking);
+        rankedEntries.forEach(rankedEntry -> output.accept(rankedEntry.fieldEntry));
+        heap.clear();
+    }
+
+    private static class RankedEntry {
+        private FieldEntry fieldEntry;
+        private long arrival;
+
+        RankedEntry(FieldEntry fieldEntry, long arrival){
+            this.fieldEntry = fieldEntry;
+            this.arrival = arrival;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.danielharada.server;
+
+import io.github.danielharada.Constants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Thin client for QueryServer.  Sends command line arguments to a server running on this machine and copies
+ * the response to an output stream, so it prints the same thing as running the command directly.
+ */
+public class QueryClient {
+
+    private int port;
+
+    /**
+     * @param port localhost port the server is listening on
+     */
+    public QueryClient(int port){
+        this.port = port;
+    }
+
+    /**
+     * Sends a request and streams back its output
+     * @param args command line arguments for the server to run
+     * @param output stream the server's response is copied to
+     */
+    public void send(List<String> args, PrintStream output){
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http", Constants.serverHost, port, "/").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            byte[] body = String.join("\n", args).getBytes(StandardCharsets.UTF_8);
+            connection.setFixedLengthStreamingMode(body.length);
+            try(OutputStream requestBody = connection.getOutputStream()){
+                requestBody.write(body);
+            }
+            // A failed request still carries the server's explanation, in the error stream instead
+            try(InputStream responseBody = connection.getResponseCode() < 400 ? connection.getInputStream()
+                    : connection.getErrorStream()){
+                byte[] buffer = new byte[Constants.outputBufferSize];
+                int count;
+                while(responseBody != null && (count = responseBody.read(buffer)) >= 0){
+                    output.write(buffer, 0, count);
+                }
+            }
+            output.flush();
+        } catch(IOException e){
+            output.printf("Unable to reach server on port %d: %s\n", port, e.getMessage());
+        }
+    }
+}
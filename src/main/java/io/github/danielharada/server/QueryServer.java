@@ -0,0 +1,247 @@
+package io.github.danielharada.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.danielharada.App;
+import io.github.danielharada.ArgumentFlags;
+import io.github.danielharada.Constants;
+import io.github.danielharada.dataimport.FileParser;
+import io.github.danielharada.dataimport.SegmentCompactor;
+import io.github.danielharada.dataimport.WriteAheadLog;
+import io.github.danielharada.metrics.Metrics;
+import io.github.danielharada.storage.Manifest;
+import io.github.danielharada.storage.PartitionCache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves requests over HTTP on localhost, so repeated queries skip JVM startup and run on warmed up code.
+ * Each request is a POST whose body holds the same arguments as the command line, one per line, e.g.
+ * <pre>
+ *   curl --data-binary $'-q\n-s\nSTB,TITLE\n-f\nSTB=stb1' http://127.0.0.1:8765/
+ * </pre>
+ * The response body is exactly what the command line would have printed, streamed as it is produced.
+ *
+ * Every request shares one PartitionCache, so partitions queried over and over are scanned from memory.
+ * Requests run concurrently on a fixed thread pool.  Queries never block each other, while imports, conversions
+ * and reindexing take the manifest's write lock so only one of them changes the datastore at a time, here or in
+ * any other process.  Each query pins the current manifest version, so it never waits on a change and never sees
+ * part of one, and the files a change replaces are removed once no query still has an older version pinned.
+ *
+ * Imports passed --wal only append to a shared write ahead log, so they run alongside everything else, and the
+ * server applies the log to the partitions in the background every walApplyIntervalSeconds.  Delta segments
+ * written by imports are likewise compacted in the background every compactionIntervalSeconds.
+ *
+ * The server's running Metrics totals are registered over JMX as a MetricsMXBean, so they can be watched with
+ * jconsole or any other JMX client.
+ */
+public class QueryServer {
+
+    private int port;
+    private PartitionCache partitionCache;
+    private WriteAheadLog writeAheadLog;
+    private SegmentCompactor segmentCompactor;
+    private Manifest manifest;
+    private HttpServer httpServer;
+    private ExecutorService executor;
+    private ScheduledExecutorService maintenance;
+
+    /**
+     * @param argFlags the server's own command line arguments, giving its port, its cache budget, and the memory
+     *                 budget and settings used when applying the write ahead log and compacting in the background
+     */
+    public QueryServer(ArgumentFlags argFlags){
+        this.port = argFlags.getServePort();
+        this.partitionCache = new PartitionCache(argFlags.getCacheLimit());
+        FileParser fileParser = new FileParser(argFlags.getMemoryLimit(), partitionCache, argFlags.getKeyFilterRate());
+        this.writeAheadLog = new WriteAheadLog(Paths.get(Constants.dataStoreDirectory), fileParser);
+        this.segmentCompactor = new SegmentCompactor(fileParser, argFlags.getMemoryLimit(), argFlags.getCompactSegments(),
+                argFlags.getCompactRatio(), partitionCache);
+        this.manifest = new Manifest(Paths.get(Constants.dataStoreDirectory));
+    }
+
+    /**
+     * Starts accepting requests.  Returns once the server is listening, and the server runs until stop is
+     * called or the process exits.
+     */
+    public void start(){
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(Constants.serverHost, port), 0);
+        } catch(IOException e){
+            System.out.printf("Unable to listen on port %d: %s\n", port, e.getMessage());
+            return;
+        }
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * Constants.serverThreadsPerCore);
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/", exchange -> handle(exchange));
+        httpServer.start();
+        Metrics.register();
+        maintenance = Executors.newSingleThreadScheduledExecutor();
+        maintenance.scheduleWithFixedDelay(() -> applyLog(), Constants.walApplyIntervalSeconds,
+                Constants.walApplyIntervalSeconds, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(() -> compact(), Constants.compactionIntervalSeconds,
+                Constants.compactionIntervalSeconds, TimeUnit.SECONDS);
+        System.out.printf("Serving requests on %s:%d\n", Constants.serverHost, port);
+    }
+
+    /**
+     * Stops accepting requests, waiting briefly for those in progress to finish
+     */
+    public void stop(){
+        if(httpServer != null){
+            httpServer.stop(1);
+            executor.shutdown();
+            maintenance.shutdown();
+        }
+    }
+
+    /**
+     * Merges the write ahead log into the partitions, which takes the write lock like any other change to them
+     */
+    private void applyLog(){
+        try {
+            writeAheadLog.apply();
+        } catch(Exception e){
+            // An exception escaping a scheduled task would cancel every later run
+            e.printStackTrace();
+            //TODO: expand logging
+        }
+    }
+
+    /**
+     * Runs a request, answering with 200 and its output.  A request that fails is answered with 400 for bad
+     * arguments or 500 otherwise, along with its error, unless output was already streamed under a 200, in
+     * which case the error is written after it.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if(!exchange.getRequestMethod().equals("POST")){
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            List<String> args = readArgs(exchange);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            try(ResponseBody responseBody = new ResponseBody(exchange)){
+                PrintStream output = new PrintStream(responseBody, false, StandardCharsets.UTF_8.name());
+                try {
+                    if(args.contains("--serve")){
+                        output.println("A server cannot be started from a request");
+                    }
+                    else {
+                        run(args.toArray(new String[args.size()]), output);
+                    }
+                } catch(RuntimeException e){
+                    e.printStackTrace();
+                    //TODO: expand logging
+                    responseBody.start(e instanceof IllegalArgumentException ? 400 : 500);
+                    output.printf("Unable to run request: %s\n", e);
+                }
+                output.flush();
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void run(String[] args, PrintStream output){
+        // Requests that change the datastore take the write lock themselves
+        new App(args, output, partitionCache, writeAheadLog).processArgs();
+    }
+
+    /**
+     * Compacts delta segments where the compaction policy calls for it, holding the write lock like any other
+     * change to the partitions, and publishes the result
+     */
+    private void compact(){
+        try {
+            Manifest.WriteLock writeLock = manifest.lockForWriting();
+            try {
+                segmentCompactor.compactAll(Paths.get(Constants.dataStoreDirectory), false);
+                manifest.publish();
+            } finally {
+                writeLock.close();
+            }
+        } catch(Exception e){
+            // An exception escaping a scheduled task would cancel every later run
+            e.printStackTrace();
+            //TODO: expand logging
+        }
+    }
+
+    /**
+     * Reads a request body of one argument per line
+     */
+    private List<String> readArgs(HttpExchange exchange) throws IOException {
+        List<String> args = new ArrayList<>();
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))){
+            String line;
+            while((line = reader.readLine()) != null){
+                if(!line.isEmpty()){
+                    args.add(line);
+                }
+            }
+        }
+        return args;
+    }
+
+    /**
+     * Response body which only sends the response headers when the first bytes are written, so a request that
+     * fails before writing anything can still be answered with an error status
+     */
+    private static class ResponseBody extends OutputStream {
+        private HttpExchange exchange;
+        private OutputStream body;
+
+        ResponseBody(HttpExchange exchange){
+            this.exchange = exchange;
+        }
+
+        /**
+         * Sends the response headers with the given status, unless they have already been sent
+         */
+        void start(int status) throws IOException {
+            if(body == null){
+                // A zero length streams the response in chunks, so rows reach the client as they are written
+                exchange.sendResponseHeaders(status, 0);
+                body = exchange.getResponseBody();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start(200);
+            body.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start(200);
+            body.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            start(200);
+            body.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            start(200);
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Reads and writes partitions in our binary columnar format.  Each of the six fields is stored as its own
+ * column block, so a query only needs to read the blocks for the fields it uses.
+ *
+ * File layout:
+ * <pre>
+ *   header:  magic (4 bytes), version (int), row count (int), then for each column its offset and length (longs)
+ *   STB, TITLE, PROVIDER:  dictionary size (int), each dictionary value (modified UTF-8), code width in bytes (byte),
+ *                          then one dictionary code per row
+ *   DATE:  epoch day per row (int)
+ *   REV:  revenue in cents per row (int)
+ *   VIEW_TIME:  minutes per row (int)
+ * </pre>
+ */
+public class ColumnarFormat {
+
+    // Leading NUL byte can never start a text partition line, so the magic tells the formats apart
+    public final static byte[] magic = {0, 'D', 'S', 'C'};
+    private final static int version = 1;
+    private final static int headerLength = magic.length + 4 + 4 + Constants.fieldCount * 16;
+
+    /**
+     * Checks whether a partition file is stored in the columnar format
+     * @param partition path to the partition file
+     * @return true if the file starts with our columnar magic bytes
+     */
+    public boolean isColumnar(Path partition) throws IOException {
+        byte[] fileStart = new byte[magic.length];
+        try(InputStream inputStream = Files.newInputStream(partition)){
+            int read = 0;
+            while(read < fileStart.length){
+                int count = inputStream.read(fileStart, read, fileStart.length - read);
+                if(count < 0){
+                    return false;
+                }
+                read += count;
+            }
+        }
+        return Arrays.equals(fileStart, magic);
+    }
+
+    /**
+     * Writes datastore lines out as a columnar partition
+     * @param partition path of the file to write
+     * @param rowEntries validated datastore lines to store
+     */
+    public void write(Path partition, Iterable<String> rowEntries) throws IOException {
+        List<Map<String, Integer>> dictionaries = new ArrayList<>();
+        List<List<String>> dictionaryValues = new ArrayList<>();
+        for(int i = 0; i < 3; i++){
+            dictionaries.add(new HashMap<>());
+            dictionaryValues.add(new ArrayList<>());
+        }
+        IntColumn[] columns = new IntColumn[Constants.fieldCount];
+        for(int i = 0; i < columns.length; i++){
+            columns[i] = new IntColumn();
+        }
+
+        // Build up dictionaries and encoded values for each column in a single pass over the lines
+        for(String rowEntry : rowEntries){
+            String[] fields = rowEntry.split(Constants.escapedInputDelimiter, -1);
+            for(int i = 0; i < 3; i++){
+                Map<String, Integer> dictionary = dictionaries.get(i);
+                Integer code = dictionary.get(fields[i]);
+                if(code == null){
+                    code = dictionary.size();
+                    dictionary.put(fields[i], code);
+                    dictionaryValues.get(i).add(fields[i]);
+                }
+                columns[i].add(code);
+            }
+            columns[3].add((int) LocalDate.parse(fields[3]).toEpochDay());
+            columns[4].add(encodeRev(fields[4]));
+            columns[5].add(encodeViewTime(fields[5]));
+        }
+
+        // Column blocks are written after a fixed size header, which we fill in once we know the block sizes
+        long[] offsets = new long[Constants.fieldCount];
+        long[] lengths = new long[Constants.fieldCount];
+        try(FileChannel channel = FileChannel.open(partition, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            channel.position(headerLength);
+            // Not closed here, as closing the stream would also close the channel we still need for the header
+            DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            for(int i = 0; i < Constants.fieldCount; i++){
+                offsets[i] = headerLength + dataStream.size();
+                if(i < 3){
+                    writeDictionaryColumn(dataStream, dictionaryValues.get(i), columns[i]);
+                }
+                else {
+                    for(int row = 0; row < columns[i].size; row++){
+                        dataStream.writeInt(columns[i].values[row]);
+                    }
+                }
+                lengths[i] = headerLength + dataStream.size() - offsets[i];
+            }
+            dataStream.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.put(magic);
+            header.putInt(version);
+            header.putInt(columns[0].size);
+            for(int i = 0; i < Constants.fieldCount; i++){
+                header.putLong(offsets[i]);
+                header.putLong(lengths[i]);
+            }
+            header.flip();
+            channel.position(0);
+            while(header.hasRemaining()){
+                channel.write(header);
+            }
+        }
+    }
+
+    /**
+     * Reads the requested columns of a columnar partition and passes each row on as a datastore line.
+     * Columns which were not requested are left empty in the line.
+     * @param partition path to the columnar partition
+     * @param columns which of the six fields to read, indexed in datastore field order
+     * @param rowConsumer receives each row as a pipe delimited line
+     */
+    public void read(Path partition, boolean[] columns, Consumer<String> rowConsumer) throws IOException {
+        read(partition, columns, null, rowConsumer);
+    }
+
+    /**
+     * Reads the requested columns of a columnar partition for a subset of its rows
+     * @param partition path to the columnar partition
+     * @param columns which of the six fields to read, indexed in datastore field order
+     * @param rows ascending row numbers to pass on, or null for every row
+     * @param rowConsumer receives each row as a pipe delimited line
+     */
+    public void read(Path partition, boolean[] columns, long[] rows, Consumer<String> rowConsumer) throws IOException {
+        ColumnBlocks columnBlocks = open(partition, columns);
+        StringBuilder rowBuilder = new StringBuilder();
+        int outputCount = rows == null ? columnBlocks.rowCount : rows.length;
+        for(int i = 0; i < outputCount; i++){
+            rowConsumer.accept(columnBlocks.row(rows == null ? i : (int) rows[i], rowBuilder));
+        }
+    }
+
+    /**
+     * Streams every row of a columnar partition as a full datastore line.  Each row is decoded from the mapped
+     * column blocks as the stream reaches it, so only the dictionaries are held in memory, however many rows the
+     * partition has.
+     * @param partition path to the columnar partition
+     * @return stream of pipe delimited lines, which must be closed by the caller
+     */
+    public Stream<String> lines(Path partition) throws IOException {
+        boolean[] allColumns = new boolean[Constants.fieldCount];
+        Arrays.fill(allColumns, true);
+        ColumnBlocks columnBlocks = open(partition, allColumns);
+        StringBuilder rowBuilder = new StringBuilder();
+        return IntStream.range(0, columnBlocks.rowCount).mapToObj(row -> columnBlocks.row(row, rowBuilder));
+    }
+
+    /**
+     * Maps the requested column blocks of a columnar partition and reads their dictionaries, leaving every row
+     * to be decoded on demand.  Mappings stay valid once the file is closed.
+     */
+    private ColumnBlocks open(Path partition, boolean[] columns) throws IOException {
+        try(FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ)){
+            ByteBuffer header = readFully(channel, 0, headerLength);
+            byte[] fileMagic = new byte[magic.length];
+            header.get(fileMagic);
+            if(!Arrays.equals(fileMagic, magic) || header.getInt() != version){
+                throw new IOException("Unsupported partition format in " + partition);
+            }
+            ColumnBlocks columnBlocks = new ColumnBlocks(header.getInt());
+            for(int i = 0; i < Constants.fieldCount; i++){
+                long offset = header.getLong();
+                long length = header.getLong();
+                if(columns[i]){
+                    Metrics.add(Metrics.Counter.BYTES_READ, length);
+                    columnBlocks.load(i, channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+                }
+            }
+            return columnBlocks;
+        }
+    }
+
+    private void writeDictionaryColumn(DataOutputStream dataStream, List<String> values, IntColumn codes) throws IOException {
+        dataStream.writeInt(values.size());
+        for(String value : values){
+            dataStream.writeUTF(value);
+        }
+        int codeWidth = codeWidth(values.size());
+        dataStream.writeByte(codeWidth);
+        for(int row = 0; row < codes.size; row++){
+            int code = codes.values[row];
+            if(codeWidth == 1){
+                dataStream.writeByte(code);
+            } else if(codeWidth == 2){
+                dataStream.writeShort(code);
+            } else {
+                dataStream.writeInt(code);
+            }
+        }
+    }
+
+    /**
+     * Converts a validated revenue value, such as 4.00, to integer cents
+     */
+    public int encodeRev(String rev){
+        int decimal = rev.indexOf('.');
+        return Integer.parseInt(rev.substring(0, decimal).concat(rev.substring(decimal + 1)));
+    }
+
+    /**
+     * Converts integer cents back to a revenue value with two decimal places
+     */
+    public String decodeRev(int cents){
+        String sign = cents < 0 ? "-" : "";
+        int absolute = Math.abs(cents);
+        int fraction = absolute % 100;
+        return sign + (absolute / 100) + (fraction < 10 ? ".0" : ".") + fraction;
+    }
+
+    /**
+     * Converts a validated view time value, such as 1:30, to minutes
+     */
+    public int encodeViewTime(String viewTime){
+        int colon = viewTime.indexOf(':');
+        return Integer.parseInt(viewTime.substring(0, colon)) * 60 + Integer.parseInt(viewTime.substring(colon + 1));
+    }
+
+    /**
+     * Converts minutes back to a view time value in H:mm format
+     */
+    public String decodeViewTime(int minutes){
+        int minute = minutes % 60;
+        return (minutes / 60) + (minute < 10 ? ":0" : ":") + minute;
+    }
+
+    private int codeWidth(int dictionarySize){
+        if(dictionarySize <= 1 << 8){
+            return 1;
+        }
+        return dictionarySize <= 1 << 16 ? 2 : 4;
+    }
+
+    private ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        Metrics.add(Metrics.Counter.BYTES_READ, length);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, offset + buffer.position()) < 0){
+                throw new IOException("Unexpected end of columnar partition");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads a string written by DataOutputStream.writeUTF.  This is modified UTF-8 rather than the standard kind,
+     * which differs for characters outside the Basic Multilingual Plane, such as emoji, so it is decoded the same
+     * way it was written.
+     */
+    private String readUTF(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[2 + (buffer.getShort(buffer.position()) & 0xFFFF)];
+        buffer.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    /**
+     * The mapped column blocks of one columnar partition, decoding a row at a time.  Not safe to share between
+     * threads, as it remembers the last value decoded from each numeric column.
+     */
+    private class ColumnBlocks {
+        private int rowCount;
+        private ByteBuffer[] codes = new ByteBuffer[Constants.fieldCount];
+        private String[][] dictionaries = new String[Constants.fieldCount][];
+        private int[] codeWidths = new int[Constants.fieldCount];
+        private int[] previousValues = new int[Constants.fieldCount];
+        private String[] previousStrings = new String[Constants.fieldCount];
+
+        ColumnBlocks(int rowCount){
+            this.rowCount = rowCount;
+        }
+
+        void load(int column, ByteBuffer block) throws IOException {
+            if(column < 3){
+                dictionaries[column] = new String[block.getInt()];
+                for(int i = 0; i < dictionaries[column].length; i++){
+                    dictionaries[column][i] = readUTF(block);
+                }
+                codeWidths[column] = block.get();
+            }
+            codes[column] = block.slice();
+        }
+
+        /**
+         * @return the row as a pipe delimited line, with the columns that were not loaded left empty
+         */
+        String row(int row, StringBuilder rowBuilder){
+            rowBuilder.setLength(0);
+            for(int column = 0; column < Constants.fieldCount; column++){
+                if(column > 0){
+                    rowBuilder.append(Constants.inputDelimiter);
+                }
+                if(codes[column] != null){
+                    rowBuilder.append(value(column, row));
+                }
+            }
+            return rowBuilder.toString();
+        }
+
+        private String value(int column, int row){
+            ByteBuffer block = codes[column];
+            if(column < 3){
+                int codeWidth = codeWidths[column];
+                int code = codeWidth == 1 ? block.get(row) & 0xFF : codeWidth == 2 ? block.getShort(row * 2) & 0xFFFF
+                        : block.getInt(row * 4);
+                return dictionaries[column][code];
+            }
+            // Runs of the same value share a String, which is the common case for the DATE column
+            int value = block.getInt(row * 4);
+            if(previousStrings[column] == null || value != previousValues[column]){
+                previousValues[column] = value;
+                previousStrings[column] = column == 3 ? LocalDate.ofEpochDay(value).toString()
+                        : column == 4 ? decodeRev(value) : decodeViewTime(value);
+            }
+            return previousStrings[column];
+        }
+    }
+
+    /**
+     * Growable int array, to avoid boxing every encoded value
+     */
+    private static class IntColumn {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value){
+            if(size == values.length){
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes partitions in our block compressed format.  Text partition lines are gathered into blocks of
+ * about compressionBlockBytes, never splitting a line across two blocks, and each block is Deflate compressed on
+ * its own.  A reader can then decompress only the blocks holding the rows it needs, and a scan decompresses
+ * several blocks at once while still passing rows on in order.
+ *
+ * File layout:
+ * <pre>
+ *   header:  magic (4 bytes), version (int), block count (int), row count (long), uncompressed size (long),
+ *            block table offset (long)
+ *   blocks:  Deflate compressed lines, each line ending in a newline
+ *   block table:  per block its offset (long), compressed length (int), uncompressed length (int) and the row
+ *                 number of its first line (long)
+ * </pre>
+ * Rows are found by their row number, the same as in a columnar partition.
+ */
+public class CompressedFormat {
+
+    // Leading NUL byte can never start a text partition line, so the magic tells the formats apart
+    public final static byte[] magic = {0, 'D', 'S', 'Z'};
+    private final static int version = 1;
+    private final static int headerLength = magic.length + 4 + 4 + 8 + 8 + 8;
+    private final static int tableEntryLength = 24;
+
+    /**
+     * Checks whether a partition file is stored in the compressed format
+     * @param partition path to the partition file
+     * @return true if the file starts with our compressed magic bytes
+     */
+    public boolean isCompressed(Path partition) throws IOException {
+        byte[] fileStart = new byte[magic.length];
+        try(InputStream inputStream = Files.newInputStream(partition)){
+            int read = 0;
+            while(read < fileStart.length){
+                int count = inputStream.read(fileStart, read, fileStart.length - read);
+                if(count < 0){
+                    return false;
+                }
+                read += count;
+            }
+        }
+        return Arrays.equals(fileStart, magic);
+    }
+
+    /**
+     * Writes datastore lines out as a compressed partition
+     * @param partition path of the file to write
+     * @param rowEntries validated datastore lines to store
+     */
+    public void write(Path partition, Iterable<String> rowEntries) throws IOException {
+        Deflater deflater = new Deflater();
+        try(FileChannel channel = FileChannel.open(partition, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            channel.position(headerLength);
+            // Not closed here, as closing the stream would also close the channel we still need for the header
+            DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            ByteArrayOutputStream block = new ByteArrayOutputStream(Constants.compressionBlockBytes * 2);
+            byte[] compressed = new byte[Constants.compressionBlockBytes];
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            DataOutputStream tableStream = new DataOutputStream(table);
+            long rowCount = 0;
+            long blockFirstRow = 0;
+            long uncompressedSize = 0;
+            int blockCount = 0;
+
+            Iterator<String> rows = rowEntries.iterator();
+            while(rows.hasNext() || block.size() > 0){
+                if(rows.hasNext() && block.size() < Constants.compressionBlockBytes){
+                    byte[] rowBytes = rows.next().getBytes(StandardCharsets.UTF_8);
+                    block.write(rowBytes, 0, rowBytes.length);
+                    block.write('\n');
+                    rowCount++;
+                    continue;
+                }
+                // The block is full or we are out of lines, so compress it and note where it went
+                long blockOffset = headerLength + dataStream.size();
+                deflater.reset();
+                deflater.setInput(block.toByteArray());
+                deflater.finish();
+                while(!deflater.finished()){
+                    int length = deflater.deflate(compressed);
+                    dataStream.write(compressed, 0, length);
+                }
+                tableStream.writeLong(blockOffset);
+                tableStream.writeInt((int) (headerLength + dataStream.size() - blockOffset));
+                tableStream.writeInt(block.size());
+                tableStream.writeLong(blockFirstRow);
+                uncompressedSize += block.size();
+                blockFirstRow = rowCount;
+                blockCount++;
+                block.reset();
+            }
+            long tableOffset = headerLength + dataStream.size();
+            table.writeTo(dataStream);
+            dataStream.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.put(magic);
+            header.putInt(version);
+            header.putInt(blockCount);
+            header.putLong(rowCount);
+            header.putLong(uncompressedSize);
+            header.putLong(tableOffset);
+            header.flip();
+            channel.position(0);
+            while(header.hasRemaining()){
+                channel.write(header);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Streams every line in a compressed partition, decompressing one block at a time as the stream is read
+     * @param partition path to the compressed partition
+     * @return stream of pipe delimited lines, which must be closed by the caller
+     */
+    public Stream<String> lines(Path partition) throws IOException {
+        FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ);
+        BlockTable blockTable;
+        try {
+            blockTable = readBlockTable(channel, partition);
+        } catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+        Iterator<String> lineIterator = new Iterator<String>() {
+            private int nextBlock = 0;
+            private Iterator<String> blockLines = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext(){
+                while(!blockLines.hasNext() && nextBlock < blockTable.blockCount){
+                    try {
+                        blockLines = splitLines(inflate(readBlock(channel, blockTable, nextBlock++))).iterator();
+                    } catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return blockLines.hasNext();
+            }
+
+            @Override
+            public String next(){
+                if(!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return blockLines.next();
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(lineIterator, Spliterator.ORDERED), false)
+                .onClose(() -> {
+                    try {
+                        channel.close();
+                    } catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    /**
+     * Passes each line of a compressed partition that matches every byte filter to a consumer, in order.  Blocks
+     * are decompressed in parallel, a few ahead of the one being scanned.
+     * @param partition path to the compressed partition
+     * @param columns which of the six fields to include in each line, indexed in datastore field order
+     * @param byteFilters equality conditions every passed row must meet, checked before any String is created
+     * @param rowConsumer receives each matching row as a pipe delimited line
+     */
+    public void scan(Path partition, boolean[] columns, List<TextScanner.ByteFilter> byteFilters,
+                     Consumer<String> rowConsumer) throws IOException {
+        int window = Runtime.getRuntime().availableProcessors();
+        try(FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ)){
+            BlockTable blockTable = readBlockTable(channel, partition);
+            TextScanner scanner = new TextScanner();
+            ArrayDeque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<>();
+            int nextBlock = 0;
+            while(nextBlock < blockTable.blockCount || !inFlight.isEmpty()){
+                // Reads stay on this thread, and only the decompression is handed to the pool
+                while(nextBlock < blockTable.blockCount && inFlight.size() < window){
+                    byte[] compressed = readBlock(channel, blockTable, nextBlock++);
+                    inFlight.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return inflate(compressed);
+                        } catch(IOException e){
+                            throw new UncheckedIOException(e);
+                        }
+                    }));
+                }
+                byte[] block;
+                try {
+                    block = inFlight.poll().join();
+                } catch(CompletionException e){
+                    if(e.getCause() instanceof UncheckedIOException){
+                        throw ((UncheckedIOException) e.getCause()).getCause();
+                    }
+                    throw e;
+                }
+                scanner.scan(ByteBuffer.wrap(block), columns, byteFilters, rowConsumer);
+            }
+        }
+    }
+
+    /**
+     * Passes the lines at the given row numbers to a consumer, only decompressing the blocks that hold them
+     * @param partition path to the compressed partition
+     * @param rows ascending row numbers to pass on
+     * @param rowConsumer receives each row as a pipe delimited line
+     */
+    public void read(Path partition, long[] rows, Consumer<String> rowConsumer) throws IOException {
+        try(FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ)){
+            BlockTable blockTable = readBlockTable(channel, partition);
+            int loadedBlock = -1;
+            List<String> blockLines = null;
+            for(long row : rows){
+                int block = blockTable.blockOf(row);
+                if(block != loadedBlock){
+                    blockLines = splitLines(inflate(readBlock(channel, blockTable, block)));
+                    loadedBlock = block;
+                }
+                rowConsumer.accept(blockLines.get((int) (row - blockTable.firstRows[block])));
+            }
+        }
+    }
+
+    /**
+     * @param partition path to the compressed partition
+     * @return the partition's row count and the size in bytes of its lines once decompressed
+     */
+    public long[] measure(Path partition) throws IOException {
+        try(FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ)){
+            ByteBuffer header = readHeader(channel, partition);
+            header.getInt();  // block count
+            return new long[]{header.getLong(), header.getLong()};
+        }
+    }
+
+    private ByteBuffer readHeader(FileChannel channel, Path partition) throws IOException {
+        ByteBuffer header = readFully(channel, 0, headerLength);
+        byte[] fileMagic = new byte[magic.length];
+        header.get(fileMagic);
+        if(!Arrays.equals(fileMagic, magic) || header.getInt() != version){
+            throw new IOException("Unsupported partition format in " + partition);
+        }
+        return header;
+    }
+
+    private BlockTable readBlockTable(FileChannel channel, Path partition) throws IOException {
+        ByteBuffer header = readHeader(channel, partition);
+        int blockCount = header.getInt();
+        header.getLong();  // row count
+        header.getLong();  // uncompressed size
+        long tableOffset = header.getLong();
+        ByteBuffer table = readFully(channel, tableOffset, blockCount * tableEntryLength);
+        BlockTable blockTable = new BlockTable(blockCount);
+        for(int i = 0; i < blockCount; i++){
+            blockTable.offsets[i] = table.getLong();
+            blockTable.compressedLengths[i] = table.getInt();
+            blockTable.uncompressedLengths[i] = table.getInt();
+            blockTable.firstRows[i] = table.getLong();
+        }
+        return blockTable;
+    }
+
+    private byte[] readBlock(FileChannel channel, BlockTable blockTable, int block) throws IOException {
+        byte[] compressed = readFully(channel, blockTable.offsets[block], blockTable.compressedLengths[block]).array();
+        // Prefix the uncompressed length, so inflate knows how large a buffer to use
+        return ByteBuffer.allocate(4 + compressed.length).putInt(blockTable.uncompressedLengths[block]).put(compressed).array();
+    }
+
+    private byte[] inflate(byte[] lengthAndCompressed) throws IOException {
+        ByteBuffer input = ByteBuffer.wrap(lengthAndCompressed);
+        byte[] block = new byte[input.getInt()];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(lengthAndCompressed, 4, lengthAndCompressed.length - 4);
+            int length = 0;
+            while(length < block.length && !inflater.finished()){
+                int count = inflater.inflate(block, length, block.length - length);
+                if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                    break;
+                }
+                length += count;
+            }
+            if(length != block.length){
+                throw new IOException("Compressed block is shorter than expected");
+            }
+        } catch(DataFormatException e){
+            throw new IOException("Corrupt compressed block", e);
+        } finally {
+            inflater.end();
+        }
+        return block;
+    }
+
+    private List<String> splitLines(byte[] block){
+        List<String> lines = new ArrayList<>();
+        int lineStart = 0;
+        for(int i = 0; i < block.length; i++){
+            if(block[i] == '\n'){
+                lines.add(new String(block, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    private ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        Metrics.add(Metrics.Counter.BYTES_READ, length);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, offset + buffer.position()) < 0){
+                throw new IOException("Unexpected end of compressed partition");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Where each block of a partition is stored and which rows it holds
+     */
+    private static class BlockTable {
+        private int blockCount;
+        private long[] offsets;
+        private int[] compressedLengths;
+        private int[] uncompressedLengths;
+        private long[] firstRows;
+
+        BlockTable(int blockCount){
+            this.blockCount = blockCount;
+            this.offsets = new long[blockCount];
+            this.compressedLengths = new int[blockCount];
+            this.uncompressedLengths = new int[blockCount];
+            this.firstRows = new long[blockCount];
+        }
+
+        /**
+         * @return the block holding a row number
+         */
+        int blockOf(long row){
+            int block = Arrays.binarySearch(firstRows, row);
+            // Not a block's first row, so it is in the block before the insertion point
+            return block >= 0 ? block : -block - 2;
+        }
+    }
+}
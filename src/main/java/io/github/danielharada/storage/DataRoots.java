@@ -0,0 +1,285 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The directories a datastore's partitions are spread across, e.g. one on each drive.  The datastore directory
+ * itself is always the first root, and holds the write ahead log, the manifest and temporary files along with its
+ * share of the partitions.  Any further roots are listed one per line in its .roots file.
+ *
+ * Each date's partition, along with its side files and delta segments, lives in a single root, so every layer a
+ * row can be in is in one place and the newest still wins.  The root is chosen by rendezvous hashing: every root
+ * scores each date by hashing the two together, and the highest score wins.  Adding a root only moves the dates
+ * it now wins, rather than reshuffling every date as a hash modulo the root count would.
+ *
+ * A date may still be in another root, after roots were changed but before a rebalance moved it, so locate looks
+ * for it before falling back to where it belongs.  A rebalance copies a date's files into their new root with
+ * the base partition renamed into place last, and only then removes the old copy, so a root holding the date's
+ * base partition always holds the whole date.
+ */
+public class DataRoots {
+
+    private List<Path> roots;
+    private List<Path> directories;
+    private PartitionReader partitionReader;
+    private DeltaSegments deltaSegments;
+
+    /**
+     * @param roots every root, starting with the datastore directory
+     */
+    public DataRoots(List<Path> roots){
+        this(roots, roots);
+    }
+
+    /**
+     * @param roots every root, starting with the datastore directory, which dates are placed by
+     * @param directories directory to read each root's files from, e.g. a pinned manifest version of it
+     */
+    public DataRoots(List<Path> roots, List<Path> directories){
+        this.roots = roots;
+        this.directories = directories;
+        this.partitionReader = new PartitionReader();
+        this.deltaSegments = new DeltaSegments();
+    }
+
+    /**
+     * @param datastoreDirectory the datastore directory, which may list further roots in its .roots file
+     * @return the datastore's roots
+     */
+    public static DataRoots load(Path datastoreDirectory) throws IOException {
+        return new DataRoots(read(datastoreDirectory, datastoreDirectory.resolve(Constants.rootsFile)));
+    }
+
+    /**
+     * @param datastoreDirectory the first root
+     * @param rootsFile file listing the other roots, which does not need to exist
+     * @return every root, starting with the datastore directory
+     */
+    static List<Path> read(Path datastoreDirectory, Path rootsFile) throws IOException {
+        List<Path> roots = new ArrayList<>();
+        roots.add(datastoreDirectory);
+        try {
+            for(String line : Files.readAllLines(rootsFile, StandardCharsets.UTF_8)){
+                if(!line.trim().isEmpty()){
+                    roots.add(Paths.get(line.trim()));
+                }
+            }
+        } catch(NoSuchFileException e){
+            // Only the datastore directory
+        }
+        return roots;
+    }
+
+    /**
+     * Writes every root after the first to a roots file, replacing it with an atomic rename
+     * @param rootsFile e.g. the datastore directory's .roots file
+     */
+    public void write(Path rootsFile) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for(Path root : roots.subList(1, roots.size())){
+            lines.add(root.toString());
+        }
+        Path tempFile = Files.createTempFile(rootsFile.getParent(), Constants.rootsTempPrefix, "");
+        Files.write(tempFile, lines, StandardCharsets.UTF_8);
+        Files.move(tempFile, rootsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return every root, starting with the datastore directory
+     */
+    public List<Path> roots(){
+        return Collections.unmodifiableList(roots);
+    }
+
+    /**
+     * @return directory to read each root's files from, in the same order as roots
+     */
+    public List<Path> directories(){
+        return Collections.unmodifiableList(directories);
+    }
+
+    /**
+     * @param date partition date, as YYYY-MM-DD
+     * @return index of the root the date belongs in
+     */
+    public int place(String date){
+        if(roots.size() == 1){
+            return 0;
+        }
+        int bestRoot = 0;
+        long bestScore = Long.MIN_VALUE;
+        for(int i = 0; i < roots.size(); i++){
+            // Hash the root's name, not its index, so a date's score on a root doesn't change as others come and go
+            long score = mix(((long) date.hashCode() << 32) | (roots.get(i).normalize().toString().hashCode() & 0xffffffffL));
+            if(score > bestScore){
+                bestScore = score;
+                bestRoot = i;
+            }
+        }
+        return bestRoot;
+    }
+
+    /**
+     * Finds the partition for a date: in the root holding its base partition, preferring the root it belongs in,
+     * or failing that one holding its delta segments, or failing both the root it belongs in
+     * @param date partition date, as YYYY-MM-DD
+     * @return path to the date's partition file, which does not need to exist
+     */
+    public Path locate(String date){
+        if(directories.size() == 1){
+            return directories.get(0).resolve(date);
+        }
+        int placed = place(date);
+        Path located = find(date, placed, "");
+        if(located == null){
+            located = find(date, placed, Constants.segmentDirectorySuffix);
+        }
+        return located != null ? located : directories.get(placed).resolve(date);
+    }
+
+    /**
+     * @return the date's partition in the placed root if it holds the date's file with the given suffix, otherwise
+     * in the first root that does, or null if none does
+     */
+    private Path find(String date, int placed, String suffix){
+        if(Files.exists(directories.get(placed).resolve(date + suffix))){
+            return directories.get(placed).resolve(date);
+        }
+        for(Path directory : directories){
+            if(Files.exists(directory.resolve(date + suffix))){
+                return directory.resolve(date);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param directory one of our directories
+     * @return every date with a base partition or delta segments in the directory, or none if it does not exist
+     */
+    public Set<String> dates(Path directory) throws IOException {
+        Set<String> dates = new TreeSet<>();
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)){
+            for(Path path : directoryStream){
+                if(partitionReader.isPartition(path)){
+                    dates.add(path.getFileName().toString());
+                }
+                else if(deltaSegments.partitionOf(path) != null){
+                    dates.add(deltaSegments.partitionOf(path).getFileName().toString());
+                }
+            }
+        } catch(NoSuchFileException e){
+            // A root nothing has been written to yet
+        }
+        return dates;
+    }
+
+    /**
+     * Moves a date's base partition, side files and delta segments from one root to another, replacing any copy of
+     * the date already in the target.  Everything is copied into a temp directory in the target first and renamed
+     * into place with the base partition last, so the target only holds the base partition once it holds the rest,
+     * and only then is the source removed.
+     * @param date partition date, as YYYY-MM-DD
+     * @param source root holding the date
+     * @param target root to move it to
+     */
+    public void move(String date, Path source, Path target) throws IOException {
+        remove(date, target);
+        List<Path> files = files(date, source);
+        Path tempDirectory = Files.createTempDirectory(target, Constants.rebalanceTempPrefix);
+        try {
+            for(Path file : files){
+                copy(file, tempDirectory.resolve(file.getFileName().toString()));
+            }
+            for(Path file : files){
+                Files.move(tempDirectory.resolve(file.getFileName().toString()), target.resolve(file.getFileName().toString()),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            delete(tempDirectory);
+        }
+        remove(date, source);
+    }
+
+    /**
+     * Removes a date's base partition, side files and delta segments from a root, base partition first, so a root
+     * is never left holding the base partition without the rest
+     * @param date partition date, as YYYY-MM-DD
+     * @param directory root to remove it from
+     */
+    public void remove(String date, Path directory) throws IOException {
+        List<Path> files = files(date, directory);
+        Collections.reverse(files);
+        for(Path file : files){
+            delete(file);
+        }
+    }
+
+    /**
+     * @return the date's files in a directory, with its side files first, then its delta segments, then its base
+     * partition
+     */
+    private List<Path> files(String date, Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        // Dates hold no '.', so anything named after one and a '.' is one of its side files or its segments
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory, date + ".*")){
+            directoryStream.forEach(files::add);
+        } catch(NoSuchFileException e){
+            return files;
+        }
+        files.sort(Comparator.comparing(file -> file.getFileName().toString().endsWith(Constants.segmentDirectorySuffix)));
+        if(Files.exists(directory.resolve(date))){
+            files.add(directory.resolve(date));
+        }
+        return files;
+    }
+
+    private static void copy(Path source, Path target) throws IOException {
+        try(Stream<Path> pathStream = Files.walk(source)){
+            for(Path path : (Iterable<Path>) pathStream::iterator){
+                Files.copy(path, target.resolve(source.relativize(path).toString()), StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        try(Stream<Path> pathStream = Files.walk(path)){
+            List<Path> paths = pathStream.collect(Collectors.toList());
+            Collections.reverse(paths);
+            for(Path child : paths){
+                Files.deleteIfExists(child);
+            }
+        } catch(NoSuchFileException e){
+            // Already gone
+        }
+    }
+
+    /**
+     * Spreads the bits of a hash, so similar dates and root names get unrelated scores
+     */
+    private static long mix(long hash){
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,179 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Lays out the delta segments written over a date partition.  Rather than rewriting a partition, an import
+ * writes its rows for that date as a new immutable segment file, sorted on (STB, TITLE, DATE):
+ * <pre>
+ *   datastore/2014-04-01                              the base partition, in text or columnar format
+ *   datastore/2014-04-01.segments/seg-0000000001      oldest delta segment, in text format
+ *   datastore/2014-04-01.segments/seg-0000000002      newer segments win over older ones and over the base
+ * </pre>
+ * Segments are written to a temporary file and renamed into place once complete, so readers never see part of
+ * one.  A compactor later merges runs of segments together, and eventually folds them into the base partition.
+ */
+public class DeltaSegments {
+
+    /**
+     * @param partition path to the base partition file, which does not need to exist
+     * @return path to the directory holding the partition's delta segments
+     */
+    public Path directory(Path partition){
+        return partition.resolveSibling(partition.getFileName().toString() + Constants.segmentDirectorySuffix);
+    }
+
+    /**
+     * @param segmentDirectory path to a directory of delta segments
+     * @return path to the base partition the segments belong to, or null if the path is not a segment directory
+     */
+    public Path partitionOf(Path segmentDirectory){
+        String name = segmentDirectory.getFileName().toString();
+        if(!name.endsWith(Constants.segmentDirectorySuffix) || !Files.isDirectory(segmentDirectory)){
+            return null;
+        }
+        return segmentDirectory.resolveSibling(name.substring(0, name.length() - Constants.segmentDirectorySuffix.length()));
+    }
+
+    /**
+     * @param partition path to the base partition file
+     * @return the partition's delta segments, oldest first
+     */
+    public List<Path> list(Path partition) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        Path directory = directory(partition);
+        if(!Files.isDirectory(directory)){
+            return segments;
+        }
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory, Constants.segmentPrefix + "*")){
+            directoryStream.forEach(segment -> {
+                // Skip the key filters and sparse indexes stored alongside segments
+                if(segment.getFileName().toString().indexOf('.') < 0){
+                    segments.add(segment);
+                }
+            });
+        }
+        // Segment numbers are zero padded, so name order is write order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @param partition path to the base partition file
+     * @return total size in bytes of the partition's delta segments
+     */
+    public long size(Path partition) throws IOException {
+        long size = 0;
+        for(Path segment : list(partition)){
+            try {
+                size += Files.size(segment);
+            } catch(NoSuchFileException e){
+                // Removed by a compaction since we listed it
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Opens a reader on every delta segment of a partition, newest first.  Every segment is opened before any is
+     * read, and an open file stays readable after a compaction removes it, so the readers always cover the same
+     * rows as some complete version of the partition.  The base partition should only be opened afterwards.
+     * @param partition path to the base partition file
+     * @param mayHoldRows checks each segment before it is opened, and segments it rejects are skipped
+     * @return open readers, which the caller must close, or an empty list if the partition has no segments
+     */
+    public List<BufferedReader> open(Path partition, IOPredicate mayHoldRows) throws IOException {
+        while(true){
+            List<Path> segments = list(partition);
+            List<BufferedReader> readers = new ArrayList<>();
+            try {
+                for(int i = segments.size() - 1; i >= 0; i--){
+                    if(mayHoldRows.test(segments.get(i))){
+                        readers.add(Files.newBufferedReader(segments.get(i), StandardCharsets.UTF_8));
+                    }
+                }
+                return readers;
+            } catch(NoSuchFileException e){
+                // A compaction replaced some of the segments while we were opening them, so start again
+                close(readers);
+            } catch(IOException e){
+                close(readers);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Closes readers returned by open, ignoring any failures
+     */
+    public void close(List<BufferedReader> readers){
+        for(BufferedReader reader : readers){
+            try {
+                reader.close();
+            } catch(IOException e){
+                //TODO: expand logging
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Creates a temporary file in a partition's segment directory, for a segment to be written to before it is
+     * published
+     * @param partition path to the base partition file
+     * @return path to the new empty file
+     */
+    public Path createTempSegment(Path partition) throws IOException {
+        Path directory = Files.createDirectories(directory(partition));
+        return Files.createTempFile(directory, Constants.mergeTempPrefix, "");
+    }
+
+    /**
+     * Renames a complete temporary file into place as the partition's newest segment
+     * @param partition path to the base partition file
+     * @param tempSegment file written by the caller, from createTempSegment
+     * @return path to the new segment
+     */
+    public Path publish(Path partition, Path tempSegment) throws IOException {
+        List<Path> segments = list(partition);
+        long number = segments.isEmpty() ? 1 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+        Path segment = directory(partition).resolve(String.format("%s%010d", Constants.segmentPrefix, number));
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, Files.size(tempSegment));
+        return Files.move(tempSegment, segment, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Renames a complete temporary file over an existing segment, e.g. with the merged rows of a run of segments
+     * ending at that one
+     * @param tempSegment file written by the caller, from createTempSegment
+     * @param segment segment to replace
+     */
+    public void replace(Path tempSegment, Path segment) throws IOException {
+        Metrics.add(Metrics.Counter.BYTES_WRITTEN, Files.size(tempSegment));
+        Files.move(tempSegment, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Check on a segment file which may need to read it, e.g. to load its key filter
+     */
+    public interface IOPredicate {
+        boolean test(Path segment) throws IOException;
+    }
+
+    private long segmentNumber(Path segment){
+        return Long.parseLong(segment.getFileName().toString().substring(Constants.segmentPrefix.length()));
+    }
+}
@@ -0,0 +1,215 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Bloom filter on the (STB, TITLE, DATE) keys of a partition or delta segment, stored next to it as
+ * {name}.bloom.  A filter can say for certain that a key is not in its file, so point lookups and merges can
+ * skip reading files that cannot hold the keys they are after.  Keys are case folded a char at a time the
+ * same way compareToIgnoreCase does, so a filter also answers for keys which only match ignoring case.
+ *
+ * Each key is hashed once into two 64 bit halves, which are combined as h1 + i * h2 to give the position of each
+ * of the filter's bits for that key:
+ * <pre>
+ *   header:  magic (4 bytes), version (int), file size (long), file modified time (long),
+ *            key capacity (long), keys added (long), hash count (int), word count (int)
+ *   bits:    words (long)
+ * </pre>
+ * The file size and modified time are checked on read, and a filter that no longer matches its file is ignored.
+ * Filters are sized for more keys than they start with, so an import adding a few keys can extend the existing
+ * filter rather than rebuilding it.
+ */
+public class KeyFilter {
+
+    private final static byte[] magic = {0, 'D', 'S', 'B'};
+    private final static int version = 1;
+    private final static int headerLength = magic.length + 4 + 8 + 8 + 8 + 8 + 4 + 4;
+
+    private long[] words;
+    private int hashCount;
+    private long capacity;
+    private long keyCount;
+
+    /**
+     * Creates an empty filter
+     * @param expectedKeys number of keys the filter will hold, which is given some headroom
+     * @param falsePositiveRate chance of a key that was never added being reported as possibly present, at capacity
+     */
+    public KeyFilter(long expectedKeys, double falsePositiveRate){
+        this.capacity = Math.max(Constants.keyFilterMinimumKeys, expectedKeys * Constants.keyFilterHeadroom);
+        double rate = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+        // Optimal bit count and hash count for our capacity and false positive rate
+        long bits = (long) Math.ceil(-capacity * Math.log(rate) / (Math.log(2) * Math.log(2)));
+        this.words = new long[(int) Math.min((bits + 63) / 64, (Integer.MAX_VALUE - headerLength) / 8)];
+        this.hashCount = Math.max(1, (int) Math.round((double) words.length * 64 / capacity * Math.log(2)));
+        this.keyCount = 0;
+    }
+
+    private KeyFilter(long[] words, int hashCount, long capacity, long keyCount){
+        this.words = words;
+        this.hashCount = hashCount;
+        this.capacity = capacity;
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * @param file path to a partition or segment file
+     * @return path to that file's key filter
+     */
+    public static Path filterPath(Path file){
+        return file.resolveSibling(file.getFileName() + Constants.keyFilterSuffix);
+    }
+
+    /**
+     * Reads the key filter stored next to a file
+     * @param file path to a partition or segment file
+     * @return the file's filter, or null if it has none or its filter is out of date
+     */
+    public static KeyFilter read(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(filterPath(file), StandardOpenOption.READ)){
+            if(channel.size() < headerLength){
+                return null;
+            }
+            ByteBuffer header = readFully(channel, 0, headerLength);
+            byte[] fileMagic = new byte[magic.length];
+            header.get(fileMagic);
+            if(!Arrays.equals(fileMagic, magic) || header.getInt() != version){
+                return null;
+            }
+            if(header.getLong() != Files.size(file) || header.getLong() != Files.getLastModifiedTime(file).toMillis()){
+                return null;
+            }
+            long capacity = header.getLong();
+            long keyCount = header.getLong();
+            int hashCount = header.getInt();
+            int wordCount = header.getInt();
+            if(channel.size() != headerLength + wordCount * 8L){
+                return null;
+            }
+            long[] words = new long[wordCount];
+            readFully(channel, headerLength, wordCount * 8).asLongBuffer().get(words);
+            return new KeyFilter(words, hashCount, capacity, keyCount);
+        } catch(NoSuchFileException e){
+            return null;
+        }
+    }
+
+    /**
+     * Removes a file's key filter, if it has one
+     */
+    public static void delete(Path file) throws IOException {
+        Files.deleteIfExists(filterPath(file));
+    }
+
+    /**
+     * @param key (STB, TITLE, DATE) key, in any case
+     */
+    public void add(String key){
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        long bitCount = words.length * 64L;
+        for(int i = 0; i < hashCount; i++){
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        keyCount++;
+    }
+
+    /**
+     * @param key (STB, TITLE, DATE) key, in any case
+     * @return false if the key, ignoring case, was certainly never added
+     */
+    public boolean mightContain(String key){
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        long bitCount = words.length * 64L;
+        for(int i = 0; i < hashCount; i++){
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if((words[(int) (bit >>> 6)] & (1L << bit)) == 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param additionalKeys number of keys we would like to add
+     * @return true if that many more keys still fit within the capacity we were sized for
+     */
+    public boolean hasCapacity(long additionalKeys){
+        return keyCount + additionalKeys <= capacity;
+    }
+
+    /**
+     * Writes the filter next to a file, stamped with the file's current size and modified time.  The filter is
+     * written to a temp file and renamed into place.
+     * @param file path to the partition or segment file the filter describes
+     */
+    public void write(Path file) throws IOException {
+        Path filterFile = filterPath(file);
+        Path tempFile = filterFile.resolveSibling(filterFile.getFileName() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(headerLength + words.length * 8);
+        buffer.put(magic);
+        buffer.putInt(version);
+        buffer.putLong(Files.size(file));
+        buffer.putLong(Files.getLastModifiedTime(file).toMillis());
+        buffer.putLong(capacity);
+        buffer.putLong(keyCount);
+        buffer.putInt(hashCount);
+        buffer.putInt(words.length);
+        buffer.asLongBuffer().put(words);
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        try(FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            while(buffer.hasRemaining()){
+                channel.write(buffer, buffer.position());
+            }
+        }
+        Files.move(tempFile, filterFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 64 bit FNV-1a over the case folded key, finished with a mixing step so every bit depends on every char
+     */
+    private long hash(String key){
+        long hash = 0xCBF29CE484222325L;
+        for(int i = 0; i < key.length(); i++){
+            hash ^= Character.toLowerCase(Character.toUpperCase(key.charAt(i)));
+            hash *= 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    private long mix(long hash){
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, offset + buffer.position()) < 0){
+                throw new IOException("Unexpected end of key filter");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
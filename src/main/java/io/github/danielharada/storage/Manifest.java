@@ -0,0 +1,503 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Numbered versions of the files in a datastore, so a query reads one consistent set of partitions, side files
+ * and delta segments for its whole run while imports go on changing them.  Each version is a directory of hard
+ * links to the files as they stood when it was published, laid out just like the datastore itself:
+ * <pre>
+ *   datastore/.manifest/CURRENT                                       number of the newest version
+ *   datastore/.manifest/0000000042/2014-04-01                         links to version 42's partitions, their
+ *   datastore/.manifest/0000000042/2014-04-01.bloom                   side files and their delta segments
+ *   datastore/.manifest/0000000042/2014-04-01.segments/seg-0000000001
+ *   datastore/.manifest/0000000042.lock                               shared locked by readers of version 42
+ *   datastore/.manifest/LOCK                                          locked by the one writer at a time
+ * </pre>
+ * Writers never change a file in place, they write a new one and rename it over the old, so a link keeps the old
+ * contents readable after the datastore has moved on.  A writer holds the write lock while it changes the
+ * datastore, then publishes a new version by linking every file and renaming a new CURRENT into place.
+ *
+ * With several DataRoots, each root's files are linked into a version directory under that root's own .manifest
+ * directory, as links can't cross drives, while CURRENT, the lock files and a .roots file listing the version's
+ * roots are kept under the datastore directory.  Renaming CURRENT still publishes every root at once.
+ *
+ * Each version also records the last write ahead log segment whose rows were applied to its files, so a reader
+ * knows which logged rows are newer than the version it pinned, however far the log has moved on since.
+ *
+ * A reader pins the current version by taking a shared lock on its lock file, and reads through that version's
+ * directories until it is done.  Publishing collects every older version whose lock file it can lock exclusively,
+ * which it only can once no reader in any process has it pinned, and readers releasing an old version collect it
+ * themselves.  Both sides only ever try locks between them, so readers never wait for writers or writers for
+ * readers.  A datastore no writer has published a version of yet is read in place, as it always was.
+ */
+public class Manifest {
+
+    // File locks are held by the whole process, so every Manifest on the same datastore shares one set of them
+    private final static Map<Path, State> states = new HashMap<>();
+
+    private Path datastoreDirectory;
+    private Path manifestDirectory;
+    private State state;
+
+    /**
+     * @param datastoreDirectory directory holding our partitions, whose .manifest directory holds the versions
+     */
+    public Manifest(Path datastoreDirectory){
+        this.datastoreDirectory = datastoreDirectory;
+        this.manifestDirectory = datastoreDirectory.resolve(Constants.manifestDirectory);
+        this.state = state(manifestDirectory);
+    }
+
+    /**
+     * Takes the write lock, waiting for any writer in this or another process to finish.  A thread already
+     * holding the lock can take it again, and must close it once for each time it took it.
+     * @return held lock, released when closed
+     */
+    public WriteLock lockForWriting() throws IOException {
+        state.writeLock.lock();
+        try {
+            if(state.writeLock.getHoldCount() == 1){
+                Files.createDirectories(manifestDirectory);
+                state.writeChannel = FileChannel.open(manifestDirectory.resolve(Constants.manifestWriteLockFile),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                state.writeChannel.lock();
+            }
+        } catch(IOException e){
+            unlockWriting();
+            throw e;
+        }
+        return () -> unlockWriting();
+    }
+
+    /**
+     * Publishes the datastore's files as they stand as a new version, unless the current version already holds
+     * exactly these files, and then collects any older versions no reader has pinned.  Takes the write lock
+     * while it runs, so it can be called with or without already holding it.  The new version has the same write
+     * ahead log segments applied to it as the current one.
+     * @return the number of the current version
+     */
+    public long publish() throws IOException {
+        return publish(null);
+    }
+
+    /**
+     * Publishes the datastore's files as they stand as a new version, as publish does, after applying the write
+     * ahead log to them
+     * @param appliedLogSegment number of the last log segment whose rows have been applied to the files
+     * @return the number of the current version
+     */
+    public long publish(long appliedLogSegment) throws IOException {
+        return publish(Long.valueOf(appliedLogSegment));
+    }
+
+    private long publish(Long appliedLogSegment) throws IOException {
+        WriteLock writeLock = lockForWriting();
+        try {
+            long current = currentVersion();
+            // Nothing applied to the current version, or one published before versions recorded it, starts the log from 0
+            long applied = appliedLogSegment != null ? appliedLogSegment
+                    : current < 0 ? 0 : Math.max(0, appliedLogSegment(current));
+            DataRoots dataRoots = DataRoots.load(datastoreDirectory);
+            List<List<Path>> files = new ArrayList<>();
+            for(Path root : dataRoots.roots()){
+                files.add(listFiles(root));
+            }
+            if(current < 0 || appliedLogSegment(current) != applied || !holdsFiles(current, dataRoots.roots(), files)){
+                current++;
+                for(int i = 0; i < dataRoots.roots().size(); i++){
+                    Path root = dataRoots.roots().get(i);
+                    Path versionDirectory = versionDirectory(root, current);
+                    // Left behind by a publish that failed before it renamed CURRENT, so no reader can have it pinned
+                    deleteTree(versionDirectory);
+                    Files.createDirectories(versionDirectory);
+                    for(Path file : files.get(i)){
+                        Path link = versionDirectory.resolve(file);
+                        Files.createDirectories(link.getParent());
+                        try {
+                            Files.createLink(link, root.resolve(file));
+                        } catch(NoSuchFileException e){
+                            // Removed since we listed it, e.g. a temporary file renamed into place
+                        }
+                    }
+                }
+                dataRoots.write(versionDirectory(datastoreDirectory, current).resolve(Constants.rootsFile));
+                Files.write(versionDirectory(datastoreDirectory, current).resolve(Constants.manifestLogFile),
+                        Long.toString(applied).getBytes(StandardCharsets.UTF_8));
+                try {
+                    Files.createFile(lockFile(current));
+                } catch(FileAlreadyExistsException e){
+                    // Also left behind by a failed publish
+                }
+                Path tempFile = Files.createTempFile(manifestDirectory, Constants.manifestTempPrefix, "");
+                Files.write(tempFile, versionName(current).getBytes(StandardCharsets.UTF_8));
+                Files.move(tempFile, manifestDirectory.resolve(Constants.manifestCurrentFile),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            collect(current);
+            return current;
+        } finally {
+            writeLock.close();
+        }
+    }
+
+    /**
+     * Pins the current version for reading, so none of its files are removed until it is closed.  Never waits on
+     * a writer: if a collection is removing the version we read from CURRENT, a newer one has been published,
+     * and we pin that instead.
+     * @return pinned version, released when closed
+     */
+    public Version pin() throws IOException {
+        long failedVersion = -1;
+        while(true){
+            long version = currentVersion();
+            if(version < 0){
+                return new Version(DataRoots.load(datastoreDirectory), -1, -1);
+            }
+            synchronized(state){
+                Pin pin = state.pins.get(version);
+                if(pin == null){
+                    pin = lockVersion(version);
+                }
+                if(pin != null){
+                    pin.readers++;
+                    state.pins.put(version, pin);
+                    List<Path> roots = versionRoots(version);
+                    List<Path> directories = new ArrayList<>();
+                    for(Path root : roots){
+                        directories.add(versionDirectory(root, version));
+                    }
+                    return new Version(new DataRoots(roots, directories), version, appliedLogSegment(version));
+                }
+            }
+            if(version == failedVersion){
+                // CURRENT still names a version that is gone, which only a damaged manifest does, so read in place
+                return new Version(DataRoots.load(datastoreDirectory), -1, -1);
+            }
+            failedVersion = version;
+        }
+    }
+
+    /**
+     * @return the number of the current version, or -1 if none has been published
+     */
+    public long currentVersion() throws IOException {
+        try {
+            byte[] current = Files.readAllBytes(manifestDirectory.resolve(Constants.manifestCurrentFile));
+            return Long.parseLong(new String(current, StandardCharsets.UTF_8).trim());
+        } catch(NoSuchFileException | NumberFormatException e){
+            return -1;
+        }
+    }
+
+    /**
+     * Lists every file a version holds: the regular files at the top of the datastore directory, which are the
+     * partitions and their side files, and the files in each delta segment directory.  Hidden files and
+     * directories, such as the write ahead log, the manifest itself and temporary files, are left out.
+     * @param directory the datastore directory or a version directory
+     * @return paths relative to the directory
+     */
+    private List<Path> listFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(directory)){
+            for(Path path : directoryStream){
+                String name = path.getFileName().toString();
+                if(name.startsWith(".")){
+                    continue;
+                }
+                if(Files.isRegularFile(path)){
+                    files.add(directory.relativize(path));
+                }
+                else if(name.endsWith(Constants.segmentDirectorySuffix) && Files.isDirectory(path)){
+                    try(DirectoryStream<Path> segmentStream = Files.newDirectoryStream(path)){
+                        for(Path segment : segmentStream){
+                            if(!segment.getFileName().toString().startsWith(".") && Files.isRegularFile(segment)){
+                                files.add(directory.relativize(segment));
+                            }
+                        }
+                    } catch(NoSuchFileException e){
+                        // Removed by a compaction since we listed it
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @param roots every root, starting with the datastore directory
+     * @param files the files of each root, as listed by listFiles
+     * @return true if a version has the same roots, and holds links to exactly the given files in each of them
+     */
+    private boolean holdsFiles(long version, List<Path> roots, List<List<Path>> files) throws IOException {
+        if(!Files.isDirectory(versionDirectory(datastoreDirectory, version)) || !versionRoots(version).equals(roots)){
+            return false;
+        }
+        for(int i = 0; i < roots.size(); i++){
+            Path versionDirectory = versionDirectory(roots.get(i), version);
+            if(!Files.isDirectory(versionDirectory) || listFiles(versionDirectory).size() != files.get(i).size()){
+                return false;
+            }
+            for(Path file : files.get(i)){
+                try {
+                    if(!Files.isSameFile(versionDirectory.resolve(file), roots.get(i).resolve(file))){
+                        return false;
+                    }
+                } catch(NoSuchFileException e){
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return every root a version was published with, starting with the datastore directory
+     */
+    private List<Path> versionRoots(long version) throws IOException {
+        return DataRoots.read(datastoreDirectory, versionDirectory(datastoreDirectory, version).resolve(Constants.rootsFile));
+    }
+
+    /**
+     * @return the last write ahead log segment applied to a version's files, or -1 if the version does not say
+     */
+    private long appliedLogSegment(long version) throws IOException {
+        try {
+            byte[] applied = Files.readAllBytes(versionDirectory(datastoreDirectory, version).resolve(Constants.manifestLogFile));
+            return Long.parseLong(new String(applied, StandardCharsets.UTF_8).trim());
+        } catch(NoSuchFileException | NumberFormatException e){
+            return -1;
+        }
+    }
+
+    /**
+     * Takes a shared lock on a version for this process
+     * @return the held lock, or null if the version is being or has been collected
+     */
+    private Pin lockVersion(long version) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(lockFile(version), StandardOpenOption.READ);
+        } catch(NoSuchFileException e){
+            return null;
+        }
+        try {
+            // A collection may have removed the version after we opened its lock file but before we locked it
+            if(channel.tryLock(0, Long.MAX_VALUE, true) != null
+                    && Files.isDirectory(versionDirectory(datastoreDirectory, version))){
+                return new Pin(channel);
+            }
+        } catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        return null;
+    }
+
+    private void release(long version){
+        boolean superseded;
+        synchronized(state){
+            Pin pin = state.pins.get(version);
+            if(--pin.readers > 0){
+                return;
+            }
+            state.pins.remove(version);
+            try {
+                pin.channel.close();
+            } catch(IOException e){
+                //TODO: expand logging
+                e.printStackTrace();
+            }
+        }
+        try {
+            long current = currentVersion();
+            if(version < current){
+                collect(current);
+            }
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes every version older than the current one that no reader has pinned.  A version pinned by a reader
+     * in another process fails our exclusive lock, and is left for a later collection.
+     * @param current number of the current version, which is always kept
+     */
+    private void collect(long current) throws IOException {
+        List<Long> versions = new ArrayList<>();
+        try(DirectoryStream<Path> directoryStream = Files.newDirectoryStream(manifestDirectory)){
+            for(Path path : directoryStream){
+                String name = path.getFileName().toString();
+                if(name.endsWith(Constants.manifestLockSuffix)){
+                    name = name.substring(0, name.length() - Constants.manifestLockSuffix.length());
+                }
+                if(!name.isEmpty() && name.chars().allMatch(Character::isDigit)){
+                    long version = Long.parseLong(name);
+                    if(version < current && !versions.contains(version)){
+                        versions.add(version);
+                    }
+                }
+            }
+        }
+        synchronized(state){
+            for(long version : versions){
+                // Closing any channel on a file drops every lock this process holds on it, so we never open our own
+                if(state.pins.containsKey(version)){
+                    continue;
+                }
+                try(FileChannel channel = FileChannel.open(lockFile(version), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    FileLock lock = channel.tryLock()){
+                    if(lock != null){
+                        // The datastore directory's copy goes last, as it lists the version's other roots
+                        List<Path> roots = versionRoots(version);
+                        for(int i = roots.size() - 1; i >= 0; i--){
+                            deleteTree(versionDirectory(roots.get(i), version));
+                        }
+                        Files.deleteIfExists(lockFile(version));
+                    }
+                }
+            }
+        }
+    }
+
+    private void unlockWriting(){
+        try {
+            if(state.writeLock.getHoldCount() == 1 && state.writeChannel != null){
+                // Closing the channel releases the file lock
+                state.writeChannel.close();
+                state.writeChannel = null;
+            }
+        } catch(IOException e){
+            //TODO: expand logging
+            e.printStackTrace();
+        } finally {
+            state.writeLock.unlock();
+        }
+    }
+
+    private Path versionDirectory(Path root, long version){
+        return root.resolve(Constants.manifestDirectory).resolve(versionName(version));
+    }
+
+    private Path lockFile(long version){
+        return manifestDirectory.resolve(versionName(version) + Constants.manifestLockSuffix);
+    }
+
+    private String versionName(long version){
+        return String.format("%010d", version);
+    }
+
+    private void deleteTree(Path directory) throws IOException {
+        if(!Files.exists(directory)){
+            return;
+        }
+        try(Stream<Path> pathStream = Files.walk(directory)){
+            // Deepest first, so each directory is empty by the time we reach it
+            for(Path path : (Iterable<Path>) pathStream.sorted(Comparator.reverseOrder())::iterator){
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static synchronized State state(Path manifestDirectory){
+        return states.computeIfAbsent(manifestDirectory.toAbsolutePath().normalize(), directory -> new State());
+    }
+
+    /**
+     * Write lock taken by lockForWriting
+     */
+    public interface WriteLock extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * A version pinned for reading by pin
+     */
+    public class Version implements AutoCloseable {
+
+        private DataRoots dataRoots;
+        private long number;
+        private long appliedLogSegment;
+
+        private Version(DataRoots dataRoots, long number, long appliedLogSegment){
+            this.dataRoots = dataRoots;
+            this.number = number;
+            this.appliedLogSegment = appliedLogSegment;
+        }
+
+        /**
+         * @return the roots the version was published with, whose directories are where to read each root's files
+         * from, laid out like the root itself
+         */
+        public DataRoots roots(){
+            return dataRoots;
+        }
+
+        /**
+         * @return the version's number, or -1 if the datastore is being read in place
+         */
+        public long number(){
+            return number;
+        }
+
+        /**
+         * @return the last write ahead log segment applied to the version's files, so only rows logged in later
+         * segments are newer than them, or -1 if that is unknown and every logged row must be read
+         */
+        public long appliedLogSegment(){
+            return appliedLogSegment;
+        }
+
+        @Override
+        public void close(){
+            if(number >= 0){
+                release(number);
+            }
+        }
+    }
+
+    /**
+     * This process's shared lock on a version, along with how many of our readers have it pinned
+     */
+    private static class Pin {
+        private FileChannel channel;
+        private int readers;
+
+        Pin(FileChannel channel){
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Locks held by this process on one datastore's manifest
+     */
+    private static class State {
+        private ReentrantLock writeLock = new ReentrantLock();
+        private FileChannel writeChannel;
+        private Map<Long, Pin> pins = new HashMap<>();
+    }
+}
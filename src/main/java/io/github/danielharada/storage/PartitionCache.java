@@ -0,0 +1,187 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps recently read partitions in memory, so repeated queries over the same dates don't re-read them.
+ * Each partition is held as a single byte array of full lines in text partition format, whichever format it
+ * is stored in on disk, and is scanned with the same byte level tokenizer as a text partition on disk.
+ *
+ * Entries are keyed by partition name, so a partition read through any manifest version or in place shares one
+ * entry, and remember the size and modified time of the file they were read from.  An entry whose file has since
+ * changed is treated as a miss and reloaded.  Once the cached bytes exceed
+ * our budget, the least recently used partitions are evicted.  A single cache is meant to be shared by every
+ * query in a process, so all methods are thread safe.
+ */
+public class PartitionCache {
+
+    private long byteLimit;
+    private LinkedHashMap<Path, CachedPartition> partitions;
+    private long cachedBytes;
+    private PartitionReader partitionReader;
+
+    private AtomicLong hits;
+    private AtomicLong misses;
+    private AtomicLong evictions;
+
+    /**
+     * @param byteLimit approximate number of bytes of partitions to hold before evicting
+     */
+    public PartitionCache(long byteLimit){
+        this.byteLimit = byteLimit;
+        // Access ordered, so iteration starts from the least recently used partition
+        this.partitions = new LinkedHashMap<>(16, 0.75f, true);
+        this.cachedBytes = 0;
+        this.partitionReader = new PartitionReader();
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.evictions = new AtomicLong();
+    }
+
+    /**
+     * Returns a partition from the cache, reading it in first if it is missing or out of date
+     * @param partition path to the partition file
+     * @return the cached partition, or null if it does not exist or is too large to cache
+     */
+    public CachedPartition get(Path partition) throws IOException {
+        long size;
+        long modifiedTime;
+        try {
+            size = Files.size(partition);
+            modifiedTime = Files.getLastModifiedTime(partition).toMillis();
+        } catch(NoSuchFileException e){
+            return null;
+        }
+        Path name = partition.getFileName();
+        synchronized(this){
+            CachedPartition cached = partitions.get(name);
+            if(cached != null && cached.size == size && cached.modifiedTime == modifiedTime){
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        // Columnar partitions grow when decoded, so this is only a first check against the budget
+        if(size > byteLimit || size >= Integer.MAX_VALUE){
+            return null;
+        }
+
+        // Read outside the lock, so a slow load doesn't hold up queries on other partitions
+        CachedPartition loaded = load(partition, size, modifiedTime);
+        if(loaded.bytes() > byteLimit){
+            return loaded;
+        }
+        synchronized(this){
+            CachedPartition previous = partitions.put(name, loaded);
+            if(previous != null){
+                cachedBytes -= previous.bytes();
+            }
+            cachedBytes += loaded.bytes();
+            Iterator<Map.Entry<Path, CachedPartition>> iterator = partitions.entrySet().iterator();
+            while(cachedBytes > byteLimit && iterator.hasNext()){
+                Map.Entry<Path, CachedPartition> eldest = iterator.next();
+                if(eldest.getValue() == loaded){
+                    continue;
+                }
+                cachedBytes -= eldest.getValue().bytes();
+                iterator.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Drops a partition from the cache, e.g. once an import has rewritten it
+     * @param partition path to the partition file
+     */
+    public synchronized void invalidate(Path partition){
+        CachedPartition removed = partitions.remove(partition.getFileName());
+        if(removed != null){
+            cachedBytes -= removed.bytes();
+        }
+    }
+
+    /**
+     * @return a one line summary of the cache's size and its hit, miss and eviction counts
+     */
+    public synchronized String stats(){
+        return String.format("partitions=%d bytes=%d limit=%d hits=%d misses=%d evictions=%d",
+                partitions.size(), cachedBytes, byteLimit, hits.get(), misses.get(), evictions.get());
+    }
+
+    public long getHits(){
+        return hits.get();
+    }
+
+    public long getMisses(){
+        return misses.get();
+    }
+
+    public long getEvictions(){
+        return evictions.get();
+    }
+
+    private CachedPartition load(Path partition, long size, long modifiedTime) throws IOException {
+        byte[] rows;
+        if(partitionReader.format(partition).equals(Constants.textFormat)){
+            rows = Files.readAllBytes(partition);
+            Metrics.add(Metrics.Counter.BYTES_READ, rows.length);
+        }
+        else {
+            ByteArrayOutputStream rowStream = new ByteArrayOutputStream((int) Math.min(size * 2, Integer.MAX_VALUE - 8));
+            partitionReader.scan(partition, PartitionReader.allColumns(), rowEntry -> {
+                byte[] rowBytes = rowEntry.getBytes(StandardCharsets.UTF_8);
+                rowStream.write(rowBytes, 0, rowBytes.length);
+                rowStream.write('\n');
+            });
+            rows = rowStream.toByteArray();
+        }
+        return new CachedPartition(rows, size, modifiedTime);
+    }
+
+    /**
+     * The rows of one partition, as read from a given version of its file
+     */
+    public static class CachedPartition {
+        private byte[] rows;
+        private long size;
+        private long modifiedTime;
+
+        CachedPartition(byte[] rows, long size, long modifiedTime){
+            this.rows = rows;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+        }
+
+        /**
+         * Passes each cached line that matches every byte filter to a consumer, as PartitionReader.scan does
+         * @param columns which of the six fields to include in each line, indexed in datastore field order
+         * @param byteFilters equality conditions checked on raw bytes before any String is created
+         * @param rowConsumer receives each matching row as a pipe delimited line
+         */
+        public void scan(boolean[] columns, List<TextScanner.ByteFilter> byteFilters, Consumer<String> rowConsumer){
+            // Each scan gets its own buffer view and scanner, so any number of queries can share the rows
+            new TextScanner().scan(ByteBuffer.wrap(rows), columns, byteFilters, rowConsumer);
+        }
+
+        long bytes(){
+            return rows.length + Constants.cacheEntryOverhead;
+        }
+    }
+}
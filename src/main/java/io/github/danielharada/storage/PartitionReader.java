@@ -0,0 +1,187 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Reads date partitions regardless of the format they are stored in, so the importer and query engine
+ * can work with text, columnar and compressed partitions side by side.
+ */
+public class PartitionReader {
+
+    private final static boolean[] allColumns = {true, true, true, true, true, true};
+
+    private ColumnarFormat columnarFormat;
+    private CompressedFormat compressedFormat;
+
+    public PartitionReader(){
+        this.columnarFormat = new ColumnarFormat();
+        this.compressedFormat = new CompressedFormat();
+    }
+
+    /**
+     * Streams every full datastore line in a partition
+     * @param partition path to the partition file
+     * @return stream of pipe delimited lines, which must be closed by the caller
+     */
+    public Stream<String> lines(Path partition) throws IOException {
+        if(compressedFormat.isCompressed(partition)){
+            return compressedFormat.lines(partition);
+        }
+        if(!columnarFormat.isColumnar(partition)){
+            Metrics.add(Metrics.Counter.BYTES_READ, Files.size(partition));
+            return Files.lines(partition, StandardCharsets.UTF_8);
+        }
+        return columnarFormat.lines(partition);
+    }
+
+    /**
+     * Passes each line in a partition to a consumer.  Columnar partitions only decode the requested columns and
+     * leave the others empty, while text partitions always pass on full lines.
+     * @param partition path to the partition file
+     * @param columns which of the six fields are needed, indexed in datastore field order
+     * @param rowConsumer receives each pipe delimited line
+     */
+    public void scan(Path partition, boolean[] columns, Consumer<String> rowConsumer) throws IOException {
+        scan(partition, columns, Collections.emptyList(), rowConsumer);
+    }
+
+    /**
+     * Passes each line in a partition to a consumer, leaving columns which were not requested empty.
+     * Text partitions are scanned on their raw bytes, and compressed partitions on their decompressed blocks,
+     * with rows failing a byte filter dropped without being decoded.  Byte filters are only a pre-filter, so callers still need to apply their full filter.
+     * @param partition path to the partition file
+     * @param columns which of the six fields are needed, indexed in datastore field order
+     * @param byteFilters equality conditions checked on raw bytes for text and compressed partitions
+     * @param rowConsumer receives each pipe delimited line
+     */
+    public void scan(Path partition, boolean[] columns, List<TextScanner.ByteFilter> byteFilters,
+                     Consumer<String> rowConsumer) throws IOException {
+        if(columnarFormat.isColumnar(partition)){
+            long[] rowCount = {0};
+            columnarFormat.read(partition, columns, rowEntry -> {
+                rowCount[0]++;
+                rowConsumer.accept(rowEntry);
+            });
+            Metrics.add(Metrics.Counter.ROWS_SCANNED, rowCount[0]);
+            return;
+        }
+        if(compressedFormat.isCompressed(partition)){
+            compressedFormat.scan(partition, columns, byteFilters, rowConsumer);
+            return;
+        }
+        // Scanners reuse their field buffers, so each scan gets its own
+        new TextScanner().scan(partition, columns, byteFilters, rowConsumer);
+    }
+
+    /**
+     * Passes the lines at the given positions in a partition to a consumer, as found in a SecondaryIndex.
+     * Positions are byte offsets for text partitions and row numbers for columnar and compressed partitions.
+     * @param partition path to the partition file
+     * @param positions ascending row positions to read
+     * @param columns which of the six fields are needed, indexed in datastore field order
+     * @param rowConsumer receives each pipe delimited line
+     */
+    public void readAt(Path partition, long[] positions, boolean[] columns, Consumer<String> rowConsumer) throws IOException {
+        Metrics.add(Metrics.Counter.ROWS_SCANNED, positions.length);
+        if(columnarFormat.isColumnar(partition)){
+            columnarFormat.read(partition, columns, positions, rowConsumer);
+            return;
+        }
+        if(compressedFormat.isCompressed(partition)){
+            compressedFormat.read(partition, positions, rowConsumer);
+            return;
+        }
+        try(FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ)){
+            ByteBuffer buffer = ByteBuffer.allocate(512);
+            for(long position : positions){
+                buffer.clear();
+                int lineLength = -1;
+                // Read a chunk at the row offset, growing it until we find the end of the line
+                while(lineLength < 0){
+                    int read = channel.read(buffer, position + buffer.position());
+                    lineLength = indexOfNewline(buffer.array(), buffer.position(), read);
+                    if(read < 0){
+                        lineLength = buffer.position();
+                    } else if(lineLength < 0 && !buffer.hasRemaining()){
+                        buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.array());
+                    }
+                }
+                Metrics.add(Metrics.Counter.BYTES_READ, lineLength + 1);
+                rowConsumer.accept(new String(buffer.array(), 0, lineLength, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * @param partition path to a file in the datastore directory
+     * @return true if the path is a date partition rather than an index, temp directory or other side file
+     */
+    public boolean isPartition(Path partition){
+        return Files.isRegularFile(partition) && partition.getFileName().toString().indexOf('.') < 0;
+    }
+
+    /**
+     * @param partition path to the partition file
+     * @return the name of the format the partition is stored in
+     */
+    public String format(Path partition) throws IOException {
+        if(columnarFormat.isColumnar(partition)){
+            return Constants.columnarFormat;
+        }
+        return compressedFormat.isCompressed(partition) ? Constants.compressedFormat : Constants.textFormat;
+    }
+
+    /**
+     * Measures a partition against the text it holds, for reporting how well its format compresses it
+     * @param partition path to the partition file
+     * @return the partition's row count and the size in bytes of its rows as text lines
+     */
+    public long[] measure(Path partition) throws IOException {
+        if(compressedFormat.isCompressed(partition)){
+            return compressedFormat.measure(partition);
+        }
+        long[] rowsAndBytes = new long[2];
+        try(Stream<String> rowStream = lines(partition)){
+            rowStream.forEach(rowEntry -> {
+                rowsAndBytes[0]++;
+                rowsAndBytes[1] += rowEntry.getBytes(StandardCharsets.UTF_8).length + 1;
+            });
+        }
+        return rowsAndBytes;
+    }
+
+    /**
+     * Finds the first newline within the bytes just read into a buffer
+     * @return index of the newline, ignoring any carriage return before it, or -1 if not found
+     */
+    private int indexOfNewline(byte[] bytes, int end, int read){
+        int start = read > 0 ? end - read : end;
+        for(int i = start; i < end; i++){
+            if(bytes[i] == '\n'){
+                return i > 0 && bytes[i - 1] == '\r' ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a column selection covering all six fields
+     */
+    public static boolean[] allColumns(){
+        return Arrays.copyOf(allColumns, allColumns.length);
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.stream.Stream;
+
+/**
+ * Encodes partitions into one of our on disk formats.  Partitions are always built as text first, and then
+ * re-encoded if they are to be stored in another format.
+ */
+public class PartitionWriter {
+
+    private PartitionReader partitionReader;
+    private ColumnarFormat columnarFormat;
+    private CompressedFormat compressedFormat;
+
+    public PartitionWriter(){
+        this.partitionReader = new PartitionReader();
+        this.columnarFormat = new ColumnarFormat();
+        this.compressedFormat = new CompressedFormat();
+    }
+
+    /**
+     * Re-encodes a text file of datastore lines into the given format, replacing the file
+     * @param textFile file of pipe delimited lines
+     * @param format format name to encode to
+     */
+    public void encode(Path textFile, String format) throws IOException {
+        if(format.equals(Constants.textFormat)){
+            return;
+        }
+        if(!format.equals(Constants.columnarFormat) && !format.equals(Constants.compressedFormat)){
+            throw new IllegalArgumentException("Unknown partition format " + format);
+        }
+        Path encodedFile = textFile.resolveSibling(textFile.getFileName() + ".encoded");
+        try(Stream<String> lineStream = Files.lines(textFile, StandardCharsets.UTF_8)){
+            if(format.equals(Constants.columnarFormat)){
+                columnarFormat.write(encodedFile, lineStream::iterator);
+            }
+            else {
+                compressedFormat.write(encodedFile, lineStream::iterator);
+            }
+        }
+        Files.move(encodedFile, textFile, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Rewrites an existing partition in the given format.  The new file replaces the partition with an atomic
+     * rename, and partitions already in that format are left alone.
+     * @param partition path to the partition file
+     * @param format format name to convert to
+     */
+    public void convert(Path partition, String format) throws IOException {
+        if(partitionReader.format(partition).equals(format)){
+            return;
+        }
+        Path tempDirectory = Files.createTempDirectory(partition.getParent(), Constants.convertTempPrefix);
+        Path convertedFile = tempDirectory.resolve(partition.getFileName());
+        try {
+            try(Stream<String> lineStream = partitionReader.lines(partition);
+                BufferedWriter writer = Files.newBufferedWriter(convertedFile, StandardCharsets.UTF_8)){
+                for(String rowEntry : (Iterable<String>) lineStream::iterator){
+                    writer.write(rowEntry);
+                    writer.newLine();
+                }
+            }
+            encode(convertedFile, format);
+            Metrics.add(Metrics.Counter.BYTES_WRITTEN, Files.size(convertedFile));
+            Files.move(convertedFile, partition, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(convertedFile);
+            Files.deleteIfExists(tempDirectory);
+        }
+    }
+}
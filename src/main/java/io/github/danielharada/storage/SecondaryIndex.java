@@ -0,0 +1,285 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Inverted indexes on the STB, TITLE and PROVIDER fields of a partition, stored next to it as {date}.idx.
+ * Each indexed value maps to the positions of its rows, which are byte offsets for text partitions and row
+ * numbers for columnar and compressed partitions.  Values are indexed in lower case, as our filters ignore case.
+ *
+ * The index is laid out as an on disk hash table so a lookup reads one bucket table slot and one bucket:
+ * <pre>
+ *   header:  magic (4 bytes), version (int), row number flag (byte), partition size (long),
+ *            partition modified time (long), then per field its bucket count (int) and bucket table offset (long)
+ *   bucket table:  per bucket its offset (long) and length (int)
+ *   bucket:  entries of value (modified UTF-8), position count (int), then positions (long)
+ * </pre>
+ * The partition size and modified time are checked on lookup, and an index that no longer matches its
+ * partition is ignored.
+ */
+public class SecondaryIndex {
+
+    private final static byte[] magic = {0, 'D', 'S', 'I'};
+    private final static int version = 1;
+    private final static int indexedFields = 3;  // STB, TITLE and PROVIDER, the first three datastore fields
+    private final static int headerLength = magic.length + 4 + 1 + 8 + 8 + indexedFields * 12;
+    private final static int entriesPerBucket = 8;
+
+    private ColumnarFormat columnarFormat;
+    private CompressedFormat compressedFormat;
+
+    public SecondaryIndex(){
+        this.columnarFormat = new ColumnarFormat();
+        this.compressedFormat = new CompressedFormat();
+    }
+
+    /**
+     * @param partition path to a partition file
+     * @return path to that partition's index file
+     */
+    public Path indexPath(Path partition){
+        return partition.resolveSibling(partition.getFileName() + Constants.indexSuffix);
+    }
+
+    /**
+     * @param field lower case field name
+     * @return true if we keep an index for that field
+     */
+    public boolean isIndexed(String field){
+        int column = Arrays.asList(Constants.fieldNames).indexOf(field);
+        return column >= 0 && column < indexedFields;
+    }
+
+    /**
+     * Builds or rebuilds the index for a partition.  The index is written to a temp file and renamed into place.
+     * @param partition path to the partition file
+     */
+    public void build(Path partition) throws IOException {
+        boolean columnar = columnarFormat.isColumnar(partition);
+        boolean compressed = !columnar && compressedFormat.isCompressed(partition);
+        List<Map<String, List<Long>>> postings = new ArrayList<>();
+        for(int i = 0; i < indexedFields; i++){
+            postings.add(new HashMap<>());
+        }
+
+        if(columnar){
+            boolean[] columns = {true, true, true, false, false, false};
+            long[] rowNumber = {0};
+            columnarFormat.read(partition, columns, rowEntry -> {
+                addPostings(postings, rowEntry, rowNumber[0]);
+                rowNumber[0]++;
+            });
+        }
+        else if(compressed){
+            long[] rowNumber = {0};
+            try(Stream<String> rowStream = compressedFormat.lines(partition)){
+                rowStream.forEach(rowEntry -> {
+                    addPostings(postings, rowEntry, rowNumber[0]);
+                    rowNumber[0]++;
+                });
+            }
+        }
+        else {
+            // Track the byte offset of each line as we go, so the query engine can seek straight to it
+            try(InputStream inputStream = new BufferedInputStream(Files.newInputStream(partition), 1 << 16)){
+                ByteBuffer lineBuffer = ByteBuffer.allocate(1024);
+                long offset = 0;
+                long lineStart = 0;
+                int b;
+                while((b = inputStream.read()) >= 0){
+                    offset++;
+                    if(b == '\n'){
+                        addPostings(postings, new String(lineBuffer.array(), 0, lineBuffer.position(), StandardCharsets.UTF_8), lineStart);
+                        lineBuffer.clear();
+                        lineStart = offset;
+                    }
+                    else if(b != '\r'){
+                        if(!lineBuffer.hasRemaining()){
+                            lineBuffer = ByteBuffer.allocate(lineBuffer.capacity() * 2).put(lineBuffer.array(), 0, lineBuffer.position());
+                        }
+                        lineBuffer.put((byte) b);
+                    }
+                }
+                if(lineBuffer.position() > 0){
+                    addPostings(postings, new String(lineBuffer.array(), 0, lineBuffer.position(), StandardCharsets.UTF_8), lineStart);
+                }
+            }
+        }
+        write(partition, columnar || compressed, postings);
+    }
+
+    /**
+     * Looks up the positions of rows in a partition whose field matches a value, ignoring case
+     * @param partition path to the partition file
+     * @param field lower case name of an indexed field
+     * @param value value to look up
+     * @return ascending row positions, or null if the partition has no usable index
+     */
+    public long[] lookup(Path partition, String field, String value) throws IOException {
+        Path indexFile = indexPath(partition);
+        if(!Files.exists(indexFile)){
+            return null;
+        }
+        String indexValue = value.toLowerCase(Locale.ROOT);
+        try(FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)){
+            ByteBuffer header = readFully(channel, 0, headerLength);
+            byte[] fileMagic = new byte[magic.length];
+            header.get(fileMagic);
+            if(!Arrays.equals(fileMagic, magic) || header.getInt() != version){
+                return null;
+            }
+            header.get();  // row number flag, which the reader already knows from the partition itself
+            if(header.getLong() != Files.size(partition) || header.getLong() != Files.getLastModifiedTime(partition).toMillis()){
+                return null;
+            }
+            int column = Arrays.asList(Constants.fieldNames).indexOf(field);
+            header.position(header.position() + column * 12);
+            int bucketCount = header.getInt();
+            long bucketTableOffset = header.getLong();
+
+            ByteBuffer slot = readFully(channel, bucketTableOffset + (long) bucketFor(indexValue, bucketCount) * 12, 12);
+            long bucketOffset = slot.getLong();
+            int bucketLength = slot.getInt();
+            // Values are modified UTF-8 from writeUTF, which standard UTF-8 decoding gets wrong for characters such as emoji
+            byte[] bucketBytes = readFully(channel, bucketOffset, bucketLength).array();
+            DataInputStream bucket = new DataInputStream(new ByteArrayInputStream(bucketBytes));
+            while(bucket.available() > 0){
+                String bucketValue = bucket.readUTF();
+                int count = bucket.readInt();
+                if(bucketValue.equals(indexValue)){
+                    long[] positions = new long[count];
+                    for(int i = 0; i < count; i++){
+                        positions[i] = bucket.readLong();
+                    }
+                    return positions;
+                }
+                bucket.skipBytes(count * 8);
+            }
+            return new long[0];
+        }
+    }
+
+    /**
+     * Removes a partition's index, if it has one
+     */
+    public void delete(Path partition) throws IOException {
+        Files.deleteIfExists(indexPath(partition));
+    }
+
+    private void addPostings(List<Map<String, List<Long>>> postings, String rowEntry, long position){
+        int start = 0;
+        for(int i = 0; i < indexedFields; i++){
+            int end = rowEntry.indexOf(Constants.inputDelimiter, start);
+            if(end < 0){
+                return;
+            }
+            postings.get(i).computeIfAbsent(rowEntry.substring(start, end).toLowerCase(Locale.ROOT), value -> new ArrayList<>()).add(position);
+            start = end + 1;
+        }
+    }
+
+    private void write(Path partition, boolean rowNumbers, List<Map<String, List<Long>>> postings) throws IOException {
+        Path indexFile = indexPath(partition);
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        int[] bucketCounts = new int[indexedFields];
+        long[] tableOffsets = new long[indexedFields];
+
+        try(FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            long position = headerLength;
+            for(int i = 0; i < indexedFields; i++){
+                Map<String, List<Long>> fieldPostings = postings.get(i);
+                int bucketCount = Math.max(1, fieldPostings.size() / entriesPerBucket);
+                List<List<String>> buckets = new ArrayList<>();
+                for(int bucket = 0; bucket < bucketCount; bucket++){
+                    buckets.add(new ArrayList<>());
+                }
+                fieldPostings.keySet().forEach(value -> buckets.get(bucketFor(value, bucketCount)).add(value));
+
+                // Write each bucket's entries, remembering where each one starts for the bucket table
+                ByteBuffer table = ByteBuffer.allocate(bucketCount * 12);
+                channel.position(position);
+                DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+                for(List<String> bucket : buckets){
+                    int bucketStart = dataStream.size();
+                    for(String value : bucket){
+                        List<Long> positions = fieldPostings.get(value);
+                        dataStream.writeUTF(value);
+                        dataStream.writeInt(positions.size());
+                        for(long rowPosition : positions){
+                            dataStream.writeLong(rowPosition);
+                        }
+                    }
+                    table.putLong(position + bucketStart);
+                    table.putInt(dataStream.size() - bucketStart);
+                }
+                dataStream.flush();
+                position += dataStream.size();
+
+                table.flip();
+                writeFully(channel, table, position);
+                bucketCounts[i] = bucketCount;
+                tableOffsets[i] = position;
+                position += bucketCount * 12L;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.put(magic);
+            header.putInt(version);
+            header.put((byte) (rowNumbers ? 1 : 0));
+            header.putLong(Files.size(partition));
+            header.putLong(Files.getLastModifiedTime(partition).toMillis());
+            for(int i = 0; i < indexedFields; i++){
+                header.putInt(bucketCounts[i]);
+                header.putLong(tableOffsets[i]);
+            }
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int bucketFor(String value, int bucketCount){
+        return Math.floorMod(value.hashCode(), bucketCount);
+    }
+
+    private ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, offset + buffer.position()) < 0){
+                throw new IOException("Unexpected end of index file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while(buffer.hasRemaining()){
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Sparse index on the (STB, TITLE, DATE) keys of a partition or delta segment whose rows are sorted on their key,
+ * stored next to it as {name}.keys.  The index holds the key and position of every sparseIndexStride-th row, which
+ * splits the file into blocks of that many rows.  A lookup binary searches the index for the one block that could
+ * hold a key and reads only that block, so it costs O(log n) small reads however large the file is.  Positions are
+ * byte offsets for text files and row numbers for columnar and compressed partitions.
+ *
+ * Entries have a fixed size and point at their keys, so the binary search runs straight off the file:
+ * <pre>
+ *   header:  magic (4 bytes), version (int), row number flag (byte), file size (long), file modified time (long),
+ *            stride (int), entry count (int), row count (long)
+ *   entries: per block its first row position (long) and the offset of its first key (long)
+ *   keys:    per block its first key (modified UTF-8)
+ * </pre>
+ * The file size and modified time are checked on lookup, and an index that no longer matches its file is ignored.
+ * An index is only ever written for a file found to be sorted.  Keys compare as Strings, which is the order
+ * partitions and delta segments are written in.
+ */
+public class SparseIndex {
+
+    private final static byte[] magic = {0, 'D', 'S', 'K'};
+    private final static int version = 1;
+    private final static int headerLength = magic.length + 4 + 1 + 8 + 8 + 4 + 4 + 8;
+    private final static int entryLength = 16;
+
+    private ColumnarFormat columnarFormat;
+    private CompressedFormat compressedFormat;
+    private PartitionReader partitionReader;
+
+    public SparseIndex(){
+        this.columnarFormat = new ColumnarFormat();
+        this.compressedFormat = new CompressedFormat();
+        this.partitionReader = new PartitionReader();
+    }
+
+    /**
+     * @param file path to a partition or segment file
+     * @return path to that file's sparse index
+     */
+    public Path indexPath(Path file){
+        return file.resolveSibling(file.getFileName() + Constants.sparseIndexSuffix);
+    }
+
+    /**
+     * Builds or rebuilds the sparse index for a file, if its rows are sorted on their key.  The index is written
+     * to a temp file and renamed into place.
+     * @param file path to the partition or segment file
+     * @param keyOf gives the key of a row
+     * @return true if the file is sorted and was indexed, or false if it is not sorted, in which case any old
+     * index is removed
+     */
+    public boolean build(Path file, Function<String, String> keyOf) throws IOException {
+        boolean columnar = columnarFormat.isColumnar(file);
+        boolean compressed = !columnar && compressedFormat.isCompressed(file);
+        List<Long> positions = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        long[] rowCount = {0};
+        String[] lastKey = {null};
+        boolean[] sorted = {true};
+        RowVisitor visitor = (rowEntry, position) -> {
+            String key = keyOf.apply(rowEntry);
+            if(lastKey[0] != null && key.compareTo(lastKey[0]) < 0){
+                sorted[0] = false;
+            }
+            if(rowCount[0] % Constants.sparseIndexStride == 0){
+                positions.add(position);
+                keys.add(key);
+            }
+            lastKey[0] = key;
+            rowCount[0]++;
+        };
+
+        if(columnar){
+            boolean[] columns = {true, true, false, true, false, false};
+            columnarFormat.read(file, columns, rowEntry -> visitor.visit(rowEntry, rowCount[0]));
+        }
+        else if(compressed){
+            try(Stream<String> rowStream = compressedFormat.lines(file)){
+                rowStream.forEach(rowEntry -> visitor.visit(rowEntry, rowCount[0]));
+            }
+        }
+        else {
+            // Track the byte offset of each line as we go, so a lookup can read straight from a block's start
+            try(InputStream inputStream = new BufferedInputStream(Files.newInputStream(file), 1 << 16)){
+                ByteBuffer lineBuffer = ByteBuffer.allocate(1024);
+                long offset = 0;
+                long lineStart = 0;
+                int b;
+                while((b = inputStream.read()) >= 0 && sorted[0]){
+                    offset++;
+                    if(b == '\n'){
+                        visitor.visit(new String(lineBuffer.array(), 0, lineBuffer.position(), StandardCharsets.UTF_8), lineStart);
+                        lineBuffer.clear();
+                        lineStart = offset;
+                    }
+                    else if(b != '\r'){
+                        if(!lineBuffer.hasRemaining()){
+                            lineBuffer = ByteBuffer.allocate(lineBuffer.capacity() * 2).put(lineBuffer.array(), 0, lineBuffer.position());
+                        }
+                        lineBuffer.put((byte) b);
+                    }
+                }
+                if(lineBuffer.position() > 0 && sorted[0]){
+                    visitor.visit(new String(lineBuffer.array(), 0, lineBuffer.position(), StandardCharsets.UTF_8), lineStart);
+                }
+            }
+        }
+        if(!sorted[0]){
+            delete(file);
+            return false;
+        }
+        write(file, columnar || compressed, positions, keys, rowCount[0]);
+        return true;
+    }
+
+    /**
+     * Reads the one block of a sorted file which would hold a key, if the file holds it at all
+     * @param file path to the partition or segment file
+     * @param key (STB, TITLE, DATE) key to look for, which compares exactly rather than ignoring case
+     * @return every line in the block, which is empty if the key sorts before the file's first row, or null if the
+     * file has no usable index
+     */
+    public List<String> readBlock(Path file, String key) throws IOException {
+        Path indexFile = indexPath(file);
+        if(!Files.exists(indexFile)){
+            return null;
+        }
+        long start;
+        long end;
+        boolean rowNumbers;
+        try(FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)){
+            ByteBuffer header = readHeader(channel, file);
+            if(header == null){
+                return null;
+            }
+            rowNumbers = header.get(magic.length + 4) == 1;
+            int stride = header.getInt();
+            int entryCount = header.getInt();
+            long rowCount = header.getLong();
+
+            // Find the last block whose first key is no greater than ours
+            int low = 0;
+            int high = entryCount - 1;
+            int block = -1;
+            while(low <= high){
+                int middle = (low + high) >>> 1;
+                if(readKey(channel, middle).compareTo(key) <= 0){
+                    block = middle;
+                    low = middle + 1;
+                }
+                else {
+                    high = middle - 1;
+                }
+            }
+            if(block < 0){
+                return new ArrayList<>();
+            }
+            start = readFully(channel, headerLength + (long) block * entryLength, 8).getLong();
+            if(rowNumbers){
+                end = Math.min(start + stride, rowCount);
+            }
+            else {
+                end = block + 1 < entryCount ? readFully(channel, headerLength + (long) (block + 1) * entryLength, 8).getLong()
+                        : Files.size(file);
+            }
+        }
+
+        List<String> rows = new ArrayList<>();
+        if(rowNumbers){
+            long[] blockRows = new long[(int) (end - start)];
+            for(int i = 0; i < blockRows.length; i++){
+                blockRows[i] = start + i;
+            }
+            partitionReader.readAt(file, blockRows, PartitionReader.allColumns(), rows::add);
+            return rows;
+        }
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            ByteBuffer block = readFully(channel, start, (int) (end - start));
+            for(String line : new String(block.array(), StandardCharsets.UTF_8).split("\n")){
+                rows.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Removes a file's sparse index, if it has one
+     */
+    public void delete(Path file) throws IOException {
+        Files.deleteIfExists(indexPath(file));
+    }
+
+    /**
+     * Reads and checks an index's header
+     * @return the header positioned at the stride, or null if the index is in another format or no longer
+     * matches its file
+     */
+    private ByteBuffer readHeader(FileChannel channel, Path file) throws IOException {
+        if(channel.size() < headerLength){
+            return null;
+        }
+        ByteBuffer header = readFully(channel, 0, headerLength);
+        byte[] fileMagic = new byte[magic.length];
+        header.get(fileMagic);
+        if(!Arrays.equals(fileMagic, magic) || header.getInt() != version){
+            return null;
+        }
+        header.get();  // row number flag
+        if(header.getLong() != Files.size(file) || header.getLong() != Files.getLastModifiedTime(file).toMillis()){
+            return null;
+        }
+        return header;
+    }
+
+    private String readKey(FileChannel channel, int entry) throws IOException {
+        ByteBuffer entryBuffer = readFully(channel, headerLength + (long) entry * entryLength, entryLength);
+        entryBuffer.getLong();
+        long keyOffset = entryBuffer.getLong();
+        int keyLength = readFully(channel, keyOffset, 2).getShort() & 0xFFFF;
+        // Keys are modified UTF-8 from writeUTF, which standard UTF-8 decoding gets wrong for characters such as emoji
+        byte[] keyBytes = readFully(channel, keyOffset, 2 + keyLength).array();
+        return new DataInputStream(new ByteArrayInputStream(keyBytes)).readUTF();
+    }
+
+    private void write(Path file, boolean rowNumbers, List<Long> positions, List<String> keys, long rowCount) throws IOException {
+        Path indexFile = indexPath(file);
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try(FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)){
+            long keysStart = headerLength + (long) keys.size() * entryLength;
+            ByteBuffer entries = ByteBuffer.allocate(keys.size() * entryLength);
+            channel.position(keysStart);
+            DataOutputStream dataStream = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            for(int i = 0; i < keys.size(); i++){
+                entries.putLong(positions.get(i));
+                entries.putLong(keysStart + dataStream.size());
+                dataStream.writeUTF(keys.get(i));
+            }
+            dataStream.flush();
+            entries.flip();
+            writeFully(channel, entries, headerLength);
+
+            ByteBuffer header = ByteBuffer.allocate(headerLength);
+            header.put(magic);
+            header.putInt(version);
+            header.put((byte) (rowNumbers ? 1 : 0));
+            header.putLong(Files.size(file));
+            header.putLong(Files.getLastModifiedTime(file).toMillis());
+            header.putInt(Constants.sparseIndexStride);
+            header.putInt(keys.size());
+            header.putLong(rowCount);
+            header.flip();
+            writeFully(channel, header, 0);
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, offset + buffer.position()) < 0){
+                throw new IOException("Unexpected end of sparse index");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while(buffer.hasRemaining()){
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    private interface RowVisitor {
+        void visit(String rowEntry, long position);
+    }
+}
@@ -0,0 +1,229 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/**
+ * Scans text partitions by splitting fields directly on their raw bytes, rather than decoding every line to a
+ * String and splitting it with a regex.  Equality filters are checked against the raw field bytes, and Strings
+ * are only created for rows that pass them, containing only the requested columns.  Columns which were not
+ * requested are left empty, the same as a columnar partition read.
+ *
+ * Files are read a block at a time into a heap buffer, with any partial line at the end of a block carried over
+ * to the start of the next.  Files are not memory mapped, as a mapping is only released once it is garbage
+ * collected, which would keep replaced partitions on disk for as long as a server runs.
+ */
+public class TextScanner {
+
+    private int[] fieldStarts;
+    private int[] fieldEnds;
+    private byte[] lineBytes;
+
+    public TextScanner(){
+        this.fieldStarts = new int[Constants.fieldCount];
+        this.fieldEnds = new int[Constants.fieldCount];
+        this.lineBytes = new byte[1024];
+    }
+
+    /**
+     * Passes each line of a text partition that matches every byte filter to a consumer
+     * @param partition path to the text partition
+     * @param columns which of the six fields to include in each line, indexed in datastore field order
+     * @param byteFilters equality conditions every passed row must meet, checked before any String is created
+     * @param rowConsumer receives each matching row as a pipe delimited line
+     */
+    public void scan(Path partition, boolean[] columns, List<ByteFilter> byteFilters, Consumer<String> rowConsumer) throws IOException {
+        try(FileChannel channel = FileChannel.open(partition, StandardOpenOption.READ)){
+            long size = channel.size();
+            Metrics.add(Metrics.Counter.BYTES_READ, size);
+            ByteBuffer block = ByteBuffer.allocate((int) Math.min(size, Constants.scanBlockSize));
+            long position = 0;
+            boolean lastBlock = false;
+            while(!lastBlock){
+                // Fill the block after whatever was carried over from the last one
+                int read = 0;
+                while(block.hasRemaining() && read >= 0){
+                    read = channel.read(block, position);
+                    position += Math.max(read, 0);
+                }
+                lastBlock = read < 0 || position >= size;
+                block.flip();
+                int lineStart = scanRegion(block, block.limit(), lastBlock, columns, byteFilters, rowConsumer);
+                if(lineStart == 0 && !lastBlock){
+                    // Not even one line fits, so grow the block until it does
+                    block = ByteBuffer.allocate(block.capacity() * 2).put(block);
+                    continue;
+                }
+                block.position(Math.min(lineStart, block.limit()));
+                block.compact();
+            }
+        }
+    }
+
+    /**
+     * Passes each line held in a buffer that matches every byte filter to a consumer, as for a text partition
+     * @param buffer lines in text partition format, from position 0 up to its limit
+     * @param columns which of the six fields to include in each line, indexed in datastore field order
+     * @param byteFilters equality conditions every passed row must meet, checked before any String is created
+     * @param rowConsumer receives each matching row as a pipe delimited line
+     */
+    public void scan(ByteBuffer buffer, boolean[] columns, List<ByteFilter> byteFilters, Consumer<String> rowConsumer){
+        scanRegion(buffer, buffer.limit(), true, columns, byteFilters, rowConsumer);
+    }
+
+    /**
+     * Scans the whole lines in a region
+     * @return offset just past the last line scanned, where the next region should start
+     */
+    private int scanRegion(ByteBuffer buffer, int regionLength, boolean lastRegion, boolean[] columns,
+                           List<ByteFilter> byteFilters, Consumer<String> rowConsumer){
+        int lineStart = 0;
+        long lineCount = 0;
+        while(lineStart < regionLength){
+            int lineEnd = indexOf(buffer, (byte) '\n', lineStart, regionLength);
+            if(lineEnd < 0){
+                // A partial line at the end of a region is picked up again by the next region
+                if(!lastRegion){
+                    break;
+                }
+                lineEnd = regionLength;
+            }
+            int contentEnd = lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            scanLine(buffer, lineStart, contentEnd, columns, byteFilters, rowConsumer);
+            lineStart = lineEnd + 1;
+            lineCount++;
+        }
+        Metrics.add(Metrics.Counter.ROWS_SCANNED, lineCount);
+        return lineStart;
+    }
+
+    private void scanLine(ByteBuffer buffer, int lineStart, int lineEnd, boolean[] columns, List<ByteFilter> byteFilters,
+                          Consumer<String> rowConsumer){
+        if(lineStart >= lineEnd){
+            return;
+        }
+        // Find the start and end of each field without copying anything
+        int field = 0;
+        fieldStarts[0] = lineStart;
+        for(int i = lineStart; i < lineEnd && field < Constants.fieldCount; i++){
+            if(buffer.get(i) == '|'){
+                fieldEnds[field++] = i;
+                if(field < Constants.fieldCount){
+                    fieldStarts[field] = i + 1;
+                }
+            }
+        }
+        if(field < Constants.fieldCount - 1){
+            return;  // Malformed line
+        }
+        if(field == Constants.fieldCount - 1){
+            fieldEnds[field] = lineEnd;
+        }
+
+        for(ByteFilter byteFilter : byteFilters){
+            if(!byteFilter.matches(buffer, fieldStarts[byteFilter.column], fieldEnds[byteFilter.column])){
+                return;
+            }
+        }
+
+        // Copy only the columns we need into a single byte array, and decode that into one String
+        int length = 0;
+        for(int column = 0; column < Constants.fieldCount; column++){
+            if(column > 0){
+                length = append(length, (byte) '|');
+            }
+            if(columns[column]){
+                for(int i = fieldStarts[column]; i < fieldEnds[column]; i++){
+                    length = append(length, buffer.get(i));
+                }
+            }
+        }
+        rowConsumer.accept(new String(lineBytes, 0, length, StandardCharsets.UTF_8));
+    }
+
+    private int append(int length, byte b){
+        if(length == lineBytes.length){
+            lineBytes = Arrays.copyOf(lineBytes, length * 2);
+        }
+        lineBytes[length] = b;
+        return length + 1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, byte target, int from, int to){
+        for(int i = from; i < to; i++){
+            if(buffer.get(i) == target){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * An equality condition on one field, checked against raw UTF-8 bytes.  Case insensitive filters fold ASCII
+     * letters only, so any field containing non-ASCII bytes is let through to be checked by the full filter.
+     */
+    public static class ByteFilter {
+        private int column;
+        private byte[] value;
+        private boolean ignoreCase;
+
+        /**
+         * @param column index of the field to check, in datastore field order
+         * @param value value the field must equal
+         * @param ignoreCase true to compare ASCII letters without regard to case
+         */
+        public ByteFilter(int column, String value, boolean ignoreCase){
+            this.column = column;
+            this.value = (ignoreCase ? value.toLowerCase(Locale.ROOT) : value).getBytes(StandardCharsets.UTF_8);
+            this.ignoreCase = ignoreCase;
+        }
+
+        /**
+         * @return true if the filter value is plain ASCII, so it can be compared byte by byte
+         */
+        public boolean isAscii(){
+            for(byte b : value){
+                if(b < 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean matches(ByteBuffer buffer, int start, int end){
+            if(end - start != value.length){
+                return ignoreCase && hasNonAscii(buffer, start, end);
+            }
+            for(int i = 0; i < value.length; i++){
+                byte b = buffer.get(start + i);
+                if(ignoreCase && b >= 'A' && b <= 'Z'){
+                    b += 'a' - 'A';
+                }
+                if(b != value[i]){
+                    return ignoreCase && hasNonAscii(buffer, start, end);
+                }
+            }
+            return true;
+        }
+
+        private boolean hasNonAscii(ByteBuffer buffer, int start, int end){
+            for(int i = start; i < end; i++){
+                if(buffer.get(i) < 0){
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
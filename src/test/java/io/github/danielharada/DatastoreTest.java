@@ -0,0 +1,102 @@
+package io.github.danielharada;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Base for tests that work on a datastore.  Each test starts with an empty datastore directory, which is removed
+ * again once it finishes.  Tests run in a scratch working directory, as the datastore path is relative to it.
+ */
+public abstract class DatastoreTest {
+
+    protected final static String date = "2014-04-01";  // Date of the rows built by row
+    protected final static String importHeader = "STB|TITLE|PROVIDER|DATE|REV|VIEW_TIME";
+    protected final static String emoji = "\uD83D\uDE00";  // Outside the Basic Multilingual Plane, where modified UTF-8 differs
+
+    protected Path datastoreDirectory = Paths.get(Constants.dataStoreDirectory);
+
+    @BeforeEach
+    void createDatastore() throws IOException {
+        deleteTree(datastoreDirectory);
+        Files.createDirectories(datastoreDirectory);
+    }
+
+    @AfterEach
+    void deleteDatastore() throws IOException {
+        deleteTree(datastoreDirectory);
+    }
+
+    /**
+     * @return a valid datastore line for an STB's view of one title on our date, told apart by its revenue
+     */
+    protected static String row(String stb, String rev){
+        return row(stb, "alien", rev);
+    }
+
+    /**
+     * @return a valid datastore line for an STB's view of a title on our date
+     */
+    protected static String row(String stb, String title, String rev){
+        return String.join(Constants.inputDelimiter, stb, title, "warner bros", date, rev, "1:45");
+    }
+
+    /**
+     * Imports rows as the command line would, from a file with the usual header row
+     * @param extraArgs further arguments for the import, such as --wal
+     * @return every line the import printed
+     */
+    protected List<String> importRows(List<String> rows, String... extraArgs) throws IOException {
+        Path importFile = Files.createTempFile(datastoreDirectory.toAbsolutePath().getParent(), "import", ".txt");
+        try {
+            List<String> lines = new ArrayList<>();
+            lines.add(importHeader);
+            lines.addAll(rows);
+            Files.write(importFile, lines, StandardCharsets.UTF_8);
+            List<String> args = new ArrayList<>(Arrays.asList("-i", importFile.toString()));
+            args.addAll(Arrays.asList(extraArgs));
+            return run(args.toArray(new String[0]));
+        } finally {
+            Files.deleteIfExists(importFile);
+        }
+    }
+
+    /**
+     * Runs a command against the datastore as the command line would
+     * @return every line the command printed
+     */
+    protected static List<String> run(String... args){
+        ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
+        try(PrintStream output = new PrintStream(outputBytes, true, StandardCharsets.UTF_8.name())){
+            new App(args, output, null, null).processArgs();
+        } catch(UnsupportedEncodingException e){
+            throw new IllegalStateException(e);
+        }
+        String printed = new String(outputBytes.toByteArray(), StandardCharsets.UTF_8);
+        return printed.isEmpty() ? new ArrayList<>() : Arrays.asList(printed.split("\n"));
+    }
+
+    protected static void deleteTree(Path directory) throws IOException {
+        if(!Files.exists(directory)){
+            return;
+        }
+        try(Stream<Path> pathStream = Files.walk(directory)){
+            for(Path path : (Iterable<Path>) pathStream.sorted(Comparator.reverseOrder())::iterator){
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
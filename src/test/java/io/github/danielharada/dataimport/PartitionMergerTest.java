@@ -0,0 +1,123 @@
+package io.github.danielharada.dataimport;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+import io.github.danielharada.storage.PartitionReader;
+import io.github.danielharada.storage.PartitionWriter;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that merging imported rows into a partition keeps the newest row for each key, in key order, whether
+ * the merge runs in memory or spills to buckets, and whatever the state and format of the existing partition
+ */
+class PartitionMergerTest extends DatastoreTest {
+
+    private final static int rowCount = 2000;
+
+    private Path partition = datastoreDirectory.resolve(date);
+    private FileParser fileParser = new FileParser();
+    private PartitionReader partitionReader = new PartitionReader();
+
+    @Test
+    void mergesIntoNewPartition() throws IOException {
+        assertMerges(Collections.emptyList(), randomRows(1, "1.00"), Long.MAX_VALUE);
+    }
+
+    @Test
+    void mergesIntoSortedPartition() throws IOException {
+        assertMerges(existingRows(2, false), randomRows(3, "2.00"), Long.MAX_VALUE);
+    }
+
+    @Test
+    void mergesIntoUnsortedPartition() throws IOException {
+        assertMerges(existingRows(4, true), randomRows(5, "2.00"), Long.MAX_VALUE);
+    }
+
+    @Test
+    void spillsImportsLargerThanMemory() throws IOException {
+        assertMerges(existingRows(6, true), randomRows(7, "2.00"), 1);
+    }
+
+    @Test
+    void keepsFormatOfExistingPartition() throws IOException {
+        List<String> existingRows = existingRows(8, true);
+        Files.write(partition, existingRows, StandardCharsets.UTF_8);
+        new PartitionWriter().convert(partition, Constants.columnarFormat);
+        List<String> importedRows = randomRows(9, "2.00");
+        new PartitionMerger(fileParser, Long.MAX_VALUE).merge(() -> importedRows.stream(), partition);
+
+        assertEquals(Constants.columnarFormat, partitionReader.format(partition));
+        assertEquals(expectedRows(existingRows, importedRows), partitionRows());
+    }
+
+    private void assertMerges(List<String> existingRows, List<String> importedRows, long memoryLimit) throws IOException {
+        if(!existingRows.isEmpty()){
+            Files.write(partition, existingRows, StandardCharsets.UTF_8);
+        }
+        new PartitionMerger(fileParser, memoryLimit).merge(() -> importedRows.stream(), partition);
+
+        assertEquals(expectedRows(existingRows, importedRows), partitionRows());
+        assertEquals(Constants.textFormat, partitionReader.format(partition));
+        try(Stream<Path> pathStream = Files.list(datastoreDirectory)){
+            assertTrue(pathStream.noneMatch(path -> path.getFileName().toString().startsWith(Constants.mergeTempPrefix)));
+        }
+    }
+
+    /**
+     * Rows for a partition, which holds one row per key, either in key order or shuffled
+     */
+    private List<String> existingRows(long seed, boolean shuffled){
+        List<String> rows = expectedRows(Collections.emptyList(), randomRows(seed, "1.00"));
+        if(shuffled){
+            Collections.shuffle(rows, new Random(seed));
+        }
+        return rows;
+    }
+
+    /**
+     * Rows for random keys, many of them repeated, each with its position in the list as its view time so the
+     * newest row for a key can be told apart
+     */
+    private List<String> randomRows(long seed, String rev){
+        Random random = new Random(seed);
+        List<String> rows = new ArrayList<>();
+        for(int i = 0; i < rowCount; i++){
+            rows.add(String.join(Constants.inputDelimiter, "stb" + random.nextInt(rowCount), "t" + random.nextInt(5),
+                    "warner bros", date, rev, (i / 60) + ":" + String.format("%02d", i % 60)));
+        }
+        return rows;
+    }
+
+    /**
+     * @return the last row for each key, existing rows first, in key order
+     */
+    private List<String> expectedRows(List<String> existingRows, List<String> importedRows){
+        Map<String, String> rowsByKey = new TreeMap<>();
+        existingRows.forEach(rowEntry -> rowsByKey.put(fileParser.parseKey(rowEntry), rowEntry));
+        importedRows.forEach(rowEntry -> rowsByKey.put(fileParser.parseKey(rowEntry), rowEntry));
+        return new ArrayList<>(rowsByKey.values());
+    }
+
+    private List<String> partitionRows() throws IOException {
+        try(Stream<String> rowStream = partitionReader.lines(partition)){
+            return rowStream.collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.danielharada.dataimport;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+import io.github.danielharada.query.KeyLookup;
+import io.github.danielharada.storage.DeltaSegments;
+import io.github.danielharada.storage.PartitionReader;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the newest row for a key wins as delta segments are merged together and folded into their partition
+ */
+class SegmentCompactorTest extends DatastoreTest {
+
+    private final static int baseRows = 200;
+
+    private Path partition = datastoreDirectory.resolve(date);
+    private FileParser fileParser;
+    private SegmentCompactor segmentCompactor;
+    private DeltaSegments deltaSegments;
+
+    @BeforeEach
+    void createCompactor(){
+        fileParser = new FileParser();
+        segmentCompactor = new SegmentCompactor(fileParser, Constants.defaultMemoryLimitMB * 1024 * 1024,
+                Constants.compactionTierSegments, Constants.compactionBaseRatioPercent, null);
+        deltaSegments = new DeltaSegments();
+    }
+
+    @Test
+    void lastWriteWinsAfterCompaction() throws IOException {
+        // A base partition large enough that a few small segments stay well under the ratio for folding them in
+        fileParser.mergeDate(date, () -> IntStream.range(0, baseRows).mapToObj(i -> row("stb" + i, "1.00")));
+        segmentCompactor.compactAll(datastoreDirectory, true);
+        assertTrue(deltaSegments.list(partition).isEmpty());
+        for(int i = 2; i < 2 + Constants.compactionTierSegments; i++){
+            String rev = i + ".00";
+            fileParser.mergeDate(date, () -> Stream.of(row("stb0", rev)));
+        }
+        fileParser.mergeDate(date, () -> Stream.of(row("stb1", "9.00")));
+        assertEquals(Constants.compactionTierSegments + 1, deltaSegments.list(partition).size());
+        String newestRow = row("stb0", (1 + Constants.compactionTierSegments) + ".00");
+        assertEquals(newestRow, new KeyLookup(null).get("stb0", "alien", date));
+
+        // The small segments share a size tier, so they are merged into one, leaving the partition as it was
+        segmentCompactor.compactAll(datastoreDirectory, false);
+        assertEquals(1, deltaSegments.list(partition).size());
+        try(Stream<String> rowStream = new PartitionReader().lines(partition)){
+            assertTrue(rowStream.anyMatch(rowEntry -> rowEntry.equals(row("stb0", "1.00"))));
+        }
+        assertEquals(newestRow, new KeyLookup(null).get("stb0", "alien", date));
+        assertEquals(row("stb1", "9.00"), new KeyLookup(null).get("stb1", "alien", date));
+
+        segmentCompactor.compactAll(datastoreDirectory, true);
+        assertTrue(deltaSegments.list(partition).isEmpty());
+        assertEquals(newestRow, new KeyLookup(null).get("stb0", "alien", date));
+        assertEquals(row("stb1", "9.00"), new KeyLookup(null).get("stb1", "alien", date));
+        try(Stream<String> rowStream = new PartitionReader().lines(partition)){
+            List<String> rows = rowStream.collect(Collectors.toList());
+            assertEquals(baseRows, rows.size());
+            assertTrue(rows.contains(newestRow));
+        }
+    }
+
+}
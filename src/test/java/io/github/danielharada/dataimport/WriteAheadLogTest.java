@@ -0,0 +1,138 @@
+package io.github.danielharada.dataimport;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+import io.github.danielharada.query.KeyLookup;
+import io.github.danielharada.storage.DeltaSegments;
+import io.github.danielharada.storage.Manifest;
+import io.github.danielharada.storage.PartitionReader;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that logged rows win over the datastore files they are laid on, before and after the log is applied,
+ * and that a log whose last record was cut short or corrupted is read up to its last good record
+ */
+class WriteAheadLogTest extends DatastoreTest {
+
+    private FileParser fileParser;
+    private Manifest manifest;
+    private WriteAheadLog writeAheadLog;
+
+    @BeforeEach
+    void createLog(){
+        fileParser = new FileParser();
+        manifest = new Manifest(datastoreDirectory);
+        writeAheadLog = new WriteAheadLog(datastoreDirectory, fileParser);
+    }
+
+    @Test
+    void lastWriteWinsAcrossLogSegmentsAndBase() throws IOException {
+        SegmentCompactor segmentCompactor = new SegmentCompactor(fileParser, Constants.defaultMemoryLimitMB * 1024 * 1024,
+                Constants.compactionTierSegments, Constants.compactionBaseRatioPercent, null);
+        Path partition = datastoreDirectory.resolve(date);
+        fileParser.mergeDate(date, () -> Stream.of(row("stb1", "1.00"), row("stb2", "1.00"), row("stb3", "1.00")));
+        segmentCompactor.compactAll(datastoreDirectory, true);
+        manifest.publish();
+        fileParser.mergeDate(date, () -> Stream.of(row("stb1", "2.00"), row("stb2", "2.00")));
+        manifest.publish();
+        writeAheadLog.append(Collections.singletonList(row("stb1", "3.00")));
+        assertTrue(Files.exists(partition));
+        assertEquals(1, new DeltaSegments().list(partition).size());
+
+        assertNewestRows();
+
+        assertEquals(1, writeAheadLog.apply());
+        assertTrue(writeAheadLog.pendingRows(-1).isEmpty());
+        assertEquals(2, new DeltaSegments().list(partition).size());
+        assertNewestRows();
+
+        segmentCompactor.compactAll(datastoreDirectory, true);
+        manifest.publish();
+        assertTrue(new DeltaSegments().list(partition).isEmpty());
+        assertNewestRows();
+        try(Stream<String> rowStream = new PartitionReader().lines(partition)){
+            assertEquals(Arrays.asList(row("stb1", "3.00"), row("stb2", "2.00"), row("stb3", "1.00")),
+                    rowStream.sorted().collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void truncatedTailIsDropped() throws IOException {
+        writeAheadLog.append(Collections.singletonList(row("stb1", "1.00")));
+        writeAheadLog.append(Collections.singletonList(row("stb2", "1.00")));
+        Path logSegment = onlyLogSegment();
+        try(FileChannel channel = FileChannel.open(logSegment, StandardOpenOption.WRITE)){
+            channel.truncate(channel.size() - 3);
+        }
+
+        assertRecovered();
+    }
+
+    @Test
+    void corruptTailIsDropped() throws IOException {
+        writeAheadLog.append(Collections.singletonList(row("stb1", "1.00")));
+        writeAheadLog.append(Collections.singletonList(row("stb2", "1.00")));
+        Path logSegment = onlyLogSegment();
+        try(FileChannel channel = FileChannel.open(logSegment, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            channel.read(lastByte, channel.size() - 1);
+            lastByte.put(0, (byte) (lastByte.get(0) ^ 0xff));
+            lastByte.rewind();
+            channel.write(lastByte, channel.size() - 1);
+        }
+
+        assertRecovered();
+    }
+
+    /**
+     * Reopens the log as a restarted process would, after its second record was damaged
+     */
+    private void assertRecovered() throws IOException {
+        WriteAheadLog reopened = new WriteAheadLog(datastoreDirectory, fileParser);
+        assertEquals(Collections.singletonList(row("stb1", "1.00")), loggedRows(reopened));
+
+        // Appending cuts off the damaged record, so the new one is read after the last good one
+        reopened.append(Collections.singletonList(row("stb3", "1.00")));
+        assertEquals(Arrays.asList(row("stb1", "1.00"), row("stb3", "1.00")),
+                loggedRows(new WriteAheadLog(datastoreDirectory, fileParser)));
+    }
+
+    private void assertNewestRows() throws IOException {
+        KeyLookup keyLookup = new KeyLookup(writeAheadLog);
+        assertEquals(row("stb1", "3.00"), keyLookup.get("stb1", "alien", date));
+        assertEquals(row("stb2", "2.00"), keyLookup.get("stb2", "alien", date));
+        assertEquals(row("stb3", "1.00"), keyLookup.get("stb3", "alien", date));
+    }
+
+    private List<String> loggedRows(WriteAheadLog log) throws IOException {
+        Map<String, String> dateRows = log.pendingRows(-1).get(date);
+        return dateRows.values().stream().sorted().collect(Collectors.toList());
+    }
+
+    private Path onlyLogSegment() throws IOException {
+        try(Stream<Path> pathStream = Files.list(datastoreDirectory.resolve(Constants.walDirectory))){
+            List<Path> logSegments = pathStream.collect(Collectors.toList());
+            assertEquals(1, logSegments.size());
+            return logSegments.get(0);
+        }
+    }
+
+}
@@ -0,0 +1,36 @@
+package io.github.danielharada.loadtest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that percentiles are taken by nearest rank, and only reported when there are enough runs for them to
+ * be anything other than the slowest run
+ */
+class LoadTestTest {
+
+    @Test
+    void percentileNeedsEnoughRuns(){
+        long[] tenRuns = runs(10);
+        assertEquals("5.000", LoadTest.percentile(tenRuns, 50));
+        assertEquals("9.000", LoadTest.percentile(tenRuns, 90));
+        assertEquals("na", LoadTest.percentile(tenRuns, 99));
+        assertEquals("10.000", LoadTest.percentile(tenRuns, 100));
+
+        assertEquals("na", LoadTest.percentile(runs(99), 99));
+        assertEquals("99.000", LoadTest.percentile(runs(100), 99));
+        assertEquals("na", LoadTest.percentile(runs(1), 50));
+        assertEquals("1.000", LoadTest.percentile(runs(1), 100));
+    }
+
+    /**
+     * @return latencies of 1 to count milliseconds, in ascending order
+     */
+    private static long[] runs(int count){
+        return LongStream.rangeClosed(1, count).map(TimeUnit.MILLISECONDS::toNanos).toArray();
+    }
+}
@@ -0,0 +1,31 @@
+package io.github.danielharada.metrics;
+
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that every import path reports each row it read, and each it rejected, in its --stats output
+ */
+class MetricsTest extends DatastoreTest {
+
+    private final static List<String> rows = Arrays.asList(row("stb1", "1.00"), "not a row", row("stb2", "2.00"));
+
+    @Test
+    void importCountsRowsRead() throws IOException {
+        assertCounted(importRows(rows, "--stats"));
+        assertCounted(importRows(rows, "--stream", "--stats"));
+        assertCounted(importRows(rows, "--wal", "--stats"));
+    }
+
+    private void assertCounted(List<String> printed){
+        String counters = printed.get(0);
+        assertTrue(counters.contains(" rows_read=3 rows_rejected=1 "), counters);
+    }
+}
@@ -0,0 +1,85 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Checks that sorting within a small memory budget, with runs spilled to disk and merged back, gives the same
+ * order as a stable in memory sort, with or without binary sort keys
+ */
+class ExternalSorterTest extends DatastoreTest {
+
+    private final static int rowCount = 5000;
+    private final static String[] titles = {"alien", "Alien", "heat", "caf\u00e9", "t" + emoji, "\ufb01re", "up"};
+
+    private FieldEntryManager fieldEntryManager = new FieldEntryManager();
+
+    @Test
+    void spilledSortMatchesStableSort(){
+        List<String> rows = randomRows();
+        for(String orderArgs : new String[]{"REV", "TITLE,STB", "DATE,VIEW_TIME,REV", "PROVIDER"}){
+            FieldEntryComparator comparator = new FieldEntryComparator(orderArgs);
+            List<String> expected = stableSort(rows, comparator);
+            // About 8 rows at a time, so the sort spills hundreds of runs
+            long memoryLimit = 8 * (Constants.sortEntryOverhead + 100);
+            assertEquals(expected, sort(rows, new ExternalSorter(datastoreDirectory, memoryLimit, comparator), true), orderArgs);
+            assertEquals(expected, sort(rows, new ExternalSorter(datastoreDirectory, memoryLimit, comparator, comparator), true), orderArgs);
+            assertEquals(expected, sort(rows, new ExternalSorter(datastoreDirectory, Long.MAX_VALUE, comparator, comparator), false), orderArgs);
+            assertFalse(sortDirectoryExists());
+        }
+    }
+
+    /**
+     * Rows with many ties on every field, so the order of equal rows shows whether the sort is stable
+     */
+    private List<String> randomRows(){
+        Random random = new Random(1);
+        List<String> rows = new ArrayList<>();
+        for(int i = 0; i < rowCount; i++){
+            rows.add(String.join(Constants.inputDelimiter, "stb" + random.nextInt(50), titles[random.nextInt(titles.length)],
+                    random.nextBoolean() ? "fox" : "warner bros", "2014-04-0" + (1 + random.nextInt(3)),
+                    random.nextInt(20) + "." + (random.nextBoolean() ? "00" : "50"), random.nextInt(3) + ":0" + random.nextInt(10)));
+        }
+        return rows;
+    }
+
+    private List<String> stableSort(List<String> rows, FieldEntryComparator comparator){
+        List<FieldEntry> fieldEntries = fieldEntryManager.convertList(rows);
+        Collections.sort(fieldEntries, comparator);
+        List<String> sorted = new ArrayList<>();
+        fieldEntries.forEach(fieldEntry -> sorted.add(fieldEntryManager.convertToRow(fieldEntry)));
+        return sorted;
+    }
+
+    private List<String> sort(List<String> rows, ExternalSorter sorter, boolean spills){
+        rows.forEach(sorter::add);
+        List<String> sorted = new ArrayList<>();
+        sorter.sortAndMerge(fieldEntry -> {
+            assertEquals(spills, sortDirectoryExists());
+            sorted.add(fieldEntryManager.convertToRow(fieldEntry));
+        });
+        return sorted;
+    }
+
+    private boolean sortDirectoryExists(){
+        try(Stream<Path> pathStream = Files.list(datastoreDirectory)){
+            return pathStream.anyMatch(path -> path.getFileName().toString().startsWith(Constants.sortTempPrefix));
+        } catch(IOException e){
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that filter arguments compile into predicates that compare each field by its type, that AND binds
+ * tighter than OR, and that date pruning and equality collection only claim what every passing row must meet
+ */
+class FilterExpressionTest {
+
+    private final static String[] alien = fields("stb1|Alien|warner bros|2014-04-01|4.00|1:45");
+    private final static String[] heat = fields("stb2|the heat and the dust|fox|2014-04-03|12.50|10:05");
+
+    @Test
+    void fieldsCompareByTheirType(){
+        // 12.50 is below 4.00 as a string, and 10:05 below 1:45
+        assertPasses("REV > 4.00", false, true);
+        assertPasses("VIEW_TIME > 1:45", false, true);
+        assertPasses("DATE >= 2014-04-02", false, true);
+        assertPasses("title = ALIEN", true, false);
+        assertPasses("PROVIDER <> fox", true, false);
+        assertPasses("PROVIDER != 'fox'", true, false);
+        assertPasses("STB <= stb1", true, false);
+    }
+
+    @Test
+    void andBindsTighterThanOr(){
+        assertPasses("STB = stb2 OR REV = 4.00, PROVIDER = fox", false, true);
+        assertPasses("(STB = stb2 OR REV = 4.00) AND PROVIDER = fox", false, true);
+        assertPasses("(STB = stb2 OR REV = 4.00), PROVIDER = warner bros", true, false);
+        assertPasses("STB = stb3 OR STB = stb1 OR STB = stb2", true, true);
+    }
+
+    @Test
+    void inListsMatchAnyValue(){
+        assertPasses("REV IN (4, 12.5)", true, true);
+        assertPasses("TITLE IN (alien, 'x, y')", true, false);
+        assertPasses("TITLE NOT IN (alien)", false, true);
+    }
+
+    @Test
+    void bareValuesRunToTheNextKeyword(){
+        // Lower case "and" is part of the title, while upper case AND starts the next condition
+        assertPasses("TITLE = the heat and the dust AND REV > 1", false, true);
+        assertPasses("TITLE = \"the heat AND the dust\"", false, true);
+    }
+
+    @Test
+    void datePruningOnlyDecidesDateConditions(){
+        LocalDate first = LocalDate.parse("2014-04-01");
+        LocalDate second = LocalDate.parse("2014-04-02");
+        FilterExpression filter = FilterExpression.parse("DATE = 2014-04-01");
+        assertEquals(Boolean.TRUE, filter.testDate(first));
+        assertEquals(Boolean.FALSE, filter.testDate(second));
+
+        filter = FilterExpression.parse("DATE = 2014-04-01, STB = stb1");
+        assertNull(filter.testDate(first));
+        assertEquals(Boolean.FALSE, filter.testDate(second));
+
+        filter = FilterExpression.parse("DATE NOT IN (2014-04-02) OR STB = stb1");
+        assertEquals(Boolean.TRUE, filter.testDate(first));
+        assertNull(filter.testDate(second));
+    }
+
+    @Test
+    void equalitiesExcludeConditionsUnderOr(){
+        Map<String, String> equalities = new HashMap<>();
+        FilterExpression.parse("STB = stb1, (TITLE = alien OR REV = 1), PROVIDER != fox, DATE = 2014-04-01").collectEqualities(equalities);
+        Map<String, String> expected = new HashMap<>();
+        expected.put("stb", "stb1");
+        expected.put("date", "2014-04-01");
+        assertEquals(expected, equalities);
+    }
+
+    @Test
+    void collectsReferencedColumns(){
+        FilterExpression filter = FilterExpression.parse("(TITLE = alien OR VIEW_TIME < 1:00), DATE = 2014-04-01");
+        boolean[] columns = new boolean[Constants.fieldCount];
+        filter.collectColumns(columns);
+        assertArrayEquals(new boolean[]{false, true, false, true, false, true}, columns);
+        assertTrue(filter.hasNonDateColumns());
+        assertFalse(FilterExpression.parse("DATE < 2014-04-03").hasNonDateColumns());
+    }
+
+    @Test
+    void invalidFiltersAreRejected(){
+        for(String filterArgs : new String[]{"GENRE = drama", "REV = lots", "STB stb1", "STB NOT = stb1", "TITLE = 'alien",
+                "(STB = stb1", "STB = stb1)", "DATE IN (2014-04-01", "VIEW_TIME > 145"}){
+            assertThrows(IllegalArgumentException.class, () -> FilterExpression.parse(filterArgs), filterArgs);
+        }
+    }
+
+    private static String[] fields(String rowEntry){
+        return rowEntry.split(Pattern.quote(Constants.inputDelimiter));
+    }
+
+    private void assertPasses(String filterArgs, boolean alienPasses, boolean heatPasses){
+        FilterExpression filter = FilterExpression.parse(filterArgs);
+        assertEquals(alienPasses, filter.test(alien), filterArgs);
+        assertEquals(heatPasses, filter.test(heat), filterArgs);
+    }
+}
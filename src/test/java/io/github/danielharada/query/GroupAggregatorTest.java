@@ -0,0 +1,77 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that groups spilled to disk and merged back give the same output as groups held in memory, for every
+ * combination of ordering and limit, and that the spill files are removed afterwards
+ */
+class GroupAggregatorTest extends DatastoreTest {
+
+    private final static int groupCount = 100;
+    private final static String selectArgs = "TITLE,COUNT(*),SUM(REV),MIN(STB),MAX(VIEW_TIME)";
+
+    @Test
+    void spilledGroupsMatchGroupsInMemory(){
+        assertSameOutput(null, 0);
+        assertSameOutput(null, 7);
+        assertSameOutput("COUNT(*),TITLE", 7);
+        assertSameOutput("COUNT(*),TITLE", 0);
+        assertSameOutput("TITLE", groupCount * 2);
+    }
+
+    private void assertSameOutput(String orderArgs, int limit){
+        List<String> inMemory = aggregate(Long.MAX_VALUE, orderArgs, limit, false);
+        // A one byte budget spills our groups after every row
+        List<String> spilled = aggregate(1, orderArgs, limit, true);
+        assertEquals(limit > 0 ? Math.min(limit, groupCount) : groupCount, spilled.size());
+        if(orderArgs == null){
+            // Without an ordering any groups may be output, but each must be complete
+            assertTrue(aggregate(Long.MAX_VALUE, null, 0, false).containsAll(spilled));
+        }
+        else {
+            assertEquals(inMemory, spilled);
+        }
+        assertFalse(spillDirectoryExists());
+    }
+
+    /**
+     * Aggregates rows for our groups, where group i has (i % 5) + 1 rows, so counts tie across groups
+     */
+    private List<String> aggregate(long memoryLimit, String orderArgs, int limit, boolean spills){
+        GroupAggregator groupAggregator = new GroupAggregator(selectArgs, "TITLE", datastoreDirectory, memoryLimit);
+        for(int i = 0; i < groupCount; i++){
+            for(int j = 0; j <= i % 5; j++){
+                groupAggregator.add(row("stb" + j, "title" + i, i + "." + j + "5"));
+            }
+        }
+        List<String> results = new ArrayList<>();
+        groupAggregator.output(orderArgs, limit, result -> {
+            assertEquals(spills, spillDirectoryExists());
+            results.add(String.join(",", result));
+        });
+        return results;
+    }
+
+    private boolean spillDirectoryExists(){
+        try(Stream<Path> pathStream = Files.list(datastoreDirectory)){
+            return pathStream.anyMatch(path -> path.getFileName().toString().startsWith(Constants.groupTempPrefix));
+        } catch(IOException e){
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs queries end to end over a small datastore and checks what they print
+ */
+class QueryTest extends DatastoreTest {
+
+    @BeforeEach
+    void importViews() throws IOException {
+        importRows(Arrays.asList(
+                "stb1|alien|warner bros|2014-04-01|4.00|1:00",
+                "stb2|alien|warner bros|2014-04-01|5.00|1:10",
+                "stb3|heat|fox|2014-04-01|6.00|2:00",
+                "stb4|heat|warner bros|2014-04-02|6.00|1:30",
+                "stb5|up|warner bros|2014-04-02|6.00|0:45"));
+    }
+
+    @Test
+    void limitCountsGroupsRatherThanRows(){
+        assertEquals(Collections.singletonList("warner bros,21.00,4"),
+                run("-q", "-s", "PROVIDER,SUM(REV),COUNT(*)", "-g", "PROVIDER", "-l", "1"));
+        assertEquals(Arrays.asList("warner bros,21.00,4", "fox,6.00,1"),
+                run("-q", "-s", "PROVIDER,SUM(REV),COUNT(*)", "-g", "PROVIDER", "-l", "2"));
+    }
+
+    @Test
+    void orderedLimitKeepsFirstRowsOfOrder(){
+        for(String orderArgs : new String[]{"REV", "TITLE,VIEW_TIME", "PROVIDER"}){
+            List<String> ordered = run("-q", "-s", "STB", "-o", orderArgs);
+            for(int limit = 1; limit <= 6; limit++){
+                assertEquals(ordered.subList(0, Math.min(limit, ordered.size())),
+                        run("-q", "-s", "STB", "-o", orderArgs, "-l", String.valueOf(limit)), orderArgs + " limit " + limit);
+            }
+        }
+    }
+
+    @Test
+    void unorderedLimitStopsScanEarly(){
+        List<String> printed = run("-q", "-s", "STB", "-l", "2", "--stats");
+        assertEquals(Arrays.asList("stb1", "stb2"), printed.subList(0, 2));
+        // Both rows come from the first date's partition, so the second is never opened
+        assertTrue(printed.get(2).contains(" partitions_opened=1 "), printed.get(2));
+    }
+
+    @Test
+    void aggregateWithoutGroupsReadsEveryRow(){
+        assertEquals(Collections.singletonList("27.00,5"), run("-q", "-s", "SUM(REV),COUNT(*)", "-l", "1"));
+    }
+
+    @Test
+    void partitionUnderSegmentIsStillPrefiltered() throws IOException {
+        // A high ratio keeps the replacement row in its own delta segment over the partition
+        importRows(Collections.singletonList("stb1|alien|fox|2014-04-01|7.00|1:00"), "--compact-ratio", "1000");
+
+        assertEquals(Collections.singletonList("stb1,fox,7.00"), run("-q", "-s", "STB,PROVIDER,REV", "-f", "STB=stb1"));
+        assertEquals(Collections.singletonList("stb2"),
+                run("-q", "-s", "STB", "-f", "PROVIDER=warner bros,DATE=2014-04-01"));
+        // The index on STB picks out the partition's one candidate row, rather than it being scanned in full
+        List<String> printed = run("-q", "-s", "STB", "-f", "STB=stb2", "--stats");
+        assertEquals("stb2", printed.get(0));
+        assertTrue(printed.get(1).contains(" rows_scanned=2 "), printed.get(1));
+    }
+}
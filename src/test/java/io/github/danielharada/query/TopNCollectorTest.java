@@ -0,0 +1,63 @@
+package io.github.danielharada.query;
+
+import io.github.danielharada.Constants;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that keeping the first N entries of an ordering as rows stream past gives the same rows, in the same
+ * order, as a stable sort of every row followed by taking the first N
+ */
+class TopNCollectorTest {
+
+    private FieldEntryManager fieldEntryManager = new FieldEntryManager();
+
+    @Test
+    void keepsFirstEntriesOfStableSort(){
+        List<String> rows = randomRows();
+        for(String orderArgs : new String[]{"REV", "TITLE,STB", "VIEW_TIME,REV"}){
+            FieldEntryComparator comparator = new FieldEntryComparator(orderArgs);
+            List<String> sorted = stableSort(rows, comparator);
+            for(int limit : new int[]{0, 1, 10, 150, rows.size(), rows.size() + 5}){
+                assertEquals(sorted.subList(0, Math.min(limit, sorted.size())), collect(rows, limit, comparator),
+                        orderArgs + " limit " + limit);
+            }
+        }
+    }
+
+    /**
+     * Rows with many ties, so the order of equal rows shows whether ties keep their arrival order
+     */
+    private List<String> randomRows(){
+        Random random = new Random(1);
+        List<String> rows = new ArrayList<>();
+        for(int i = 0; i < 1000; i++){
+            rows.add(String.join(Constants.inputDelimiter, "stb" + i, "t" + random.nextInt(4), "warner bros",
+                    "2014-04-01", random.nextInt(10) + ".00", random.nextInt(3) + ":0" + random.nextInt(10)));
+        }
+        return rows;
+    }
+
+    private List<String> stableSort(List<String> rows, FieldEntryComparator comparator){
+        List<FieldEntry> fieldEntries = fieldEntryManager.convertList(rows);
+        Collections.sort(fieldEntries, comparator);
+        List<String> sorted = new ArrayList<>();
+        fieldEntries.forEach(fieldEntry -> sorted.add(fieldEntryManager.convertToRow(fieldEntry)));
+        return sorted;
+    }
+
+    private List<String> collect(List<String> rows, int limit, FieldEntryComparator comparator){
+        TopNCollector collector = new TopNCollector(limit, comparator);
+        rows.forEach(collector::add);
+        List<String> collected = new ArrayList<>();
+        collector.output(fieldEntry -> collected.add(fieldEntryManager.convertToRow(fieldEntry)));
+        return collected;
+    }
+}
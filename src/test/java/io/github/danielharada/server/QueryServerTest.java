@@ -0,0 +1,80 @@
+package io.github.danielharada.server;
+
+import io.github.danielharada.ArgumentFlags;
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a request's messages and failures reach its client rather than the server's own output
+ */
+class QueryServerTest extends DatastoreTest {
+
+    private int port;
+    private QueryServer queryServer;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        try(ServerSocket serverSocket = new ServerSocket(0)){
+            port = serverSocket.getLocalPort();
+        }
+        queryServer = new QueryServer(new ArgumentFlags(new String[]{"--serve", String.valueOf(port)}));
+        queryServer.start();
+    }
+
+    @AfterEach
+    void stopServer(){
+        queryServer.stop();
+    }
+
+    @Test
+    void missingImportFileIsReportedToClient() throws IOException {
+        HttpURLConnection connection = post("-i\nno-such-file.txt");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("The file no-such-file.txt does not exist\n", read(connection.getInputStream()));
+    }
+
+    @Test
+    void failedRequestIsAnsweredWithErrorStatus() throws IOException {
+        HttpURLConnection connection = post("-q\n-s\nSTB\n-l\nmany");
+        assertEquals(400, connection.getResponseCode());
+        assertTrue(read(connection.getErrorStream()).contains("many"));
+    }
+
+    private HttpURLConnection post(String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http", Constants.serverHost, port, "/").openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try(OutputStream requestBody = connection.getOutputStream()){
+            requestBody.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        return connection;
+    }
+
+    private String read(InputStream responseBody) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(InputStream input = responseBody){
+            byte[] buffer = new byte[Constants.outputBufferSize];
+            int count;
+            while((count = input.read(buffer)) >= 0){
+                bytes.write(buffer, 0, count);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
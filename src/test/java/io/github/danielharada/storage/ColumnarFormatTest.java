@@ -0,0 +1,57 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that partitions converted to the columnar format read back exactly as they were written
+ */
+class ColumnarFormatTest extends DatastoreTest {
+
+    private final static List<String> rows = Arrays.asList(row("stb1", "alien", "1.00"), row("stb2", "t" + emoji + "000", "12.34"),
+            row("stb3", "caf\u00e9", "0.05"), row("stb4", "t" + emoji + "000", "100.00"));
+
+    private PartitionWriter partitionWriter = new PartitionWriter();
+    private ColumnarFormat columnarFormat = new ColumnarFormat();
+
+    @Test
+    void convertedPartitionRoundTrips() throws IOException {
+        Path partition = datastoreDirectory.resolve(date);
+        Files.write(partition, rows, StandardCharsets.UTF_8);
+
+        partitionWriter.convert(partition, Constants.columnarFormat);
+        assertTrue(columnarFormat.isColumnar(partition));
+        try(Stream<String> rowStream = columnarFormat.lines(partition)){
+            assertEquals(rows, rowStream.collect(Collectors.toList()));
+        }
+
+        partitionWriter.convert(partition, Constants.textFormat);
+        assertEquals(rows, Files.readAllLines(partition, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void readsRequestedColumnsAndRows() throws IOException {
+        Path partition = datastoreDirectory.resolve(date);
+        columnarFormat.write(partition, rows);
+
+        boolean[] columns = {false, true, false, false, true, false};
+        List<String> readRows = new ArrayList<>();
+        columnarFormat.read(partition, columns, new long[]{1, 3}, readRows::add);
+        assertEquals(Arrays.asList("|t" + emoji + "000|||12.34|", "|t" + emoji + "000|||100.00|"), readRows);
+    }
+}
@@ -0,0 +1,109 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that partitions converted to the compressed format read back exactly as they were written, whether
+ * streamed, scanned or read by row number, and across many blocks
+ */
+class CompressedFormatTest extends DatastoreTest {
+
+    private final static boolean[] allColumns = PartitionReader.allColumns();
+
+    private PartitionWriter partitionWriter = new PartitionWriter();
+    private CompressedFormat compressedFormat = new CompressedFormat();
+    private Path partition = datastoreDirectory.resolve(date);
+
+    @Test
+    void convertedPartitionRoundTrips() throws IOException {
+        List<String> rows = manyRows();
+        Files.write(partition, rows, StandardCharsets.UTF_8);
+        long textSize = Files.size(partition);
+
+        partitionWriter.convert(partition, Constants.compressedFormat);
+        assertTrue(compressedFormat.isCompressed(partition));
+        assertTrue(Files.size(partition) < textSize);
+        assertArrayEquals(new long[]{rows.size(), textSize}, compressedFormat.measure(partition));
+        try(Stream<String> rowStream = compressedFormat.lines(partition)){
+            assertEquals(rows, rowStream.collect(Collectors.toList()));
+        }
+        assertEquals(rows, scan(Collections.emptyList()));
+
+        partitionWriter.convert(partition, Constants.textFormat);
+        assertFalse(compressedFormat.isCompressed(partition));
+        assertEquals(rows, Files.readAllLines(partition, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void readsRequestedRowsAcrossBlocks() throws IOException {
+        List<String> rows = manyRows();
+        compressedFormat.write(partition, rows);
+
+        long[] rowNumbers = {0, 1, 999, 1000, 12345, rows.size() - 1};
+        List<String> readRows = new ArrayList<>();
+        compressedFormat.read(partition, rowNumbers, readRows::add);
+        List<String> expected = new ArrayList<>();
+        for(long rowNumber : rowNumbers){
+            expected.add(rows.get((int) rowNumber));
+        }
+        assertEquals(expected, readRows);
+    }
+
+    @Test
+    void scanFiltersRowsInOrder() throws IOException {
+        List<String> rows = manyRows();
+        compressedFormat.write(partition, rows);
+
+        assertEquals(Collections.singletonList(rows.get(15000)),
+                scan(Collections.singletonList(new TextScanner.ByteFilter(0, "STB15000", true))));
+        assertEquals(rows.stream().filter(rowEntry -> rowEntry.contains("|8.00|")).collect(Collectors.toList()),
+                scan(Collections.singletonList(new TextScanner.ByteFilter(4, "8.00", false))));
+    }
+
+    @Test
+    void emptyPartitionRoundTrips() throws IOException {
+        compressedFormat.write(partition, Collections.emptyList());
+
+        assertTrue(compressedFormat.isCompressed(partition));
+        assertArrayEquals(new long[]{0, 0}, compressedFormat.measure(partition));
+        try(Stream<String> rowStream = compressedFormat.lines(partition)){
+            assertEquals(0, rowStream.count());
+        }
+        assertEquals(Collections.emptyList(), scan(Collections.emptyList()));
+    }
+
+    /**
+     * Enough rows, some with multi-byte characters, to fill a few dozen blocks
+     */
+    private List<String> manyRows(){
+        List<String> rows = new ArrayList<>();
+        for(int i = 0; i < 30000; i++){
+            rows.add(row("stb" + i, (i % 3 == 0 ? "t" + emoji : "caf\u00e9") + i, (i % 10) + ".00"));
+        }
+        return rows;
+    }
+
+    private List<String> scan(List<TextScanner.ByteFilter> byteFilters) throws IOException {
+        List<String> scanned = new ArrayList<>();
+        compressedFormat.scan(partition, allColumns, byteFilters, scanned::add);
+        return scanned;
+    }
+}
@@ -0,0 +1,170 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that dates are spread across roots so that adding or dropping a root only moves the dates it gains or
+ * loses, and that queries see every row while roots change and once a rebalance has moved dates into place
+ */
+class DataRootsTest extends DatastoreTest {
+
+    private final static int dateCount = 40;
+
+    private Path[] extraRoots = {Paths.get("root-a"), Paths.get("root-b"), Paths.get("root-c")};
+
+    @AfterEach
+    void deleteRoots() throws IOException {
+        for(Path root : extraRoots){
+            deleteTree(root);
+        }
+    }
+
+    @Test
+    void addingRootOnlyMovesDatesToIt(){
+        DataRoots before = new DataRoots(Arrays.asList(datastoreDirectory, extraRoots[0], extraRoots[1]));
+        DataRoots after = new DataRoots(Arrays.asList(datastoreDirectory, extraRoots[0], extraRoots[1], extraRoots[2]));
+
+        int[] placedBefore = new int[3];
+        int moved = 0;
+        for(String date : dates(1000)){
+            placedBefore[before.place(date)]++;
+            if(after.place(date) != before.place(date)){
+                assertEquals(3, after.place(date), date);
+                moved++;
+            }
+        }
+        for(int count : placedBefore){
+            assertTrue(count > 250 && count < 420, Arrays.toString(placedBefore));
+        }
+        assertTrue(moved > 170 && moved < 330, moved + " dates moved");
+        // A root's name, not its position in the list, decides which dates it wins
+        DataRoots reordered = new DataRoots(Arrays.asList(datastoreDirectory, extraRoots[2], extraRoots[1], extraRoots[0]));
+        for(String date : dates(100)){
+            assertEquals(after.roots().get(after.place(date)), reordered.roots().get(reordered.place(date)));
+        }
+    }
+
+    @Test
+    void locatePrefersRootHoldingDate() throws IOException {
+        DataRoots dataRoots = new DataRoots(Arrays.asList(datastoreDirectory, extraRoots[0]));
+        Path placed = dataRoots.roots().get(dataRoots.place(date));
+        Path other = dataRoots.roots().get(1 - dataRoots.place(date));
+        Files.createDirectories(extraRoots[0]);
+        assertEquals(placed.resolve(date), dataRoots.locate(date));
+
+        Files.createDirectories(other.resolve(date + Constants.segmentDirectorySuffix));
+        assertEquals(other.resolve(date), dataRoots.locate(date));
+        Files.write(placed.resolve(date), Collections.singletonList(row("stb1", "1.00")), StandardCharsets.UTF_8);
+        assertEquals(placed.resolve(date), dataRoots.locate(date));
+
+        dataRoots.move(date, placed, other);
+        assertEquals(Collections.singleton(date), dataRoots.dates(other));
+        assertEquals(Collections.emptySet(), dataRoots.dates(placed));
+        assertEquals(Collections.singletonList(row("stb1", "1.00")), Files.readAllLines(other.resolve(date), StandardCharsets.UTF_8));
+        assertEquals(other.resolve(date), dataRoots.locate(date));
+    }
+
+    @Test
+    void rootsFileRoundTrips() throws IOException {
+        Path rootsFile = datastoreDirectory.resolve(Constants.rootsFile);
+        assertEquals(Collections.singletonList(datastoreDirectory), DataRoots.read(datastoreDirectory, rootsFile));
+        List<Path> roots = Arrays.asList(datastoreDirectory, extraRoots[0], extraRoots[1]);
+        new DataRoots(roots).write(rootsFile);
+        assertEquals(roots, DataRoots.load(datastoreDirectory).roots());
+    }
+
+    @Test
+    void queriesSeeEveryRowAsRootsChange() throws IOException {
+        run("--roots", roots(0, 1));
+        List<String> rows = new ArrayList<>();
+        for(String date : dates(dateCount)){
+            rows.add(String.join(Constants.inputDelimiter, "stb1", "alien", "warner bros", date, "1.00", "1:45"));
+        }
+        importRows(rows);
+        List<String> stbRows = new ArrayList<>();
+        rows.forEach(rowEntry -> stbRows.add(rowEntry.replace("1.00", "2.00").replace("stb1", "stb2")));
+        // A high ratio leaves the second import in delta segments, which have to move along with their partitions
+        importRows(stbRows, "--compact-ratio", "1000");
+        List<String> expected = query();
+        assertEquals(2 * dateCount, expected.size());
+        assertPlaced(DataRoots.load(datastoreDirectory));
+        assertTrue(hasSegments(DataRoots.load(datastoreDirectory)));
+
+        run("--roots", roots(0, 1, 2));
+        assertEquals(expected, query());
+        List<String> printed = run("--rebalance");
+        assertTrue(printed.get(0).matches("Moved [1-9][0-9]* of " + dateCount + " dates across 4 roots"), printed.get(0));
+        assertPlaced(DataRoots.load(datastoreDirectory));
+        assertTrue(hasSegments(DataRoots.load(datastoreDirectory)));
+        assertEquals(expected, query());
+
+        // Dropping a root moves its dates out straight away
+        run("--roots", roots(0, 2));
+        DataRoots dataRoots = DataRoots.load(datastoreDirectory);
+        assertEquals(Arrays.asList(datastoreDirectory, extraRoots[0], extraRoots[2]), dataRoots.roots());
+        assertEquals(Collections.emptySet(), dataRoots.dates(extraRoots[1]));
+        assertPlaced(dataRoots);
+        assertEquals(expected, query());
+    }
+
+    /**
+     * Checks every date is in the root it belongs in and nowhere else
+     */
+    private void assertPlaced(DataRoots dataRoots) throws IOException {
+        int dates = 0;
+        for(Path root : dataRoots.roots()){
+            for(String date : dataRoots.dates(root)){
+                assertEquals(root, dataRoots.roots().get(dataRoots.place(date)), date);
+                dates++;
+            }
+        }
+        assertEquals(dateCount, dates);
+    }
+
+    /**
+     * @return true if the first date's delta segments are next to its partition
+     */
+    private boolean hasSegments(DataRoots dataRoots){
+        return Files.isDirectory(dataRoots.locate(date).resolveSibling(date + Constants.segmentDirectorySuffix));
+    }
+
+    private List<String> query(){
+        List<String> printed = new ArrayList<>(run("-q", "-s", "STB,DATE,REV"));
+        Collections.sort(printed);
+        return printed;
+    }
+
+    private String roots(int... indexes){
+        List<String> roots = new ArrayList<>();
+        for(int index : indexes){
+            roots.add(extraRoots[index].toString());
+        }
+        return String.join(",", roots);
+    }
+
+    private static List<String> dates(int count){
+        List<String> dates = new ArrayList<>();
+        for(int i = 0; i < count; i++){
+            dates.add(LocalDate.parse(date).plusDays(i).toString());
+        }
+        return dates;
+    }
+}
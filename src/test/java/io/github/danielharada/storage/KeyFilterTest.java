@@ -0,0 +1,102 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that key filters never miss a key they were given, in any case, keep close to their false positive
+ * rate, and are only read back while they still match the file they describe
+ */
+class KeyFilterTest extends DatastoreTest {
+
+    private final static int keyCount = 10000;
+
+    @Test
+    void addedKeysAreFoundIgnoringCase(){
+        KeyFilter keyFilter = filledFilter(0.01);
+        for(int i = 0; i < keyCount; i++){
+            assertTrue(keyFilter.mightContain(key(i)));
+            assertTrue(keyFilter.mightContain(key(i).toUpperCase(Locale.ROOT)));
+        }
+        keyFilter.add("stb1|caf\u00e9|2014-04-01");
+        assertTrue(keyFilter.mightContain("STB1|CAF\u00c9|2014-04-01"));
+    }
+
+    @Test
+    void falsePositivesStayNearRate(){
+        for(double rate : new double[]{0.1, 0.01, 0.001}){
+            KeyFilter keyFilter = filledFilter(rate);
+            int falsePositives = 0;
+            int checks = 100000;
+            for(int i = keyCount; i < keyCount + checks; i++){
+                if(keyFilter.mightContain(key(i))){
+                    falsePositives++;
+                }
+            }
+            // Filters are sized for twice the keys we added, so they should do better than their rate
+            assertTrue(falsePositives <= checks * rate, rate + " rate gave " + falsePositives + " false positives");
+        }
+    }
+
+    @Test
+    void hasCapacityForHeadroom(){
+        KeyFilter keyFilter = filledFilter(0.01);
+        assertTrue(keyFilter.hasCapacity(keyCount * (Constants.keyFilterHeadroom - 1)));
+        assertFalse(keyFilter.hasCapacity(keyCount * (Constants.keyFilterHeadroom - 1) + 1));
+        assertTrue(new KeyFilter(1, 0.01).hasCapacity(Constants.keyFilterMinimumKeys - 1));
+    }
+
+    @Test
+    void filterIsOnlyReadWhileItMatchesItsFile() throws IOException {
+        Path partition = datastoreDirectory.resolve(date);
+        Files.write(partition, Collections.singletonList(row("stb1", "1.00")), StandardCharsets.UTF_8);
+        assertNull(KeyFilter.read(partition));
+
+        KeyFilter keyFilter = filledFilter(0.01);
+        keyFilter.write(partition);
+        KeyFilter readFilter = KeyFilter.read(partition);
+        assertNotNull(readFilter);
+        for(int i = 0; i < keyCount; i++){
+            assertTrue(readFilter.mightContain(key(i)));
+        }
+
+        Files.write(partition, Collections.singletonList(row("stb2", "2.00")), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        assertNull(KeyFilter.read(partition));
+
+        keyFilter.write(partition);
+        Files.write(KeyFilter.filterPath(partition), Arrays.copyOf(Files.readAllBytes(KeyFilter.filterPath(partition)), 20));
+        assertNull(KeyFilter.read(partition));
+
+        KeyFilter.delete(partition);
+        assertFalse(Files.exists(KeyFilter.filterPath(partition)));
+        assertNull(KeyFilter.read(partition));
+    }
+
+    private KeyFilter filledFilter(double falsePositiveRate){
+        KeyFilter keyFilter = new KeyFilter(keyCount, falsePositiveRate);
+        for(int i = 0; i < keyCount; i++){
+            keyFilter.add(key(i));
+        }
+        return keyFilter;
+    }
+
+    private static String key(int i){
+        return String.join(Constants.inputDelimiter, "stb" + i, "t" + (i % 7), date);
+    }
+}
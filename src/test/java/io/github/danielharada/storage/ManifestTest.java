@@ -0,0 +1,76 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a pinned version keeps its files readable while newer versions are published and older ones
+ * collected, and is collected itself once released
+ */
+class ManifestTest extends DatastoreTest {
+
+    private Manifest manifest;
+
+    @BeforeEach
+    void createManifest(){
+        manifest = new Manifest(datastoreDirectory);
+    }
+
+    @Test
+    void pinnedVersionSurvivesPublishAndCollect() throws IOException {
+        replacePartition("first");
+        long firstVersion = manifest.publish();
+        long secondVersion;
+        try(Manifest.Version version = manifest.pin()){
+            assertEquals(firstVersion, version.number());
+
+            replacePartition("second");
+            secondVersion = manifest.publish();
+            replacePartition("third");
+            long thirdVersion = manifest.publish();
+            assertTrue(firstVersion < secondVersion && secondVersion < thirdVersion);
+
+            // Publishing collects the unpinned version between, but not the one we hold
+            assertFalse(Files.exists(versionDirectory(secondVersion)));
+            assertTrue(Files.exists(versionDirectory(firstVersion)));
+            assertEquals("first", read(version.roots().locate(date)));
+        }
+
+        // Releasing the last pin on a superseded version collects it
+        assertFalse(Files.exists(versionDirectory(firstVersion)));
+        try(Manifest.Version version = manifest.pin()){
+            assertEquals("third", read(version.roots().locate(date)));
+        }
+    }
+
+    /**
+     * Writes a new partition file and renames it over the old one, as writers do
+     */
+    private void replacePartition(String contents) throws IOException {
+        Path tempFile = Files.createTempFile(datastoreDirectory, ".tmp", "");
+        Files.write(tempFile, contents.getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, datastoreDirectory.resolve(date), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private String read(Path partition) throws IOException {
+        return new String(Files.readAllBytes(partition), StandardCharsets.UTF_8);
+    }
+
+    private Path versionDirectory(long version){
+        return datastoreDirectory.resolve(Constants.manifestDirectory).resolve(String.format("%010d", version));
+    }
+}
@@ -0,0 +1,84 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Checks that a secondary index finds the rows holding a value, ignoring case as our filters do
+ */
+class SecondaryIndexTest extends DatastoreTest {
+
+    private final static List<String> rows = Arrays.asList(row("stb1", "Alien", "1.00"), row("stb2", "t" + emoji + "150", "2.00"),
+            row("stb3", "ALIEN", "3.00"), row("stb4", "heat", "4.00"), row("stb5", "t" + emoji + "150", "5.00"));
+
+    private SecondaryIndex secondaryIndex = new SecondaryIndex();
+    private PartitionReader partitionReader = new PartitionReader();
+
+    @Test
+    void findsRowsInTextPartition() throws IOException {
+        assertFindsRows(writePartition());
+    }
+
+    @Test
+    void findsRowsInColumnarPartition() throws IOException {
+        Path partition = writePartition();
+        new PartitionWriter().convert(partition, Constants.columnarFormat);
+        assertFindsRows(partition);
+    }
+
+    @Test
+    void ignoresCaseWhateverTheDefaultLocale() throws IOException {
+        Locale defaultLocale = Locale.getDefault();
+        // Turkish lower cases I to a dotless i, so locale sensitive lower casing would miss ALIEN
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertFindsRows(writePartition());
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    @Test
+    void ignoresIndexOfChangedPartition() throws IOException {
+        Path partition = writePartition();
+        secondaryIndex.build(partition);
+        Files.write(partition, Collections.singletonList(row("stb9", "alien", "9.00")), StandardCharsets.UTF_8);
+        assertNull(secondaryIndex.lookup(partition, "title", "alien"));
+    }
+
+    private Path writePartition() throws IOException {
+        Path partition = datastoreDirectory.resolve(date);
+        Files.write(partition, rows, StandardCharsets.UTF_8);
+        return partition;
+    }
+
+    private void assertFindsRows(Path partition) throws IOException {
+        secondaryIndex.build(partition);
+        assertEquals(Arrays.asList(rows.get(0), rows.get(2)), lookup(partition, "title", "alien"));
+        assertEquals(Arrays.asList(rows.get(1), rows.get(4)), lookup(partition, "title", "T" + emoji + "150"));
+        assertEquals(Collections.singletonList(rows.get(3)), lookup(partition, "stb", "STB4"));
+        assertEquals(rows, lookup(partition, "provider", "Warner Bros"));
+        assertEquals(Collections.emptyList(), lookup(partition, "title", "heat2"));
+    }
+
+    private List<String> lookup(Path partition, String field, String value) throws IOException {
+        List<String> found = new ArrayList<>();
+        partitionReader.readAt(partition, secondaryIndex.lookup(partition, field, value), PartitionReader.allColumns(), found::add);
+        return found;
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+import io.github.danielharada.dataimport.FileParser;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a sparse index leads every key of a sorted partition to the block holding it
+ */
+class SparseIndexTest extends DatastoreTest {
+
+    private final static int rowCount = Constants.sparseIndexStride * 5 + 7;
+
+    private FileParser fileParser = new FileParser();
+    private SparseIndex sparseIndex = new SparseIndex();
+
+    @Test
+    void findsEveryKeyInTextPartition() throws IOException {
+        assertFindsEveryKey(writePartition());
+    }
+
+    @Test
+    void findsEveryKeyInColumnarPartition() throws IOException {
+        Path partition = writePartition();
+        new PartitionWriter().convert(partition, Constants.columnarFormat);
+        assertFindsEveryKey(partition);
+    }
+
+    @Test
+    void ignoresUnsortedPartition() throws IOException {
+        Path partition = writePartition();
+        List<String> rows = Files.readAllLines(partition, StandardCharsets.UTF_8);
+        rows.add(rows.remove(0));
+        Files.write(partition, rows, StandardCharsets.UTF_8);
+        assertFalse(sparseIndex.build(partition, fileParser::parseKey));
+        assertNull(sparseIndex.readBlock(partition, fileParser.parseKey(rows.get(0))));
+    }
+
+    /**
+     * Writes a sorted text partition whose titles, and so keys, hold a character outside the Basic Multilingual Plane
+     */
+    private Path writePartition() throws IOException {
+        Path partition = datastoreDirectory.resolve(date);
+        Files.write(partition, IntStream.range(0, rowCount)
+                .mapToObj(i -> row("s", String.format("t%s%03d", emoji, i), "1.00"))
+                .collect(Collectors.toList()), StandardCharsets.UTF_8);
+        return partition;
+    }
+
+    private void assertFindsEveryKey(Path partition) throws IOException {
+        assertTrue(sparseIndex.build(partition, fileParser::parseKey));
+        for(int i = 0; i < rowCount; i++){
+            String rowEntry = row("s", String.format("t%s%03d", emoji, i), "1.00");
+            List<String> block = sparseIndex.readBlock(partition, fileParser.parseKey(rowEntry));
+            assertTrue(block.size() <= Constants.sparseIndexStride);
+            assertTrue(block.contains(rowEntry), rowEntry);
+        }
+        // A key sorting before the first row has no block, and one between rows has a block without it
+        assertTrue(sparseIndex.readBlock(partition, fileParser.parseKey(row("a", "alien", "1.00"))).isEmpty());
+        String missing = row("s", "t" + emoji + "100x", "1.00");
+        assertFalse(sparseIndex.readBlock(partition, fileParser.parseKey(missing)).contains(missing));
+    }
+}
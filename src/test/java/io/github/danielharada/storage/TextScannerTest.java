@@ -0,0 +1,93 @@
+package io.github.danielharada.storage;
+
+import io.github.danielharada.Constants;
+import io.github.danielharada.DatastoreTest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a text partition scans the same however its lines fall across the blocks it is read in, and that
+ * byte filters ignore case as our filters do
+ */
+class TextScannerTest extends DatastoreTest {
+
+    private final static boolean[] allColumns = PartitionReader.allColumns();
+
+    @Test
+    void linesSpanningBlocksAreScannedWhole() throws IOException {
+        List<String> rows = new ArrayList<>();
+        long bytes = 0;
+        for(int i = 0; bytes < Constants.scanBlockSize * 3L; i++){
+            // Multi-byte characters, so some blocks also end partway through a character
+            rows.add(row("stb" + i, "t" + emoji + i, "1.00"));
+            bytes += rows.get(i).getBytes(StandardCharsets.UTF_8).length + 1;
+        }
+        // A line longer than a block, which the block has to grow to fit
+        char[] longTitle = new char[Constants.scanBlockSize + 100];
+        Arrays.fill(longTitle, 'x');
+        String longRow = row("stbLong", new String(longTitle), "2.00");
+        rows.add(rows.size() / 2, longRow);
+        Path partition = writePartition(rows);
+
+        assertScannedWhole(rows, scan(partition, Collections.emptyList()));
+        assertScannedWhole(Collections.singletonList(longRow),
+                scan(partition, Collections.singletonList(new TextScanner.ByteFilter(0, "STBLONG", true))));
+        // The last line has no newline after it
+        Files.write(partition, String.join("\n", rows).getBytes(StandardCharsets.UTF_8));
+        assertScannedWhole(rows, scan(partition, Collections.emptyList()));
+    }
+
+    @Test
+    void emptyPartitionHasNoRows() throws IOException {
+        assertEquals(Collections.emptyList(), scan(writePartition(Collections.emptyList()), Collections.emptyList()));
+    }
+
+    @Test
+    void byteFilterIgnoresCaseWhateverTheDefaultLocale() throws IOException {
+        Path partition = writePartition(Arrays.asList(row("stb1", "alien", "1.00"), row("stb2", "heat", "2.00")));
+        Locale defaultLocale = Locale.getDefault();
+        // Turkish lower cases I to a dotless i, so locale sensitive lower casing would miss alien
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            assertEquals(Collections.singletonList(row("stb1", "alien", "1.00")),
+                    scan(partition, Collections.singletonList(new TextScanner.ByteFilter(1, "ALIEN", true))));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    /**
+     * Compares without printing every row on a mismatch, as one of them is over a block long
+     */
+    private void assertScannedWhole(List<String> expected, List<String> scanned){
+        assertEquals(expected.size(), scanned.size());
+        for(int i = 0; i < expected.size(); i++){
+            assertTrue(expected.get(i).equals(scanned.get(i)), "Row " + i + " differs");
+        }
+    }
+
+    private Path writePartition(List<String> rows) throws IOException {
+        Path partition = datastoreDirectory.resolve(date);
+        Files.write(partition, rows, StandardCharsets.UTF_8);
+        return partition;
+    }
+
+    private List<String> scan(Path partition, List<TextScanner.ByteFilter> byteFilters) throws IOException {
+        List<String> scanned = new ArrayList<>();
+        new TextScanner().scan(partition, allColumns, byteFilters, scanned::add);
+        return scanned;
+    }
+}